@@ -32,6 +32,7 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -71,6 +72,10 @@ public class ObjectRenderer {
   private int indexCount;
 
   private int program;
+  // Linked programs without and with depth-based occlusion, compiled on first use and kept so that
+  // toggling occlusion does not recompile them. They belong to the GL context they were compiled
+  // in, and are forgotten by createOnGlThread.
+  private final int[] programs = new int[2];
   private final int[] textures = new int[1];
 
   // Shader location: model view projection matrix.
@@ -135,6 +140,8 @@ public class ObjectRenderer {
    */
   public void createOnGlThread(Context context, String objAssetName, String diffuseTextureAssetName)
       throws IOException {
+    // Programs compiled by an earlier call belong to a GL context that may have been lost since.
+    Arrays.fill(programs, 0);
     // Compiles and loads the shader based on the current configuration.
     compileAndLoadShaderProgram(context);
 
@@ -235,9 +242,8 @@ public class ObjectRenderer {
    * from real-world geometry.
    *
    * <p>This function is a no-op if the value provided is the same as what is already set. If the
-   * value changes, this function will recompile and reload the shader program to either
-   * enable/disable depth-based occlusion. NOTE: recompilation of the shader is inefficient. This
-   * code could be optimized to precompile both versions of the shader.
+   * value changes, this function will switch to the shader program that enables/disables
+   * depth-based occlusion, compiling it the first time it is used.
    *
    * @param context Context for loading the shader.
    * @param useDepthForOcclusion Specifies whether to use the depth texture to perform occlusion
@@ -249,26 +255,33 @@ public class ObjectRenderer {
       return; // No change, does nothing.
     }
 
-    // Toggles the occlusion rendering mode and recompiles the shader.
+    // Toggles the occlusion rendering mode and switches shader programs.
     this.useDepthForOcclusion = useDepthForOcclusion;
     compileAndLoadShaderProgram(context);
   }
 
   private void compileAndLoadShaderProgram(Context context) throws IOException {
-    // Compiles and loads the shader program based on the selected mode.
-    Map<String, Integer> defineValuesMap = new TreeMap<>();
-    defineValuesMap.put(USE_DEPTH_FOR_OCCLUSION_SHADER_FLAG, useDepthForOcclusion ? 1 : 0);
-
-    final int vertexShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
-    final int fragmentShader =
-        ShaderUtil.loadGLShader(
-            TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME, defineValuesMap);
-
-    program = GLES20.glCreateProgram();
-    GLES20.glAttachShader(program, vertexShader);
-    GLES20.glAttachShader(program, fragmentShader);
-    GLES20.glLinkProgram(program);
+    // Loads the shader program for the selected mode, compiling it if it was not used before.
+    final int variant = useDepthForOcclusion ? 1 : 0;
+    if (programs[variant] == 0) {
+      Map<String, Integer> defineValuesMap = new TreeMap<>();
+      defineValuesMap.put(USE_DEPTH_FOR_OCCLUSION_SHADER_FLAG, variant);
+
+      final int vertexShader =
+          ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+      final int fragmentShader =
+          ShaderUtil.loadGLShader(
+              TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME, defineValuesMap);
+
+      programs[variant] = GLES20.glCreateProgram();
+      GLES20.glAttachShader(programs[variant], vertexShader);
+      GLES20.glAttachShader(programs[variant], fragmentShader);
+      GLES20.glLinkProgram(programs[variant]);
+      // The shaders are freed along with the program, which keeps them attached.
+      GLES20.glDeleteShader(vertexShader);
+      GLES20.glDeleteShader(fragmentShader);
+    }
+    program = programs[variant];
     GLES20.glUseProgram(program);
 
     ShaderUtil.checkGLError(TAG, "Program creation");
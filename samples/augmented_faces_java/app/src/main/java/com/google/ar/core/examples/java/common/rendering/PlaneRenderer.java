@@ -36,10 +36,17 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-/** Renders the detected AR planes. */
+/**
+ * Renders the detected AR planes.
+ *
+ * <p>Each tracked plane keeps its own vertex and index buffer objects, which are only filled again
+ * when the polygon or extents of the plane change, and are freed once the plane stops tracking or
+ * is subsumed by another plane.
+ */
 public class PlaneRenderer {
   private static final String TAG = PlaneRenderer.class.getSimpleName();
 
@@ -75,6 +82,15 @@ public class PlaneRenderer {
   // occlusionShrink: occluded planes will fade out between alpha = 0 and 1/occlusionShrink
   private static final float[] GRID_CONTROL = {0.2f, 0.4f, 2.0f, 1.5f};
 
+  // Planes are drawn from back to front, so that closer planes hide more distant ones.
+  private static final Comparator<PlaneMesh> BACK_TO_FRONT =
+      new Comparator<PlaneMesh>() {
+        @Override
+        public int compare(PlaneMesh a, PlaneMesh b) {
+          return Float.compare(b.distance, a.distance);
+        }
+      };
+
   private int planeProgram;
   private final int[] textures = new int[1];
 
@@ -97,13 +113,68 @@ public class PlaneRenderer {
           .asShortBuffer();
 
   // Temporary lists/matrices allocated here to reduce number of allocations for each frame.
-  private final float[] modelMatrix = new float[16];
+  private final float[] viewMatrix = new float[16];
   private final float[] modelViewMatrix = new float[16];
   private final float[] modelViewProjectionMatrix = new float[16];
-  private final float[] planeAngleUvMatrix =
-      new float[4]; // 2x2 rotation matrix applied to uv coords.
+  private final List<PlaneMesh> sortedPlaneMeshes = new ArrayList<>();
 
   private final Map<Plane, Integer> planeIndexMap = new HashMap<>();
+  private final Map<Plane, PlaneMesh> planeMeshes = new HashMap<>();
+  private int drawCount = 0;
+  private int tessellationCount = 0;
+
+  // The buffer objects of a tracked plane, along with the parameters it is drawn with.
+  private static class PlaneMesh {
+    // Vertex and index buffer objects.
+    final int[] buffers = new int[2];
+    int numIndices;
+    final float[] modelMatrix = new float[16];
+    final float[] normal = new float[3];
+    // 2x2 rotation matrix applied to uv coords.
+    final float[] planeAngleUvMatrix = new float[4];
+    float distance;
+    int lastDrawCount;
+
+    // The polygon and extents the buffers were filled from.
+    float[] polygon = new float[0];
+    int polygonLength = -1;
+    float extentX;
+    float extentZ;
+
+    PlaneMesh() {
+      GLES20.glGenBuffers(buffers.length, buffers, 0);
+    }
+
+    /**
+     * Returns whether {@code boundary} or the extents differ from those the buffers were filled
+     * from, and remembers them if so. The position of {@code boundary} is left alone.
+     */
+    boolean update(FloatBuffer boundary, float extentX, float extentZ) {
+      int length = boundary == null ? 0 : boundary.limit();
+      boolean changed =
+          length != polygonLength || extentX != this.extentX || extentZ != this.extentZ;
+      for (int i = 0; i < length && !changed; ++i) {
+        changed = Float.floatToRawIntBits(boundary.get(i)) != Float.floatToRawIntBits(polygon[i]);
+      }
+      if (!changed) {
+        return false;
+      }
+      if (polygon.length < length) {
+        polygon = new float[length];
+      }
+      for (int i = 0; i < length; ++i) {
+        polygon[i] = boundary.get(i);
+      }
+      polygonLength = length;
+      this.extentX = extentX;
+      this.extentZ = extentZ;
+      return true;
+    }
+
+    void close() {
+      GLES20.glDeleteBuffers(buffers.length, buffers, 0);
+    }
+  }
 
   public PlaneRenderer() {}
 
@@ -115,6 +186,11 @@ public class PlaneRenderer {
    * @param gridDistanceTextureName Name of the PNG file containing the grid texture.
    */
   public void createOnGlThread(Context context, String gridDistanceTextureName) throws IOException {
+    // The buffers of planes drawn by an earlier call belong to a GL context that may have been lost
+    // since, and their names may have been reused by the new one, so they are forgotten rather than
+    // deleted.
+    planeMeshes.clear();
+
     int vertexShader =
         ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
     int passthroughShader =
@@ -158,10 +234,21 @@ public class PlaneRenderer {
     ShaderUtil.checkGLError(TAG, "Program parameters");
   }
 
-  /** Updates the plane model transform matrix and extents. */
-  private void updatePlaneParameters(
-      float[] planeMatrix, float extentX, float extentZ, FloatBuffer boundary) {
-    System.arraycopy(planeMatrix, 0, modelMatrix, 0, 16);
+  /**
+   * Returns how many times plane buffers have been filled, which only happens for new planes and
+   * planes whose polygon or extents changed.
+   */
+  public int getTessellationCount() {
+    return tessellationCount;
+  }
+
+  /** Returns the number of planes whose buffers are currently kept. */
+  public int getCachedPlaneCount() {
+    return planeMeshes.size();
+  }
+
+  /** Tessellates the plane boundary polygon into the client-side vertex and index buffers. */
+  private void updatePlaneParameters(float extentX, float extentZ, FloatBuffer boundary) {
     if (boundary == null) {
       vertexBuffer.limit(0);
       indexBuffer.limit(0);
@@ -244,44 +331,58 @@ public class PlaneRenderer {
     }
   }
 
-  private void draw(float[] cameraView, float[] cameraPerspective, float[] planeNormal) {
+  /** Fills the buffer objects of {@code planeMesh} from the client-side buffers. */
+  private void uploadPlaneMesh(PlaneMesh planeMesh) {
+    vertexBuffer.rewind();
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, planeMesh.buffers[0]);
+    GLES20.glBufferData(
+        GLES20.GL_ARRAY_BUFFER,
+        BYTES_PER_FLOAT * vertexBuffer.limit(),
+        vertexBuffer,
+        GLES20.GL_STATIC_DRAW);
+
+    indexBuffer.rewind();
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, planeMesh.buffers[1]);
+    GLES20.glBufferData(
+        GLES20.GL_ELEMENT_ARRAY_BUFFER,
+        BYTES_PER_SHORT * indexBuffer.limit(),
+        indexBuffer,
+        GLES20.GL_STATIC_DRAW);
+    planeMesh.numIndices = indexBuffer.limit();
+
+    ShaderUtil.checkGLError(TAG, "Uploading plane");
+  }
+
+  private void draw(float[] cameraPerspective, PlaneMesh planeMesh) {
     // Build the ModelView and ModelViewProjection matrices
     // for calculating cube position and light.
-    Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
+    Matrix.multiplyMM(modelViewMatrix, 0, viewMatrix, 0, planeMesh.modelMatrix, 0);
     Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
 
     // Set the position of the plane
-    vertexBuffer.rewind();
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, planeMesh.buffers[0]);
     GLES20.glVertexAttribPointer(
         planeXZPositionAlphaAttribute,
         COORDS_PER_VERTEX,
         GLES20.GL_FLOAT,
         false,
         BYTES_PER_FLOAT * COORDS_PER_VERTEX,
-        vertexBuffer);
+        0);
 
     // Set the Model and ModelViewProjection matrices in the shader.
-    GLES20.glUniformMatrix4fv(planeModelUniform, 1, false, modelMatrix, 0);
-    GLES20.glUniform3f(planeNormalUniform, planeNormal[0], planeNormal[1], planeNormal[2]);
+    float[] normal = planeMesh.normal;
+    GLES20.glUniformMatrix4fv(planeModelUniform, 1, false, planeMesh.modelMatrix, 0);
+    GLES20.glUniform3f(planeNormalUniform, normal[0], normal[1], normal[2]);
     GLES20.glUniformMatrix4fv(
         planeModelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
+    GLES20.glUniformMatrix2fv(planeUvMatrixUniform, 1, false, planeMesh.planeAngleUvMatrix, 0);
 
-    indexBuffer.rewind();
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, planeMesh.buffers[1]);
     GLES20.glDrawElements(
-        GLES20.GL_TRIANGLE_STRIP, indexBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, indexBuffer);
+        GLES20.GL_TRIANGLE_STRIP, planeMesh.numIndices, GLES20.GL_UNSIGNED_SHORT, 0);
     ShaderUtil.checkGLError(TAG, "Drawing plane");
   }
 
-  static class SortablePlane {
-    final float distance;
-    final Plane plane;
-
-    SortablePlane(float distance, Plane plane) {
-      this.distance = distance;
-      this.plane = plane;
-    }
-  }
-
   /**
    * Draws the collection of tracked planes, with closer planes hiding more distant ones.
    *
@@ -291,32 +392,54 @@ public class PlaneRenderer {
    *     Camera#getProjectionMatrix(float[], int, float, float)}
    */
   public void drawPlanes(Collection<Plane> allPlanes, Pose cameraPose, float[] cameraPerspective) {
-    // Planes must be sorted by distance from camera so that we draw closer planes first, and
-    // they occlude the farther planes.
-    List<SortablePlane> sortedPlanes = new ArrayList<>();
-
+    ++drawCount;
+    sortedPlaneMeshes.clear();
     for (Plane plane : allPlanes) {
       if (plane.getTrackingState() != TrackingState.TRACKING || plane.getSubsumedBy() != null) {
         continue;
       }
 
-      float distance = calculateDistanceToPlane(plane.getCenterPose(), cameraPose);
-      if (distance < 0) { // Plane is back-facing.
+      PlaneMesh planeMesh = planeMeshes.get(plane);
+      if (planeMesh == null) {
+        planeMesh = createPlaneMesh(plane);
+        planeMeshes.put(plane, planeMesh);
+      }
+      planeMesh.lastDrawCount = drawCount;
+
+      Pose centerPose = plane.getCenterPose();
+      // Get transformed Y axis of plane's coordinate system.
+      centerPose.getTransformedAxis(1, 1.0f, planeMesh.normal, 0);
+      planeMesh.distance = calculateDistanceToPlane(centerPose, planeMesh.normal, cameraPose);
+      if (planeMesh.distance < 0) { // Plane is back-facing.
         continue;
       }
-      sortedPlanes.add(new SortablePlane(distance, plane));
+      centerPose.toMatrix(planeMesh.modelMatrix, 0);
+
+      FloatBuffer boundary = plane.getPolygon();
+      float extentX = plane.getExtentX();
+      float extentZ = plane.getExtentZ();
+      if (planeMesh.update(boundary, extentX, extentZ)) {
+        updatePlaneParameters(extentX, extentZ, boundary);
+        uploadPlaneMesh(planeMesh);
+        ++tessellationCount;
+      }
+      sortedPlaneMeshes.add(planeMesh);
+    }
+
+    // Free the buffers of planes which are no longer tracked, or have been subsumed.
+    for (Iterator<PlaneMesh> it = planeMeshes.values().iterator(); it.hasNext(); ) {
+      PlaneMesh planeMesh = it.next();
+      if (planeMesh.lastDrawCount != drawCount) {
+        planeMesh.close();
+        it.remove();
+      }
     }
-    Collections.sort(
-        sortedPlanes,
-        new Comparator<SortablePlane>() {
-          @Override
-          public int compare(SortablePlane a, SortablePlane b) {
-            return Float.compare(b.distance, a.distance);
-          }
-        });
-
-    float[] cameraView = new float[16];
-    cameraPose.inverse().toMatrix(cameraView, 0);
+
+    // Planes must be sorted by distance from camera so that we draw closer planes first, and
+    // they occlude the farther planes.
+    Collections.sort(sortedPlaneMeshes, BACK_TO_FRONT);
+
+    cameraPose.inverse().toMatrix(viewMatrix, 0);
 
     // Disable depth write.
     GLES20.glDepthMask(false);
@@ -341,40 +464,13 @@ public class PlaneRenderer {
 
     ShaderUtil.checkGLError(TAG, "Setting up to draw planes");
 
-    for (SortablePlane sortedPlane : sortedPlanes) {
-      Plane plane = sortedPlane.plane;
-      float[] planeMatrix = new float[16];
-      plane.getCenterPose().toMatrix(planeMatrix, 0);
-
-      float[] normal = new float[3];
-      // Get transformed Y axis of plane's coordinate system.
-      plane.getCenterPose().getTransformedAxis(1, 1.0f, normal, 0);
-
-      updatePlaneParameters(
-          planeMatrix, plane.getExtentX(), plane.getExtentZ(), plane.getPolygon());
-
-      // Get plane index. Keep a map to assign same indices to same planes.
-      Integer planeIndex = planeIndexMap.get(plane);
-      if (planeIndex == null) {
-        planeIndex = planeIndexMap.size();
-        planeIndexMap.put(plane, planeIndex);
-      }
-
-      // Each plane will have its own angle offset from others, to make them easier to
-      // distinguish. Compute a 2x2 rotation matrix from the angle.
-      float angleRadians = planeIndex * 0.144f;
-      float uScale = DOTS_PER_METER;
-      float vScale = DOTS_PER_METER * EQUILATERAL_TRIANGLE_SCALE;
-      planeAngleUvMatrix[0] = +(float) Math.cos(angleRadians) * uScale;
-      planeAngleUvMatrix[1] = -(float) Math.sin(angleRadians) * vScale;
-      planeAngleUvMatrix[2] = +(float) Math.sin(angleRadians) * uScale;
-      planeAngleUvMatrix[3] = +(float) Math.cos(angleRadians) * vScale;
-      GLES20.glUniformMatrix2fv(planeUvMatrixUniform, 1, false, planeAngleUvMatrix, 0);
-
-      draw(cameraView, cameraPerspective, normal);
+    for (int i = 0; i < sortedPlaneMeshes.size(); ++i) {
+      draw(cameraPerspective, sortedPlaneMeshes.get(i));
     }
 
     // Clean up the state we set
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
     GLES20.glDisableVertexAttribArray(planeXZPositionAlphaAttribute);
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
     GLES20.glDisable(GLES20.GL_BLEND);
@@ -383,15 +479,42 @@ public class PlaneRenderer {
     ShaderUtil.checkGLError(TAG, "Cleaning up after drawing planes");
   }
 
+  private PlaneMesh createPlaneMesh(Plane plane) {
+    PlaneMesh planeMesh = new PlaneMesh();
+
+    // Get plane index. Keep a map to assign same indices to same planes, even if they stop and
+    // resume tracking.
+    Integer planeIndex = planeIndexMap.get(plane);
+    if (planeIndex == null) {
+      planeIndex = planeIndexMap.size();
+      planeIndexMap.put(plane, planeIndex);
+    }
+
+    // Each plane will have its own angle offset from others, to make them easier to
+    // distinguish. Compute a 2x2 rotation matrix from the angle.
+    float angleRadians = planeIndex * 0.144f;
+    float uScale = DOTS_PER_METER;
+    float vScale = DOTS_PER_METER * EQUILATERAL_TRIANGLE_SCALE;
+    planeMesh.planeAngleUvMatrix[0] = +(float) Math.cos(angleRadians) * uScale;
+    planeMesh.planeAngleUvMatrix[1] = -(float) Math.sin(angleRadians) * vScale;
+    planeMesh.planeAngleUvMatrix[2] = +(float) Math.sin(angleRadians) * uScale;
+    planeMesh.planeAngleUvMatrix[3] = +(float) Math.cos(angleRadians) * vScale;
+    return planeMesh;
+  }
+
   // Calculate the normal distance to plane from cameraPose, the given planePose should have y axis
   // parallel to plane's normal, for example plane's center pose or hit test pose.
   public static float calculateDistanceToPlane(Pose planePose, Pose cameraPose) {
     float[] normal = new float[3];
+    // Get transformed Y axis of plane's coordinate system.
+    planePose.getTransformedAxis(1, 1.0f, normal, 0);
+    return calculateDistanceToPlane(planePose, normal, cameraPose);
+  }
+
+  private static float calculateDistanceToPlane(Pose planePose, float[] normal, Pose cameraPose) {
     float cameraX = cameraPose.tx();
     float cameraY = cameraPose.ty();
     float cameraZ = cameraPose.tz();
-    // Get transformed Y axis of plane's coordinate system.
-    planePose.getTransformedAxis(1, 1.0f, normal, 0);
     // Compute dot product of plane's normal with vector from camera to plane center.
     return (cameraX - planePose.tx()) * normal[0]
         + (cameraY - planePose.ty()) * normal[1]
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares loading the pawn model from its Wavefront OBJ file with loading it from the binary mesh
+ * converted at build time. Timings are reported to logcat under the tag of this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MeshLoadBenchmarkTest {
+  private static final String TAG = MeshLoadBenchmarkTest.class.getSimpleName();
+  private static final String OBJ_ASSET = "models/pawn.obj";
+  private static final String BINARY_ASSET = "models/pawn.mesh";
+  private static final int ITERATIONS = 10;
+
+  private EGLDisplay display = EGL14.EGL_NO_DISPLAY;
+  private EGLContext context = EGL14.EGL_NO_CONTEXT;
+  private EGLSurface surface = EGL14.EGL_NO_SURFACE;
+  private SampleRender render;
+
+  @Before
+  public void setUp() {
+    // Meshes are GL objects, so an offscreen ES 3 context is made current on the test thread.
+    display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+    int[] version = new int[2];
+    assertTrue("Failed to initialize EGL", EGL14.eglInitialize(display, version, 0, version, 1));
+    int[] configAttributes = {
+      EGL14.EGL_RENDERABLE_TYPE, EGLExt.EGL_OPENGL_ES3_BIT_KHR,
+      EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+      EGL14.EGL_NONE
+    };
+    EGLConfig[] configs = new EGLConfig[1];
+    int[] numberOfConfigs = new int[1];
+    assertTrue(
+        "Failed to choose an EGL config",
+        EGL14.eglChooseConfig(
+            display, configAttributes, 0, configs, 0, configs.length, numberOfConfigs, 0));
+    assertNotEquals("No EGL config supports OpenGL ES 3", 0, numberOfConfigs[0]);
+    int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 3, EGL14.EGL_NONE};
+    context =
+        EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+    assertNotEquals("Failed to create an EGL context", EGL14.EGL_NO_CONTEXT, context);
+    int[] surfaceAttributes = {EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE};
+    surface = EGL14.eglCreatePbufferSurface(display, configs[0], surfaceAttributes, 0);
+    assertNotEquals("Failed to create an EGL surface", EGL14.EGL_NO_SURFACE, surface);
+    assertTrue(
+        "Failed to make the EGL context current",
+        EGL14.eglMakeCurrent(display, surface, surface, context));
+
+    render =
+        new SampleRender(
+            InstrumentationRegistry.getInstrumentation().getTargetContext().getAssets());
+  }
+
+  @After
+  public void tearDown() {
+    // Destroying the context also frees the buffers of the loaded meshes.
+    if (display != EGL14.EGL_NO_DISPLAY) {
+      EGL14.eglMakeCurrent(
+          display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+      if (surface != EGL14.EGL_NO_SURFACE) {
+        EGL14.eglDestroySurface(display, surface);
+      }
+      if (context != EGL14.EGL_NO_CONTEXT) {
+        EGL14.eglDestroyContext(display, context);
+      }
+      EGL14.eglTerminate(display);
+    }
+  }
+
+  @Test
+  public void createFromBinaryAsset_matchesObjAndReportsLoadTimes() throws IOException {
+    long[] objNanos = new long[ITERATIONS];
+    long[] binaryNanos = new long[ITERATIONS];
+    int objVertices = 0;
+    int objIndices = 0;
+    int binaryVertices = 0;
+    int binaryIndices = 0;
+    // The formats alternate, so that neither benefits more from caches warmed by the other. The
+    // first iteration is the cold load.
+    for (int i = 0; i < ITERATIONS; ++i) {
+      long start = SystemClock.elapsedRealtimeNanos();
+      Mesh objMesh = Mesh.createFromAsset(render, OBJ_ASSET);
+      objNanos[i] = SystemClock.elapsedRealtimeNanos() - start;
+      objVertices = objMesh.getNumberOfVertices();
+      objIndices = objMesh.getNumberOfIndices();
+      objMesh.close();
+
+      start = SystemClock.elapsedRealtimeNanos();
+      Mesh binaryMesh = Mesh.createFromBinaryAsset(render, BINARY_ASSET);
+      binaryNanos[i] = SystemClock.elapsedRealtimeNanos() - start;
+      binaryVertices = binaryMesh.getNumberOfVertices();
+      binaryIndices = binaryMesh.getNumberOfIndices();
+      binaryMesh.close();
+    }
+
+    Log.i(TAG, formatTimes(OBJ_ASSET, objNanos));
+    Log.i(TAG, formatTimes(BINARY_ASSET, binaryNanos));
+    assertEquals("Vertex counts differ", objVertices, binaryVertices);
+    assertEquals("Index counts differ", objIndices, binaryIndices);
+  }
+
+  private static String formatTimes(String assetFileName, long[] nanos) {
+    long cold = nanos[0];
+    long[] warm = Arrays.copyOfRange(nanos, 1, nanos.length);
+    Arrays.sort(warm);
+    return String.format(
+        "%s: cold %.2f ms, warm median %.2f ms over %d loads",
+        assetFileName, cold / 1e6, warm[warm.length / 2] / 1e6, warm.length);
+  }
+}
@@ -25,22 +25,15 @@ const int kNumberOfRoughnessLevels = NUMBER_OF_MIPMAP_LEVELS;
 // cubemap.
 const int kNumberOfImportanceSamples = NUMBER_OF_IMPORTANCE_SAMPLES;
 
-struct ImportanceSampleCacheEntry {
-  vec3 direction;      // Direction to sample in tangent space
-  float contribution;  // Weighted contribution of the sample's radiance
-  float level;         // The mipmap level to sample from the cubemap. Can be
-                       // in-between integer levels for trilinear filtering.
-};
-
-struct ImportanceSampleCache {
-  int number_of_entries;
-  ImportanceSampleCacheEntry entries[kNumberOfImportanceSamples];
-};
-
-// This array's length is one less than the number of roughness levels since the
-// first roughness level can be skipped.
-uniform ImportanceSampleCache
-    u_ImportanceSampleCaches[kNumberOfRoughnessLevels - 1];
+// The importance sample caches, with one row per roughness level starting from
+// the second, since the first roughness level can be skipped. Each entry takes
+// two texels:
+//   0: xyz: Direction to sample in tangent space
+//      w: Weighted contribution of the sample's radiance
+//   1: x: The mipmap level to sample from the cubemap. Can be in-between
+//         integer levels for trilinear filtering.
+// A row ends at the first entry whose contribution is zero.
+uniform highp sampler2D u_ImportanceSampleTable;
 
 // The source radiance cubemap to be filtered.
 uniform samplerCube u_Cubemap;
@@ -82,14 +75,20 @@ vec4 Filter(const vec3 n) {
   tangentToWorld[1] = cross(n, tangentToWorld[0]);
   tangentToWorld[2] = n;
 
-  ImportanceSampleCache cache = u_ImportanceSampleCaches[u_RoughnessLevel - 1];
+  int row = u_RoughnessLevel - 1;
   vec3 radiance = vec3(0.0);
-  for (int i = 0; i < cache.number_of_entries; ++i) {
-    ImportanceSampleCacheEntry entry = cache.entries[i];
-    radiance +=
-        textureLod(u_Cubemap, tangentToWorld * entry.direction, entry.level)
-            .rgb *
-        entry.contribution;
+  for (int i = 0; i < kNumberOfImportanceSamples; ++i) {
+    highp vec4 directionAndContribution =
+        texelFetch(u_ImportanceSampleTable, ivec2(2 * i, row), 0);
+    if (directionAndContribution.w == 0.0) {
+      break;
+    }
+    highp float level =
+        texelFetch(u_ImportanceSampleTable, ivec2(2 * i + 1, row), 0).x;
+    radiance += textureLod(u_Cubemap,
+                           tangentToWorld * directionAndContribution.xyz, level)
+                    .rgb *
+                directionAndContribution.w;
   }
   return vec4(radiance, 1.0);
 }
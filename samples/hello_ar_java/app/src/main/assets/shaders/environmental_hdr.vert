@@ -15,20 +15,34 @@
  * limitations under the License.
  */
 
-uniform mat4 u_ModelView;
-uniform mat4 u_ModelViewProjection;
+// Per-frame camera and lighting parameters, shared with the other programs of
+// the scene. The layout must match the FrameUniforms block in HelloArActivity.
+layout(std140) uniform FrameUniforms {
+  highp mat4 u_View;
+  highp mat4 u_Projection;
+  highp mat4 u_ViewProjection;
+  highp mat4 u_ViewInverse;
+  highp vec4 u_ViewLightDirection;
+  highp vec3 u_LightIntensity;
+  bool u_LightEstimateIsValid;
+  highp vec3 u_SphericalHarmonicsCoefficients[9];
+};
 
 layout(location = 0) in vec4 a_Position;
 layout(location = 1) in vec2 a_TexCoord;
 layout(location = 2) in vec3 a_Normal;
 
+// The model matrix of the instance being drawn. Occupies locations 3 to 6.
+layout(location = 3) in mat4 a_Model;
+
 out vec3 v_ViewPosition;
 out vec3 v_ViewNormal;
 out vec2 v_TexCoord;
 
 void main() {
-  v_ViewPosition = (u_ModelView * a_Position).xyz;
-  v_ViewNormal = normalize((u_ModelView * vec4(a_Normal, 0.0)).xyz);
+  mat4 modelView = u_View * a_Model;
+  v_ViewPosition = (modelView * a_Position).xyz;
+  v_ViewNormal = normalize((modelView * vec4(a_Normal, 0.0)).xyz);
   v_TexCoord = a_TexCoord;
-  gl_Position = u_ModelViewProjection * a_Position;
+  gl_Position = u_ViewProjection * a_Model * a_Position;
 }
@@ -15,28 +15,48 @@
  * limitations under the License.
  */
 
+#ifdef BATCHED
+// All planes are drawn at once, transformed to world space, and carry their parameters per vertex.
+uniform mat4 u_ViewProjection;
+
+layout(location = 0) in vec4 a_PositionAlpha; // (x, y, z, alpha)
+layout(location = 1) in vec3 a_Normal;
+layout(location = 2) in vec4 a_PlaneUvMatrix; // columns of the 2x2 matrix
+#else
 uniform mat4 u_Model;
 uniform mat4 u_ModelViewProjection;
 uniform mat2 u_PlaneUvMatrix;
 uniform vec3 u_Normal;
 
 layout(location = 0) in vec3 a_XZPositionAlpha; // (x, z, alpha)
+#endif
 
 out vec3 v_TexCoordAlpha;
 
 void main() {
+#ifdef BATCHED
+   vec4 world_pos = vec4(a_PositionAlpha.xyz, 1.0);
+   vec3 normal = a_Normal;
+   mat2 plane_uv_matrix = mat2(a_PlaneUvMatrix.xy, a_PlaneUvMatrix.zw);
+   float alpha = a_PositionAlpha.w;
+   gl_Position = u_ViewProjection * world_pos;
+#else
    vec4 local_pos = vec4(a_XZPositionAlpha.x, 0.0, a_XZPositionAlpha.y, 1.0);
    vec4 world_pos = u_Model * local_pos;
+   vec3 normal = u_Normal;
+   mat2 plane_uv_matrix = u_PlaneUvMatrix;
+   float alpha = a_XZPositionAlpha.z;
+   gl_Position = u_ModelViewProjection * local_pos;
+#endif
 
    // Construct two vectors that are orthogonal to the normal.
    // This arbitrary choice is not co-linear with either horizontal
    // or vertical plane normals.
    const vec3 arbitrary = vec3(1.0, 1.0, 0.0);
-   vec3 vec_u = normalize(cross(u_Normal, arbitrary));
-   vec3 vec_v = normalize(cross(u_Normal, vec_u));
+   vec3 vec_u = normalize(cross(normal, arbitrary));
+   vec3 vec_v = normalize(cross(normal, vec_u));
 
    // Project vertices in world frame onto vec_u and vec_v.
    vec2 uv = vec2(dot(world_pos.xyz, vec_u), dot(world_pos.xyz, vec_v));
-   v_TexCoordAlpha = vec3(u_PlaneUvMatrix * uv, a_XZPositionAlpha.z);
-   gl_Position = u_ModelViewProjection * local_pos;
+   v_TexCoordAlpha = vec3(plane_uv_matrix * uv, alpha);
 }
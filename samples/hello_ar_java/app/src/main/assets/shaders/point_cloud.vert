@@ -15,12 +15,24 @@
  * limitations under the License.
  */
 
-uniform mat4 u_ModelViewProjection;
+// Per-frame camera and lighting parameters, shared with the other programs of
+// the scene. The layout must match the FrameUniforms block in HelloArActivity.
+layout(std140) uniform FrameUniforms {
+  highp mat4 u_View;
+  highp mat4 u_Projection;
+  highp mat4 u_ViewProjection;
+  highp mat4 u_ViewInverse;
+  highp vec4 u_ViewLightDirection;
+  highp vec3 u_LightIntensity;
+  bool u_LightEstimateIsValid;
+  highp vec3 u_SphericalHarmonicsCoefficients[9];
+};
+
 uniform float u_PointSize;
 
 layout(location = 0) in vec4 a_Position;
 
 void main() {
-  gl_Position = u_ModelViewProjection * a_Position;
+  gl_Position = u_ViewProjection * a_Position;
   gl_PointSize = u_PointSize;
 }
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import android.content.res.AssetManager;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.nio.MappedByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Loads assets in the background, so that the render thread is not blocked while they are read and
+ * decoded.
+ *
+ * <p>Each load has two steps. The first step reads and decodes the asset on a pool of worker
+ * threads. The second step creates the GL resources from the decoded data, which must happen on
+ * the render thread; these uploads are run by {@link SampleRender} at the start of each frame,
+ * until the per-frame upload budget is used up, and the rest wait for the following frames.
+ *
+ * <p>The returned futures are always completed on the render thread, whether the load succeeded or
+ * failed, so callbacks attached to them without an executor may use GL freely. The exception is
+ * {@link #close}, which cancels the loads that have not completed yet on the calling thread;
+ * callbacks see a {@link java.util.concurrent.CancellationException} then, which is not a failure
+ * and should be ignored.
+ */
+public class AssetLoader implements Closeable {
+  private static final String TAG = AssetLoader.class.getSimpleName();
+
+  private final SampleRender render;
+  private final AssetManager assets;
+  private final StagingBufferPool stagingBufferPool;
+  private final ExecutorService workers;
+  private final long uploadBudgetNanos;
+  private final ConcurrentLinkedQueue<Upload> uploads = new ConcurrentLinkedQueue<>();
+  private final Set<CompletableFuture<?>> pending =
+      ConcurrentHashMap.<CompletableFuture<?>>newKeySet();
+  private volatile boolean closed = false;
+
+  // The second step of a load, queued for the render thread once the first step has finished.
+  private interface Upload {
+    /** Creates the GL resources and completes the load. Runs on the render thread. */
+    void run();
+
+    /** Releases the decoded data instead, when the load was cancelled or the loader closed. */
+    void discard();
+  }
+
+  /**
+   * Constructs an {@link AssetLoader} and starts its worker threads.
+   *
+   * @param numberOfThreads The number of worker threads decoding assets
+   * @param uploadBudgetNanos How long uploads may take per frame. At least one upload runs per
+   *     frame regardless, so that loads always make progress.
+   */
+  public AssetLoader(SampleRender render, int numberOfThreads, long uploadBudgetNanos) {
+    if (numberOfThreads < 1) {
+      throw new IllegalArgumentException("Number of threads must be positive");
+    }
+    this.render = render;
+    this.assets = render.getAssets();
+    this.stagingBufferPool = render.getStagingBufferPool();
+    this.uploadBudgetNanos = uploadBudgetNanos;
+    this.workers =
+        Executors.newFixedThreadPool(
+            numberOfThreads,
+            new ThreadFactory() {
+              private final AtomicInteger count = new AtomicInteger();
+
+              @Override
+              public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+              }
+            });
+    render.addAssetLoader(this);
+  }
+
+  /**
+   * Loads a resource: {@code decode} runs on a worker thread, and {@code upload} runs on the render
+   * thread with its result.
+   */
+  public <T, R> CompletableFuture<R> load(Callable<T> decode, Function<T, R> upload) {
+    return load(decode, upload, /*discard=*/ data -> {});
+  }
+
+  /**
+   * Loads a resource as {@link #load(Callable, Function)} does. If the load is cancelled, or the
+   * loader closed, after {@code decode} has run, {@code discard} is called with its result instead
+   * of {@code upload}, on the render thread or the thread closing the loader, to release it.
+   */
+  public <T, R> CompletableFuture<R> load(
+      Callable<T> decode, Function<T, R> upload, Consumer<T> discard) {
+    CompletableFuture<R> future = new CompletableFuture<>();
+    pending.add(future);
+    workers.execute(
+        () -> {
+          if (closed || future.isDone()) {
+            pending.remove(future);
+            return;
+          }
+          T data;
+          try {
+            data = decode.call();
+          } catch (Throwable t) {
+            queue(
+                new Upload() {
+                  @Override
+                  public void run() {
+                    completeExceptionally(future, t);
+                  }
+
+                  @Override
+                  public void discard() {}
+                });
+            return;
+          }
+          queue(
+              new Upload() {
+                @Override
+                public void run() {
+                  if (future.isDone()) {
+                    // Cancelled by the caller while waiting for the render thread.
+                    pending.remove(future);
+                    discard();
+                    return;
+                  }
+                  try {
+                    complete(future, upload.apply(data));
+                  } catch (Throwable t) {
+                    completeExceptionally(future, t);
+                  }
+                }
+
+                @Override
+                public void discard() {
+                  discard.accept(data);
+                }
+              });
+        });
+    return future;
+  }
+
+  /** Loads a texture as {@link Texture#createFromAsset} does. */
+  public CompletableFuture<Texture> loadTexture(
+      String assetFileName, Texture.WrapMode wrapMode, Texture.ColorFormat colorFormat) {
+    return load(
+        () -> Texture.decodeAsset(assets, stagingBufferPool, assetFileName),
+        image -> Texture.createFromImage(render, image, wrapMode, colorFormat),
+        image -> stagingBufferPool.release(image.pixels));
+  }
+
+  /**
+   * Loads a texture as {@link Texture#createFromKtxAsset} does, from the first of the KTX assets
+   * {@code ktxAssetFileNames} that exists and whose compressed format the device supports, such as
+   * an ASTC file followed by an ETC2 one. If there is none, for example because no encoder was
+   * available at build time, the image asset {@code fallbackAssetFileName} is loaded instead, as
+   * {@link Texture#createFromAsset} does.
+   */
+  public CompletableFuture<Texture> loadCompressedTexture(
+      String[] ktxAssetFileNames,
+      String fallbackAssetFileName,
+      Texture.WrapMode wrapMode,
+      Texture.ColorFormat colorFormat) {
+    // Decodes to either a KtxContainer or a Texture.DecodedImage.
+    return load(
+        () -> {
+          for (String ktxAssetFileName : ktxAssetFileNames) {
+            try {
+              KtxContainer container = Texture.readKtxAsset(assets, ktxAssetFileName);
+              if (render.isCompressedTextureFormatSupported(
+                  Texture.getInternalFormat(container, colorFormat))) {
+                return container;
+              }
+            } catch (FileNotFoundException e) {
+              // Try the next one.
+            }
+          }
+          return Texture.decodeAsset(assets, stagingBufferPool, fallbackAssetFileName);
+        },
+        data ->
+            data instanceof KtxContainer
+                ? Texture.createFromKtx(render, (KtxContainer) data, wrapMode, colorFormat)
+                : Texture.createFromImage(
+                    render, (Texture.DecodedImage) data, wrapMode, colorFormat),
+        data -> {
+          if (data instanceof Texture.DecodedImage) {
+            stagingBufferPool.release(((Texture.DecodedImage) data).pixels);
+          }
+        });
+  }
+
+  /** Loads a binary mesh as {@link Mesh#createFromBinaryAsset} does. */
+  public CompletableFuture<Mesh> loadBinaryMesh(
+      String assetFileName, VertexBuffer[] instanceBuffers) {
+    return load(
+        () -> {
+          Mesh.BinaryMeshData data = Mesh.readBinaryAsset(assets, assetFileName);
+          // Fault the mapped pages in here rather than during the upload.
+          if (data.vertexData instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) data.vertexData).load();
+          }
+          if (data.indexData instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) data.indexData).load();
+          }
+          return data;
+        },
+        data -> Mesh.createFromBinaryData(render, data, instanceBuffers));
+  }
+
+  /**
+   * Loads a shader as {@link Shader#createFromAssets} does. Only reading the source happens in the
+   * background; compilation happens during the upload.
+   */
+  public CompletableFuture<Shader> loadShader(
+      String vertexShaderFileName, String fragmentShaderFileName, Map<String, String> defines) {
+    return load(
+        () ->
+            new String[] {
+              Shader.inputStreamToString(assets.open(vertexShaderFileName)),
+              Shader.inputStreamToString(assets.open(fragmentShaderFileName))
+            },
+        sources -> new Shader(render, sources[0], sources[1], defines));
+  }
+
+  /** Returns the number of loads which have not completed yet. */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Stops the worker threads. Loads which have not completed yet are cancelled on the calling
+   * thread, and their results are discarded. This may be called from any thread.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    render.removeAssetLoader(this);
+    workers.shutdownNow();
+    discardUploads();
+    for (CompletableFuture<?> future : pending) {
+      future.cancel(/*mayInterruptIfRunning=*/ false);
+    }
+    pending.clear();
+  }
+
+  /* package-private */
+  void runUploads() {
+    long start = System.nanoTime();
+    Upload upload;
+    while ((upload = uploads.poll()) != null) {
+      upload.run();
+      if (System.nanoTime() - start >= uploadBudgetNanos) {
+        break;
+      }
+    }
+  }
+
+  private void queue(Upload upload) {
+    uploads.add(upload);
+    // A decode which finished while the loader was closing may have queued its upload after close
+    // discarded the others; whichever thread removes it from the queue discards it.
+    if (closed && uploads.remove(upload)) {
+      upload.discard();
+    }
+  }
+
+  private void discardUploads() {
+    Upload upload;
+    while ((upload = uploads.poll()) != null) {
+      upload.discard();
+    }
+  }
+
+  private <R> void complete(CompletableFuture<R> future, R result) {
+    pending.remove(future);
+    future.complete(result);
+  }
+
+  private void completeExceptionally(CompletableFuture<?> future, Throwable t) {
+    pending.remove(future);
+    future.completeExceptionally(t);
+  }
+}
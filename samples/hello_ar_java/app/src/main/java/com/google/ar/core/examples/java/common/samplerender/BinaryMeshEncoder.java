@@ -0,0 +1,180 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Encodes meshes in the binary mesh format read by {@link Mesh#createFromBinaryAsset}, with the
+ * vertex layout of {@link Mesh.AssetVertexFormat#COMPACT}.
+ *
+ * <p>This class does not use GL or Android, so that the {@code convertMeshes} task of the build
+ * compiles and runs this same code to convert the OBJ models, and the vertices of binary meshes are
+ * packed exactly like those of compact meshes created at runtime.
+ */
+public final class BinaryMeshEncoder {
+  // "SRMB" in little-endian byte order, and the version of the binary mesh format.
+  /* package-private */
+  static final int MAGIC = 0x424d5253;
+  /* package-private */
+  static final int VERSION = 1;
+
+  // The compact vertex layout, as built by Mesh.createCompactLayout: positions padded to four half
+  // floats, two texture coordinates, and a packed normal.
+  /* package-private */
+  static final int COMPACT_STRIDE = 16;
+  /* package-private */
+  static final int COMPACT_TEXTURE_COORDINATES_OFFSET = 8;
+  /* package-private */
+  static final int COMPACT_NORMAL_OFFSET = 12;
+
+  // The GL types of the compact attributes, as defined by GLES30, which is not available at build
+  // time.
+  private static final int GL_UNSIGNED_SHORT = 0x1403;
+  private static final int GL_HALF_FLOAT = 0x140B;
+  private static final int GL_INT_2_10_10_10_REV = 0x8D9F;
+
+  private static final int HEADER_SIZE = 48;
+
+  private BinaryMeshEncoder() {}
+
+  /**
+   * Encodes a triangle mesh as a binary mesh file.
+   *
+   * @param positions The vertex positions, as (x, y, z) triples
+   * @param textureCoordinates The texture coordinates, as (u, v) pairs
+   * @param normals The vertex normals, as (x, y, z) triples, which need not be normalized
+   * @param indices The vertex indices of the triangles, which are stored with the narrowest type
+   *     that holds them
+   * @return The contents of the binary mesh file
+   */
+  public static byte[] encode(
+      float[] positions, float[] textureCoordinates, float[] normals, int[] indices) {
+    int numberOfVertices = positions.length / 3;
+    if (textureCoordinates.length != 2 * numberOfVertices
+        || normals.length != 3 * numberOfVertices) {
+      throw new IllegalArgumentException("Every vertex must have texture coordinates and a normal");
+    }
+    FloatBuffer textureCoordinateBuffer = FloatBuffer.wrap(textureCoordinates);
+    boolean textureCoordinatesNormalized =
+        areTextureCoordinatesNormalized(textureCoordinateBuffer);
+    int combinedIndexBits = 0;
+    for (int index : indices) {
+      combinedIndexBits |= index;
+    }
+    int numberOfBytesPerIndex =
+        (combinedIndexBits & ~0xff) == 0 ? 1 : (combinedIndexBits & ~0xffff) == 0 ? 2 : 4;
+    int vertexByteCount = align(numberOfVertices * COMPACT_STRIDE);
+    int indexByteCount = align(indices.length * numberOfBytesPerIndex);
+
+    ByteBuffer data =
+        ByteBuffer.allocate(HEADER_SIZE + vertexByteCount + indexByteCount)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    data.putInt(MAGIC).putInt(VERSION);
+    data.putInt(3);
+    data.putInt(GL_HALF_FLOAT).putInt(4);
+    data.putInt(textureCoordinatesNormalized ? GL_UNSIGNED_SHORT : GL_HALF_FLOAT).putInt(2);
+    data.putInt(GL_INT_2_10_10_10_REV).putInt(4);
+    data.putInt(numberOfVertices).putInt(numberOfBytesPerIndex).putInt(indices.length);
+
+    putCompactVertices(
+        data,
+        HEADER_SIZE,
+        FloatBuffer.wrap(positions),
+        textureCoordinateBuffer,
+        FloatBuffer.wrap(normals),
+        textureCoordinatesNormalized);
+
+    data.position(HEADER_SIZE + vertexByteCount);
+    for (int index : indices) {
+      switch (numberOfBytesPerIndex) {
+        case 1:
+          data.put((byte) index);
+          break;
+        case 2:
+          data.putShort((short) index);
+          break;
+        default:
+          data.putInt(index);
+      }
+    }
+    return data.array();
+  }
+
+  /**
+   * Returns whether all texture coordinates lie in [0, 1], so that they can be stored as
+   * normalized unsigned shorts rather than half floats.
+   */
+  /* package-private */
+  static boolean areTextureCoordinatesNormalized(FloatBuffer textureCoordinates) {
+    for (int i = 0; i < textureCoordinates.limit(); ++i) {
+      float value = textureCoordinates.get(i);
+      if (value < 0.0f || value > 1.0f) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Packs the vertices into {@code data} in the compact layout, starting at the absolute byte
+   * {@code position}. The positions of the buffers are left alone.
+   */
+  /* package-private */
+  static void putCompactVertices(
+      ByteBuffer data,
+      int position,
+      FloatBuffer positions,
+      FloatBuffer textureCoordinates,
+      FloatBuffer normals,
+      boolean textureCoordinatesNormalized) {
+    int numberOfVertices = positions.limit() / 3;
+    for (int i = 0; i < numberOfVertices; ++i) {
+      int base = position + i * COMPACT_STRIDE;
+      for (int component = 0; component < 3; ++component) {
+        data.putShort(base + component * 2, HalfFloat.toHalf(positions.get(i * 3 + component)));
+      }
+      data.putShort(base + 6, HalfFloat.toHalf(1.0f));
+      for (int component = 0; component < 2; ++component) {
+        float value = textureCoordinates.get(i * 2 + component);
+        data.putShort(
+            base + COMPACT_TEXTURE_COORDINATES_OFFSET + component * 2,
+            textureCoordinatesNormalized
+                ? VertexPacking.packNormalizedUnsignedShort(value)
+                : HalfFloat.toHalf(value));
+      }
+      // Normals are renormalized, since the packed components cannot exceed one in magnitude.
+      float x = normals.get(i * 3);
+      float y = normals.get(i * 3 + 1);
+      float z = normals.get(i * 3 + 2);
+      float length = (float) Math.sqrt(x * x + y * y + z * z);
+      if (length > 0.0f) {
+        x /= length;
+        y /= length;
+        z /= length;
+      }
+      data.putInt(
+          base + COMPACT_NORMAL_OFFSET,
+          VertexPacking.packNormalizedInt2101010Rev(x, y, z, /*w=*/ 0.0f));
+    }
+  }
+
+  private static int align(int byteCount) {
+    return (byteCount + 3) & ~3;
+  }
+}
@@ -19,13 +19,46 @@ import android.opengl.GLES30;
 import android.util.Log;
 import java.io.Closeable;
 
-/** A framebuffer associated with a texture. */
+/**
+ * A framebuffer associated with a texture.
+ *
+ * <p>The framebuffer may be rendered at a fraction of the size given to {@link #resize}, set with
+ * {@link #setRenderScale}, which reduces the fill rate and memory bandwidth spent on it. Its
+ * textures are then upsampled by whoever samples them.
+ */
 public class Framebuffer implements Closeable {
   private static final String TAG = Framebuffer.class.getSimpleName();
 
+  /**
+   * Describes the format of the depth texture.
+   *
+   * @see <a
+   *     href="https://www.khronos.org/registry/OpenGL-Refpages/es3.0/html/glTexImage2D.xhtml">glTexImage2D</a>.
+   */
+  public enum DepthFormat {
+    DEPTH16(GLES30.GL_DEPTH_COMPONENT16, GLES30.GL_UNSIGNED_SHORT),
+    DEPTH24(GLES30.GL_DEPTH_COMPONENT24, GLES30.GL_UNSIGNED_INT),
+    DEPTH32F(GLES30.GL_DEPTH_COMPONENT32F, GLES30.GL_FLOAT);
+
+    /* package-private */
+    final int glesInternalFormat;
+    /* package-private */
+    final int glesType;
+
+    private DepthFormat(int glesInternalFormat, int glesType) {
+      this.glesInternalFormat = glesInternalFormat;
+      this.glesType = glesType;
+    }
+  }
+
+  private final SampleRender render;
   private final int[] framebufferId = {0};
   private final Texture colorTexture;
   private final Texture depthTexture;
+  private DepthFormat depthFormat;
+  private float renderScale = 1.0f;
+  private int unscaledWidth = -1;
+  private int unscaledHeight = -1;
   private int width = -1;
   private int height = -1;
 
@@ -36,6 +69,16 @@ public class Framebuffer implements Closeable {
    * Framebuffer)}.
    */
   public Framebuffer(SampleRender render, int width, int height) {
+    this(render, width, height, DepthFormat.DEPTH32F);
+  }
+
+  /**
+   * Constructs a {@link Framebuffer} which renders internally to a texture, with a depth texture of
+   * the given format.
+   */
+  public Framebuffer(SampleRender render, int width, int height, DepthFormat depthFormat) {
+    this.render = render;
+    this.depthFormat = depthFormat;
     try {
       colorTexture =
           new Texture(
@@ -51,8 +94,7 @@ public class Framebuffer implements Closeable {
               /*useMipmaps=*/ false);
 
       // Set parameters of the depth texture so that it's readable by shaders.
-      GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, depthTexture.getTextureId());
-      GLError.maybeThrowGLException("Failed to bind depth texture", "glBindTexture");
+      render.lowLevelBindTexture(depthTexture);
       GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_COMPARE_MODE, GLES30.GL_NONE);
       GLError.maybeThrowGLException("Failed to set texture parameter", "glTexParameteri");
       GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST);
@@ -66,8 +108,7 @@ public class Framebuffer implements Closeable {
       // Create framebuffer object and bind to the color and depth textures.
       GLES30.glGenFramebuffers(1, framebufferId, 0);
       GLError.maybeThrowGLException("Framebuffer creation failed", "glGenFramebuffers");
-      GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebufferId[0]);
-      GLError.maybeThrowGLException("Failed to bind framebuffer", "glBindFramebuffer");
+      render.bindFramebuffer(framebufferId[0]);
       GLES30.glFramebufferTexture2D(
           GLES30.GL_FRAMEBUFFER,
           GLES30.GL_COLOR_ATTACHMENT0,
@@ -100,49 +141,55 @@ public class Framebuffer implements Closeable {
     if (framebufferId[0] != 0) {
       GLES30.glDeleteFramebuffers(1, framebufferId, 0);
       GLError.maybeLogGLError(Log.WARN, TAG, "Failed to free framebuffer", "glDeleteFramebuffers");
+      render.onFramebufferDeleted(framebufferId[0]);
       framebufferId[0] = 0;
     }
     colorTexture.close();
     depthTexture.close();
   }
 
-  /** Resizes the framebuffer to the given dimensions. */
+  /**
+   * Resizes the framebuffer to the given dimensions. The textures are allocated at these dimensions
+   * scaled by the render scale.
+   */
   public void resize(int width, int height) {
-    if (this.width == width && this.height == height) {
-      return;
+    unscaledWidth = width;
+    unscaledHeight = height;
+    allocateTextures(/*depthFormatChanged=*/ false);
+  }
+
+  /**
+   * Sets the fraction of the dimensions given to {@link #resize} that the framebuffer is rendered
+   * at. For example, a render scale of 0.5 renders a quarter of the pixels. The default is 1.
+   *
+   * @throws IllegalArgumentException if the render scale is not in the range (0, 1]
+   */
+  public void setRenderScale(float renderScale) {
+    if (!(renderScale > 0.0f && renderScale <= 1.0f)) {
+      throw new IllegalArgumentException(
+          "Render scale must be in the range (0, 1]: " + renderScale);
     }
-    this.width = width;
-    this.height = height;
+    this.renderScale = renderScale;
+    allocateTextures(/*depthFormatChanged=*/ false);
+  }
 
-    // Color texture
-    GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, colorTexture.getTextureId());
-    GLError.maybeThrowGLException("Failed to bind color texture", "glBindTexture");
-    GLES30.glTexImage2D(
-        GLES30.GL_TEXTURE_2D,
-        /*level=*/ 0,
-        GLES30.GL_RGBA,
-        width,
-        height,
-        /*border=*/ 0,
-        GLES30.GL_RGBA,
-        GLES30.GL_UNSIGNED_BYTE,
-        /*pixels=*/ null);
-    GLError.maybeThrowGLException("Failed to specify color texture format", "glTexImage2D");
+  /** Returns the fraction of the dimensions given to {@link #resize} that is rendered. */
+  public float getRenderScale() {
+    return renderScale;
+  }
 
-    // Depth texture
-    GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, depthTexture.getTextureId());
-    GLError.maybeThrowGLException("Failed to bind depth texture", "glBindTexture");
-    GLES30.glTexImage2D(
-        GLES30.GL_TEXTURE_2D,
-        /*level=*/ 0,
-        GLES30.GL_DEPTH_COMPONENT32F,
-        width,
-        height,
-        /*border=*/ 0,
-        GLES30.GL_DEPTH_COMPONENT,
-        GLES30.GL_FLOAT,
-        /*pixels=*/ null);
-    GLError.maybeThrowGLException("Failed to specify depth texture format", "glTexImage2D");
+  /** Sets the format of the depth texture, reallocating it if the format changes. */
+  public void setDepthFormat(DepthFormat depthFormat) {
+    if (this.depthFormat == depthFormat) {
+      return;
+    }
+    this.depthFormat = depthFormat;
+    allocateTextures(/*depthFormatChanged=*/ true);
+  }
+
+  /** Returns the format of the depth texture. */
+  public DepthFormat getDepthFormat() {
+    return depthFormat;
   }
 
   /** Returns the color texture associated with this framebuffer. */
@@ -155,12 +202,12 @@ public class Framebuffer implements Closeable {
     return depthTexture;
   }
 
-  /** Returns the width of the framebuffer. */
+  /** Returns the width of the framebuffer's textures, after scaling by the render scale. */
   public int getWidth() {
     return width;
   }
 
-  /** Returns the height of the framebuffer. */
+  /** Returns the height of the framebuffer's textures, after scaling by the render scale. */
   public int getHeight() {
     return height;
   }
@@ -169,4 +216,49 @@ public class Framebuffer implements Closeable {
   int getFramebufferId() {
     return framebufferId[0];
   }
+
+  private void allocateTextures(boolean depthFormatChanged) {
+    int width = getScaledSize(unscaledWidth);
+    int height = getScaledSize(unscaledHeight);
+    boolean sizeChanged = this.width != width || this.height != height;
+    if (!sizeChanged && !depthFormatChanged) {
+      return;
+    }
+    this.width = width;
+    this.height = height;
+
+    // Color texture
+    if (sizeChanged) {
+      render.lowLevelBindTexture(colorTexture);
+      GLES30.glTexImage2D(
+          GLES30.GL_TEXTURE_2D,
+          /*level=*/ 0,
+          GLES30.GL_RGBA,
+          width,
+          height,
+          /*border=*/ 0,
+          GLES30.GL_RGBA,
+          GLES30.GL_UNSIGNED_BYTE,
+          /*pixels=*/ null);
+      GLError.maybeThrowGLException("Failed to specify color texture format", "glTexImage2D");
+    }
+
+    // Depth texture
+    render.lowLevelBindTexture(depthTexture);
+    GLES30.glTexImage2D(
+        GLES30.GL_TEXTURE_2D,
+        /*level=*/ 0,
+        depthFormat.glesInternalFormat,
+        width,
+        height,
+        /*border=*/ 0,
+        GLES30.GL_DEPTH_COMPONENT,
+        depthFormat.glesType,
+        /*pixels=*/ null);
+    GLError.maybeThrowGLException("Failed to specify depth texture format", "glTexImage2D");
+  }
+
+  private int getScaledSize(int size) {
+    return Math.max(1, Math.round(size * renderScale));
+  }
 }
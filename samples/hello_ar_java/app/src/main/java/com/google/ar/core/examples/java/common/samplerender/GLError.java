@@ -20,27 +20,219 @@ import android.opengl.GLException;
 import android.opengl.GLU;
 import android.util.Log;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
-/** Module for handling OpenGL errors. */
+/**
+ * Module for handling OpenGL errors.
+ *
+ * <p>Every check calls {@code glGetError}, which may force the driver to synchronize with the GPU.
+ * The {@link CheckPolicy} controls how often checks actually happen. Errors are counted per call
+ * site regardless of the policy, see {@link #getCallSiteStatistics}.
+ */
 public class GLError {
+  private static final String TAG = GLError.class.getSimpleName();
+  private static final String UNATTRIBUTED_REASON = "Errors since the previous frame boundary";
+  private static final String UNATTRIBUTED_API = "unknown";
+
+  /** Determines when GL errors are checked. */
+  public enum CheckPolicy {
+    /** Check after every GL call. Errors are thrown or logged at the failing call. */
+    FULL,
+    /**
+     * Check once per frame. Errors are logged without a call site, and the following frame is
+     * checked in full so that the failing call site can be identified.
+     */
+    FRAME_BOUNDARY,
+    /**
+     * Check after every GL call in one of every {@link GLError#setSampleInterval} frames, and at
+     * the end of every frame as with {@link #FRAME_BOUNDARY}.
+     */
+    SAMPLED,
+    /** Never check. */
+    OFF
+  }
+
+  /** Error statistics of a single call site, identified by its reason and API name. */
+  public static class CallSiteStatistics {
+    private final String reason;
+    private final String api;
+    private int errorCount;
+    private int lastErrorCode;
+    private long lastFrame;
+
+    private CallSiteStatistics(String reason, String api) {
+      this.reason = reason;
+      this.api = api;
+    }
+
+    private CallSiteStatistics(CallSiteStatistics other) {
+      this(other.reason, other.api);
+      errorCount = other.errorCount;
+      lastErrorCode = other.lastErrorCode;
+      lastFrame = other.lastFrame;
+    }
+
+    public String getReason() {
+      return reason;
+    }
+
+    public String getApi() {
+      return api;
+    }
+
+    /** Returns the number of checks at this call site which found at least one error. */
+    public int getErrorCount() {
+      return errorCount;
+    }
+
+    /** Returns the first GL error code found by the latest failing check. */
+    public int getLastErrorCode() {
+      return lastErrorCode;
+    }
+
+    /** Returns the index of the frame in which the latest failing check occurred. */
+    public long getLastFrame() {
+      return lastFrame;
+    }
+  }
+
+  private static CheckPolicy checkPolicy = CheckPolicy.FULL;
+  private static int sampleInterval = 60;
+  private static long frameIndex = 0;
+  // Whether individual calls are checked during the current frame.
+  private static boolean checkCurrentFrame = true;
+  private static long performedCheckCount = 0;
+  private static long skippedCheckCount = 0;
+  // Keyed by API name, then by reason, so that no key needs to be built for each failing check.
+  private static final Map<String, Map<String, CallSiteStatistics>> callSiteStatistics =
+      new HashMap<>();
+
+  /**
+   * Sets the policy determining when GL errors are checked. The default is {@link
+   * CheckPolicy#FULL}.
+   */
+  public static void setCheckPolicy(CheckPolicy policy) {
+    checkPolicy = policy;
+    checkCurrentFrame = policy == CheckPolicy.FULL;
+  }
+
+  public static CheckPolicy getCheckPolicy() {
+    return checkPolicy;
+  }
+
+  /** Sets the number of frames between frames checked in full with {@link CheckPolicy#SAMPLED}. */
+  public static void setSampleInterval(int frames) {
+    if (frames < 1) {
+      throw new IllegalArgumentException("Sample interval must be at least one frame");
+    }
+    sampleInterval = frames;
+  }
+
+  /** Returns the number of {@code glGetError} checks performed so far. */
+  public static long getPerformedCheckCount() {
+    return performedCheckCount;
+  }
+
+  /** Returns the number of checks skipped so far because of the {@link CheckPolicy}. */
+  public static long getSkippedCheckCount() {
+    return skippedCheckCount;
+  }
+
+  /**
+   * Returns a snapshot of the error statistics of every call site which produced an error so far.
+   * Errors found at a frame boundary are reported with an API name of {@code "unknown"}.
+   */
+  public static List<CallSiteStatistics> getCallSiteStatistics() {
+    List<CallSiteStatistics> result = new ArrayList<>();
+    synchronized (callSiteStatistics) {
+      for (Map<String, CallSiteStatistics> byReason : callSiteStatistics.values()) {
+        for (CallSiteStatistics statistics : byReason.values()) {
+          result.add(new CallSiteStatistics(statistics));
+        }
+      }
+    }
+    return result;
+  }
+
   /** Throws a {@link GLException} if a GL error occurred. */
   public static void maybeThrowGLException(String reason, String api) {
+    if (!checkCurrentFrame) {
+      ++skippedCheckCount;
+      return;
+    }
     List<Integer> errorCodes = getGlErrors();
     if (errorCodes != null) {
+      recordErrors(reason, api, errorCodes);
       throw new GLException(errorCodes.get(0), formatErrorMessage(reason, api, errorCodes));
     }
   }
 
   /** Logs a message with the given logcat priority if a GL error occurred. */
   public static void maybeLogGLError(int priority, String tag, String reason, String api) {
+    if (!checkCurrentFrame) {
+      ++skippedCheckCount;
+      return;
+    }
     List<Integer> errorCodes = getGlErrors();
     if (errorCodes != null) {
+      recordErrors(reason, api, errorCodes);
       Log.println(priority, tag, formatErrorMessage(reason, api, errorCodes));
     }
   }
 
+  /**
+   * Checks for errors left over from the frame that just ended, and decides whether calls in the
+   * next frame are checked. Called by {@link SampleRender} after each frame.
+   */
+  /* package-private */
+  static void onFrameBoundary() {
+    boolean foundErrors = false;
+    if (checkPolicy != CheckPolicy.OFF) {
+      List<Integer> errorCodes = getGlErrors();
+      if (errorCodes != null) {
+        foundErrors = true;
+        recordErrors(UNATTRIBUTED_REASON, UNATTRIBUTED_API, errorCodes);
+        Log.e(TAG, formatErrorMessage(UNATTRIBUTED_REASON, UNATTRIBUTED_API, errorCodes));
+      }
+    }
+    ++frameIndex;
+    switch (checkPolicy) {
+      case FULL:
+        checkCurrentFrame = true;
+        break;
+      case SAMPLED:
+        checkCurrentFrame = foundErrors || frameIndex % sampleInterval == 0;
+        break;
+      case FRAME_BOUNDARY:
+        checkCurrentFrame = foundErrors;
+        break;
+      case OFF:
+        checkCurrentFrame = false;
+        break;
+    }
+  }
+
+  private static void recordErrors(String reason, String api, List<Integer> errorCodes) {
+    synchronized (callSiteStatistics) {
+      Map<String, CallSiteStatistics> byReason = callSiteStatistics.get(api);
+      if (byReason == null) {
+        byReason = new HashMap<>();
+        callSiteStatistics.put(api, byReason);
+      }
+      CallSiteStatistics statistics = byReason.get(reason);
+      if (statistics == null) {
+        statistics = new CallSiteStatistics(reason, api);
+        byReason.put(reason, statistics);
+      }
+      ++statistics.errorCount;
+      statistics.lastErrorCode = errorCodes.get(0);
+      statistics.lastFrame = frameIndex;
+    }
+  }
+
   private static String formatErrorMessage(String reason, String api, List<Integer> errorCodes) {
     StringBuilder builder = new StringBuilder(String.format("%s: %s: ", reason, api));
     Iterator<Integer> iterator = errorCodes.iterator();
@@ -55,6 +247,7 @@ public class GLError {
   }
 
   private static List<Integer> getGlErrors() {
+    ++performedCheckCount;
     int errorCode = GLES30.glGetError();
     // Shortcut for no errors
     if (errorCode == GLES30.GL_NO_ERROR) {
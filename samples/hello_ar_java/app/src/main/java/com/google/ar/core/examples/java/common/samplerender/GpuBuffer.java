@@ -18,22 +18,48 @@ package com.google.ar.core.examples.java.common.samplerender;
 import android.opengl.GLES30;
 import android.util.Log;
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
 /* package-private */
 class GpuBuffer {
   private static final String TAG = GpuBuffer.class.getSimpleName();
 
   // These values refer to the byte count of the corresponding Java datatypes.
+  public static final int BYTE_SIZE = 1;
+  public static final int SHORT_SIZE = 2;
   public static final int INT_SIZE = 4;
   public static final int FLOAT_SIZE = 4;
 
+  // How long to wait for the GPU to release a streaming region before giving up.
+  private static final long FENCE_TIMEOUT_NANOS = 1_000_000_000L;
+  private static final int STREAMING_MAP_FLAGS =
+      GLES30.GL_MAP_WRITE_BIT
+          | GLES30.GL_MAP_INVALIDATE_RANGE_BIT
+          | GLES30.GL_MAP_UNSYNCHRONIZED_BIT;
+
+  private final SampleRender render;
   private final int target;
   private final int numberOfBytesPerEntry;
   private final int[] bufferId = {0};
   private int size;
   private int capacity;
 
-  public GpuBuffer(int target, int numberOfBytesPerEntry, Buffer entries) {
+  // In streaming mode, the buffer is divided into regions of capacity entries which are written in
+  // turn, so that the GPU can keep reading the previous contents while new ones are written. A
+  // fence guards each region that was written before, until the GPU is done with it.
+  private final int numberOfRegions;
+  private final long[] fences;
+  private int currentRegion = 0;
+  private boolean currentRegionWritten = false;
+  private int offset = 0;
+  private int stallCount = 0;
+  private long stallNanos = 0;
+
+  public GpuBuffer(SampleRender render, int target, int numberOfBytesPerEntry, Buffer entries) {
     if (entries != null) {
       if (!entries.isDirect()) {
         throw new IllegalArgumentException("If non-null, entries buffer must be a direct buffer");
@@ -45,8 +71,11 @@ class GpuBuffer {
       }
     }
 
+    this.render = render;
     this.target = target;
     this.numberOfBytesPerEntry = numberOfBytesPerEntry;
+    this.numberOfRegions = 0;
+    this.fences = null;
     if (entries == null) {
       this.size = 0;
       this.capacity = 0;
@@ -57,8 +86,7 @@ class GpuBuffer {
 
     try {
       // Clear VAO to prevent unintended state change.
-      GLES30.glBindVertexArray(0);
-      GLError.maybeThrowGLException("Failed to unbind vertex array", "glBindVertexArray");
+      render.bindVertexArray(0);
 
       GLES30.glGenBuffers(1, bufferId, 0);
       GLError.maybeThrowGLException("Failed to generate buffers", "glGenBuffers");
@@ -78,7 +106,41 @@ class GpuBuffer {
     }
   }
 
+  /**
+   * Constructs an empty streaming buffer which cycles through {@code numberOfRegions} regions of a
+   * single GL buffer object. Each call to {@link #set} writes to the next region through an
+   * unsynchronized mapping, and only waits for the GPU if that region is still in use.
+   */
+  public GpuBuffer(
+      SampleRender render, int target, int numberOfBytesPerEntry, int numberOfRegions) {
+    if (numberOfRegions < 2) {
+      throw new IllegalArgumentException("Streaming buffers need at least two regions");
+    }
+    this.render = render;
+    this.target = target;
+    this.numberOfBytesPerEntry = numberOfBytesPerEntry;
+    this.numberOfRegions = numberOfRegions;
+    this.fences = new long[numberOfRegions];
+    this.size = 0;
+    this.capacity = 0;
+
+    try {
+      // Clear VAO to prevent unintended state change.
+      render.bindVertexArray(0);
+
+      GLES30.glGenBuffers(1, bufferId, 0);
+      GLError.maybeThrowGLException("Failed to generate buffers", "glGenBuffers");
+    } catch (Throwable t) {
+      free();
+      throw t;
+    }
+  }
+
   public void set(Buffer entries) {
+    if (numberOfRegions != 0) {
+      setStreaming(entries);
+      return;
+    }
     // Some GPU drivers will fail with out of memory errors if glBufferData or glBufferSubData is
     // called with a size of 0, so avoid this case.
     if (entries == null || entries.limit() == 0) {
@@ -88,8 +150,7 @@ class GpuBuffer {
     if (!entries.isDirect()) {
       throw new IllegalArgumentException("If non-null, entries buffer must be a direct buffer");
     }
-    GLES30.glBindBuffer(target, bufferId[0]);
-    GLError.maybeThrowGLException("Failed to bind vertex buffer object", "glBindBuffer");
+    bind();
 
     entries.rewind();
 
@@ -106,7 +167,37 @@ class GpuBuffer {
     }
   }
 
+  /**
+   * Replaces {@code count} entries starting at entry {@code offset} with the entries at the same
+   * position of the <i>direct</i> buffer {@code entries}. The range must lie within the current
+   * size of the buffer.
+   */
+  public void update(int offset, int count, Buffer entries) {
+    if (count == 0) {
+      return;
+    }
+    if (numberOfRegions != 0) {
+      throw new IllegalStateException("Streaming buffers can only be replaced as a whole");
+    }
+    if (!entries.isDirect()) {
+      throw new IllegalArgumentException("Entries buffer must be a direct buffer");
+    }
+    if (offset < 0 || count < 0 || offset + count > size) {
+      throw new IllegalArgumentException("Updated range must lie within the buffer");
+    }
+    bind();
+
+    entries.position(offset);
+    GLES30.glBufferSubData(
+        target, offset * numberOfBytesPerEntry, count * numberOfBytesPerEntry, entries);
+    GLError.maybeThrowGLException("Failed to update buffer object", "glBufferSubData");
+    entries.rewind();
+  }
+
   public void free() {
+    if (fences != null) {
+      deleteFences();
+    }
     if (bufferId[0] != 0) {
       GLES30.glDeleteBuffers(1, bufferId, 0);
       GLError.maybeLogGLError(Log.WARN, TAG, "Failed to free buffer object", "glDeleteBuffers");
@@ -121,4 +212,131 @@ class GpuBuffer {
   public int getSize() {
     return size;
   }
+
+  /** Returns the offset of the current contents within the GL buffer object, in bytes. */
+  public int getByteOffset() {
+    return offset * numberOfBytesPerEntry;
+  }
+
+  /** Returns how many times {@link #set} had to wait for the GPU to release a streaming region. */
+  public int getStallCount() {
+    return stallCount;
+  }
+
+  /** Returns the total time {@link #set} spent waiting for the GPU, in nanoseconds. */
+  public long getStallNanos() {
+    return stallNanos;
+  }
+
+  private int alignRegion(int entries) {
+    int entriesPerWord = Math.max(1, INT_SIZE / numberOfBytesPerEntry);
+    return (entries + entriesPerWord - 1) / entriesPerWord * entriesPerWord;
+  }
+
+  private void setStreaming(Buffer entries) {
+    if (entries == null || entries.limit() == 0) {
+      size = 0;
+      return;
+    }
+    if (!entries.isDirect()) {
+      throw new IllegalArgumentException("If non-null, entries buffer must be a direct buffer");
+    }
+    bind();
+
+    int count = entries.limit();
+    if (count > capacity) {
+      // Grow geometrically. Respecifying the data store orphans the old one, which the driver keeps
+      // alive until the GPU is done with it, so the old fences are no longer needed.
+      deleteFences();
+      // Regions are kept 4-byte aligned, so that data of any type starts aligned in every region.
+      capacity = alignRegion(Math.max(count, capacity * 2));
+      GLES30.glBufferData(
+          target, numberOfRegions * capacity * numberOfBytesPerEntry, null, GLES30.GL_STREAM_DRAW);
+      GLError.maybeThrowGLException("Failed to allocate streaming buffer", "glBufferData");
+      currentRegion = 0;
+    } else if (currentRegionWritten) {
+      // Guard the region holding the current contents, which may be read by draws issued so far,
+      // and move on to the next one.
+      fences[currentRegion] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+      GLError.maybeThrowGLException("Failed to create fence", "glFenceSync");
+      currentRegion = (currentRegion + 1) % numberOfRegions;
+      waitForRegion(currentRegion);
+    }
+    offset = currentRegion * capacity;
+
+    int byteCount = count * numberOfBytesPerEntry;
+    ByteBuffer mapped =
+        (ByteBuffer)
+            GLES30.glMapBufferRange(
+                target, offset * numberOfBytesPerEntry, byteCount, STREAMING_MAP_FLAGS);
+    GLError.maybeThrowGLException("Failed to map streaming buffer", "glMapBufferRange");
+    entries.rewind();
+    copyEntries(entries, mapped.order(ByteOrder.nativeOrder()));
+    entries.rewind();
+    if (!GLES30.glUnmapBuffer(target)) {
+      // The data store was corrupted while mapped, e.g. due to a display mode change, so upload the
+      // contents again the regular way.
+      GLES30.glBufferSubData(target, offset * numberOfBytesPerEntry, byteCount, entries);
+      GLError.maybeThrowGLException("Failed to populate streaming buffer", "glBufferSubData");
+    }
+    GLError.maybeThrowGLException("Failed to unmap streaming buffer", "glUnmapBuffer");
+    currentRegionWritten = true;
+    size = count;
+  }
+
+  private void waitForRegion(int region) {
+    long fence = fences[region];
+    if (fence == 0) {
+      return;
+    }
+    int status = GLES30.glClientWaitSync(fence, 0, 0);
+    if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+      ++stallCount;
+      long start = System.nanoTime();
+      status =
+          GLES30.glClientWaitSync(fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NANOS);
+      stallNanos += System.nanoTime() - start;
+    }
+    GLES30.glDeleteSync(fence);
+    fences[region] = 0;
+    if (status == GLES30.GL_WAIT_FAILED) {
+      GLError.maybeThrowGLException("Failed to wait for fence", "glClientWaitSync");
+    } else if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+      Log.w(TAG, "Timed out waiting for the GPU to release a streaming buffer region");
+    }
+  }
+
+  private void deleteFences() {
+    for (int i = 0; i < fences.length; ++i) {
+      if (fences[i] != 0) {
+        GLES30.glDeleteSync(fences[i]);
+        GLError.maybeLogGLError(Log.WARN, TAG, "Failed to delete fence", "glDeleteSync");
+        fences[i] = 0;
+      }
+    }
+  }
+
+  private void bind() {
+    if (target == GLES30.GL_ELEMENT_ARRAY_BUFFER) {
+      // The element array buffer binding is part of the vertex array state, so make sure that this
+      // does not change the bound vertex array.
+      render.bindVertexArray(0);
+    }
+    GLES30.glBindBuffer(target, bufferId[0]);
+    GLError.maybeThrowGLException("Failed to bind buffer object", "glBindBuffer");
+  }
+
+  private static void copyEntries(Buffer entries, ByteBuffer destination) {
+    if (entries instanceof FloatBuffer) {
+      destination.asFloatBuffer().put((FloatBuffer) entries);
+    } else if (entries instanceof IntBuffer) {
+      destination.asIntBuffer().put((IntBuffer) entries);
+    } else if (entries instanceof ShortBuffer) {
+      destination.asShortBuffer().put((ShortBuffer) entries);
+    } else if (entries instanceof ByteBuffer) {
+      destination.put((ByteBuffer) entries);
+    } else {
+      throw new IllegalArgumentException("Unsupported entries buffer type");
+    }
+  }
 }
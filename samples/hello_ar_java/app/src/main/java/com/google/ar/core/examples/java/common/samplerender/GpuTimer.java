@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import android.opengl.GLES30;
+import android.util.Log;
+import java.io.Closeable;
+
+/**
+ * Measures how long the GPU takes to execute the commands issued between {@link #begin} and {@link
+ * #end}, using the EXT_disjoint_timer_query extension.
+ *
+ * <p>Results become available a few frames after the commands are issued. Several queries are kept
+ * in flight, and {@link #getElapsedNanos} returns the most recent result which is available, so
+ * that measuring never stalls the render thread. On devices without the extension, the timer does
+ * nothing, and no result is ever available.
+ *
+ * @see <a
+ *     href="https://www.khronos.org/registry/OpenGL/extensions/EXT/EXT_disjoint_timer_query.txt">EXT_disjoint_timer_query</a>
+ */
+public class GpuTimer implements Closeable {
+  private static final String TAG = GpuTimer.class.getSimpleName();
+
+  private static final String EXTENSION = "GL_EXT_disjoint_timer_query";
+  private static final int GL_TIME_ELAPSED_EXT = 0x88bf;
+  private static final int GL_GPU_DISJOINT_EXT = 0x8fbb;
+
+  private final int[] queryIds;
+  private final boolean[] queryPending;
+  private final int[] result = {0};
+  private int nextQuery = 0;
+  private int activeQuery = -1;
+  private long elapsedNanos = -1;
+
+  /**
+   * Constructs a {@link GpuTimer} with the given number of queries, which limits how many
+   * measurements may be in flight at once. Three is enough for most drivers.
+   */
+  public GpuTimer(SampleRender render, int numberOfQueries) {
+    if (numberOfQueries < 1) {
+      throw new IllegalArgumentException("Number of queries must be positive");
+    }
+    String extensions = GLES30.glGetString(GLES30.GL_EXTENSIONS);
+    if (extensions == null || !extensions.contains(EXTENSION)) {
+      queryIds = new int[0];
+      queryPending = new boolean[0];
+      return;
+    }
+    queryIds = new int[numberOfQueries];
+    queryPending = new boolean[numberOfQueries];
+    GLES30.glGenQueries(numberOfQueries, queryIds, 0);
+    GLError.maybeThrowGLException("Failed to create timer queries", "glGenQueries");
+  }
+
+  /** Returns whether the device supports GPU timer queries. */
+  public boolean isSupported() {
+    return queryIds.length > 0;
+  }
+
+  /**
+   * Starts timing the commands issued from now on. If every query is still waiting for its result,
+   * this measurement is skipped.
+   */
+  public void begin() {
+    if (!isSupported() || activeQuery != -1) {
+      return;
+    }
+    collectResults();
+    if (queryPending[nextQuery]) {
+      return;
+    }
+    activeQuery = nextQuery;
+    nextQuery = (nextQuery + 1) % queryIds.length;
+    GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, queryIds[activeQuery]);
+    GLError.maybeThrowGLException("Failed to begin timer query", "glBeginQuery");
+  }
+
+  /** Stops timing the commands issued since the matching {@link #begin}. */
+  public void end() {
+    if (activeQuery == -1) {
+      return;
+    }
+    GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+    GLError.maybeThrowGLException("Failed to end timer query", "glEndQuery");
+    queryPending[activeQuery] = true;
+    activeQuery = -1;
+  }
+
+  /**
+   * Returns the GPU time of the most recent measurement whose result is available, in nanoseconds,
+   * or -1 if there is none.
+   */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  @Override
+  public void close() {
+    if (isSupported() && queryIds[0] != 0) {
+      GLES30.glDeleteQueries(queryIds.length, queryIds, 0);
+      GLError.maybeLogGLError(Log.WARN, TAG, "Failed to free timer queries", "glDeleteQueries");
+      queryIds[0] = 0;
+    }
+  }
+
+  private void collectResults() {
+    // A disjoint operation, such as a change of GPU frequency, invalidates every query in flight.
+    GLES30.glGetIntegerv(GL_GPU_DISJOINT_EXT, result, 0);
+    GLError.maybeThrowGLException("Failed to get timer disjoint state", "glGetIntegerv");
+    boolean disjoint = result[0] != 0;
+    // Results arrive in order, so stop at the first one which is not available yet.
+    for (int i = 0; i < queryIds.length; ++i) {
+      int query = (nextQuery + i) % queryIds.length;
+      if (!queryPending[query]) {
+        continue;
+      }
+      if (!disjoint) {
+        GLES30.glGetQueryObjectuiv(queryIds[query], GLES30.GL_QUERY_RESULT_AVAILABLE, result, 0);
+        GLError.maybeThrowGLException("Failed to get timer query state", "glGetQueryObjectuiv");
+        if (result[0] == 0) {
+          break;
+        }
+        GLES30.glGetQueryObjectuiv(queryIds[query], GLES30.GL_QUERY_RESULT, result, 0);
+        GLError.maybeThrowGLException("Failed to get timer query result", "glGetQueryObjectuiv");
+        // The result is an unsigned 32-bit number of nanoseconds.
+        elapsedNanos = result[0] & 0xffffffffL;
+      }
+      queryPending[query] = false;
+    }
+  }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Conversions of 16-bit floating point data, such as {@code GL_HALF_FLOAT} textures and the {@code
+ * RGBA_FP16} cubemaps provided by ARCore, to and from other formats.
+ *
+ * <p>Conversions in both directions are driven by lookup tables indexed by the sign and exponent
+ * bits, so that the per-value work is a few table reads, shifts and adds without branches on the
+ * class of the value. Conversion to half floats rounds to the nearest representable value, ties to
+ * even, and values too large in magnitude become infinite.
+ *
+ * <p>Bulk conversions read the remaining values of their source buffer and write them at the
+ * position of their destination buffer, advancing both positions, like the bulk {@code put}
+ * methods of {@link java.nio}. They work with any buffers, but are intended for direct buffers in
+ * native byte order.
+ *
+ * @see <a href="http://www.fox-toolkit.org/ftp/fasthalffloatconversion.pdf">Fast Half Float
+ *     Conversions</a>
+ */
+public final class HalfFloat {
+  private static final int COMPONENTS_PER_TEXEL = 4;
+  // The largest finite half float.
+  private static final float MAX_VALUE = 65504.0f;
+
+  // Half to float: the float bits are MANTISSA[OFFSET[e] + m] + EXPONENT[e], where e holds the
+  // sign and exponent bits of the half, and m its mantissa bits.
+  private static final int[] MANTISSA = new int[2048];
+  private static final int[] EXPONENT = new int[64];
+  private static final int[] OFFSET = new int[64];
+
+  // Float to half, indexed by the sign and exponent bits of the float. The mantissa, with its
+  // implicit leading bit if IMPLICIT is set, is shifted right by SHIFT and added to BASE.
+  private static final short[] BASE = new short[512];
+  private static final byte[] SHIFT = new byte[512];
+  private static final int[] IMPLICIT = new int[512];
+
+  static {
+    // Subnormal halves are normalized into float exponents.
+    for (int m = 1; m < 1024; ++m) {
+      int mantissa = m << 13;
+      int exponent = 0;
+      while ((mantissa & 0x800000) == 0) {
+        exponent -= 0x800000;
+        mantissa <<= 1;
+      }
+      MANTISSA[m] = (mantissa & ~0x800000) | (exponent + 0x38800000);
+    }
+    for (int m = 1024; m < 2048; ++m) {
+      MANTISSA[m] = 0x38000000 + ((m - 1024) << 13);
+    }
+    for (int e = 1; e < 31; ++e) {
+      EXPONENT[e] = e << 23;
+      EXPONENT[e + 32] = 0x80000000 | (e << 23);
+    }
+    EXPONENT[31] = 0x47800000;
+    EXPONENT[32] = 0x80000000;
+    EXPONENT[63] = 0xc7800000;
+    for (int e = 1; e < 64; ++e) {
+      OFFSET[e] = e == 32 ? 0 : 1024;
+    }
+
+    for (int e = 0; e < 256; ++e) {
+      int halfExponent = e - 127 + 15;
+      short base;
+      int shift;
+      int implicit;
+      if (halfExponent < -10) {
+        // Too small: the whole mantissa is shifted out, and never rounds up.
+        base = 0;
+        shift = 25;
+        implicit = 0x800000;
+      } else if (halfExponent <= 0) {
+        // Subnormal half: the mantissa, including its implicit leading bit, is shifted into place.
+        base = 0;
+        shift = 14 - halfExponent;
+        implicit = 0x800000;
+      } else if (halfExponent < 31) {
+        // A carry out of the mantissa correctly increments the exponent, up to infinity.
+        base = (short) (halfExponent << 10);
+        shift = 13;
+        implicit = 0;
+      } else {
+        // Too large, or infinite. NaN is handled separately.
+        base = 0x7c00;
+        shift = 24;
+        implicit = 0;
+      }
+      BASE[e] = base;
+      BASE[e | 0x100] = (short) (base | 0x8000);
+      SHIFT[e] = SHIFT[e | 0x100] = (byte) shift;
+      IMPLICIT[e] = IMPLICIT[e | 0x100] = implicit;
+    }
+  }
+
+  /** Holds luminance statistics computed by {@link #computeLuminanceStatistics}. */
+  public static class LuminanceStatistics {
+    /** The number of texels the statistics were computed from. */
+    public int count;
+    /** The smallest luminance. */
+    public float min;
+    /** The largest luminance. */
+    public float max;
+    /** The arithmetic mean of the luminances. */
+    public float mean;
+    /**
+     * The geometric mean of the luminances, which is less sensitive to a few very bright texels
+     * than the arithmetic mean. Luminances are clamped to a small positive value first.
+     */
+    public float logAverage;
+  }
+
+  // The smallest luminance used to compute the geometric mean, since black texels have none.
+  private static final float MIN_LOG_LUMINANCE = 1e-4f;
+
+  private HalfFloat() {}
+
+  /** Converts the bits of a 16-bit floating point number to a float. */
+  public static float toFloat(short half) {
+    int e = (half >>> 10) & 0x3f;
+    return Float.intBitsToFloat(MANTISSA[OFFSET[e] + (half & 0x3ff)] + EXPONENT[e]);
+  }
+
+  /**
+   * Converts {@code value} to the bits of a 16-bit floating point number, rounding to the nearest
+   * representable value. Values too large in magnitude become infinite.
+   */
+  public static short toHalf(float value) {
+    int bits = Float.floatToRawIntBits(value);
+    if ((bits & 0x7fffffff) > 0x7f800000) {
+      // NaN stays NaN, with the quiet bit set so that it does not become infinite.
+      return (short) (((bits >>> 16) & 0x8000) | 0x7e00);
+    }
+    int e = bits >>> 23;
+    int mantissa = (bits & 0x7fffff) | IMPLICIT[e];
+    int shift = SHIFT[e];
+    int half = BASE[e] + (mantissa >>> shift);
+    // Round to nearest, ties to even.
+    int remainder = mantissa & ((1 << shift) - 1);
+    int halfway = 1 << (shift - 1);
+    int roundUp = (halfway - remainder - (half & 1)) >>> 31;
+    return (short) (half + roundUp);
+  }
+
+  /** Converts the remaining half floats of {@code source} to floats in {@code destination}. */
+  public static void toFloat(ShortBuffer source, FloatBuffer destination) {
+    checkRemaining(source.remaining(), destination.remaining());
+    while (source.hasRemaining()) {
+      destination.put(toFloat(source.get()));
+    }
+  }
+
+  /** Converts the remaining floats of {@code source} to half floats in {@code destination}. */
+  public static void toHalf(FloatBuffer source, ShortBuffer destination) {
+    checkRemaining(source.remaining(), destination.remaining());
+    while (source.hasRemaining()) {
+      destination.put(toHalf(source.get()));
+    }
+  }
+
+  /**
+   * Converts the remaining RGBA half float texels of {@code source} to the packed {@code
+   * GL_UNSIGNED_INT_5_9_9_9_REV} layout of {@code GL_RGB9_E5} textures in {@code destination}, one
+   * int per texel, which takes half the memory. Alpha is dropped, and negative and NaN components
+   * become zero.
+   *
+   * @see <a
+   *     href="https://www.khronos.org/registry/OpenGL/extensions/EXT/EXT_texture_shared_exponent.txt">EXT_texture_shared_exponent</a>
+   */
+  public static void toRgb9e5(ShortBuffer source, IntBuffer destination) {
+    checkTexels(source.remaining(), destination.remaining());
+    // The largest value representable with 9 bits of mantissa and a biased exponent of 31.
+    final float maxValue = (511.0f / 512.0f) * 65536.0f;
+    while (source.hasRemaining()) {
+      float r = clampRgb9e5(toFloat(source.get()), maxValue);
+      float g = clampRgb9e5(toFloat(source.get()), maxValue);
+      float b = clampRgb9e5(toFloat(source.get()), maxValue);
+      source.get();
+      float maxComponent = Math.max(r, Math.max(g, b));
+      // Math.getExponent is floor(log2(x)) for normal values, and below -16 for the others.
+      int exponent = Math.max(-16, Math.getExponent(maxComponent)) + 16;
+      if (Math.round(Math.scalb(maxComponent, 24 - exponent)) == 512) {
+        ++exponent;
+      }
+      int scale = 24 - exponent;
+      destination.put(
+          Math.round(Math.scalb(r, scale))
+              | Math.round(Math.scalb(g, scale)) << 9
+              | Math.round(Math.scalb(b, scale)) << 18
+              | exponent << 27);
+    }
+  }
+
+  /**
+   * Converts the remaining RGBA half float texels of {@code source} to the RGBE format of Radiance
+   * HDR images in {@code destination}: three bytes of mantissa sharing one byte of exponent, biased
+   * by 128. Alpha is dropped, negative and NaN components become zero, and infinite components
+   * become the largest finite half float.
+   */
+  public static void toRgbe(ShortBuffer source, ByteBuffer destination) {
+    checkTexels(source.remaining(), destination.remaining() / COMPONENTS_PER_TEXEL);
+    while (source.hasRemaining()) {
+      float r = clampNonNegative(toFloat(source.get()));
+      float g = clampNonNegative(toFloat(source.get()));
+      float b = clampNonNegative(toFloat(source.get()));
+      source.get();
+      float maxComponent = Math.max(r, Math.max(g, b));
+      if (maxComponent < 1e-32f) {
+        destination.putInt(0);
+        continue;
+      }
+      // The mantissa of the largest component is in [0.5, 1) when scaled by 2^-exponent.
+      int exponent = Math.getExponent(maxComponent) + 1;
+      int scale = 8 - exponent;
+      destination
+          .put((byte) Math.scalb(r, scale))
+          .put((byte) Math.scalb(g, scale))
+          .put((byte) Math.scalb(b, scale))
+          .put((byte) (exponent + 128));
+    }
+  }
+
+  /**
+   * Computes statistics of the luminance of the remaining RGBA half float texels of {@code
+   * source}, for example one face of a cubemap, without changing its position. Luminance is
+   * computed with the Rec. 709 coefficients. Negative and NaN components count as zero, and
+   * infinite components as the largest finite half float.
+   */
+  public static void computeLuminanceStatistics(ShortBuffer source, LuminanceStatistics result) {
+    checkWholeTexels(source.remaining());
+    int count = source.remaining() / COMPONENTS_PER_TEXEL;
+    float min = Float.POSITIVE_INFINITY;
+    float max = 0.0f;
+    double sum = 0.0;
+    double logSum = 0.0;
+    for (int i = source.position(); i < source.limit(); i += COMPONENTS_PER_TEXEL) {
+      float luminance =
+          0.2126f * clampNonNegative(toFloat(source.get(i)))
+              + 0.7152f * clampNonNegative(toFloat(source.get(i + 1)))
+              + 0.0722f * clampNonNegative(toFloat(source.get(i + 2)));
+      min = Math.min(min, luminance);
+      max = Math.max(max, luminance);
+      sum += luminance;
+      logSum += Math.log(Math.max(MIN_LOG_LUMINANCE, luminance));
+    }
+    result.count = count;
+    result.min = count == 0 ? 0.0f : min;
+    result.max = max;
+    result.mean = count == 0 ? 0.0f : (float) (sum / count);
+    result.logAverage = count == 0 ? 0.0f : (float) Math.exp(logSum / count);
+  }
+
+  private static float clampRgb9e5(float value, float maxValue) {
+    // Written so that NaN becomes zero.
+    return value > 0.0f ? Math.min(value, maxValue) : 0.0f;
+  }
+
+  private static float clampNonNegative(float value) {
+    // Written so that NaN becomes zero.
+    return value > 0.0f ? Math.min(value, MAX_VALUE) : 0.0f;
+  }
+
+  private static void checkRemaining(int sourceRemaining, int destinationRemaining) {
+    if (destinationRemaining < sourceRemaining) {
+      throw new IllegalArgumentException(
+          "Destination has room for " + destinationRemaining + " values, " + sourceRemaining
+              + " needed");
+    }
+  }
+
+  private static void checkTexels(int sourceComponents, int destinationTexels) {
+    checkWholeTexels(sourceComponents);
+    checkRemaining(sourceComponents / COMPONENTS_PER_TEXEL, destinationTexels);
+  }
+
+  private static void checkWholeTexels(int sourceComponents) {
+    if (sourceComponents % COMPONENTS_PER_TEXEL != 0) {
+      throw new IllegalArgumentException("Source does not contain whole RGBA texels");
+    }
+  }
+}
@@ -17,7 +17,9 @@ package com.google.ar.core.examples.java.common.samplerender;
 
 import android.opengl.GLES30;
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
 /**
  * A list of vertex indices stored GPU-side.
@@ -25,11 +27,27 @@ import java.nio.IntBuffer;
  * <p>When constructing a {@link Mesh}, an {@link IndexBuffer} may be passed to describe the
  * ordering of vertices when drawing each primitive.
  *
+ * <p>Indices are given as 32-bit integers, but are stored in the narrowest type that can hold the
+ * largest of them: unsigned bytes, unsigned shorts or unsigned ints. Most meshes have fewer than
+ * 65536 vertices, which halves the memory and bandwidth taken by their indices.
+ *
  * @see <a
  *     href="https://www.khronos.org/registry/OpenGL-Refpages/es3.0/html/glDrawElements.xhtml">glDrawElements</a>
  */
 public class IndexBuffer implements Closeable {
   private final GpuBuffer buffer;
+  private final StagingBufferPool stagingBufferPool;
+  // Streaming buffers are set every frame, so they keep their conversion buffers around.
+  private final boolean retainScratch;
+  private int indexType = GLES30.GL_UNSIGNED_BYTE;
+  private int numberOfBytesPerIndex = GpuBuffer.BYTE_SIZE;
+
+  private int[] wideIndices;
+  private short[] shortIndices;
+  private byte[] byteIndices;
+  private ByteBuffer narrowData;
+  private ShortBuffer narrowShortData;
+  private IntBuffer narrowIntData;
 
   /**
    * Construct an {@link IndexBuffer} populated with initial data.
@@ -42,7 +60,46 @@ public class IndexBuffer implements Closeable {
    * instead.
    */
   public IndexBuffer(SampleRender render, IntBuffer entries) {
-    buffer = new GpuBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, GpuBuffer.INT_SIZE, entries);
+    checkDirect(entries);
+    stagingBufferPool = render.getStagingBufferPool();
+    retainScratch = false;
+    buffer =
+        new GpuBuffer(
+            render, GLES30.GL_ELEMENT_ARRAY_BUFFER, GpuBuffer.BYTE_SIZE, narrow(entries));
+    releaseScratch();
+  }
+
+  /**
+   * Construct an {@link IndexBuffer} from indices which are already stored in the given type, such
+   * as those of a binary mesh file.
+   */
+  /* package-private */
+  IndexBuffer(SampleRender render, ByteBuffer entries, int numberOfBytesPerIndex) {
+    if (entries != null && entries.limit() % numberOfBytesPerIndex != 0) {
+      throw new IllegalArgumentException(
+          "If non-null, index buffer data must be divisible by the size of an index");
+    }
+    setNumberOfBytesPerIndex(numberOfBytesPerIndex);
+    stagingBufferPool = render.getStagingBufferPool();
+    retainScratch = false;
+    buffer = new GpuBuffer(render, GLES30.GL_ELEMENT_ARRAY_BUFFER, GpuBuffer.BYTE_SIZE, entries);
+  }
+
+  private IndexBuffer(SampleRender render, GpuBuffer buffer) {
+    this.buffer = buffer;
+    this.stagingBufferPool = render.getStagingBufferPool();
+    this.retainScratch = true;
+  }
+
+  /**
+   * Constructs an empty {@link IndexBuffer} for data which is replaced every frame. See {@link
+   * VertexBuffer#createStreaming}.
+   */
+  public static IndexBuffer createStreaming(SampleRender render, int numberOfRegions) {
+    return new IndexBuffer(
+        render,
+        new GpuBuffer(
+            render, GLES30.GL_ELEMENT_ARRAY_BUFFER, GpuBuffer.BYTE_SIZE, numberOfRegions));
   }
 
   /**
@@ -57,12 +114,30 @@ public class IndexBuffer implements Closeable {
    * <p>The {@code entries} buffer may be null, in which case the buffer will become empty.
    */
   public void set(IntBuffer entries) {
-    buffer.set(entries);
+    checkDirect(entries);
+    buffer.set(narrow(entries));
+    if (!retainScratch) {
+      releaseScratch();
+    }
   }
 
   @Override
   public void close() {
     buffer.free();
+    releaseScratch();
+  }
+
+  /**
+   * Returns how many times {@link #set} had to wait for the GPU. This is always zero for buffers
+   * not created with {@link #createStreaming}.
+   */
+  public int getStallCount() {
+    return buffer.getStallCount();
+  }
+
+  /** Returns the total time {@link #set} spent waiting for the GPU, in nanoseconds. */
+  public long getStallNanos() {
+    return buffer.getStallNanos();
   }
 
   /* package-private */
@@ -70,8 +145,127 @@ public class IndexBuffer implements Closeable {
     return buffer.getBufferId();
   }
 
+  /* package-private */
+  int getByteOffset() {
+    return buffer.getByteOffset();
+  }
+
+  /**
+   * Returns the type of the stored indices: {@code GL_UNSIGNED_BYTE}, {@code GL_UNSIGNED_SHORT} or
+   * {@code GL_UNSIGNED_INT}.
+   */
+  /* package-private */
+  int getIndexType() {
+    return indexType;
+  }
+
   /* package-private */
   int getSize() {
-    return buffer.getSize();
+    return buffer.getSize() / numberOfBytesPerIndex;
+  }
+
+  private static void checkDirect(IntBuffer entries) {
+    if (entries != null && !entries.isDirect()) {
+      throw new IllegalArgumentException("If non-null, entries buffer must be a direct buffer");
+    }
+  }
+
+  // Converts the indices to the narrowest type which can hold all of them, and selects that type.
+  // The indices are copied in bulk into an array, where they are converted, and from there in bulk
+  // into a direct buffer, rather than going through the buffers one index at a time.
+  private ByteBuffer narrow(IntBuffer entries) {
+    if (entries == null || entries.limit() == 0) {
+      return null;
+    }
+    int count = entries.limit();
+    if (wideIndices == null || wideIndices.length < count) {
+      wideIndices = new int[count];
+    }
+    entries.position(0);
+    entries.get(wideIndices, 0, count);
+
+    // The bitwise or of all indices has the same highest set bit as the largest index, which is all
+    // that matters for choosing the type. Negative values are treated as unsigned.
+    int combinedBits = 0;
+    for (int i = 0; i < count; ++i) {
+      combinedBits |= wideIndices[i];
+    }
+    if ((combinedBits & ~0xff) == 0) {
+      setNumberOfBytesPerIndex(GpuBuffer.BYTE_SIZE);
+    } else if ((combinedBits & ~0xffff) == 0) {
+      setNumberOfBytesPerIndex(GpuBuffer.SHORT_SIZE);
+    } else {
+      setNumberOfBytesPerIndex(GpuBuffer.INT_SIZE);
+    }
+
+    int byteCount = count * numberOfBytesPerIndex;
+    if (narrowData == null || narrowData.capacity() < byteCount) {
+      if (narrowData != null) {
+        stagingBufferPool.release(narrowData);
+      }
+      // The views span the whole capacity, which may exceed what was asked for.
+      narrowData = stagingBufferPool.acquire(byteCount);
+      narrowData.clear();
+      narrowShortData = narrowData.asShortBuffer();
+      narrowIntData = narrowData.asIntBuffer();
+    }
+    switch (numberOfBytesPerIndex) {
+      case GpuBuffer.BYTE_SIZE:
+        if (byteIndices == null || byteIndices.length < count) {
+          byteIndices = new byte[count];
+        }
+        for (int i = 0; i < count; ++i) {
+          byteIndices[i] = (byte) wideIndices[i];
+        }
+        narrowData.clear();
+        narrowData.put(byteIndices, 0, count);
+        break;
+      case GpuBuffer.SHORT_SIZE:
+        if (shortIndices == null || shortIndices.length < count) {
+          shortIndices = new short[count];
+        }
+        for (int i = 0; i < count; ++i) {
+          shortIndices[i] = (short) wideIndices[i];
+        }
+        narrowShortData.clear();
+        narrowShortData.put(shortIndices, 0, count);
+        break;
+      default:
+        narrowIntData.clear();
+        narrowIntData.put(wideIndices, 0, count);
+        break;
+    }
+    narrowData.clear();
+    narrowData.limit(byteCount);
+    return narrowData;
+  }
+
+  private void setNumberOfBytesPerIndex(int numberOfBytesPerIndex) {
+    switch (numberOfBytesPerIndex) {
+      case GpuBuffer.BYTE_SIZE:
+        indexType = GLES30.GL_UNSIGNED_BYTE;
+        break;
+      case GpuBuffer.SHORT_SIZE:
+        indexType = GLES30.GL_UNSIGNED_SHORT;
+        break;
+      case GpuBuffer.INT_SIZE:
+        indexType = GLES30.GL_UNSIGNED_INT;
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported index size: " + numberOfBytesPerIndex);
+    }
+    this.numberOfBytesPerIndex = numberOfBytesPerIndex;
+  }
+
+  private void releaseScratch() {
+    wideIndices = null;
+    shortIndices = null;
+    byteIndices = null;
+    if (narrowData != null) {
+      stagingBufferPool.release(narrowData);
+      narrowData = null;
+    }
+    narrowShortData = null;
+    narrowIntData = null;
   }
 }
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The contents of a KTX (version 1) file holding a compressed 2D texture with its mipmap levels.
+ *
+ * <p>Only ETC2 and ASTC LDR formats are accepted, and the file must contain the mipmap levels it
+ * is sampled with, since compressed textures cannot be mipmapped at runtime. Each level is checked
+ * against the size its format requires, so that a malformed file is rejected before anything is
+ * uploaded.
+ *
+ * <p>This class does not depend on GL or the Android framework, so it may be used from any thread.
+ *
+ * @see <a href="https://www.khronos.org/registry/KTX/specs/1.0/ktxspec_v1.html">KTX File Format
+ *     Specification</a>
+ */
+/* package-private */
+class KtxContainer {
+  private static final byte[] IDENTIFIER = {
+    (byte) 0xab, 'K', 'T', 'X', ' ', '1', '1', (byte) 0xbb, '\r', '\n', 0x1a, '\n'
+  };
+  private static final int ENDIANNESS = 0x04030201;
+  private static final int HEADER_SIZE = 64;
+
+  // Internal formats, as defined by OpenGL ES 3.0 and KHR_texture_compression_astc_ldr. Each
+  // linear format is paired with its sRGB equivalent, which shares its block encoding.
+  private static final int GL_COMPRESSED_RGB8_ETC2 = 0x9274;
+  private static final int GL_COMPRESSED_SRGB8_ETC2 = 0x9275;
+  private static final int GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2 = 0x9276;
+  private static final int GL_COMPRESSED_SRGB8_PUNCHTHROUGH_ALPHA1_ETC2 = 0x9277;
+  private static final int GL_COMPRESSED_RGBA8_ETC2_EAC = 0x9278;
+  private static final int GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC = 0x9279;
+  private static final int GL_COMPRESSED_RGBA_ASTC_4x4 = 0x93b0;
+  private static final int GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4 = 0x93d0;
+  // Block sizes of the ASTC formats, in the order of their internal format values.
+  private static final int[][] ASTC_BLOCK_SIZES = {
+    {4, 4}, {5, 4}, {5, 5}, {6, 5}, {6, 6}, {8, 5}, {8, 6}, {8, 8}, {10, 5}, {10, 6}, {10, 8},
+    {10, 10}, {12, 10}, {12, 12}
+  };
+
+  private final int internalFormat;
+  private final int width;
+  private final int height;
+  private final ByteBuffer[] levels;
+
+  private KtxContainer(int internalFormat, int width, int height, ByteBuffer[] levels) {
+    this.internalFormat = internalFormat;
+    this.width = width;
+    this.height = height;
+    this.levels = levels;
+  }
+
+  /**
+   * Parses and validates a KTX file. The returned mipmap levels are views of {@code data}, which
+   * must not be modified while they are in use.
+   *
+   * @throws IOException if the file is malformed, is not a compressed 2D texture in a supported
+   *     format, or its mipmap levels do not match its dimensions
+   */
+  public static KtxContainer parse(ByteBuffer data) throws IOException {
+    data = data.duplicate();
+    if (data.remaining() < HEADER_SIZE) {
+      throw new IOException("Truncated KTX header");
+    }
+    int start = data.position();
+    for (int i = 0; i < IDENTIFIER.length; ++i) {
+      if (data.get(start + i) != IDENTIFIER[i]) {
+        throw new IOException("Not a KTX 1 file");
+      }
+    }
+    data.order(ByteOrder.LITTLE_ENDIAN);
+    if (data.getInt(start + 12) != ENDIANNESS) {
+      data.order(ByteOrder.BIG_ENDIAN);
+      if (data.getInt(start + 12) != ENDIANNESS) {
+        throw new IOException("Invalid KTX endianness marker");
+      }
+    }
+
+    int glType = data.getInt(start + 16);
+    int glFormat = data.getInt(start + 24);
+    int internalFormat = data.getInt(start + 28);
+    int width = data.getInt(start + 36);
+    int height = data.getInt(start + 40);
+    int depth = data.getInt(start + 44);
+    int numberOfArrayElements = data.getInt(start + 48);
+    int numberOfFaces = data.getInt(start + 52);
+    int numberOfMipmapLevels = data.getInt(start + 56);
+    int bytesOfKeyValueData = data.getInt(start + 60);
+
+    if (glType != 0 || glFormat != 0 || getBlockWidth(internalFormat) == 0) {
+      throw new IOException(
+          "Unsupported KTX internal format 0x" + Integer.toHexString(internalFormat));
+    }
+    if (width < 1 || height < 1 || depth != 0 || numberOfArrayElements != 0 || numberOfFaces != 1) {
+      throw new IOException("KTX file is not a 2D texture");
+    }
+    if (numberOfMipmapLevels < 1
+        || numberOfMipmapLevels > getMaxNumberOfMipmapLevels(width, height)) {
+      throw new IOException(
+          "Invalid number of mipmap levels " + numberOfMipmapLevels + " for " + width + "x"
+              + height);
+    }
+
+    int position = start + HEADER_SIZE;
+    if (bytesOfKeyValueData < 0 || bytesOfKeyValueData > data.limit() - position) {
+      throw new IOException("Truncated KTX key/value data");
+    }
+    position += bytesOfKeyValueData;
+    ByteBuffer[] levels = new ByteBuffer[numberOfMipmapLevels];
+    for (int level = 0; level < numberOfMipmapLevels; ++level) {
+      if (data.limit() - position < 4) {
+        throw new IOException("Truncated KTX mipmap level " + level);
+      }
+      int imageSize = data.getInt(position);
+      position += 4;
+      int expectedImageSize =
+          getImageSize(internalFormat, getLevelSize(width, level), getLevelSize(height, level));
+      if (imageSize != expectedImageSize) {
+        throw new IOException(
+            "KTX mipmap level " + level + " has " + imageSize + " bytes, expected "
+                + expectedImageSize);
+      }
+      if (imageSize > data.limit() - position) {
+        throw new IOException("Truncated KTX mipmap level " + level);
+      }
+      ByteBuffer view = data.duplicate();
+      view.position(position);
+      view.limit(position + imageSize);
+      levels[level] = view.slice();
+      // Each level is padded to a multiple of four bytes.
+      position += (imageSize + 3) & ~3;
+    }
+    return new KtxContainer(internalFormat, width, height, levels);
+  }
+
+  /** Returns the width of the base mipmap level. */
+  public int getWidth() {
+    return width;
+  }
+
+  /** Returns the height of the base mipmap level. */
+  public int getHeight() {
+    return height;
+  }
+
+  /** Returns the number of mipmap levels stored in the file. */
+  public int getNumberOfMipmapLevels() {
+    return levels.length;
+  }
+
+  /** Returns the compressed data of the given mipmap level. */
+  public ByteBuffer getMipmapLevel(int level) {
+    return levels[level].duplicate();
+  }
+
+  /** Returns the internal format stored in the file. */
+  public int getInternalFormat() {
+    return internalFormat;
+  }
+
+  /**
+   * Returns the internal format to upload the data with, which is the stored format or its linear
+   * or sRGB equivalent, as requested.
+   */
+  public int getInternalFormat(boolean srgb) {
+    switch (internalFormat) {
+      case GL_COMPRESSED_RGB8_ETC2:
+      case GL_COMPRESSED_SRGB8_ETC2:
+        return srgb ? GL_COMPRESSED_SRGB8_ETC2 : GL_COMPRESSED_RGB8_ETC2;
+      case GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2:
+      case GL_COMPRESSED_SRGB8_PUNCHTHROUGH_ALPHA1_ETC2:
+        return srgb
+            ? GL_COMPRESSED_SRGB8_PUNCHTHROUGH_ALPHA1_ETC2
+            : GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2;
+      case GL_COMPRESSED_RGBA8_ETC2_EAC:
+      case GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC:
+        return srgb ? GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC : GL_COMPRESSED_RGBA8_ETC2_EAC;
+      default:
+        int index = getAstcIndex(internalFormat);
+        return (srgb ? GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4 : GL_COMPRESSED_RGBA_ASTC_4x4) + index;
+    }
+  }
+
+  /**
+   * Returns the number of mipmap levels of a complete mipmap chain for a texture of the given
+   * dimensions, down to 1x1.
+   */
+  public static int getMaxNumberOfMipmapLevels(int width, int height) {
+    return 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+  }
+
+  /**
+   * Returns the number of bytes of an image of the given dimensions in the given compressed format,
+   * or 0 if the format is not supported.
+   */
+  public static int getImageSize(int internalFormat, int width, int height) {
+    int blockWidth = getBlockWidth(internalFormat);
+    if (blockWidth == 0) {
+      return 0;
+    }
+    int blockHeight = getBlockHeight(internalFormat);
+    int numberOfBlocks =
+        ((width + blockWidth - 1) / blockWidth) * ((height + blockHeight - 1) / blockHeight);
+    return numberOfBlocks * getBytesPerBlock(internalFormat);
+  }
+
+  private static int getLevelSize(int baseSize, int level) {
+    return Math.max(1, baseSize >> level);
+  }
+
+  private static int getBlockWidth(int internalFormat) {
+    if (isEtc2(internalFormat)) {
+      return 4;
+    }
+    int index = getAstcIndex(internalFormat);
+    return index < 0 ? 0 : ASTC_BLOCK_SIZES[index][0];
+  }
+
+  private static int getBlockHeight(int internalFormat) {
+    if (isEtc2(internalFormat)) {
+      return 4;
+    }
+    int index = getAstcIndex(internalFormat);
+    return index < 0 ? 0 : ASTC_BLOCK_SIZES[index][1];
+  }
+
+  private static int getBytesPerBlock(int internalFormat) {
+    switch (internalFormat) {
+      case GL_COMPRESSED_RGB8_ETC2:
+      case GL_COMPRESSED_SRGB8_ETC2:
+      case GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2:
+      case GL_COMPRESSED_SRGB8_PUNCHTHROUGH_ALPHA1_ETC2:
+        return 8;
+      default:
+        // ETC2 with EAC alpha, and every ASTC block size.
+        return 16;
+    }
+  }
+
+  private static boolean isEtc2(int internalFormat) {
+    return internalFormat >= GL_COMPRESSED_RGB8_ETC2
+        && internalFormat <= GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC;
+  }
+
+  private static int getAstcIndex(int internalFormat) {
+    int index = internalFormat - GL_COMPRESSED_RGBA_ASTC_4x4;
+    if (index < 0 || index >= ASTC_BLOCK_SIZES.length) {
+      index = internalFormat - GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4;
+    }
+    return index < 0 || index >= ASTC_BLOCK_SIZES.length ? -1 : index;
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Encodes compressed textures in the KTX (version 1) files read by {@link KtxContainer}.
+ *
+ * <p>This class does not use GL or Android, so that the {@code convertTextures} task of the build
+ * compiles and runs this same code to write the compressed textures.
+ */
+public final class KtxEncoder {
+  private static final byte[] IDENTIFIER = {
+    (byte) 0xab, 'K', 'T', 'X', ' ', '1', '1', (byte) 0xbb, '\r', '\n', 0x1a, '\n'
+  };
+  private static final int ENDIANNESS = 0x04030201;
+  private static final int HEADER_SIZE = 64;
+  private static final int GL_RGBA = 0x1908;
+
+  private KtxEncoder() {}
+
+  /**
+   * Encodes a compressed 2D texture.
+   *
+   * @param internalFormat The compressed internal format of the data
+   * @param width The width of the first mipmap level
+   * @param height The height of the first mipmap level
+   * @param levels The compressed data of each mipmap level, starting with the largest
+   * @return The contents of the KTX file
+   */
+  public static byte[] encode(int internalFormat, int width, int height, List<byte[]> levels) {
+    int size = HEADER_SIZE;
+    for (byte[] level : levels) {
+      size += 4 + align(level.length);
+    }
+    ByteBuffer data = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    data.put(IDENTIFIER).putInt(ENDIANNESS);
+    // glType, glTypeSize and glFormat, which are 0, 1 and 0 for compressed formats.
+    data.putInt(0).putInt(1).putInt(0);
+    data.putInt(internalFormat).putInt(GL_RGBA);
+    data.putInt(width).putInt(height);
+    // pixelDepth, numberOfArrayElements, numberOfFaces and numberOfMipmapLevels.
+    data.putInt(0).putInt(0).putInt(1).putInt(levels.size());
+    // bytesOfKeyValueData
+    data.putInt(0);
+    for (byte[] level : levels) {
+      data.putInt(level.length).put(level);
+      data.position(align(data.position()));
+    }
+    return data.array();
+  }
+
+  /**
+   * Returns the data of the first mipmap level of a KTX file, such as those written by ETC2
+   * encoders, in either byte order.
+   *
+   * @throws IllegalArgumentException if the data is not a KTX file
+   */
+  public static byte[] readFirstLevel(byte[] file) {
+    ByteBuffer data = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+    if (file.length < HEADER_SIZE) {
+      throw new IllegalArgumentException("Not a KTX file");
+    }
+    for (int i = 0; i < IDENTIFIER.length; ++i) {
+      if (data.get(i) != IDENTIFIER[i]) {
+        throw new IllegalArgumentException("Not a KTX file");
+      }
+    }
+    if (data.getInt(IDENTIFIER.length) != ENDIANNESS) {
+      data.order(ByteOrder.BIG_ENDIAN);
+    }
+    int imageSizeOffset = HEADER_SIZE + data.getInt(HEADER_SIZE - 4);
+    if (imageSizeOffset < HEADER_SIZE || imageSizeOffset > file.length - 4) {
+      throw new IllegalArgumentException("Truncated KTX file");
+    }
+    int imageSize = data.getInt(imageSizeOffset);
+    if (imageSize < 0 || imageSize > file.length - imageSizeOffset - 4) {
+      throw new IllegalArgumentException("Truncated KTX file");
+    }
+    byte[] level = new byte[imageSize];
+    data.position(imageSizeOffset + 4);
+    data.get(level);
+    return level;
+  }
+
+  private static int align(int byteCount) {
+    return (byteCount + 3) & ~3;
+  }
+}
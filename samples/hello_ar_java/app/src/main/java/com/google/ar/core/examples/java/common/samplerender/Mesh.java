@@ -15,17 +15,25 @@
  */
 package com.google.ar.core.examples.java.common.samplerender;
 
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
 import android.opengl.GLES30;
 import android.util.Log;
 import de.javagl.obj.Obj;
 import de.javagl.obj.ObjData;
 import de.javagl.obj.ObjReader;
 import de.javagl.obj.ObjUtils;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * A collection of vertices, faces, and other attributes that define how to render a 3D object.
@@ -59,10 +67,35 @@ public class Mesh implements Closeable {
     }
   }
 
+  /**
+   * The vertex format of a {@link Mesh} constructed from an asset.
+   *
+   * <p>Either way, the attributes are the same as far as shader code is concerned.
+   */
+  public enum AssetVertexFormat {
+    /** One vertex buffer of 32-bit floats per attribute, taking 32 bytes per vertex. */
+    FLOAT,
+    /**
+     * A single interleaved vertex buffer taking 16 bytes per vertex: positions as half floats,
+     * texture coordinates as normalized 16-bit integers (or half floats if they fall outside of
+     * [0, 1]), and normals packed into 10-10-10-2 bits.
+     *
+     * <p>Half floats have 11 significant bits, so positions lose precision on large models, on the
+     * order of a millimeter for a model a meter across.
+     */
+    COMPACT
+  }
+
+  private final SampleRender render;
   private final int[] vertexArrayId = {0};
   private final PrimitiveMode primitiveMode;
   private final IndexBuffer indexBuffer;
   private final VertexBuffer[] vertexBuffers;
+  // The first attribute location of each vertex buffer, and the byte offset within the buffer that
+  // its attribute pointers currently refer to. Streaming buffers move their contents around, so
+  // the pointers are respecified before drawing when the offset changes.
+  private final int[] firstLocations;
+  private final int[] attributeOffsets;
 
   /**
    * Construct a {@link Mesh}.
@@ -74,7 +107,10 @@ public class Mesh implements Closeable {
    * <p>The ordering of the {@code vertexBuffers} is significant. Their array indices will
    * correspond to their attribute locations, which must be taken into account in shader code. The
    * <a href="https://www.khronos.org/opengl/wiki/Layout_Qualifier_(GLSL)">layout qualifier</a> must
-   * be used in the vertex shader code to explicitly associate attributes with these indices.
+   * be used in the vertex shader code to explicitly associate attributes with these indices. A
+   * vertex buffer with more than four entries per vertex occupies one location per four entries,
+   * and a vertex buffer with a {@link VertexLayout} occupies one location per attribute, shifting
+   * the locations of the buffers after it.
    */
   public Mesh(
       SampleRender render,
@@ -85,9 +121,12 @@ public class Mesh implements Closeable {
       throw new IllegalArgumentException("Must pass at least one vertex buffer");
     }
 
+    this.render = render;
     this.primitiveMode = primitiveMode;
     this.indexBuffer = indexBuffer;
     this.vertexBuffers = vertexBuffers;
+    this.firstLocations = new int[vertexBuffers.length];
+    this.attributeOffsets = new int[vertexBuffers.length];
 
     try {
       // Create vertex array
@@ -95,24 +134,29 @@ public class Mesh implements Closeable {
       GLError.maybeThrowGLException("Failed to generate a vertex array", "glGenVertexArrays");
 
       // Bind vertex array
-      GLES30.glBindVertexArray(vertexArrayId[0]);
-      GLError.maybeThrowGLException("Failed to bind vertex array object", "glBindVertexArray");
+      render.bindVertexArray(vertexArrayId[0]);
 
       if (indexBuffer != null) {
         GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, indexBuffer.getBufferId());
       }
 
+      int location = 0;
       for (int i = 0; i < vertexBuffers.length; ++i) {
         // Bind each vertex buffer to vertex array
-        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBuffers[i].getBufferId());
-        GLError.maybeThrowGLException("Failed to bind vertex buffer", "glBindBuffer");
-        GLES30.glVertexAttribPointer(
-            i, vertexBuffers[i].getNumberOfEntriesPerVertex(), GLES30.GL_FLOAT, false, 0, 0);
-        GLError.maybeThrowGLException(
-            "Failed to associate vertex buffer with vertex array", "glVertexAttribPointer");
-        GLES30.glEnableVertexAttribArray(i);
-        GLError.maybeThrowGLException(
-            "Failed to enable vertex buffer", "glEnableVertexAttribArray");
+        VertexBuffer vertexBuffer = vertexBuffers[i];
+        firstLocations[i] = location;
+        setAttributePointers(i);
+        int attributes = vertexBuffer.getLayout().getNumberOfAttributes();
+        for (int attribute = 0; attribute < attributes; ++attribute, ++location) {
+          GLES30.glEnableVertexAttribArray(location);
+          GLError.maybeThrowGLException(
+              "Failed to enable vertex buffer", "glEnableVertexAttribArray");
+          if (vertexBuffer.getDivisor() != 0) {
+            GLES30.glVertexAttribDivisor(location, vertexBuffer.getDivisor());
+            GLError.maybeThrowGLException(
+                "Failed to set vertex attribute divisor", "glVertexAttribDivisor");
+          }
+        }
       }
     } catch (Throwable t) {
       close();
@@ -128,6 +172,47 @@ public class Mesh implements Closeable {
    * (location 2, vec3).
    */
   public static Mesh createFromAsset(SampleRender render, String assetFileName) throws IOException {
+    return createFromAsset(render, assetFileName, AssetVertexFormat.FLOAT);
+  }
+
+  /**
+   * Constructs a {@link Mesh} from the given Wavefront OBJ file, with its vertex data stored in the
+   * given {@code format}.
+   *
+   * <p>The attributes of the OBJ file are laid out as in {@link #createFromAsset(SampleRender,
+   * String)}.
+   */
+  public static Mesh createFromAsset(
+      SampleRender render, String assetFileName, AssetVertexFormat format) throws IOException {
+    return createFromAsset(render, assetFileName, format, /*instanceBuffers=*/ new VertexBuffer[0]);
+  }
+
+  /**
+   * Constructs a {@link Mesh} from the given Wavefront OBJ file, with additional per-instance
+   * vertex buffers.
+   *
+   * <p>The attributes of the OBJ file are laid out as in {@link #createFromAsset(SampleRender,
+   * String)}, and the {@code instanceBuffers} follow from location 3 on.
+   */
+  public static Mesh createFromAsset(
+      SampleRender render, String assetFileName, VertexBuffer[] instanceBuffers)
+      throws IOException {
+    return createFromAsset(render, assetFileName, AssetVertexFormat.FLOAT, instanceBuffers);
+  }
+
+  /**
+   * Constructs a {@link Mesh} from the given Wavefront OBJ file with its vertex data stored in the
+   * given {@code format}, with additional per-instance vertex buffers.
+   *
+   * <p>The attributes of the OBJ file are laid out as in {@link #createFromAsset(SampleRender,
+   * String)}, and the {@code instanceBuffers} follow from location 3 on.
+   */
+  public static Mesh createFromAsset(
+      SampleRender render,
+      String assetFileName,
+      AssetVertexFormat format,
+      VertexBuffer[] instanceBuffers)
+      throws IOException {
     try (InputStream inputStream = render.getAssets().open(assetFileName)) {
       Obj obj = ObjUtils.convertToRenderable(ObjReader.read(inputStream));
 
@@ -137,11 +222,24 @@ public class Mesh implements Closeable {
       FloatBuffer textureCoordinates = ObjData.getTexCoords(obj, /*dimensions=*/ 2);
       FloatBuffer normals = ObjData.getNormals(obj);
 
-      VertexBuffer[] vertexBuffers = {
-        new VertexBuffer(render, 3, localCoordinates),
-        new VertexBuffer(render, 2, textureCoordinates),
-        new VertexBuffer(render, 3, normals),
-      };
+      VertexBuffer[] objBuffers;
+      if (format == AssetVertexFormat.COMPACT) {
+        objBuffers =
+            new VertexBuffer[] {
+              createCompactVertexBuffer(render, localCoordinates, textureCoordinates, normals)
+            };
+      } else {
+        objBuffers =
+            new VertexBuffer[] {
+              new VertexBuffer(render, 3, localCoordinates),
+              new VertexBuffer(render, 2, textureCoordinates),
+              new VertexBuffer(render, 3, normals)
+            };
+      }
+      VertexBuffer[] vertexBuffers = new VertexBuffer[objBuffers.length + instanceBuffers.length];
+      System.arraycopy(objBuffers, 0, vertexBuffers, 0, objBuffers.length);
+      System.arraycopy(
+          instanceBuffers, 0, vertexBuffers, objBuffers.length, instanceBuffers.length);
 
       IndexBuffer indexBuffer = new IndexBuffer(render, vertexIndices);
 
@@ -149,12 +247,220 @@ public class Mesh implements Closeable {
     }
   }
 
+  /**
+   * Constructs a {@link Mesh} from the given binary mesh file.
+   *
+   * <p>Binary mesh files are converted from the Wavefront OBJ files in {@code assets/models} by the
+   * {@code convertMeshes} task of the app's {@code build.gradle} with {@link BinaryMeshEncoder},
+   * and have the same attributes as meshes constructed by {@link #createFromAsset(SampleRender,
+   * String)}, in the layout of {@link AssetVertexFormat#COMPACT}. Their vertex and index data is
+   * uploaded as stored, without parsing; uncompressed assets are memory-mapped rather than read.
+   *
+   * <p>A binary mesh file consists of the following little-endian 32-bit integers, followed by the
+   * data:
+   *
+   * <ul>
+   *   <li>the magic number {@code "SRMB"} and the format version
+   *   <li>the number of vertex attributes, followed by the GL type and the number of components of
+   *       each attribute, as described by {@link VertexLayout}
+   *   <li>the number of vertices, the size of an index in bytes, and the number of indices
+   * </ul>
+   *
+   * <p>The interleaved vertex data follows the header, and the index data follows the vertex data,
+   * each padded to a multiple of four bytes.
+   */
+  public static Mesh createFromBinaryAsset(SampleRender render, String assetFileName)
+      throws IOException {
+    return createFromBinaryAsset(render, assetFileName, /*instanceBuffers=*/ new VertexBuffer[0]);
+  }
+
+  /**
+   * Constructs a {@link Mesh} from the given binary mesh file, with additional per-instance vertex
+   * buffers following from location 3 on. See {@link #createFromBinaryAsset(SampleRender,
+   * String)}.
+   */
+  public static Mesh createFromBinaryAsset(
+      SampleRender render, String assetFileName, VertexBuffer[] instanceBuffers)
+      throws IOException {
+    return createFromBinaryData(
+        render, readBinaryAsset(render.getAssets(), assetFileName), instanceBuffers);
+  }
+
+  /** The contents of a binary mesh file, ready to be uploaded. */
+  /* package-private */
+  static class BinaryMeshData {
+    final VertexLayout layout;
+    final ByteBuffer vertexData;
+    final ByteBuffer indexData;
+    final int numberOfBytesPerIndex;
+
+    BinaryMeshData(
+        VertexLayout layout,
+        ByteBuffer vertexData,
+        ByteBuffer indexData,
+        int numberOfBytesPerIndex) {
+      this.layout = layout;
+      this.vertexData = vertexData;
+      this.indexData = indexData;
+      this.numberOfBytesPerIndex = numberOfBytesPerIndex;
+    }
+  }
+
+  /**
+   * Reads the header of the given binary mesh file and locates its data. This does not use GL, so
+   * it may be called from any thread.
+   */
+  /* package-private */
+  static BinaryMeshData readBinaryAsset(AssetManager assets, String assetFileName)
+      throws IOException {
+    return parseBinaryMesh(readAsset(assets, assetFileName), assetFileName);
+  }
+
+  /** Reads the header of binary mesh file contents and locates their data. */
+  /* package-private */
+  static BinaryMeshData parseBinaryMesh(ByteBuffer data, String assetFileName)
+      throws IOException {
+    data.order(ByteOrder.LITTLE_ENDIAN);
+    if (data.limit() < 12
+        || data.getInt(0) != BinaryMeshEncoder.MAGIC
+        || data.getInt(4) != BinaryMeshEncoder.VERSION) {
+      throw new IOException(
+          "Not a binary mesh file of version " + BinaryMeshEncoder.VERSION + ": " + assetFileName);
+    }
+
+    int position = 8;
+    int numberOfAttributes = data.getInt(position);
+    position += 4;
+    VertexLayout layout = new VertexLayout();
+    for (int i = 0; i < numberOfAttributes; ++i) {
+      layout.add(
+          VertexLayout.AttributeType.forGlesEnum(data.getInt(position)),
+          data.getInt(position + 4));
+      position += 8;
+    }
+    int numberOfVertices = data.getInt(position);
+    int numberOfBytesPerIndex = data.getInt(position + 4);
+    int numberOfIndices = data.getInt(position + 8);
+    position += 12;
+
+    int vertexByteCount = numberOfVertices * layout.getStride();
+    int indexByteCount = numberOfIndices * numberOfBytesPerIndex;
+    int indexPosition = position + align(vertexByteCount);
+    if (indexPosition + indexByteCount > data.limit()) {
+      throw new IOException("Truncated binary mesh file: " + assetFileName);
+    }
+    return new BinaryMeshData(
+        layout,
+        slice(data, position, vertexByteCount),
+        slice(data, indexPosition, indexByteCount),
+        numberOfBytesPerIndex);
+  }
+
+  /** Uploads the contents of a binary mesh file. */
+  /* package-private */
+  static Mesh createFromBinaryData(
+      SampleRender render, BinaryMeshData data, VertexBuffer[] instanceBuffers) {
+    VertexBuffer[] vertexBuffers = new VertexBuffer[1 + instanceBuffers.length];
+    vertexBuffers[0] = new VertexBuffer(render, data.layout, data.vertexData);
+    System.arraycopy(instanceBuffers, 0, vertexBuffers, 1, instanceBuffers.length);
+    IndexBuffer indexBuffer = new IndexBuffer(render, data.indexData, data.numberOfBytesPerIndex);
+
+    return new Mesh(render, Mesh.PrimitiveMode.TRIANGLES, indexBuffer, vertexBuffers);
+  }
+
+  /**
+   * Returns the contents of the given asset, memory-mapped if it is stored uncompressed. This does
+   * not use GL, so it may be called from any thread.
+   */
+  /* package-private */
+  static ByteBuffer readAsset(AssetManager assets, String assetFileName) throws IOException {
+    try (AssetFileDescriptor descriptor = assets.openFd(assetFileName);
+        FileInputStream stream = descriptor.createInputStream()) {
+      return stream
+          .getChannel()
+          .map(
+              FileChannel.MapMode.READ_ONLY,
+              descriptor.getStartOffset(),
+              descriptor.getLength());
+    } catch (FileNotFoundException e) {
+      // Compressed assets cannot be mapped, so read them instead.
+      try (InputStream inputStream = assets.open(assetFileName)) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[16 * 1024];
+        int count;
+        while ((count = inputStream.read(chunk)) != -1) {
+          bytes.write(chunk, 0, count);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.size());
+        buffer.put(bytes.toByteArray());
+        buffer.rewind();
+        return buffer;
+      }
+    }
+  }
+
+  private static ByteBuffer slice(ByteBuffer data, int position, int length) {
+    ByteBuffer view = data.duplicate();
+    view.position(position);
+    view.limit(position + length);
+    return view.slice();
+  }
+
+  private static int align(int byteCount) {
+    return (byteCount + 3) & ~3;
+  }
+
+  /**
+   * Returns the layout of {@link AssetVertexFormat#COMPACT}, whose vertices are packed by {@link
+   * BinaryMeshEncoder}.
+   */
+  /* package-private */
+  static VertexLayout createCompactLayout(boolean textureCoordinatesNormalized) {
+    // Positions are padded to four components, which keeps the following attributes aligned and
+    // provides the w coordinate.
+    return new VertexLayout()
+        .add(VertexLayout.AttributeType.HALF_FLOAT, 4)
+        .add(
+            textureCoordinatesNormalized
+                ? VertexLayout.AttributeType.NORMALIZED_UNSIGNED_SHORT
+                : VertexLayout.AttributeType.HALF_FLOAT,
+            2)
+        .add(VertexLayout.AttributeType.NORMALIZED_INT_2_10_10_10_REV, 4);
+  }
+
+  private static VertexBuffer createCompactVertexBuffer(
+      SampleRender render,
+      FloatBuffer localCoordinates,
+      FloatBuffer textureCoordinates,
+      FloatBuffer normals) {
+    int numberOfVertices = localCoordinates.limit() / 3;
+    boolean textureCoordinatesNormalized =
+        BinaryMeshEncoder.areTextureCoordinatesNormalized(textureCoordinates);
+    VertexLayout layout = createCompactLayout(textureCoordinatesNormalized);
+
+    StagingBufferPool stagingBufferPool = render.getStagingBufferPool();
+    ByteBuffer data = stagingBufferPool.acquire(numberOfVertices * layout.getStride());
+    BinaryMeshEncoder.putCompactVertices(
+        data,
+        /*position=*/ 0,
+        localCoordinates,
+        textureCoordinates,
+        normals,
+        textureCoordinatesNormalized);
+    try {
+      return new VertexBuffer(render, layout, data);
+    } finally {
+      stagingBufferPool.release(data);
+    }
+  }
+
   @Override
   public void close() {
     if (vertexArrayId[0] != 0) {
       GLES30.glDeleteVertexArrays(1, vertexArrayId, 0);
       GLError.maybeLogGLError(
           Log.WARN, TAG, "Failed to free vertex array object", "glDeleteVertexArrays");
+      render.onVertexArrayDeleted(vertexArrayId[0]);
     }
   }
 
@@ -163,27 +469,117 @@ public class Mesh implements Closeable {
    * prefer {@link SampleRender#draw}.
    */
   public void lowLevelDraw() {
+    lowLevelDraw(/*instanceCount=*/ 1, /*instanced=*/ false);
+  }
+
+  /**
+   * Draws {@code instanceCount} instances of the mesh. Don't call this directly unless you are
+   * doing low level OpenGL code; instead, prefer {@link SampleRender#drawInstanced}.
+   */
+  public void lowLevelDrawInstanced(int instanceCount) {
+    lowLevelDraw(instanceCount, /*instanced=*/ true);
+  }
+
+  private void lowLevelDraw(int instanceCount, boolean instanced) {
     if (vertexArrayId[0] == 0) {
       throw new IllegalStateException("Tried to draw a freed Mesh");
     }
+    if (instanceCount < 0) {
+      throw new IllegalArgumentException("Instance count must not be negative");
+    }
 
-    GLES30.glBindVertexArray(vertexArrayId[0]);
-    GLError.maybeThrowGLException("Failed to bind vertex array object", "glBindVertexArray");
-    if (indexBuffer == null) {
-      // Sanity check for debugging
-      int numberOfVertices = vertexBuffers[0].getNumberOfVertices();
-      for (int i = 1; i < vertexBuffers.length; ++i) {
-        if (vertexBuffers[i].getNumberOfVertices() != numberOfVertices) {
-          throw new IllegalStateException("Vertex buffers have mismatching numbers of vertices");
+    // Sanity check for debugging
+    int numberOfVertices = -1;
+    for (VertexBuffer vertexBuffer : vertexBuffers) {
+      if (vertexBuffer.getDivisor() != 0) {
+        if (vertexBuffer.getNumberOfVertices() * vertexBuffer.getDivisor() < instanceCount) {
+          throw new IllegalStateException("Instance buffer is too small for the instance count");
         }
+      } else if (numberOfVertices == -1) {
+        numberOfVertices = vertexBuffer.getNumberOfVertices();
+      } else if (indexBuffer == null && vertexBuffer.getNumberOfVertices() != numberOfVertices) {
+        throw new IllegalStateException("Vertex buffers have mismatching numbers of vertices");
+      }
+    }
+
+    if (indexBuffer == null && numberOfVertices == -1) {
+      throw new IllegalStateException("Mesh without indices has no per-vertex buffers");
+    }
+
+    render.bindVertexArray(vertexArrayId[0]);
+    for (int i = 0; i < vertexBuffers.length; ++i) {
+      if (vertexBuffers[i].getByteOffset() != attributeOffsets[i]) {
+        setAttributePointers(i);
+      }
+    }
+    if (indexBuffer == null) {
+      if (instanced) {
+        GLES30.glDrawArraysInstanced(primitiveMode.glesEnum, 0, numberOfVertices, instanceCount);
+        GLError.maybeThrowGLException(
+            "Failed to draw instanced vertex array object", "glDrawArraysInstanced");
+      } else {
+        GLES30.glDrawArrays(primitiveMode.glesEnum, 0, numberOfVertices);
+        GLError.maybeThrowGLException("Failed to draw vertex array object", "glDrawArrays");
       }
-      GLES30.glDrawArrays(primitiveMode.glesEnum, 0, numberOfVertices);
-      GLError.maybeThrowGLException("Failed to draw vertex array object", "glDrawArrays");
     } else {
-      GLES30.glDrawElements(
-          primitiveMode.glesEnum, indexBuffer.getSize(), GLES30.GL_UNSIGNED_INT, 0);
+      if (instanced) {
+        GLES30.glDrawElementsInstanced(
+            primitiveMode.glesEnum,
+            indexBuffer.getSize(),
+            indexBuffer.getIndexType(),
+            indexBuffer.getByteOffset(),
+            instanceCount);
+        GLError.maybeThrowGLException(
+            "Failed to draw instanced vertex array object with indices",
+            "glDrawElementsInstanced");
+      } else {
+        GLES30.glDrawElements(
+            primitiveMode.glesEnum,
+            indexBuffer.getSize(),
+            indexBuffer.getIndexType(),
+            indexBuffer.getByteOffset());
+        GLError.maybeThrowGLException(
+            "Failed to draw vertex array object with indices", "glDrawElements");
+      }
+    }
+  }
+
+  // Points the attributes of a vertex buffer at its current contents. The vertex array must be
+  // bound.
+  private void setAttributePointers(int index) {
+    VertexBuffer vertexBuffer = vertexBuffers[index];
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBuffer.getBufferId());
+    GLError.maybeThrowGLException("Failed to bind vertex buffer", "glBindBuffer");
+    VertexLayout layout = vertexBuffer.getLayout();
+    int offset = vertexBuffer.getByteOffset();
+    for (int attribute = 0; attribute < layout.getNumberOfAttributes(); ++attribute) {
+      GLES30.glVertexAttribPointer(
+          firstLocations[index] + attribute,
+          layout.getNumberOfComponents(attribute),
+          layout.getGlType(attribute),
+          layout.isNormalized(attribute),
+          layout.getStride(),
+          offset + layout.getOffset(attribute));
       GLError.maybeThrowGLException(
-          "Failed to draw vertex array object with indices", "glDrawElements");
+          "Failed to associate vertex buffer with vertex array", "glVertexAttribPointer");
     }
+    attributeOffsets[index] = offset;
+  }
+
+  /* package-private */
+  int getVertexArrayId() {
+    return vertexArrayId[0];
+  }
+
+  /** Returns the number of vertices in the first vertex buffer. */
+  /* package-private */
+  int getNumberOfVertices() {
+    return vertexBuffers[0].getNumberOfVertices();
+  }
+
+  /** Returns the number of indices, or zero if the mesh has no index buffer. */
+  /* package-private */
+  int getNumberOfIndices() {
+    return indexBuffer == null ? 0 : indexBuffer.getSize();
   }
 }
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import android.opengl.GLES30;
+import android.util.Log;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A cache of linked shader programs stored on disk, so that shaders do not need to be compiled and
+ * linked again on later runs.
+ *
+ * <p>Programs are stored as returned by {@code glGetProgramBinary}, keyed by a hash of their
+ * vertex and fragment shader code (including defines) and the GL vendor, renderer and version
+ * strings, since binaries are only valid for the driver that produced them. If the driver rejects
+ * a stored binary anyway, for example after a driver update, the program is compiled from source
+ * and the entry is replaced.
+ *
+ * <p>Attach the cache with {@link SampleRender#setProgramBinaryCache}. A good directory is one
+ * inside {@code Context.getCodeCacheDir()}, which is cleared when the app is updated.
+ *
+ * @see <a
+ *     href="https://www.khronos.org/registry/OpenGL-Refpages/es3.0/html/glProgramBinary.xhtml">glProgramBinary</a>
+ */
+public class ProgramBinaryCache {
+  private static final String TAG = ProgramBinaryCache.class.getSimpleName();
+
+  private static final int FILE_MAGIC = 0x50524f47; // "PROG"
+  private static final int FILE_VERSION = 1;
+  private static final String FILE_SUFFIX = ".bin";
+
+  private final File directory;
+  // Determined on first use, since it requires a GL context.
+  private String driverKey = null;
+  private boolean supported = false;
+
+  private int hitCount = 0;
+  private int missCount = 0;
+  private int rejectedCount = 0;
+  private long savedNanos = 0;
+
+  /** Constructs a {@link ProgramBinaryCache} storing its entries in the given directory. */
+  public ProgramBinaryCache(File directory) {
+    this.directory = directory;
+  }
+
+  /** Returns how many programs were loaded from the cache. */
+  public int getHitCount() {
+    return hitCount;
+  }
+
+  /** Returns how many programs were not in the cache, or were rejected by the driver. */
+  public int getMissCount() {
+    return missCount;
+  }
+
+  /** Returns how many cached programs were rejected by the driver and compiled from source. */
+  public int getRejectedCount() {
+    return rejectedCount;
+  }
+
+  /**
+   * Returns the total time saved by loading programs from the cache, in nanoseconds: the time it
+   * took to compile and link each program when it was stored, less the time it took to load it.
+   */
+  public long getSavedNanos() {
+    return savedNanos;
+  }
+
+  /** Deletes all entries of the cache. */
+  public void clear() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.getName().endsWith(FILE_SUFFIX) && !file.delete()) {
+        Log.w(TAG, "Failed to delete " + file);
+      }
+    }
+  }
+
+  /**
+   * Creates a program from the binary cached for the given shader code, staging it in a buffer
+   * from {@code stagingBufferPool}. Returns 0 if there is no usable entry, in which case the
+   * program must be compiled from source.
+   */
+  /* package-private */
+  int loadProgram(
+      StagingBufferPool stagingBufferPool, String vertexShaderCode, String fragmentShaderCode) {
+    if (!isSupported()) {
+      return 0;
+    }
+    File file = getFile(vertexShaderCode, fragmentShaderCode);
+    if (!file.exists()) {
+      ++missCount;
+      return 0;
+    }
+
+    long start = System.nanoTime();
+    int binaryFormat;
+    long linkNanos;
+    ByteBuffer binary = null;
+    try (FileInputStream stream = new FileInputStream(file)) {
+      // Unbuffered, so that the channel below continues right after the header.
+      DataInputStream input = new DataInputStream(stream);
+      if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION) {
+        throw new IOException("Unrecognized program binary file");
+      }
+      binaryFormat = input.readInt();
+      linkNanos = input.readLong();
+      int length = input.readInt();
+      if (length < 0 || length > file.length()) {
+        throw new IOException("Invalid program binary length");
+      }
+      binary = stagingBufferPool.acquire(length);
+      FileChannel channel = stream.getChannel();
+      while (binary.hasRemaining()) {
+        if (channel.read(binary) < 0) {
+          throw new EOFException("Truncated program binary");
+        }
+      }
+      binary.rewind();
+    } catch (IOException e) {
+      if (binary != null) {
+        stagingBufferPool.release(binary);
+      }
+      Log.w(TAG, "Failed to read cached program binary " + file, e);
+      deleteEntry(file);
+      ++missCount;
+      return 0;
+    }
+
+    int programId;
+    int error;
+    try {
+      programId = GLES30.glCreateProgram();
+      GLError.maybeThrowGLException("Shader program creation failed", "glCreateProgram");
+      GLES30.glProgramBinary(programId, binaryFormat, binary, binary.limit());
+      // An invalid binary may be reported as an error here, or as a failed link below.
+      error = GLES30.glGetError();
+    } finally {
+      stagingBufferPool.release(binary);
+    }
+
+    final int[] linkStatus = new int[1];
+    if (error == GLES30.GL_NO_ERROR) {
+      GLES30.glGetProgramiv(programId, GLES30.GL_LINK_STATUS, linkStatus, 0);
+      GLError.maybeThrowGLException("Failed to get link status", "glGetProgramiv");
+    }
+    if (linkStatus[0] == GLES30.GL_FALSE) {
+      GLES30.glDeleteProgram(programId);
+      GLError.maybeLogGLError(Log.WARN, TAG, "Failed to free shader program", "glDeleteProgram");
+      Log.i(TAG, "Driver rejected cached program binary, compiling from source");
+      deleteEntry(file);
+      ++rejectedCount;
+      ++missCount;
+      return 0;
+    }
+
+    ++hitCount;
+    savedNanos += linkNanos - (System.nanoTime() - start);
+    return programId;
+  }
+
+  /**
+   * Stores the binary of a linked program in the cache, staging it in a buffer from {@code
+   * stagingBufferPool}. {@code linkNanos} is the time it took to compile and link the program,
+   * which is reported as saved by later hits.
+   */
+  /* package-private */
+  void storeProgram(
+      StagingBufferPool stagingBufferPool,
+      String vertexShaderCode,
+      String fragmentShaderCode,
+      int programId,
+      long linkNanos) {
+    if (!isSupported()) {
+      return;
+    }
+    final int[] binaryLength = new int[1];
+    GLES30.glGetProgramiv(programId, GLES30.GL_PROGRAM_BINARY_LENGTH, binaryLength, 0);
+    GLError.maybeThrowGLException("Failed to get program binary length", "glGetProgramiv");
+    if (binaryLength[0] <= 0) {
+      return;
+    }
+    ByteBuffer binary = stagingBufferPool.acquire(binaryLength[0]);
+    try {
+      final int[] length = new int[1];
+      final int[] binaryFormat = new int[1];
+      GLES30.glGetProgramBinary(programId, binaryLength[0], length, 0, binaryFormat, 0, binary);
+      GLError.maybeThrowGLException("Failed to get program binary", "glGetProgramBinary");
+      binary.rewind();
+      binary.limit(length[0]);
+      writeEntry(getFile(vertexShaderCode, fragmentShaderCode), binaryFormat[0], linkNanos, binary);
+    } finally {
+      stagingBufferPool.release(binary);
+    }
+  }
+
+  private void writeEntry(File file, int binaryFormat, long linkNanos, ByteBuffer binary) {
+    // Write to a temporary file first, so that an interrupted write never leaves a truncated entry.
+    File temporaryFile = new File(directory, file.getName() + ".tmp");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(TAG, "Failed to create program binary cache directory " + directory);
+      return;
+    }
+    try (FileOutputStream stream = new FileOutputStream(temporaryFile)) {
+      // Unbuffered, so that the channel below continues right after the header.
+      DataOutputStream output = new DataOutputStream(stream);
+      output.writeInt(FILE_MAGIC);
+      output.writeInt(FILE_VERSION);
+      output.writeInt(binaryFormat);
+      output.writeLong(linkNanos);
+      output.writeInt(binary.remaining());
+      FileChannel channel = stream.getChannel();
+      while (binary.hasRemaining()) {
+        channel.write(binary);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write program binary " + temporaryFile, e);
+      deleteEntry(temporaryFile);
+      return;
+    }
+    if (!temporaryFile.renameTo(file)) {
+      Log.w(TAG, "Failed to store program binary " + file);
+      deleteEntry(temporaryFile);
+    }
+  }
+
+  private boolean isSupported() {
+    if (driverKey == null) {
+      final int[] numberOfFormats = new int[1];
+      GLES30.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, numberOfFormats, 0);
+      GLError.maybeThrowGLException(
+          "Failed to get number of program binary formats", "glGetIntegerv");
+      supported = numberOfFormats[0] > 0;
+      driverKey =
+          GLES30.glGetString(GLES30.GL_VENDOR)
+              + '\0'
+              + GLES30.glGetString(GLES30.GL_RENDERER)
+              + '\0'
+              + GLES30.glGetString(GLES30.GL_VERSION);
+      GLError.maybeThrowGLException("Failed to get driver strings", "glGetString");
+    }
+    return supported;
+  }
+
+  private File getFile(String vertexShaderCode, String fragmentShaderCode) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+    digest.update(driverKey.getBytes(UTF_8));
+    digest.update((byte) 0);
+    digest.update(vertexShaderCode.getBytes(UTF_8));
+    digest.update((byte) 0);
+    digest.update(fragmentShaderCode.getBytes(UTF_8));
+    StringBuilder name = new StringBuilder();
+    for (byte b : digest.digest()) {
+      name.append(String.format("%02x", b & 0xff));
+    }
+    return new File(directory, name.append(FILE_SUFFIX).toString());
+  }
+
+  private static void deleteEntry(File file) {
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Failed to delete " + file);
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import java.util.Arrays;
+
+/**
+ * Chooses a quality level from measured frame times, so that rendering holds a target frame rate on
+ * both fast and slow devices.
+ *
+ * <p>Quality levels are numbered from 0, the cheapest, to {@code numberOfLevels - 1}, the best;
+ * what each level renders is up to the caller. Frame times are collected in windows of a fixed
+ * number of frames, and at the end of each window a {@link Policy} decides from the 90th
+ * percentile of the CPU and GPU frame times whether to step the level down or up. A step only
+ * happens after the policy has decided the same way for several windows in a row, more of them to
+ * step up than to step down, and no decision is taken for a few windows after a step, while the
+ * new level settles. This keeps the level from oscillating around the target.
+ *
+ * <p>The governor does not read any clock itself, so given the same frame times it always makes the
+ * same decisions, and it can be driven by simulated frame times.
+ */
+public class QualityGovernor {
+  /** The decision taken by a {@link Policy} at the end of a window. */
+  public enum Decision {
+    STEP_DOWN,
+    HOLD,
+    STEP_UP
+  }
+
+  /** Decides whether the quality level should change. */
+  public interface Policy {
+    /**
+     * Returns the decision for a window of frames.
+     *
+     * @param cpuFrameNanos The 90th percentile of the CPU frame times of the window
+     * @param gpuFrameNanos The 90th percentile of the GPU frame times of the window, or -1 if they
+     *     were not measured
+     * @param targetFrameNanos The frame time to hold
+     */
+    Decision decide(long cpuFrameNanos, long gpuFrameNanos, long targetFrameNanos);
+  }
+
+  /**
+   * A {@link Policy} which steps down when the slower of the CPU and GPU exceeds the target frame
+   * time, and steps up when it leaves more than the given fraction of the target unused.
+   */
+  public static class HeadroomPolicy implements Policy {
+    private final float stepUpHeadroom;
+
+    /**
+     * Constructs a {@link HeadroomPolicy}.
+     *
+     * @param stepUpHeadroom The fraction of the target frame time which must be left unused in
+     *     order to step up, which should cover the extra cost of the next level
+     */
+    public HeadroomPolicy(float stepUpHeadroom) {
+      if (!(stepUpHeadroom > 0.0f && stepUpHeadroom < 1.0f)) {
+        throw new IllegalArgumentException("Headroom must be in the range (0, 1)");
+      }
+      this.stepUpHeadroom = stepUpHeadroom;
+    }
+
+    @Override
+    public Decision decide(long cpuFrameNanos, long gpuFrameNanos, long targetFrameNanos) {
+      long frameNanos = Math.max(cpuFrameNanos, gpuFrameNanos);
+      if (frameNanos > targetFrameNanos) {
+        return Decision.STEP_DOWN;
+      }
+      if (frameNanos < targetFrameNanos * (1.0f - stepUpHeadroom)) {
+        return Decision.STEP_UP;
+      }
+      return Decision.HOLD;
+    }
+  }
+
+  private final int numberOfLevels;
+  private final long targetFrameNanos;
+  private final Policy policy;
+  private final long[] cpuFrameNanos;
+  private final long[] gpuFrameNanos;
+
+  private int windowsToStepDown = 1;
+  private int windowsToStepUp = 3;
+  private int settleWindows = 1;
+
+  private int level;
+  private int numberOfFrames = 0;
+  private boolean gpuFrameTimesMeasured = true;
+  private Decision lastDecision = Decision.HOLD;
+  private int consecutiveDecisions = 0;
+  private int windowsUntilSettled = 0;
+  private int stepCount = 0;
+
+  /**
+   * Constructs a {@link QualityGovernor} starting at the best quality level.
+   *
+   * @param numberOfLevels The number of quality levels
+   * @param targetFrameNanos The frame time to hold, in nanoseconds
+   * @param framesPerWindow The number of frames whose times are summarized for each decision
+   * @param policy The policy deciding when to change levels
+   */
+  public QualityGovernor(
+      int numberOfLevels, long targetFrameNanos, int framesPerWindow, Policy policy) {
+    if (numberOfLevels < 1) {
+      throw new IllegalArgumentException("Number of levels must be positive");
+    }
+    if (targetFrameNanos <= 0) {
+      throw new IllegalArgumentException("Target frame time must be positive");
+    }
+    if (framesPerWindow < 1) {
+      throw new IllegalArgumentException("Number of frames per window must be positive");
+    }
+    this.numberOfLevels = numberOfLevels;
+    this.targetFrameNanos = targetFrameNanos;
+    this.policy = policy;
+    this.cpuFrameNanos = new long[framesPerWindow];
+    this.gpuFrameNanos = new long[framesPerWindow];
+    this.level = numberOfLevels - 1;
+  }
+
+  /**
+   * Sets the hysteresis of the governor. By default, it steps down after one window over budget,
+   * steps up after three windows with headroom, and ignores one window after each step.
+   *
+   * @param windowsToStepDown The number of consecutive windows the policy must decide to step down
+   * @param windowsToStepUp The number of consecutive windows the policy must decide to step up
+   * @param settleWindows The number of windows ignored after each step
+   */
+  public void setHysteresis(int windowsToStepDown, int windowsToStepUp, int settleWindows) {
+    if (windowsToStepDown < 1 || windowsToStepUp < 1 || settleWindows < 0) {
+      throw new IllegalArgumentException("Invalid hysteresis");
+    }
+    this.windowsToStepDown = windowsToStepDown;
+    this.windowsToStepUp = windowsToStepUp;
+    this.settleWindows = settleWindows;
+  }
+
+  /**
+   * Sets the current quality level, for example to start below the best level on a known slow
+   * device. Frames of the current window are discarded.
+   */
+  public void setLevel(int level) {
+    if (level < 0 || level >= numberOfLevels) {
+      throw new IllegalArgumentException("Invalid quality level: " + level);
+    }
+    this.level = level;
+    startWindow();
+    lastDecision = Decision.HOLD;
+    consecutiveDecisions = 0;
+  }
+
+  /** Returns the current quality level. */
+  public int getLevel() {
+    return level;
+  }
+
+  /** Returns the number of quality levels. */
+  public int getNumberOfLevels() {
+    return numberOfLevels;
+  }
+
+  /** Returns how many times the quality level has changed since construction. */
+  public int getStepCount() {
+    return stepCount;
+  }
+
+  /**
+   * Records the times taken by a frame, and returns whether the quality level changed as a result.
+   *
+   * @param cpuFrameNanos The CPU time of the frame
+   * @param gpuFrameNanos The GPU time of the frame, or -1 if it is not measured. GPU times are only
+   *     passed to the policy if every frame of the window has one.
+   */
+  public boolean recordFrame(long cpuFrameNanos, long gpuFrameNanos) {
+    this.cpuFrameNanos[numberOfFrames] = cpuFrameNanos;
+    this.gpuFrameNanos[numberOfFrames] = gpuFrameNanos;
+    gpuFrameTimesMeasured &= gpuFrameNanos >= 0;
+    if (++numberOfFrames < this.cpuFrameNanos.length) {
+      return false;
+    }
+    long cpuPercentile = getPercentile90(this.cpuFrameNanos);
+    long gpuPercentile = gpuFrameTimesMeasured ? getPercentile90(this.gpuFrameNanos) : -1;
+    startWindow();
+    if (windowsUntilSettled > 0) {
+      --windowsUntilSettled;
+      return false;
+    }
+
+    Decision decision = policy.decide(cpuPercentile, gpuPercentile, targetFrameNanos);
+    consecutiveDecisions = decision == lastDecision ? consecutiveDecisions + 1 : 1;
+    lastDecision = decision;
+    int newLevel = level;
+    if (decision == Decision.STEP_DOWN && consecutiveDecisions >= windowsToStepDown) {
+      newLevel = Math.max(0, level - 1);
+    } else if (decision == Decision.STEP_UP && consecutiveDecisions >= windowsToStepUp) {
+      newLevel = Math.min(numberOfLevels - 1, level + 1);
+    }
+    if (newLevel == level) {
+      return false;
+    }
+    level = newLevel;
+    ++stepCount;
+    lastDecision = Decision.HOLD;
+    consecutiveDecisions = 0;
+    windowsUntilSettled = settleWindows;
+    return true;
+  }
+
+  private void startWindow() {
+    numberOfFrames = 0;
+    gpuFrameTimesMeasured = true;
+  }
+
+  private static long getPercentile90(long[] frameNanos) {
+    // The window is small, and its frame times are discarded afterwards, so it is sorted in place.
+    Arrays.sort(frameNanos);
+    return frameNanos[(frameNanos.length * 9) / 10];
+  }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import java.util.Arrays;
+
+/**
+ * Records draw calls and submits them later in an order which minimizes GL state changes.
+ *
+ * <p>Recording a draw with {@link #draw} saves the uniform values of its {@link Shader} at that
+ * moment, so the usual pattern of setting per-object uniforms and drawing can be kept as is. The
+ * recorded draws are issued by {@link #submit}, typically once per frame.
+ *
+ * <p>Draws are grouped into passes, which are submitted in increasing order. Within a sorted pass,
+ * draws are ordered by framebuffer, then shader program, then bound textures, then mesh. Within an
+ * unsorted pass, such as {@link #TRANSPARENT_PASS}, draws are submitted in the order they were
+ * recorded, which is necessary when blending. Draws which depend on the output of other draws,
+ * such as a composition reading from a {@link Framebuffer}, must be recorded into a later pass or
+ * issued after {@link #submit}.
+ *
+ * <p>Meshes, shaders and framebuffers must not be changed or closed between recording and
+ * submission, except for uniform values. After submission, the uniform values of each shader are
+ * the ones saved by its last submitted draw.
+ */
+public class RenderQueue {
+  /** The default pass, whose draws are sorted to minimize state changes. */
+  public static final int OPAQUE_PASS = 0;
+  /** A pass submitted after {@link #OPAQUE_PASS}, whose draws are submitted in recording order. */
+  public static final int TRANSPARENT_PASS = 1;
+  /** The number of passes available. */
+  public static final int NUMBER_OF_PASSES = 32;
+
+  private static final int INITIAL_COMMAND_CAPACITY = 64;
+  private static final int INITIAL_UNIFORM_CAPACITY = 1024;
+  private static final int NOT_INSTANCED = -1;
+
+  private final SampleRender render;
+  // Bit i is set if pass i is submitted in recording order.
+  private int unsortedPasses = 1 << TRANSPARENT_PASS;
+
+  // Recorded draws, stored as parallel arrays so that recording does not allocate in steady state.
+  private int commandCount = 0;
+  private Mesh[] meshes = new Mesh[INITIAL_COMMAND_CAPACITY];
+  private Shader[] shaders = new Shader[INITIAL_COMMAND_CAPACITY];
+  private Framebuffer[] framebuffers = new Framebuffer[INITIAL_COMMAND_CAPACITY];
+  private int[] passes = new int[INITIAL_COMMAND_CAPACITY];
+  // NOT_INSTANCED for draws recorded with draw().
+  private int[] instanceCounts = new int[INITIAL_COMMAND_CAPACITY];
+  private int[] stagingLayoutVersions = new int[INITIAL_COMMAND_CAPACITY];
+  private int[] floatOffsets = new int[INITIAL_COMMAND_CAPACITY];
+  private int[] intOffsets = new int[INITIAL_COMMAND_CAPACITY];
+  private int[] textureOffsets = new int[INITIAL_COMMAND_CAPACITY];
+  private int[] order = new int[INITIAL_COMMAND_CAPACITY];
+  private int[] sortScratch = new int[INITIAL_COMMAND_CAPACITY];
+
+  // Uniform values saved for each recorded draw.
+  private float[] savedFloats = new float[INITIAL_UNIFORM_CAPACITY];
+  private int savedFloatCount = 0;
+  private int[] savedInts = new int[INITIAL_UNIFORM_CAPACITY];
+  private int savedIntCount = 0;
+  private Texture[] savedTextures = new Texture[INITIAL_COMMAND_CAPACITY];
+  private int savedTextureCount = 0;
+
+  public RenderQueue(SampleRender render) {
+    this.render = render;
+  }
+
+  /**
+   * Sets whether the draws of the given pass are sorted. By default, all passes except {@link
+   * #TRANSPARENT_PASS} are sorted.
+   */
+  public RenderQueue setPassSorted(int pass, boolean sorted) {
+    checkPass(pass);
+    if (sorted) {
+      unsortedPasses &= ~(1 << pass);
+    } else {
+      unsortedPasses |= 1 << pass;
+    }
+    return this;
+  }
+
+  /** Records a draw of a {@link Mesh} with the specified {@link Shader} in {@link #OPAQUE_PASS}. */
+  public RenderQueue draw(Mesh mesh, Shader shader, Framebuffer framebuffer) {
+    return draw(mesh, shader, framebuffer, OPAQUE_PASS);
+  }
+
+  /**
+   * Records a draw of a {@link Mesh} with the specified {@link Shader} to the given {@link
+   * Framebuffer} in the given pass.
+   *
+   * <p>The {@code framebuffer} argument may be null, in which case the default framebuffer is used.
+   */
+  public RenderQueue draw(Mesh mesh, Shader shader, Framebuffer framebuffer, int pass) {
+    return record(mesh, shader, framebuffer, NOT_INSTANCED, pass);
+  }
+
+  /**
+   * Records an instanced draw of a {@link Mesh} with the specified {@link Shader} in {@link
+   * #OPAQUE_PASS}. See {@link SampleRender#drawInstanced}.
+   */
+  public RenderQueue drawInstanced(
+      Mesh mesh, Shader shader, Framebuffer framebuffer, int instanceCount) {
+    return drawInstanced(mesh, shader, framebuffer, instanceCount, OPAQUE_PASS);
+  }
+
+  /**
+   * Records an instanced draw of a {@link Mesh} with the specified {@link Shader} in the given
+   * pass. See {@link SampleRender#drawInstanced}.
+   */
+  public RenderQueue drawInstanced(
+      Mesh mesh, Shader shader, Framebuffer framebuffer, int instanceCount, int pass) {
+    if (instanceCount < 0) {
+      throw new IllegalArgumentException("Instance count must not be negative");
+    }
+    return record(mesh, shader, framebuffer, instanceCount, pass);
+  }
+
+  /** Returns the number of draws recorded since the last submission. */
+  public int getCommandCount() {
+    return commandCount;
+  }
+
+  /** Issues all recorded draws and empties the queue. */
+  public void submit() {
+    try {
+      for (int i = 0; i < commandCount; ++i) {
+        order[i] = i;
+      }
+      mergeSort(0, commandCount);
+      for (int i = 0; i < commandCount; ++i) {
+        int index = order[i];
+        Shader shader = shaders[index];
+        if (shader.getStagingLayoutVersion() != stagingLayoutVersions[index]) {
+          throw new IllegalStateException(
+              "Uniforms of a shader changed type or size while its draws were queued");
+        }
+        shader.restoreUniforms(
+            savedFloats,
+            floatOffsets[index],
+            savedInts,
+            intOffsets[index],
+            savedTextures,
+            textureOffsets[index]);
+        if (instanceCounts[index] == NOT_INSTANCED) {
+          render.draw(meshes[index], shader, framebuffers[index]);
+        } else {
+          render.drawInstanced(meshes[index], shader, framebuffers[index], instanceCounts[index]);
+        }
+      }
+    } finally {
+      clear();
+    }
+  }
+
+  private RenderQueue record(
+      Mesh mesh, Shader shader, Framebuffer framebuffer, int instanceCount, int pass) {
+    checkPass(pass);
+    if (commandCount == meshes.length) {
+      growCommands();
+    }
+    int floatCount = shader.getSavedFloatCount();
+    int intCount = shader.getSavedIntCount();
+    int textureCount = shader.getSavedTextureCount();
+    if (savedFloatCount + floatCount > savedFloats.length) {
+      savedFloats =
+          Arrays.copyOf(
+              savedFloats, Math.max(savedFloats.length * 2, savedFloatCount + floatCount));
+    }
+    if (savedIntCount + intCount > savedInts.length) {
+      savedInts =
+          Arrays.copyOf(savedInts, Math.max(savedInts.length * 2, savedIntCount + intCount));
+    }
+    if (savedTextureCount + textureCount > savedTextures.length) {
+      savedTextures =
+          Arrays.copyOf(
+              savedTextures,
+              Math.max(savedTextures.length * 2, savedTextureCount + textureCount));
+    }
+    shader.saveUniforms(
+        savedFloats, savedFloatCount, savedInts, savedIntCount, savedTextures, savedTextureCount);
+
+    int index = commandCount++;
+    meshes[index] = mesh;
+    shaders[index] = shader;
+    framebuffers[index] = framebuffer;
+    passes[index] = pass;
+    instanceCounts[index] = instanceCount;
+    stagingLayoutVersions[index] = shader.getStagingLayoutVersion();
+    floatOffsets[index] = savedFloatCount;
+    intOffsets[index] = savedIntCount;
+    textureOffsets[index] = savedTextureCount;
+    savedFloatCount += floatCount;
+    savedIntCount += intCount;
+    savedTextureCount += textureCount;
+    return this;
+  }
+
+  /** Discards all recorded draws without issuing them. */
+  public void clear() {
+    // Drop references so that closed objects can be collected.
+    Arrays.fill(meshes, 0, commandCount, null);
+    Arrays.fill(shaders, 0, commandCount, null);
+    Arrays.fill(framebuffers, 0, commandCount, null);
+    Arrays.fill(savedTextures, 0, savedTextureCount, null);
+    commandCount = 0;
+    savedFloatCount = 0;
+    savedIntCount = 0;
+    savedTextureCount = 0;
+  }
+
+  // A stable merge sort of order[start, end), so that unsorted passes and otherwise equal draws
+  // keep their recording order. Unlike Arrays.sort with a Comparator, this does not allocate.
+  private void mergeSort(int start, int end) {
+    if (end - start < 2) {
+      return;
+    }
+    int middle = (start + end) >>> 1;
+    mergeSort(start, middle);
+    mergeSort(middle, end);
+    if (compare(order[middle - 1], order[middle]) <= 0) {
+      return;
+    }
+    System.arraycopy(order, start, sortScratch, start, end - start);
+    int left = start;
+    int right = middle;
+    for (int i = start; i < end; ++i) {
+      if (right >= end || (left < middle && compare(sortScratch[left], sortScratch[right]) <= 0)) {
+        order[i] = sortScratch[left++];
+      } else {
+        order[i] = sortScratch[right++];
+      }
+    }
+  }
+
+  private int compare(int a, int b) {
+    if (passes[a] != passes[b]) {
+      return Integer.compare(passes[a], passes[b]);
+    }
+    if ((unsortedPasses & (1 << passes[a])) != 0) {
+      return Integer.compare(a, b);
+    }
+    int result = Integer.compare(getFramebufferId(a), getFramebufferId(b));
+    if (result != 0) {
+      return result;
+    }
+    result = Integer.compare(shaders[a].getProgramId(), shaders[b].getProgramId());
+    if (result != 0) {
+      return result;
+    }
+    // Draws with the same program have the same number of texture uniforms.
+    int textureCount = shaders[a].getSavedTextureCount();
+    for (int i = 0; i < textureCount; ++i) {
+      result =
+          Integer.compare(
+              getTextureId(savedTextures[textureOffsets[a] + i]),
+              getTextureId(savedTextures[textureOffsets[b] + i]));
+      if (result != 0) {
+        return result;
+      }
+    }
+    return Integer.compare(meshes[a].getVertexArrayId(), meshes[b].getVertexArrayId());
+  }
+
+  private int getFramebufferId(int index) {
+    Framebuffer framebuffer = framebuffers[index];
+    return framebuffer == null ? 0 : framebuffer.getFramebufferId();
+  }
+
+  private static int getTextureId(Texture texture) {
+    return texture == null ? 0 : texture.getTextureId();
+  }
+
+  private void growCommands() {
+    int capacity = meshes.length * 2;
+    meshes = Arrays.copyOf(meshes, capacity);
+    shaders = Arrays.copyOf(shaders, capacity);
+    framebuffers = Arrays.copyOf(framebuffers, capacity);
+    passes = Arrays.copyOf(passes, capacity);
+    instanceCounts = Arrays.copyOf(instanceCounts, capacity);
+    stagingLayoutVersions = Arrays.copyOf(stagingLayoutVersions, capacity);
+    floatOffsets = Arrays.copyOf(floatOffsets, capacity);
+    intOffsets = Arrays.copyOf(intOffsets, capacity);
+    textureOffsets = Arrays.copyOf(textureOffsets, capacity);
+    order = new int[capacity];
+    sortScratch = new int[capacity];
+  }
+
+  private static void checkPass(int pass) {
+    if (pass < 0 || pass >= NUMBER_OF_PASSES) {
+      throw new IllegalArgumentException("Pass must be between 0 and " + (NUMBER_OF_PASSES - 1));
+    }
+  }
+}
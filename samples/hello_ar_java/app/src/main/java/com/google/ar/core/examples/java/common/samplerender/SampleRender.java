@@ -18,6 +18,9 @@ package com.google.ar.core.examples.java.common.samplerender;
 import android.content.res.AssetManager;
 import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -25,10 +28,47 @@ import javax.microedition.khronos.opengles.GL10;
 public class SampleRender {
   private static final String TAG = SampleRender.class.getSimpleName();
 
+  private static final int UNKNOWN = -1;
+  // Bindings of texture units beyond this are always issued.
+  private static final int TRACKED_TEXTURE_UNITS = 32;
+  private static final int TRACKED_TEXTURE_TARGETS = Texture.Target.values().length;
+  // Enough to keep a few decoded textures' worth of staging memory for reuse.
+  private static final long STAGING_BUFFER_POOL_MAX_RETAINED_BYTES = 16 * 1024 * 1024;
+
   private final AssetManager assetManager;
+  // Asset loaders may be closed from other threads, such as in Activity.onDestroy.
+  private final List<AssetLoader> assetLoaders = new CopyOnWriteArrayList<>();
+  private ProgramBinaryCache programBinaryCache = null;
+  private final StagingBufferPool stagingBufferPool =
+      new StagingBufferPool(STAGING_BUFFER_POOL_MAX_RETAINED_BYTES);
 
   private int viewportWidth = 1;
   private int viewportHeight = 1;
+  private int maxUniformBufferBindings = -1;
+  // Sorted. Queried when the surface is created, and read by asset loading threads.
+  private volatile int[] compressedTextureFormats = new int[0];
+  private int nextUniformBufferBindingPoint = 0;
+
+  // Mirror of the GL state last set through this object, used to skip redundant state changes. A
+  // value of UNKNOWN means that the state must be set unconditionally the next time it is needed.
+  private int boundFramebufferId;
+  private int boundViewportWidth;
+  private int boundViewportHeight;
+  private int boundProgramId;
+  private int boundVertexArrayId;
+  private int blendSourceRgb;
+  private int blendDestRgb;
+  private int blendSourceAlpha;
+  private int blendDestAlpha;
+  private int depthTestEnabled;
+  private int depthMaskEnabled;
+  private int activeTextureUnit;
+  private final int[] boundTextureIds = new int[TRACKED_TEXTURE_UNITS * TRACKED_TEXTURE_TARGETS];
+
+  private int issuedStateChanges = 0;
+  private int elidedStateChanges = 0;
+  private int lastFrameIssuedStateChanges = 0;
+  private int lastFrameElidedStateChanges = 0;
 
   /**
    * Constructs a SampleRender object and instantiates GLSurfaceView parameters.
@@ -38,7 +78,7 @@ public class SampleRender {
    * @param assetManager AssetManager for loading Android resources
    */
   public SampleRender(GLSurfaceView glSurfaceView, Renderer renderer, AssetManager assetManager) {
-    this.assetManager = assetManager;
+    this(assetManager);
     glSurfaceView.setPreserveEGLContextOnPause(true);
     glSurfaceView.setEGLContextClientVersion(3);
     glSurfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0);
@@ -46,8 +86,14 @@ public class SampleRender {
         new GLSurfaceView.Renderer() {
           @Override
           public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+            invalidateState();
+            // Uniform blocks of the previous context went away with it, along with their binding
+            // points.
+            nextUniformBufferBindingPoint = 0;
+            maxUniformBufferBindings = -1;
             GLES30.glEnable(GLES30.GL_BLEND);
             GLError.maybeThrowGLException("Failed to enable blending", "glEnable");
+            queryCompressedTextureFormats();
             renderer.onSurfaceCreated(SampleRender.this);
           }
 
@@ -60,14 +106,35 @@ public class SampleRender {
 
           @Override
           public void onDrawFrame(GL10 gl) {
+            // Code outside of SampleRender, such as ARCore updating the camera texture, may change
+            // GL state between frames, so start each frame from a clean slate.
+            lastFrameIssuedStateChanges = issuedStateChanges;
+            lastFrameElidedStateChanges = elidedStateChanges;
+            issuedStateChanges = 0;
+            elidedStateChanges = 0;
+            invalidateState();
             clear(/*framebuffer=*/ null, 0f, 0f, 0f, 1f);
+            for (int i = 0; i < assetLoaders.size(); ++i) {
+              assetLoaders.get(i).runUploads();
+            }
             renderer.onDrawFrame(SampleRender.this);
+            GLError.onFrameBoundary();
           }
         });
     glSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
     glSurfaceView.setWillNotDraw(false);
   }
 
+  /**
+   * Constructs a SampleRender object which is not attached to a surface. Used by tests, which have
+   * no GL context.
+   */
+  /* package-private */
+  SampleRender(AssetManager assetManager) {
+    this.assetManager = assetManager;
+    invalidateState();
+  }
+
   /** Draw a {@link Mesh} with the specified {@link Shader}. */
   public void draw(Mesh mesh, Shader shader) {
     draw(mesh, shader, /*framebuffer=*/ null);
@@ -84,6 +151,20 @@ public class SampleRender {
     mesh.lowLevelDraw();
   }
 
+  /**
+   * Draw {@code instanceCount} instances of a {@link Mesh} with the specified {@link Shader} to the
+   * given {@link Framebuffer} in a single draw call.
+   *
+   * <p>Per-instance attributes are read from the vertex buffers of the mesh which were constructed
+   * with a non-zero divisor. The {@code framebuffer} argument may be null, in which case the
+   * default framebuffer is used.
+   */
+  public void drawInstanced(Mesh mesh, Shader shader, Framebuffer framebuffer, int instanceCount) {
+    useFramebuffer(framebuffer);
+    shader.lowLevelUse();
+    mesh.lowLevelDrawInstanced(instanceCount);
+  }
+
   /**
    * Clear the given framebuffer.
    *
@@ -94,12 +175,80 @@ public class SampleRender {
     useFramebuffer(framebuffer);
     GLES30.glClearColor(r, g, b, a);
     GLError.maybeThrowGLException("Failed to set clear color", "glClearColor");
-    GLES30.glDepthMask(true);
-    GLError.maybeThrowGLException("Failed to set depth write mask", "glDepthMask");
+    setDepthMask(true);
     GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT | GLES30.GL_DEPTH_BUFFER_BIT);
     GLError.maybeThrowGLException("Failed to clear framebuffer", "glClear");
   }
 
+  /**
+   * Returns the number of GL state changes issued during the last completed frame.
+   *
+   * <p>Only the state mirrored by {@link SampleRender} is counted: framebuffer, viewport, program,
+   * vertex array, blend function, depth test, depth mask, active texture unit and texture bindings.
+   */
+  public int getIssuedStateChangeCount() {
+    return lastFrameIssuedStateChanges;
+  }
+
+  /**
+   * Returns the number of GL state changes skipped during the last completed frame because they
+   * would not have changed the current state.
+   */
+  public int getElidedStateChangeCount() {
+    return lastFrameElidedStateChanges;
+  }
+
+  /**
+   * Forgets the mirrored GL state, so that the next state change of every kind is issued to GL.
+   *
+   * <p>Call this after changing framebuffer, viewport, program, vertex array, blend, depth or
+   * texture binding state with direct GL calls instead of through {@link SampleRender}.
+   */
+  public void invalidateState() {
+    boundFramebufferId = UNKNOWN;
+    boundViewportWidth = UNKNOWN;
+    boundViewportHeight = UNKNOWN;
+    boundProgramId = UNKNOWN;
+    boundVertexArrayId = UNKNOWN;
+    blendSourceRgb = UNKNOWN;
+    blendDestRgb = UNKNOWN;
+    blendSourceAlpha = UNKNOWN;
+    blendDestAlpha = UNKNOWN;
+    depthTestEnabled = UNKNOWN;
+    depthMaskEnabled = UNKNOWN;
+    activeTextureUnit = UNKNOWN;
+    Arrays.fill(boundTextureIds, UNKNOWN);
+  }
+
+  /**
+   * Binds a framebuffer by its GL name and sets the viewport to cover it, skipping whatever is
+   * already set. Don't call this directly unless you are doing low level OpenGL code; prefer
+   * {@link #draw(Mesh, Shader, Framebuffer)}.
+   */
+  public void lowLevelUseFramebuffer(int framebufferId, int viewportWidth, int viewportHeight) {
+    bindFramebuffer(framebufferId);
+    if (boundViewportWidth == viewportWidth && boundViewportHeight == viewportHeight) {
+      ++elidedStateChanges;
+    } else {
+      GLES30.glViewport(0, 0, viewportWidth, viewportHeight);
+      GLError.maybeThrowGLException("Failed to set viewport dimensions", "glViewport");
+      boundViewportWidth = viewportWidth;
+      boundViewportHeight = viewportHeight;
+      ++issuedStateChanges;
+    }
+  }
+
+  /**
+   * Binds a texture to the active texture unit, skipping the call if it is already bound. Don't
+   * call this directly unless you are doing low level OpenGL code, such as uploading texture data.
+   */
+  public void lowLevelBindTexture(Texture texture) {
+    bindTexture(
+        activeTextureUnit == UNKNOWN ? 0 : activeTextureUnit,
+        texture.getTarget(),
+        texture.getTextureId());
+  }
+
   /** Interface to be implemented for rendering callbacks. */
   public static interface Renderer {
     /**
@@ -129,6 +278,227 @@ public class SampleRender {
     return assetManager;
   }
 
+  /**
+   * Sets the cache of program binaries used when constructing {@link Shader}s, or null to always
+   * compile shaders from source.
+   */
+  public void setProgramBinaryCache(ProgramBinaryCache programBinaryCache) {
+    this.programBinaryCache = programBinaryCache;
+  }
+
+  /* package-private */
+  ProgramBinaryCache getProgramBinaryCache() {
+    return programBinaryCache;
+  }
+
+  /** Returns the width of the surface, in pixels. */
+  public int getViewportWidth() {
+    return viewportWidth;
+  }
+
+  /** Returns the height of the surface, in pixels. */
+  public int getViewportHeight() {
+    return viewportHeight;
+  }
+
+  /**
+   * Returns the pool of direct buffers used to stage uploads. Code uploading data through GL calls
+   * of its own should stage it in buffers from this pool too.
+   */
+  public StagingBufferPool getStagingBufferPool() {
+    return stagingBufferPool;
+  }
+
+  /* package-private */
+  void addAssetLoader(AssetLoader assetLoader) {
+    assetLoaders.add(assetLoader);
+  }
+
+  /* package-private */
+  void removeAssetLoader(AssetLoader assetLoader) {
+    assetLoaders.remove(assetLoader);
+  }
+
+  /**
+   * Returns whether textures may be created with the given compressed internal format. This may be
+   * called from any thread once the surface has been created.
+   */
+  /* package-private */
+  boolean isCompressedTextureFormatSupported(int internalFormat) {
+    return Arrays.binarySearch(compressedTextureFormats, internalFormat) >= 0;
+  }
+
+  /* package-private */
+  int allocateUniformBufferBindingPoint() {
+    if (maxUniformBufferBindings < 0) {
+      int[] result = new int[1];
+      GLES30.glGetIntegerv(GLES30.GL_MAX_UNIFORM_BUFFER_BINDINGS, result, 0);
+      GLError.maybeThrowGLException("Failed to get max uniform buffer bindings", "glGetIntegerv");
+      maxUniformBufferBindings = result[0];
+    }
+    if (nextUniformBufferBindingPoint >= maxUniformBufferBindings) {
+      throw new IllegalStateException(
+          "Exceeded the maximum number of uniform buffer bindings: " + maxUniformBufferBindings);
+    }
+    return nextUniformBufferBindingPoint++;
+  }
+
+  /* package-private */
+  void bindFramebuffer(int framebufferId) {
+    if (boundFramebufferId == framebufferId) {
+      ++elidedStateChanges;
+      return;
+    }
+    GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebufferId);
+    GLError.maybeThrowGLException("Failed to bind framebuffer", "glBindFramebuffer");
+    boundFramebufferId = framebufferId;
+    ++issuedStateChanges;
+  }
+
+  /* package-private */
+  void useProgram(int programId) {
+    if (boundProgramId == programId) {
+      ++elidedStateChanges;
+      return;
+    }
+    GLES30.glUseProgram(programId);
+    GLError.maybeThrowGLException("Failed to use shader program", "glUseProgram");
+    boundProgramId = programId;
+    ++issuedStateChanges;
+  }
+
+  /* package-private */
+  void bindVertexArray(int vertexArrayId) {
+    if (boundVertexArrayId == vertexArrayId) {
+      ++elidedStateChanges;
+      return;
+    }
+    GLES30.glBindVertexArray(vertexArrayId);
+    GLError.maybeThrowGLException("Failed to bind vertex array object", "glBindVertexArray");
+    boundVertexArrayId = vertexArrayId;
+    ++issuedStateChanges;
+  }
+
+  /* package-private */
+  void setBlendFunc(int sourceRgb, int destRgb, int sourceAlpha, int destAlpha) {
+    if (blendSourceRgb == sourceRgb
+        && blendDestRgb == destRgb
+        && blendSourceAlpha == sourceAlpha
+        && blendDestAlpha == destAlpha) {
+      ++elidedStateChanges;
+      return;
+    }
+    GLES30.glBlendFuncSeparate(sourceRgb, destRgb, sourceAlpha, destAlpha);
+    GLError.maybeThrowGLException("Failed to set blend mode", "glBlendFuncSeparate");
+    blendSourceRgb = sourceRgb;
+    blendDestRgb = destRgb;
+    blendSourceAlpha = sourceAlpha;
+    blendDestAlpha = destAlpha;
+    ++issuedStateChanges;
+  }
+
+  /* package-private */
+  void setDepthTest(boolean enabled) {
+    if (depthTestEnabled == (enabled ? 1 : 0)) {
+      ++elidedStateChanges;
+      return;
+    }
+    if (enabled) {
+      GLES30.glEnable(GLES30.GL_DEPTH_TEST);
+      GLError.maybeThrowGLException("Failed to enable depth test", "glEnable");
+    } else {
+      GLES30.glDisable(GLES30.GL_DEPTH_TEST);
+      GLError.maybeThrowGLException("Failed to disable depth test", "glDisable");
+    }
+    depthTestEnabled = enabled ? 1 : 0;
+    ++issuedStateChanges;
+  }
+
+  /* package-private */
+  void setDepthMask(boolean enabled) {
+    if (depthMaskEnabled == (enabled ? 1 : 0)) {
+      ++elidedStateChanges;
+      return;
+    }
+    GLES30.glDepthMask(enabled);
+    GLError.maybeThrowGLException("Failed to set depth write mask", "glDepthMask");
+    depthMaskEnabled = enabled ? 1 : 0;
+    ++issuedStateChanges;
+  }
+
+  /**
+   * Binds a texture to the given texture unit, only activating the unit if the binding actually
+   * needs to change.
+   */
+  /* package-private */
+  void bindTexture(int textureUnit, Texture.Target target, int textureId) {
+    int slot = textureUnit * TRACKED_TEXTURE_TARGETS + target.ordinal();
+    boolean tracked = textureUnit < TRACKED_TEXTURE_UNITS;
+    if (tracked && boundTextureIds[slot] == textureId) {
+      ++elidedStateChanges;
+      return;
+    }
+    if (activeTextureUnit != textureUnit) {
+      GLES30.glActiveTexture(GLES30.GL_TEXTURE0 + textureUnit);
+      GLError.maybeThrowGLException("Failed to set active texture", "glActiveTexture");
+      activeTextureUnit = textureUnit;
+      ++issuedStateChanges;
+    }
+    GLES30.glBindTexture(target.glesEnum, textureId);
+    GLError.maybeThrowGLException("Failed to bind texture", "glBindTexture");
+    if (tracked) {
+      boundTextureIds[slot] = textureId;
+    }
+    ++issuedStateChanges;
+  }
+
+  // Deleting a bound object reverts its binding to zero, and GL may hand out the same name again,
+  // so the mirrored state must not claim that a deleted object is still bound.
+
+  /* package-private */
+  void onFramebufferDeleted(int framebufferId) {
+    if (boundFramebufferId == framebufferId) {
+      boundFramebufferId = UNKNOWN;
+    }
+  }
+
+  /* package-private */
+  void onProgramDeleted(int programId) {
+    if (boundProgramId == programId) {
+      boundProgramId = UNKNOWN;
+    }
+  }
+
+  /* package-private */
+  void onVertexArrayDeleted(int vertexArrayId) {
+    if (boundVertexArrayId == vertexArrayId) {
+      boundVertexArrayId = UNKNOWN;
+    }
+  }
+
+  /* package-private */
+  void onTextureDeleted(int textureId) {
+    for (int i = 0; i < boundTextureIds.length; ++i) {
+      if (boundTextureIds[i] == textureId) {
+        boundTextureIds[i] = UNKNOWN;
+      }
+    }
+  }
+
+  private void queryCompressedTextureFormats() {
+    int[] numberOfFormats = new int[1];
+    GLES30.glGetIntegerv(GLES30.GL_NUM_COMPRESSED_TEXTURE_FORMATS, numberOfFormats, 0);
+    GLError.maybeThrowGLException(
+        "Failed to get number of compressed texture formats", "glGetIntegerv");
+    int[] formats = new int[numberOfFormats[0]];
+    if (formats.length > 0) {
+      GLES30.glGetIntegerv(GLES30.GL_COMPRESSED_TEXTURE_FORMATS, formats, 0);
+      GLError.maybeThrowGLException("Failed to get compressed texture formats", "glGetIntegerv");
+    }
+    Arrays.sort(formats);
+    compressedTextureFormats = formats;
+  }
+
   private void useFramebuffer(Framebuffer framebuffer) {
     int framebufferId;
     int viewportWidth;
@@ -142,9 +512,6 @@ public class SampleRender {
       viewportWidth = framebuffer.getWidth();
       viewportHeight = framebuffer.getHeight();
     }
-    GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebufferId);
-    GLError.maybeThrowGLException("Failed to bind framebuffer", "glBindFramebuffer");
-    GLES30.glViewport(0, 0, viewportWidth, viewportHeight);
-    GLError.maybeThrowGLException("Failed to set viewport dimensions", "glViewport");
+    lowLevelUseFramebuffer(framebufferId, viewportWidth, viewportHeight);
   }
 }
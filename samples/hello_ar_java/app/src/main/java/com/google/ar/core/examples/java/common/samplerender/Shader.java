@@ -25,7 +25,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -66,13 +66,97 @@ public class Shader implements Closeable {
     }
   }
 
+  /**
+   * A pre-resolved reference to a uniform of a {@link Shader}.
+   *
+   * <p>Looking up a uniform by name involves a map lookup on every call, and a GL query the first
+   * time. Obtain a handle once with {@link Shader#getUniformHandle(String)} and pass it to the
+   * handle-based setters instead to avoid this overhead in per-frame code. Values written through a
+   * handle are copied into staging storage owned by the {@link Shader}, and only values that have
+   * changed since the previous draw are uploaded by {@link Shader#lowLevelUse()}.
+   *
+   * <p>A handle may only be used with the {@link Shader} that created it.
+   */
+  public static final class UniformHandle {
+    private final Shader shader;
+    private final String name;
+    private final int location;
+
+    private UniformType type;
+    // Offset and capacity of the region reserved in the shader's float or int staging block, in
+    // number of components.
+    private int offset = -1;
+    private int capacity = 0;
+    private int size = 0;
+    private boolean dirty = false;
+    private boolean staged = false;
+
+    private int textureUnit = -1;
+    private Texture texture;
+
+    private UniformHandle(Shader shader, String name, int location) {
+      this.shader = shader;
+      this.name = name;
+      this.location = location;
+    }
+
+    /** Returns the name of the uniform. */
+    public String getName() {
+      return name;
+    }
+  }
+
+  private static enum UniformType {
+    INT(/*componentsPerElement=*/ 1, /*isFloat=*/ false),
+    FLOAT(1, true),
+    VEC2(2, true),
+    VEC3(3, true),
+    VEC4(4, true),
+    MAT2(4, true),
+    MAT3(9, true),
+    MAT4(16, true),
+    TEXTURE(1, false);
+
+    final int componentsPerElement;
+    final boolean isFloat;
+
+    private UniformType(int componentsPerElement, boolean isFloat) {
+      this.componentsPerElement = componentsPerElement;
+      this.isFloat = isFloat;
+    }
+  }
+
+  private static final int INITIAL_STAGING_CAPACITY = 64;
+  private static final int INITIAL_HANDLE_CAPACITY = 16;
+
   private int programId = 0;
-  private final Map<Integer, Uniform> uniforms = new HashMap<>();
+  private final Map<String, UniformHandle> uniformHandles = new HashMap<>();
   private int maxTextureUnit = 0;
 
-  private final Map<String, Integer> uniformLocations = new HashMap<>();
-  private final Map<Integer, String> uniformNames = new HashMap<>();
-
+  // Staging storage for uniform values, shared by all handles of this shader. Regions are reserved
+  // when a uniform is first set, so setting uniforms in steady state does not allocate.
+  private float[] floatStaging = new float[INITIAL_STAGING_CAPACITY];
+  private int floatStagingSize = 0;
+  private int[] intStaging = new int[INITIAL_STAGING_CAPACITY];
+  private int intStagingSize = 0;
+  // Handles which own a staging region, and a version which changes whenever any region is
+  // reserved or resized, after which uniform values saved by saveUniforms() can't be restored.
+  private UniformHandle[] stagedHandles = new UniformHandle[INITIAL_HANDLE_CAPACITY];
+  private int stagedHandleCount = 0;
+  private int stagingLayoutVersion = 0;
+
+  // Handles whose values need to be uploaded on the next call to lowLevelUse().
+  private UniformHandle[] dirtyHandles = new UniformHandle[INITIAL_HANDLE_CAPACITY];
+  private int dirtyHandleCount = 0;
+
+  // Uniform blocks attached to this shader, whose pending changes are uploaded by lowLevelUse().
+  private UniformBlock[] uniformBlocks = new UniformBlock[0];
+
+  // Texture handles need to be bound on every call to lowLevelUse().
+  private UniformHandle[] textureHandles = new UniformHandle[INITIAL_HANDLE_CAPACITY];
+  private int textureHandleCount = 0;
+
+  private final SampleRender render;
   private boolean depthTest = true;
   private boolean depthWrite = true;
   private BlendFactor sourceRgbBlend = BlendFactor.ONE;
@@ -91,33 +175,54 @@ public class Shader implements Closeable {
       String vertexShaderCode,
       String fragmentShaderCode,
       Map<String, String> defines) {
+    this.render = render;
     int vertexShaderId = 0;
     int fragmentShaderId = 0;
     String definesCode = createShaderDefinesCode(defines);
+    String vertexCode = insertShaderDefinesCode(vertexShaderCode, definesCode);
+    String fragmentCode = insertShaderDefinesCode(fragmentShaderCode, definesCode);
+    ProgramBinaryCache programBinaryCache = render.getProgramBinaryCache();
     try {
-      vertexShaderId =
-          createShader(
-              GLES30.GL_VERTEX_SHADER, insertShaderDefinesCode(vertexShaderCode, definesCode));
-      fragmentShaderId =
-          createShader(
-              GLES30.GL_FRAGMENT_SHADER, insertShaderDefinesCode(fragmentShaderCode, definesCode));
-
-      programId = GLES30.glCreateProgram();
-      GLError.maybeThrowGLException("Shader program creation failed", "glCreateProgram");
-      GLES30.glAttachShader(programId, vertexShaderId);
-      GLError.maybeThrowGLException("Failed to attach vertex shader", "glAttachShader");
-      GLES30.glAttachShader(programId, fragmentShaderId);
-      GLError.maybeThrowGLException("Failed to attach fragment shader", "glAttachShader");
-      GLES30.glLinkProgram(programId);
-      GLError.maybeThrowGLException("Failed to link shader program", "glLinkProgram");
-
-      final int[] linkStatus = new int[1];
-      GLES30.glGetProgramiv(programId, GLES30.GL_LINK_STATUS, linkStatus, 0);
-      if (linkStatus[0] == GLES30.GL_FALSE) {
-        String infoLog = GLES30.glGetProgramInfoLog(programId);
-        GLError.maybeLogGLError(
-            Log.WARN, TAG, "Failed to retrieve shader program info log", "glGetProgramInfoLog");
-        throw new GLException(0, "Shader link failed: " + infoLog);
+      if (programBinaryCache != null) {
+        programId =
+            programBinaryCache.loadProgram(render.getStagingBufferPool(), vertexCode, fragmentCode);
+      }
+      if (programId == 0) {
+        long linkStart = System.nanoTime();
+        vertexShaderId = createShader(GLES30.GL_VERTEX_SHADER, vertexCode);
+        fragmentShaderId = createShader(GLES30.GL_FRAGMENT_SHADER, fragmentCode);
+
+        programId = GLES30.glCreateProgram();
+        GLError.maybeThrowGLException("Shader program creation failed", "glCreateProgram");
+        GLES30.glAttachShader(programId, vertexShaderId);
+        GLError.maybeThrowGLException("Failed to attach vertex shader", "glAttachShader");
+        GLES30.glAttachShader(programId, fragmentShaderId);
+        GLError.maybeThrowGLException("Failed to attach fragment shader", "glAttachShader");
+        if (programBinaryCache != null) {
+          GLES30.glProgramParameteri(
+              programId, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES30.GL_TRUE);
+          GLError.maybeThrowGLException(
+              "Failed to set program binary retrievable hint", "glProgramParameteri");
+        }
+        GLES30.glLinkProgram(programId);
+        GLError.maybeThrowGLException("Failed to link shader program", "glLinkProgram");
+
+        final int[] linkStatus = new int[1];
+        GLES30.glGetProgramiv(programId, GLES30.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] == GLES30.GL_FALSE) {
+          String infoLog = GLES30.glGetProgramInfoLog(programId);
+          GLError.maybeLogGLError(
+              Log.WARN, TAG, "Failed to retrieve shader program info log", "glGetProgramInfoLog");
+          throw new GLException(0, "Shader link failed: " + infoLog);
+        }
+        if (programBinaryCache != null) {
+          programBinaryCache.storeProgram(
+              render.getStagingBufferPool(),
+              vertexCode,
+              fragmentCode,
+              programId,
+              System.nanoTime() - linkStart);
+        }
       }
     } catch (Throwable t) {
       close();
@@ -135,6 +240,16 @@ public class Shader implements Closeable {
     }
   }
 
+  /**
+   * Constructs a {@link Shader} for a program which has already been linked. Used by tests, which
+   * have no GL context to compile shaders with.
+   */
+  /* package-private */
+  Shader(SampleRender render, int programId) {
+    this.render = render;
+    this.programId = programId;
+  }
+
   /**
    * Creates a {@link Shader} from the given asset file names.
    *
@@ -161,6 +276,7 @@ public class Shader implements Closeable {
   public void close() {
     if (programId != 0) {
       GLES30.glDeleteProgram(programId);
+      render.onProgramDeleted(programId);
       programId = 0;
     }
   }
@@ -219,169 +335,336 @@ public class Shader implements Closeable {
     return this;
   }
 
+  /**
+   * Returns a {@link UniformHandle} for the uniform with the given name.
+   *
+   * <p>The same handle is returned for repeated calls with the same name.
+   *
+   * @throws IllegalArgumentException if the uniform does not exist in the shader program
+   */
+  public UniformHandle getUniformHandle(String name) {
+    UniformHandle handle = uniformHandles.get(name);
+    if (handle != null) {
+      return handle;
+    }
+    int location = GLES30.glGetUniformLocation(programId, name);
+    GLError.maybeThrowGLException("Failed to find uniform", "glGetUniformLocation");
+    if (location == -1) {
+      throw new IllegalArgumentException("Shader uniform does not exist: " + name);
+    }
+    handle = new UniformHandle(this, name, location);
+    uniformHandles.put(name, handle);
+    return handle;
+  }
+
+  /**
+   * Attaches a {@link UniformBlock} to the uniform block of the same name in this shader.
+   *
+   * <p>A {@link UniformBlock} may be attached to any number of shaders. Its values are shared by
+   * all of them, and only need to be set once per frame.
+   *
+   * @throws IllegalArgumentException if the uniform block does not exist in the shader program
+   */
+  public Shader setUniformBlock(UniformBlock block) {
+    int blockIndex = GLES30.glGetUniformBlockIndex(programId, block.getName());
+    GLError.maybeThrowGLException("Failed to find uniform block", "glGetUniformBlockIndex");
+    if (blockIndex == GLES30.GL_INVALID_INDEX) {
+      throw new IllegalArgumentException("Shader uniform block does not exist: " + block.getName());
+    }
+    GLES30.glUniformBlockBinding(programId, blockIndex, block.getBindingPoint());
+    GLError.maybeThrowGLException("Failed to bind uniform block", "glUniformBlockBinding");
+    for (UniformBlock uniformBlock : uniformBlocks) {
+      if (uniformBlock == block) {
+        return this;
+      }
+    }
+    uniformBlocks = Arrays.copyOf(uniformBlocks, uniformBlocks.length + 1);
+    uniformBlocks[uniformBlocks.length - 1] = block;
+    return this;
+  }
+
   /** Sets a texture uniform. */
   public Shader setTexture(String name, Texture texture) {
+    return setTexture(getUniformHandle(name), texture);
+  }
+
+  /** Sets a texture uniform. */
+  public Shader setTexture(UniformHandle handle, Texture texture) {
+    checkHandle(handle);
     // Special handling for Textures. If replacing an existing texture uniform, reuse the texture
     // unit.
-    int location = getUniformLocation(name);
-    Uniform uniform = uniforms.get(location);
-    int textureUnit;
-    if (!(uniform instanceof UniformTexture)) {
-      textureUnit = maxTextureUnit++;
-    } else {
-      UniformTexture uniformTexture = (UniformTexture) uniform;
-      textureUnit = uniformTexture.getTextureUnit();
+    if (handle.type != UniformType.TEXTURE) {
+      handle.type = UniformType.TEXTURE;
+      handle.textureUnit = maxTextureUnit++;
+      textureHandles = appendHandle(textureHandles, textureHandleCount++, handle);
+      reserveStaging(handle, /*length=*/ 1);
+      intStaging[handle.offset] = handle.textureUnit;
+      markDirty(handle);
     }
-    uniforms.put(location, new UniformTexture(textureUnit, texture));
+    handle.texture = texture;
     return this;
   }
 
   /** Sets a {@code bool} uniform. */
   public Shader setBool(String name, boolean v0) {
-    int[] values = {v0 ? 1 : 0};
-    uniforms.put(getUniformLocation(name), new UniformInt(values));
+    return setBool(getUniformHandle(name), v0);
+  }
+
+  /** Sets a {@code bool} uniform. */
+  public Shader setBool(UniformHandle handle, boolean v0) {
+    writeInt(handle, v0 ? 1 : 0);
     return this;
   }
 
   /** Sets an {@code int} uniform. */
   public Shader setInt(String name, int v0) {
-    int[] values = {v0};
-    uniforms.put(getUniformLocation(name), new UniformInt(values));
+    return setInt(getUniformHandle(name), v0);
+  }
+
+  /** Sets an {@code int} uniform. */
+  public Shader setInt(UniformHandle handle, int v0) {
+    writeInt(handle, v0);
     return this;
   }
 
   /** Sets a {@code float} uniform. */
   public Shader setFloat(String name, float v0) {
-    float[] values = {v0};
-    uniforms.put(getUniformLocation(name), new Uniform1f(values));
+    return setFloat(getUniformHandle(name), v0);
+  }
+
+  /** Sets a {@code float} uniform. */
+  public Shader setFloat(UniformHandle handle, float v0) {
+    checkHandle(handle);
+    boolean changed = prepareStaging(handle, UniformType.FLOAT, /*length=*/ 1);
+    if (changed
+        || Float.floatToRawIntBits(floatStaging[handle.offset]) != Float.floatToRawIntBits(v0)) {
+      floatStaging[handle.offset] = v0;
+      markDirty(handle);
+    }
     return this;
   }
 
   /** Sets a {@code vec2} uniform. */
   public Shader setVec2(String name, float[] values) {
+    return setVec2(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code vec2} uniform. */
+  public Shader setVec2(UniformHandle handle, float[] values) {
     if (values.length != 2) {
       throw new IllegalArgumentException("Value array length must be 2");
     }
-    uniforms.put(getUniformLocation(name), new Uniform2f(values.clone()));
+    writeFloats(handle, UniformType.VEC2, values);
     return this;
   }
+
   /** Sets a {@code vec3} uniform. */
   public Shader setVec3(String name, float[] values) {
+    return setVec3(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code vec3} uniform. */
+  public Shader setVec3(UniformHandle handle, float[] values) {
     if (values.length != 3) {
       throw new IllegalArgumentException("Value array length must be 3");
     }
-    uniforms.put(getUniformLocation(name), new Uniform3f(values.clone()));
+    writeFloats(handle, UniformType.VEC3, values);
     return this;
   }
 
   /** Sets a {@code vec4} uniform. */
   public Shader setVec4(String name, float[] values) {
+    return setVec4(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code vec4} uniform. */
+  public Shader setVec4(UniformHandle handle, float[] values) {
     if (values.length != 4) {
       throw new IllegalArgumentException("Value array length must be 4");
     }
-    uniforms.put(getUniformLocation(name), new Uniform4f(values.clone()));
+    writeFloats(handle, UniformType.VEC4, values);
     return this;
   }
 
   /** Sets a {@code mat2} uniform. */
   public Shader setMat2(String name, float[] values) {
+    return setMat2(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code mat2} uniform. */
+  public Shader setMat2(UniformHandle handle, float[] values) {
     if (values.length != 4) {
       throw new IllegalArgumentException("Value array length must be 4 (2x2)");
     }
-    uniforms.put(getUniformLocation(name), new UniformMatrix2f(values.clone()));
+    writeFloats(handle, UniformType.MAT2, values);
     return this;
   }
 
   /** Sets a {@code mat3} uniform. */
   public Shader setMat3(String name, float[] values) {
+    return setMat3(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code mat3} uniform. */
+  public Shader setMat3(UniformHandle handle, float[] values) {
     if (values.length != 9) {
       throw new IllegalArgumentException("Value array length must be 9 (3x3)");
     }
-    uniforms.put(getUniformLocation(name), new UniformMatrix3f(values.clone()));
+    writeFloats(handle, UniformType.MAT3, values);
     return this;
   }
 
   /** Sets a {@code mat4} uniform. */
   public Shader setMat4(String name, float[] values) {
+    return setMat4(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code mat4} uniform. */
+  public Shader setMat4(UniformHandle handle, float[] values) {
     if (values.length != 16) {
       throw new IllegalArgumentException("Value array length must be 16 (4x4)");
     }
-    uniforms.put(getUniformLocation(name), new UniformMatrix4f(values.clone()));
+    writeFloats(handle, UniformType.MAT4, values);
     return this;
   }
 
   /** Sets a {@code bool} array uniform. */
   public Shader setBoolArray(String name, boolean[] values) {
-    int[] intValues = new int[values.length];
+    return setBoolArray(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code bool} array uniform. */
+  public Shader setBoolArray(UniformHandle handle, boolean[] values) {
+    checkHandle(handle);
+    boolean changed = prepareStaging(handle, UniformType.INT, values.length);
+    int offset = handle.offset;
     for (int i = 0; i < values.length; ++i) {
-      intValues[i] = values[i] ? 1 : 0;
+      int value = values[i] ? 1 : 0;
+      if (intStaging[offset + i] != value) {
+        intStaging[offset + i] = value;
+        changed = true;
+      }
+    }
+    if (changed) {
+      markDirty(handle);
     }
-    uniforms.put(getUniformLocation(name), new UniformInt(intValues));
     return this;
   }
 
   /** Sets an {@code int} array uniform. */
   public Shader setIntArray(String name, int[] values) {
-    uniforms.put(getUniformLocation(name), new UniformInt(values.clone()));
+    return setIntArray(getUniformHandle(name), values);
+  }
+
+  /** Sets an {@code int} array uniform. */
+  public Shader setIntArray(UniformHandle handle, int[] values) {
+    checkHandle(handle);
+    boolean changed = prepareStaging(handle, UniformType.INT, values.length);
+    int offset = handle.offset;
+    for (int i = 0; i < values.length; ++i) {
+      if (intStaging[offset + i] != values[i]) {
+        intStaging[offset + i] = values[i];
+        changed = true;
+      }
+    }
+    if (changed) {
+      markDirty(handle);
+    }
     return this;
   }
 
   /** Sets a {@code float} array uniform. */
   public Shader setFloatArray(String name, float[] values) {
-    uniforms.put(getUniformLocation(name), new Uniform1f(values.clone()));
+    return setFloatArray(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code float} array uniform. */
+  public Shader setFloatArray(UniformHandle handle, float[] values) {
+    writeFloats(handle, UniformType.FLOAT, values);
     return this;
   }
 
   /** Sets a {@code vec2} array uniform. */
   public Shader setVec2Array(String name, float[] values) {
+    return setVec2Array(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code vec2} array uniform. */
+  public Shader setVec2Array(UniformHandle handle, float[] values) {
     if (values.length % 2 != 0) {
       throw new IllegalArgumentException("Value array length must be divisible by 2");
     }
-    uniforms.put(getUniformLocation(name), new Uniform2f(values.clone()));
+    writeFloats(handle, UniformType.VEC2, values);
     return this;
   }
+
   /** Sets a {@code vec3} array uniform. */
   public Shader setVec3Array(String name, float[] values) {
+    return setVec3Array(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code vec3} array uniform. */
+  public Shader setVec3Array(UniformHandle handle, float[] values) {
     if (values.length % 3 != 0) {
       throw new IllegalArgumentException("Value array length must be divisible by 3");
     }
-    uniforms.put(getUniformLocation(name), new Uniform3f(values.clone()));
+    writeFloats(handle, UniformType.VEC3, values);
     return this;
   }
 
   /** Sets a {@code vec4} array uniform. */
   public Shader setVec4Array(String name, float[] values) {
+    return setVec4Array(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code vec4} array uniform. */
+  public Shader setVec4Array(UniformHandle handle, float[] values) {
     if (values.length % 4 != 0) {
       throw new IllegalArgumentException("Value array length must be divisible by 4");
     }
-    uniforms.put(getUniformLocation(name), new Uniform4f(values.clone()));
+    writeFloats(handle, UniformType.VEC4, values);
     return this;
   }
 
   /** Sets a {@code mat2} array uniform. */
   public Shader setMat2Array(String name, float[] values) {
+    return setMat2Array(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code mat2} array uniform. */
+  public Shader setMat2Array(UniformHandle handle, float[] values) {
     if (values.length % 4 != 0) {
       throw new IllegalArgumentException("Value array length must be divisible by 4 (2x2)");
     }
-    uniforms.put(getUniformLocation(name), new UniformMatrix2f(values.clone()));
+    writeFloats(handle, UniformType.MAT2, values);
     return this;
   }
 
   /** Sets a {@code mat3} array uniform. */
   public Shader setMat3Array(String name, float[] values) {
+    return setMat3Array(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code mat3} array uniform. */
+  public Shader setMat3Array(UniformHandle handle, float[] values) {
     if (values.length % 9 != 0) {
       throw new IllegalArgumentException("Values array length must be divisible by 9 (3x3)");
     }
-    uniforms.put(getUniformLocation(name), new UniformMatrix3f(values.clone()));
+    writeFloats(handle, UniformType.MAT3, values);
     return this;
   }
 
   /** Sets a {@code mat4} uniform. */
   public Shader setMat4Array(String name, float[] values) {
+    return setMat4Array(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code mat4} uniform. */
+  public Shader setMat4Array(UniformHandle handle, float[] values) {
     if (values.length % 16 != 0) {
       throw new IllegalArgumentException("Value array length must be divisible by 16 (4x4)");
     }
-    uniforms.put(getUniformLocation(name), new UniformMatrix4f(values.clone()));
+    writeFloats(handle, UniformType.MAT4, values);
     return this;
   }
 
@@ -394,201 +677,302 @@ public class Shader implements Closeable {
     if (programId == 0) {
       throw new IllegalStateException("Attempted to use freed shader");
     }
-    GLES30.glUseProgram(programId);
-    GLError.maybeThrowGLException("Failed to use shader program", "glUseProgram");
-    GLES30.glBlendFuncSeparate(
+    // SampleRender skips any of these state changes that would not change the current state.
+    render.useProgram(programId);
+    render.setBlendFunc(
         sourceRgbBlend.glesEnum,
         destRgbBlend.glesEnum,
         sourceAlphaBlend.glesEnum,
         destAlphaBlend.glesEnum);
-    GLError.maybeThrowGLException("Failed to set blend mode", "glBlendFuncSeparate");
-    GLES30.glDepthMask(depthWrite);
-    GLError.maybeThrowGLException("Failed to set depth write mask", "glDepthMask");
-    if (depthTest) {
-      GLES30.glEnable(GLES30.GL_DEPTH_TEST);
-      GLError.maybeThrowGLException("Failed to enable depth test", "glEnable");
-    } else {
-      GLES30.glDisable(GLES30.GL_DEPTH_TEST);
-      GLError.maybeThrowGLException("Failed to disable depth test", "glDisable");
+    render.setDepthMask(depthWrite);
+    render.setDepthTest(depthTest);
+    for (UniformBlock uniformBlock : uniformBlocks) {
+      uniformBlock.lowLevelUpload();
     }
-    try {
-      // Remove all non-texture uniforms from the map after setting them, since they're stored as
-      // part of the program.
-      ArrayList<Integer> obsoleteEntries = new ArrayList<>(uniforms.size());
-      for (Map.Entry<Integer, Uniform> entry : uniforms.entrySet()) {
-        try {
-          entry.getValue().use(entry.getKey());
-          if (!(entry.getValue() instanceof UniformTexture)) {
-            obsoleteEntries.add(entry.getKey());
-          }
-        } catch (GLException e) {
-          String name = uniformNames.get(entry.getKey());
-          throw new IllegalArgumentException("Error setting uniform `" + name + "'", e);
-        }
+    // Only upload uniforms that changed since the last use, since their values are stored as part
+    // of the program. Textures are requested every time, as other draws may use the same units.
+    for (int i = 0; i < dirtyHandleCount; ++i) {
+      UniformHandle handle = dirtyHandles[i];
+      try {
+        uploadUniform(handle);
+      } catch (GLException e) {
+        throw new IllegalArgumentException("Error setting uniform `" + handle.name + "'", e);
+      }
+    }
+    // The list is only cleared once every upload succeeded, so that all uniforms stay pending if
+    // one of them fails.
+    for (int i = 0; i < dirtyHandleCount; ++i) {
+      dirtyHandles[i].dirty = false;
+      dirtyHandles[i] = null;
+    }
+    dirtyHandleCount = 0;
+    for (int i = 0; i < textureHandleCount; ++i) {
+      UniformHandle handle = textureHandles[i];
+      try {
+        bindTexture(handle);
+      } catch (GLException e) {
+        throw new IllegalArgumentException("Error setting uniform `" + handle.name + "'", e);
       }
-      uniforms.keySet().removeAll(obsoleteEntries);
-    } finally {
-      GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
-      GLError.maybeLogGLError(Log.WARN, TAG, "Failed to set active texture", "glActiveTexture");
     }
   }
 
-  private static interface Uniform {
-    public void use(int location);
+  /* package-private */
+  int getProgramId() {
+    return programId;
   }
 
-  private static class UniformTexture implements Uniform {
-    private final int textureUnit;
-    private final Texture texture;
-
-    public UniformTexture(int textureUnit, Texture texture) {
-      this.textureUnit = textureUnit;
-      this.texture = texture;
-    }
-
-    public int getTextureUnit() {
-      return textureUnit;
-    }
+  /* package-private */
+  int getStagingLayoutVersion() {
+    return stagingLayoutVersion;
+  }
 
-    @Override
-    public void use(int location) {
-      if (texture.getTextureId() == 0) {
-        throw new IllegalStateException("Tried to draw with freed texture");
-      }
-      GLES30.glActiveTexture(GLES30.GL_TEXTURE0 + textureUnit);
-      GLError.maybeThrowGLException("Failed to set active texture", "glActiveTexture");
-      GLES30.glBindTexture(texture.getTarget().glesEnum, texture.getTextureId());
-      GLError.maybeThrowGLException("Failed to bind texture", "glBindTexture");
-      GLES30.glUniform1i(location, textureUnit);
-      GLError.maybeThrowGLException("Failed to set shader texture uniform", "glUniform1i");
-    }
+  /* package-private */
+  int getSavedFloatCount() {
+    return floatStagingSize;
   }
 
-  private static class UniformInt implements Uniform {
-    private final int[] values;
+  /* package-private */
+  int getSavedIntCount() {
+    return intStagingSize;
+  }
 
-    public UniformInt(int[] values) {
-      this.values = values;
-    }
+  /* package-private */
+  int getSavedTextureCount() {
+    return textureHandleCount;
+  }
 
-    @Override
-    public void use(int location) {
-      GLES30.glUniform1iv(location, values.length, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform 1i", "glUniform1iv");
+  /**
+   * Copies the current values of all uniforms into the given arrays, so that they can be restored
+   * with {@link #restoreUniforms} as long as the staging layout version does not change.
+   */
+  /* package-private */
+  void saveUniforms(
+      float[] floats,
+      int floatOffset,
+      int[] ints,
+      int intOffset,
+      Texture[] textures,
+      int textureOffset) {
+    System.arraycopy(floatStaging, 0, floats, floatOffset, floatStagingSize);
+    System.arraycopy(intStaging, 0, ints, intOffset, intStagingSize);
+    for (int i = 0; i < textureHandleCount; ++i) {
+      textures[textureOffset + i] = textureHandles[i].texture;
     }
   }
 
-  private static class Uniform1f implements Uniform {
-    private final float[] values;
-
-    public Uniform1f(float[] values) {
-      this.values = values;
+  /**
+   * Restores uniform values saved by {@link #saveUniforms}. Only uniforms whose saved values differ
+   * from the current ones are uploaded by the next {@link #lowLevelUse}.
+   */
+  /* package-private */
+  void restoreUniforms(
+      float[] floats,
+      int floatOffset,
+      int[] ints,
+      int intOffset,
+      Texture[] textures,
+      int textureOffset) {
+    for (int i = 0; i < stagedHandleCount; ++i) {
+      UniformHandle handle = stagedHandles[i];
+      int offset = handle.offset;
+      boolean changed = false;
+      if (handle.type.isFloat) {
+        for (int j = offset; j < offset + handle.size; ++j) {
+          float value = floats[floatOffset + j];
+          if (Float.floatToRawIntBits(floatStaging[j]) != Float.floatToRawIntBits(value)) {
+            floatStaging[j] = value;
+            changed = true;
+          }
+        }
+      } else {
+        for (int j = offset; j < offset + handle.size; ++j) {
+          int value = ints[intOffset + j];
+          if (intStaging[j] != value) {
+            intStaging[j] = value;
+            changed = true;
+          }
+        }
+      }
+      if (changed) {
+        markDirty(handle);
+      }
     }
-
-    @Override
-    public void use(int location) {
-      GLES30.glUniform1fv(location, values.length, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform 1f", "glUniform1fv");
+    for (int i = 0; i < textureHandleCount; ++i) {
+      textureHandles[i].texture = textures[textureOffset + i];
     }
   }
 
-  private static class Uniform2f implements Uniform {
-    private final float[] values;
-
-    public Uniform2f(float[] values) {
-      this.values = values;
+  private void checkHandle(UniformHandle handle) {
+    if (handle.shader != this) {
+      throw new IllegalArgumentException(
+          "Uniform handle `" + handle.name + "' belongs to a different shader");
     }
+  }
 
-    @Override
-    public void use(int location) {
-      GLES30.glUniform2fv(location, values.length / 2, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform 2f", "glUniform2fv");
+  private void writeInt(UniformHandle handle, int v0) {
+    checkHandle(handle);
+    boolean changed = prepareStaging(handle, UniformType.INT, /*length=*/ 1);
+    if (changed || intStaging[handle.offset] != v0) {
+      intStaging[handle.offset] = v0;
+      markDirty(handle);
     }
   }
 
-  private static class Uniform3f implements Uniform {
-    private final float[] values;
-
-    public Uniform3f(float[] values) {
-      this.values = values;
+  private void writeFloats(UniformHandle handle, UniformType type, float[] values) {
+    checkHandle(handle);
+    boolean changed = prepareStaging(handle, type, values.length);
+    int offset = handle.offset;
+    for (int i = 0; i < values.length; ++i) {
+      if (Float.floatToRawIntBits(floatStaging[offset + i])
+          != Float.floatToRawIntBits(values[i])) {
+        floatStaging[offset + i] = values[i];
+        changed = true;
+      }
     }
-
-    @Override
-    public void use(int location) {
-      GLES30.glUniform3fv(location, values.length / 3, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform 3f", "glUniform3fv");
+    if (changed) {
+      markDirty(handle);
     }
   }
 
-  private static class Uniform4f implements Uniform {
-    private final float[] values;
-
-    public Uniform4f(float[] values) {
-      this.values = values;
+  /**
+   * Makes sure that {@code handle} has a staging region of the given type and length. Returns true
+   * if the region or its type changed, in which case the uniform must be uploaded regardless of its
+   * contents.
+   */
+  private boolean prepareStaging(UniformHandle handle, UniformType type, int length) {
+    if (handle.type == UniformType.TEXTURE) {
+      throw new IllegalArgumentException(
+          "Uniform `" + handle.name + "' was previously set to a texture");
     }
-
-    @Override
-    public void use(int location) {
-      GLES30.glUniform4fv(location, values.length / 4, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform 4f", "glUniform4fv");
+    boolean changed = false;
+    if (handle.type != null && handle.type.isFloat != type.isFloat) {
+      // Switching between float and int storage requires a new region.
+      handle.offset = -1;
+      handle.capacity = 0;
+    }
+    if (handle.type != type) {
+      handle.type = type;
+      changed = true;
+    }
+    if (handle.capacity < length) {
+      reserveStaging(handle, length);
+      changed = true;
+    }
+    if (handle.size != length) {
+      handle.size = length;
+      changed = true;
+    }
+    if (changed) {
+      ++stagingLayoutVersion;
     }
+    return changed;
   }
 
-  private static class UniformMatrix2f implements Uniform {
-    private final float[] values;
-
-    public UniformMatrix2f(float[] values) {
-      this.values = values;
+  private void reserveStaging(UniformHandle handle, int length) {
+    if (handle.type.isFloat) {
+      if (floatStagingSize + length > floatStaging.length) {
+        floatStaging =
+            Arrays.copyOf(
+                floatStaging, growCapacity(floatStaging.length, floatStagingSize + length));
+      }
+      handle.offset = floatStagingSize;
+      floatStagingSize += length;
+    } else {
+      if (intStagingSize + length > intStaging.length) {
+        intStaging =
+            Arrays.copyOf(intStaging, growCapacity(intStaging.length, intStagingSize + length));
+      }
+      handle.offset = intStagingSize;
+      intStagingSize += length;
     }
-
-    @Override
-    public void use(int location) {
-      GLES30.glUniformMatrix2fv(location, values.length / 4, /*transpose=*/ false, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform matrix 2f", "glUniformMatrix2fv");
+    handle.capacity = length;
+    handle.size = length;
+    if (!handle.staged) {
+      handle.staged = true;
+      stagedHandles = appendHandle(stagedHandles, stagedHandleCount++, handle);
     }
+    ++stagingLayoutVersion;
   }
 
-  private static class UniformMatrix3f implements Uniform {
-    private final float[] values;
-
-    public UniformMatrix3f(float[] values) {
-      this.values = values;
+  private void markDirty(UniformHandle handle) {
+    if (handle.dirty) {
+      return;
     }
+    handle.dirty = true;
+    dirtyHandles = appendHandle(dirtyHandles, dirtyHandleCount++, handle);
+  }
 
-    @Override
-    public void use(int location) {
-      GLES30.glUniformMatrix3fv(location, values.length / 9, /*transpose=*/ false, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform matrix 3f", "glUniformMatrix3fv");
+  // Overridden by tests, which have no GL context.
+  /* package-private */
+  void uploadUniform(UniformHandle handle) {
+    int location = handle.location;
+    int count = handle.size / handle.type.componentsPerElement;
+    switch (handle.type) {
+      case INT:
+      case TEXTURE:
+        GLES30.glUniform1iv(location, count, intStaging, handle.offset);
+        GLError.maybeThrowGLException("Failed to set shader uniform 1i", "glUniform1iv");
+        break;
+      case FLOAT:
+        GLES30.glUniform1fv(location, count, floatStaging, handle.offset);
+        GLError.maybeThrowGLException("Failed to set shader uniform 1f", "glUniform1fv");
+        break;
+      case VEC2:
+        GLES30.glUniform2fv(location, count, floatStaging, handle.offset);
+        GLError.maybeThrowGLException("Failed to set shader uniform 2f", "glUniform2fv");
+        break;
+      case VEC3:
+        GLES30.glUniform3fv(location, count, floatStaging, handle.offset);
+        GLError.maybeThrowGLException("Failed to set shader uniform 3f", "glUniform3fv");
+        break;
+      case VEC4:
+        GLES30.glUniform4fv(location, count, floatStaging, handle.offset);
+        GLError.maybeThrowGLException("Failed to set shader uniform 4f", "glUniform4fv");
+        break;
+      case MAT2:
+        GLES30.glUniformMatrix2fv(
+            location, count, /*transpose=*/ false, floatStaging, handle.offset);
+        GLError.maybeThrowGLException(
+            "Failed to set shader uniform matrix 2f", "glUniformMatrix2fv");
+        break;
+      case MAT3:
+        GLES30.glUniformMatrix3fv(
+            location, count, /*transpose=*/ false, floatStaging, handle.offset);
+        GLError.maybeThrowGLException(
+            "Failed to set shader uniform matrix 3f", "glUniformMatrix3fv");
+        break;
+      case MAT4:
+        GLES30.glUniformMatrix4fv(
+            location, count, /*transpose=*/ false, floatStaging, handle.offset);
+        GLError.maybeThrowGLException(
+            "Failed to set shader uniform matrix 4f", "glUniformMatrix4fv");
+        break;
     }
   }
 
-  private static class UniformMatrix4f implements Uniform {
-    private final float[] values;
-
-    public UniformMatrix4f(float[] values) {
-      this.values = values;
+  private void bindTexture(UniformHandle handle) {
+    Texture texture = handle.texture;
+    if (texture.getTextureId() == 0) {
+      throw new IllegalStateException("Tried to draw with freed texture");
     }
+    render.bindTexture(handle.textureUnit, texture.getTarget(), texture.getTextureId());
+  }
 
-    @Override
-    public void use(int location) {
-      GLES30.glUniformMatrix4fv(location, values.length / 16, /*transpose=*/ false, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform matrix 4f", "glUniformMatrix4fv");
+  private static UniformHandle[] appendHandle(
+      UniformHandle[] handles, int index, UniformHandle handle) {
+    if (index >= handles.length) {
+      handles = Arrays.copyOf(handles, growCapacity(handles.length, index + 1));
     }
+    handles[index] = handle;
+    return handles;
   }
 
-  private int getUniformLocation(String name) {
-    Integer locationObject = uniformLocations.get(name);
-    if (locationObject != null) {
-      return locationObject;
-    }
-    int location = GLES30.glGetUniformLocation(programId, name);
-    GLError.maybeThrowGLException("Failed to find uniform", "glGetUniformLocation");
-    if (location == -1) {
-      throw new IllegalArgumentException("Shader uniform does not exist: " + name);
+  private static int growCapacity(int capacity, int minimumCapacity) {
+    int result = Math.max(capacity, 1);
+    while (result < minimumCapacity) {
+      result *= 2;
     }
-    uniformLocations.put(name, Integer.valueOf(location));
-    uniformNames.put(Integer.valueOf(location), name);
-    return location;
+    return result;
   }
 
   private static int createShader(int type, String code) {
@@ -635,7 +1019,8 @@ public class Shader implements Closeable {
     return result;
   }
 
-  private static String inputStreamToString(InputStream stream) throws IOException {
+  /* package-private */
+  static String inputStreamToString(InputStream stream) throws IOException {
     InputStreamReader reader = new InputStreamReader(stream, UTF_8.name());
     char[] buffer = new char[1024 * 4];
     StringBuilder builder = new StringBuilder();
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A collection of compiled {@link Shader} variants, keyed by their vertex and fragment shader asset
+ * file names and their defines.
+ *
+ * <p>Switching between variants that are already resident costs nothing, so features which are
+ * toggled at runtime, such as depth occlusion, do not cause a frame hitch. At most {@code
+ * maxResidentShaders} variants are kept; beyond that, the least recently used variant is closed.
+ * Shaders obtained from the library are owned by it, so they must not be closed by the caller, and
+ * should be obtained again from the library whenever the variant in use changes.
+ *
+ * <p>Uniform values and render state set on a shader are kept by the variant, and are shared by
+ * everyone using the same variant. A {@link ShaderLibrary} must only be used on the GL thread.
+ */
+public class ShaderLibrary implements Closeable {
+  private final SampleRender render;
+  private final int maxResidentShaders;
+  // In access order, so that the first entry is the least recently used.
+  private final LinkedHashMap<String, Shader> shaders =
+      new LinkedHashMap<>(/*initialCapacity=*/ 16, /*loadFactor=*/ 0.75f, /*accessOrder=*/ true);
+
+  private int hitCount = 0;
+  private int missCount = 0;
+  private int evictionCount = 0;
+
+  /** Constructs a {@link ShaderLibrary} keeping at most {@code maxResidentShaders} variants. */
+  public ShaderLibrary(SampleRender render, int maxResidentShaders) {
+    if (maxResidentShaders < 1) {
+      throw new IllegalArgumentException("Maximum number of resident shaders must be positive");
+    }
+    this.render = render;
+    this.maxResidentShaders = maxResidentShaders;
+  }
+
+  /**
+   * Returns the variant of the given shader assets with the given defines, compiling it if it is not
+   * resident.
+   *
+   * @param defines A map of shader precompiler symbols to be defined with the given names and
+   *     values, or null
+   */
+  public Shader get(
+      String vertexShaderFileName, String fragmentShaderFileName, Map<String, String> defines)
+      throws IOException {
+    String key = createKey(vertexShaderFileName, fragmentShaderFileName, defines);
+    Shader shader = shaders.get(key);
+    if (shader != null) {
+      ++hitCount;
+      return shader;
+    }
+    ++missCount;
+    shader = Shader.createFromAssets(render, vertexShaderFileName, fragmentShaderFileName, defines);
+    insert(key, shader);
+    return shader;
+  }
+
+  /**
+   * Makes the given variant resident ahead of time, reading its assets in the background with the
+   * given {@link AssetLoader}, so that a later {@link #get} does not need to compile it.
+   */
+  public CompletableFuture<Shader> prewarm(
+      AssetLoader assetLoader,
+      String vertexShaderFileName,
+      String fragmentShaderFileName,
+      Map<String, String> defines) {
+    String key = createKey(vertexShaderFileName, fragmentShaderFileName, defines);
+    Shader resident = shaders.get(key);
+    if (resident != null) {
+      return CompletableFuture.completedFuture(resident);
+    }
+    return assetLoader
+        .loadShader(vertexShaderFileName, fragmentShaderFileName, defines)
+        .thenApply(
+            shader -> {
+              // The variant may have been compiled by get() while its assets were being read.
+              Shader existing = shaders.get(key);
+              if (existing != null) {
+                shader.close();
+                return existing;
+              }
+              insert(key, shader);
+              return shader;
+            });
+  }
+
+  /** Returns how many calls to {@link #get} found the variant resident. */
+  public int getHitCount() {
+    return hitCount;
+  }
+
+  /** Returns how many calls to {@link #get} had to compile the variant. */
+  public int getMissCount() {
+    return missCount;
+  }
+
+  /** Returns how many variants were closed to stay within the budget. */
+  public int getEvictionCount() {
+    return evictionCount;
+  }
+
+  /** Closes all resident variants. */
+  @Override
+  public void close() {
+    for (Shader shader : shaders.values()) {
+      shader.close();
+    }
+    shaders.clear();
+  }
+
+  private void insert(String key, Shader shader) {
+    shaders.put(key, shader);
+    Iterator<Shader> leastRecentlyUsed = shaders.values().iterator();
+    while (shaders.size() > maxResidentShaders) {
+      leastRecentlyUsed.next().close();
+      leastRecentlyUsed.remove();
+      ++evictionCount;
+    }
+  }
+
+  private static String createKey(
+      String vertexShaderFileName, String fragmentShaderFileName, Map<String, String> defines) {
+    // Sorting the defines makes the key independent of the map's iteration order.
+    String sortedDefines = defines == null ? "{}" : new TreeMap<>(defines).toString();
+    return vertexShaderFileName + '\0' + fragmentShaderFileName + '\0' + sortedDefines;
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import android.util.Log;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A pool of direct {@link ByteBuffer}s used to stage data on its way to the GPU.
+ *
+ * <p>Allocating and freeing direct memory is expensive and puts pressure on the garbage collector,
+ * so buffers are returned to the pool with {@link #release} once their contents have been uploaded,
+ * and handed out again by later calls to {@link #acquire}. Capacities are rounded up to size
+ * classes, which are powers of two of at least {@link #MIN_CAPACITY} bytes, so that a released
+ * buffer can serve any later request of the same class.
+ *
+ * <p>Acquired buffers are in native byte order, and their capacity is a multiple of {@link
+ * #MIN_CAPACITY}, so any offset aligned to a power of two up to that size stays aligned relative to
+ * the start of the buffer.
+ *
+ * <p>A buffer which is garbage collected without having been released is reported as a leak in the
+ * log, along with where it was acquired if {@link #setRecordAcquisitionSites} is enabled.
+ *
+ * <p>A {@link StagingBufferPool} may be used from any thread.
+ */
+public class StagingBufferPool {
+  private static final String TAG = StagingBufferPool.class.getSimpleName();
+
+  /** The capacity of the smallest size class, in bytes. */
+  public static final int MIN_CAPACITY = 4096;
+
+  private static final int MIN_CAPACITY_SHIFT = Integer.numberOfTrailingZeros(MIN_CAPACITY);
+  private static final int MAX_CAPACITY_SHIFT = 30;
+
+  // Tracks an acquired buffer without keeping it alive, so that it is enqueued if it is collected.
+  private static class Lease extends WeakReference<ByteBuffer> {
+    final int capacity;
+    final Throwable acquisitionSite;
+
+    Lease(
+        ByteBuffer buffer, Throwable acquisitionSite, ReferenceQueue<ByteBuffer> collectedBuffers) {
+      super(buffer, collectedBuffers);
+      this.capacity = buffer.capacity();
+      this.acquisitionSite = acquisitionSite;
+    }
+  }
+
+  private final long maxRetainedBytes;
+  // Released buffers, indexed by size class.
+  private final List<ArrayDeque<ByteBuffer>> freeBuffers = new ArrayList<>();
+  private final Set<Lease> leases = new HashSet<>();
+  private final ReferenceQueue<ByteBuffer> collectedBuffers = new ReferenceQueue<>();
+
+  private long retainedBytes = 0;
+  private boolean recordAcquisitionSites = false;
+  private int allocationCount = 0;
+  private int reuseCount = 0;
+  private int leakCount = 0;
+
+  /**
+   * Constructs a {@link StagingBufferPool} which keeps at most {@code maxRetainedBytes} of released
+   * buffers for reuse. Buffers released beyond that are left to the garbage collector.
+   */
+  public StagingBufferPool(long maxRetainedBytes) {
+    this.maxRetainedBytes = maxRetainedBytes;
+    for (int shift = MIN_CAPACITY_SHIFT; shift <= MAX_CAPACITY_SHIFT; ++shift) {
+      freeBuffers.add(new ArrayDeque<>());
+    }
+  }
+
+  /**
+   * Sets whether to record a stack trace when each buffer is acquired, which is logged if the
+   * buffer leaks. This makes {@link #acquire} slower, so it is disabled by default.
+   */
+  public synchronized void setRecordAcquisitionSites(boolean recordAcquisitionSites) {
+    this.recordAcquisitionSites = recordAcquisitionSites;
+  }
+
+  /**
+   * Returns a direct buffer with at least {@code size} bytes of capacity, with its position at zero
+   * and its limit at {@code size}. The buffer must be passed to {@link #release} once it is no
+   * longer used, and must not be used afterwards.
+   */
+  public synchronized ByteBuffer acquire(int size) {
+    if (size < 0 || size > 1 << MAX_CAPACITY_SHIFT) {
+      throw new IllegalArgumentException("Invalid staging buffer size: " + size);
+    }
+    pollLeaks();
+    int sizeClass = getSizeClass(size);
+    ByteBuffer buffer = freeBuffers.get(sizeClass).pollLast();
+    if (buffer == null) {
+      buffer = ByteBuffer.allocateDirect(MIN_CAPACITY << sizeClass);
+      ++allocationCount;
+    } else {
+      retainedBytes -= buffer.capacity();
+      ++reuseCount;
+    }
+    buffer.clear();
+    buffer.limit(size);
+    buffer.order(ByteOrder.nativeOrder());
+    leases.add(
+        new Lease(
+            buffer,
+            recordAcquisitionSites ? new Throwable("Staging buffer acquired here") : null,
+            collectedBuffers));
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer obtained from {@link #acquire} to the pool.
+   *
+   * @throws IllegalArgumentException if the buffer was not acquired from this pool, or was already
+   *     released
+   */
+  public synchronized void release(ByteBuffer buffer) {
+    pollLeaks();
+    Lease lease = null;
+    // There are only ever a few buffers in use, so a linear search is cheaper than hashing, which
+    // for buffers would be based on their contents.
+    for (Lease candidate : leases) {
+      if (candidate.get() == buffer) {
+        lease = candidate;
+        break;
+      }
+    }
+    if (lease == null) {
+      throw new IllegalArgumentException(
+          "Buffer was not acquired from this pool, or was already released");
+    }
+    leases.remove(lease);
+    lease.clear();
+    if (retainedBytes + buffer.capacity() <= maxRetainedBytes) {
+      freeBuffers.get(getSizeClass(buffer.capacity())).addLast(buffer);
+      retainedBytes += buffer.capacity();
+    }
+  }
+
+  /** Frees all released buffers held for reuse, for example when the system is low on memory. */
+  public synchronized void trim() {
+    for (ArrayDeque<ByteBuffer> buffers : freeBuffers) {
+      buffers.clear();
+    }
+    retainedBytes = 0;
+  }
+
+  /** Returns the number of buffers which have been acquired and not yet released. */
+  public synchronized int getOutstandingCount() {
+    pollLeaks();
+    return leases.size();
+  }
+
+  /** Returns the number of bytes of released buffers held for reuse. */
+  public synchronized long getRetainedBytes() {
+    return retainedBytes;
+  }
+
+  /** Returns how many calls to {@link #acquire} had to allocate a new buffer. */
+  public synchronized int getAllocationCount() {
+    return allocationCount;
+  }
+
+  /** Returns how many calls to {@link #acquire} reused a released buffer. */
+  public synchronized int getReuseCount() {
+    return reuseCount;
+  }
+
+  /** Returns how many buffers were garbage collected without being released. */
+  public synchronized int getLeakCount() {
+    pollLeaks();
+    return leakCount;
+  }
+
+  private void pollLeaks() {
+    Lease lease;
+    while ((lease = (Lease) collectedBuffers.poll()) != null) {
+      // Released buffers are no longer in the set, even if they are collected later.
+      if (leases.remove(lease)) {
+        ++leakCount;
+        Log.w(
+            TAG,
+            "Staging buffer of " + lease.capacity + " bytes was never released",
+            lease.acquisitionSite);
+      }
+    }
+  }
+
+  private static int getSizeClass(int size) {
+    if (size <= MIN_CAPACITY) {
+      return 0;
+    }
+    // The number of bits needed for size - 1 is the shift of the next power of two.
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CAPACITY_SHIFT;
+  }
+}
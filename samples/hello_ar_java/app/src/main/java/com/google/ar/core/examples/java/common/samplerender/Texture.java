@@ -15,6 +15,7 @@
  */
 package com.google.ar.core.examples.java.common.samplerender;
 
+import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.opengl.GLES11Ext;
@@ -22,6 +23,7 @@ import android.opengl.GLES30;
 import android.util.Log;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 
 /** A GPU-side texture. */
@@ -29,6 +31,7 @@ public class Texture implements Closeable {
   private static final String TAG = Texture.class.getSimpleName();
 
   private final int[] textureId = {0};
+  private final SampleRender render;
   private final Target target;
 
   /**
@@ -97,6 +100,7 @@ public class Texture implements Closeable {
   }
 
   public Texture(SampleRender render, Target target, WrapMode wrapMode, boolean useMipmaps) {
+    this.render = render;
     this.target = target;
 
     GLES30.glGenTextures(1, textureId, 0);
@@ -105,8 +109,7 @@ public class Texture implements Closeable {
     int minFilter = useMipmaps ? GLES30.GL_LINEAR_MIPMAP_LINEAR : GLES30.GL_LINEAR;
 
     try {
-      GLES30.glBindTexture(target.glesEnum, textureId[0]);
-      GLError.maybeThrowGLException("Failed to bind texture", "glBindTexture");
+      render.lowLevelBindTexture(this);
       GLES30.glTexParameteri(target.glesEnum, GLES30.GL_TEXTURE_MIN_FILTER, minFilter);
       GLError.maybeThrowGLException("Failed to set texture parameter", "glTexParameteri");
       GLES30.glTexParameteri(target.glesEnum, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);
@@ -126,34 +129,156 @@ public class Texture implements Closeable {
   public static Texture createFromAsset(
       SampleRender render, String assetFileName, WrapMode wrapMode, ColorFormat colorFormat)
       throws IOException {
-    Texture texture = new Texture(render, Target.TEXTURE_2D, wrapMode);
-    Bitmap bitmap = null;
+    return createFromImage(
+        render,
+        decodeAsset(render.getAssets(), render.getStagingBufferPool(), assetFileName),
+        wrapMode,
+        colorFormat);
+  }
+
+  /**
+   * Create a texture from the given KTX asset file, which holds ETC2 or ASTC compressed data with
+   * its mipmap levels. Unlike {@link #createFromAsset}, no decoding or mipmap generation happens at
+   * runtime, and the texture occupies a fraction of the memory.
+   *
+   * <p>The data is interpreted in the given {@code colorFormat}, regardless of whether the file
+   * declares a linear or sRGB format.
+   *
+   * @throws IllegalArgumentException if the device does not support the compressed format
+   */
+  public static Texture createFromKtxAsset(
+      SampleRender render, String assetFileName, WrapMode wrapMode, ColorFormat colorFormat)
+      throws IOException {
+    return createFromKtx(
+        render, readKtxAsset(render.getAssets(), assetFileName), wrapMode, colorFormat);
+  }
+
+  /**
+   * Reads and validates the given KTX asset. This does not use GL, so it may be called from any
+   * thread.
+   */
+  /* package-private */
+  static KtxContainer readKtxAsset(AssetManager assets, String assetFileName) throws IOException {
+    ByteBuffer data = Mesh.readAsset(assets, assetFileName);
+    try {
+      return KtxContainer.parse(data);
+    } catch (IOException e) {
+      throw new IOException("Invalid KTX texture " + assetFileName, e);
+    }
+  }
+
+  /** Returns the internal format the given container would be uploaded with. */
+  /* package-private */
+  static int getInternalFormat(KtxContainer container, ColorFormat colorFormat) {
+    return container.getInternalFormat(/*srgb=*/ colorFormat == ColorFormat.SRGB);
+  }
+
+  /** Creates a 2D texture from compressed data and its mipmap levels. */
+  /* package-private */
+  static Texture createFromKtx(
+      SampleRender render, KtxContainer container, WrapMode wrapMode, ColorFormat colorFormat) {
+    int internalFormat = getInternalFormat(container, colorFormat);
+    if (!render.isCompressedTextureFormatSupported(internalFormat)) {
+      throw new IllegalArgumentException(
+          "Compressed texture format not supported: 0x" + Integer.toHexString(internalFormat));
+    }
+    int numberOfMipmapLevels = container.getNumberOfMipmapLevels();
+    Texture texture =
+        new Texture(render, Target.TEXTURE_2D, wrapMode, /*useMipmaps=*/ numberOfMipmapLevels > 1);
     try {
-      // The following lines up to glTexImage2D could technically be replaced with
-      // GLUtils.texImage2d, but this method does not allow for loading sRGB images.
+      render.lowLevelBindTexture(texture);
+      // Immutable storage with exactly the stored levels, so that the texture is complete even if
+      // the file's mipmap chain stops short of 1x1.
+      GLES30.glTexStorage2D(
+          GLES30.GL_TEXTURE_2D,
+          numberOfMipmapLevels,
+          internalFormat,
+          container.getWidth(),
+          container.getHeight());
+      GLError.maybeThrowGLException("Failed to allocate texture storage", "glTexStorage2D");
+      for (int level = 0; level < numberOfMipmapLevels; ++level) {
+        ByteBuffer data = container.getMipmapLevel(level);
+        GLES30.glCompressedTexSubImage2D(
+            GLES30.GL_TEXTURE_2D,
+            level,
+            /*xoffset=*/ 0,
+            /*yoffset=*/ 0,
+            Math.max(1, container.getWidth() >> level),
+            Math.max(1, container.getHeight() >> level),
+            internalFormat,
+            data.remaining(),
+            data);
+        GLError.maybeThrowGLException(
+            "Failed to populate compressed texture data", "glCompressedTexSubImage2D");
+      }
+    } catch (Throwable t) {
+      texture.close();
+      throw t;
+    }
+    return texture;
+  }
+
+  /** Decoded RGBA pixels, ready to be uploaded. */
+  /* package-private */
+  static class DecodedImage {
+    final int width;
+    final int height;
+    final ByteBuffer pixels;
+
+    DecodedImage(int width, int height, ByteBuffer pixels) {
+      this.width = width;
+      this.height = height;
+      this.pixels = pixels;
+    }
+  }
 
+  /**
+   * Decodes the given image asset into a buffer acquired from {@code stagingBufferPool}. This does
+   * not use GL, so it may be called from any thread.
+   */
+  /* package-private */
+  static DecodedImage decodeAsset(
+      AssetManager assets, StagingBufferPool stagingBufferPool, String assetFileName)
+      throws IOException {
+    Bitmap bitmap = null;
+    try (InputStream inputStream = assets.open(assetFileName)) {
       // Load and convert the bitmap and copy its contents to a direct ByteBuffer. Despite its name,
       // the ARGB_8888 config is actually stored in RGBA order.
       bitmap =
-          convertBitmapToConfig(
-              BitmapFactory.decodeStream(render.getAssets().open(assetFileName)),
-              Bitmap.Config.ARGB_8888);
-      ByteBuffer buffer = ByteBuffer.allocateDirect(bitmap.getByteCount());
+          convertBitmapToConfig(BitmapFactory.decodeStream(inputStream), Bitmap.Config.ARGB_8888);
+      ByteBuffer buffer = stagingBufferPool.acquire(bitmap.getByteCount());
       bitmap.copyPixelsToBuffer(buffer);
       buffer.rewind();
+      return new DecodedImage(bitmap.getWidth(), bitmap.getHeight(), buffer);
+    } finally {
+      if (bitmap != null) {
+        bitmap.recycle();
+      }
+    }
+  }
 
-      GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, texture.getTextureId());
-      GLError.maybeThrowGLException("Failed to bind texture", "glBindTexture");
+  /**
+   * Creates a mipmapped 2D texture from a decoded image, and releases its pixels to the staging
+   * buffer pool of {@code render}.
+   */
+  /* package-private */
+  static Texture createFromImage(
+      SampleRender render, DecodedImage image, WrapMode wrapMode, ColorFormat colorFormat) {
+    Texture texture = new Texture(render, Target.TEXTURE_2D, wrapMode);
+    try {
+      // The following lines could technically be replaced with GLUtils.texImage2d, but this method
+      // does not allow for loading sRGB images.
+      render.lowLevelBindTexture(texture);
       GLES30.glTexImage2D(
           GLES30.GL_TEXTURE_2D,
           /*level=*/ 0,
           colorFormat.glesEnum,
-          bitmap.getWidth(),
-          bitmap.getHeight(),
+          image.width,
+          image.height,
           /*border=*/ 0,
           GLES30.GL_RGBA,
           GLES30.GL_UNSIGNED_BYTE,
-          buffer);
+          image.pixels);
       GLError.maybeThrowGLException("Failed to populate texture data", "glTexImage2D");
       GLES30.glGenerateMipmap(GLES30.GL_TEXTURE_2D);
       GLError.maybeThrowGLException("Failed to generate mipmaps", "glGenerateMipmap");
@@ -161,9 +286,8 @@ public class Texture implements Closeable {
       texture.close();
       throw t;
     } finally {
-      if (bitmap != null) {
-        bitmap.recycle();
-      }
+      // glTexImage2D has copied the pixels by the time it returns.
+      render.getStagingBufferPool().release(image.pixels);
     }
     return texture;
   }
@@ -173,6 +297,7 @@ public class Texture implements Closeable {
     if (textureId[0] != 0) {
       GLES30.glDeleteTextures(1, textureId, 0);
       GLError.maybeLogGLError(Log.WARN, TAG, "Failed to free texture", "glDeleteTextures");
+      render.onTextureDeleted(textureId[0]);
       textureId[0] = 0;
     }
   }
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import android.opengl.GLES30;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A block of uniforms stored GPU-side in a uniform buffer object, shared between any number of
+ * {@link Shader}s.
+ *
+ * <p>Values are written once per frame and are visible to every program the block is attached to
+ * with {@link Shader#setUniformBlock}. The contents of the buffer are packed according to the
+ * {@code std140} layout rules, so the uniform block in shader code must be declared with {@code
+ * layout(std140)} and contain the members described by the {@link Layout} in the same order.
+ *
+ * @see <a href="https://www.khronos.org/opengl/wiki/Interface_Block_(GLSL)#Memory_layout">Memory
+ *     layout</a>
+ */
+public class UniformBlock implements Closeable {
+  private static final int BYTES_PER_COMPONENT = 4;
+  // std140 rounds the alignment of array elements and matrix columns up to that of a vec4.
+  private static final int VEC4_ALIGNMENT = 16;
+
+  /** The type of a member of a {@link UniformBlock}. */
+  public enum MemberType {
+    FLOAT(/*rows=*/ 1, /*columns=*/ 1),
+    INT(1, 1),
+    BOOL(1, 1),
+    VEC2(2, 1),
+    VEC3(3, 1),
+    VEC4(4, 1),
+    MAT2(2, 2),
+    MAT3(3, 3),
+    MAT4(4, 4);
+
+    final int rows;
+    final int columns;
+
+    private MemberType(int rows, int columns) {
+      this.rows = rows;
+      this.columns = columns;
+    }
+  }
+
+  private static class Member {
+    final MemberType type;
+    final int offset;
+    final int arrayLength;
+
+    Member(MemberType type, int offset, int arrayLength) {
+      this.type = type;
+      this.offset = offset;
+      this.arrayLength = arrayLength;
+    }
+  }
+
+  /**
+   * Describes the members of a {@link UniformBlock} and computes their {@code std140} offsets.
+   *
+   * <p>Members must be added in the order in which they are declared in shader code.
+   */
+  public static class Layout {
+    private final Map<String, Member> members = new HashMap<>();
+    private int size = 0;
+
+    /** Adds a member which is not an array. */
+    public Layout add(String name, MemberType type) {
+      return add(name, type, /*arrayLength=*/ 0);
+    }
+
+    /**
+     * Adds a member. An {@code arrayLength} of zero declares a single value rather than an array.
+     */
+    public Layout add(String name, MemberType type, int arrayLength) {
+      if (arrayLength < 0) {
+        throw new IllegalArgumentException("Array length must not be negative");
+      }
+      if (members.containsKey(name)) {
+        throw new IllegalArgumentException("Uniform block member already exists: " + name);
+      }
+      int alignment;
+      int memberSize;
+      if (arrayLength == 0 && type.columns == 1) {
+        // Scalars are aligned to their size, vec2 to 8 bytes, and vec3 and vec4 to 16 bytes.
+        alignment = (type.rows == 3 ? 4 : type.rows) * BYTES_PER_COMPONENT;
+        memberSize = type.rows * BYTES_PER_COMPONENT;
+      } else {
+        // Arrays and matrices are laid out as arrays of vec4-aligned columns.
+        alignment = VEC4_ALIGNMENT;
+        memberSize = Math.max(arrayLength, 1) * type.columns * VEC4_ALIGNMENT;
+      }
+      int offset = align(size, alignment);
+      members.put(name, new Member(type, offset, arrayLength));
+      size = offset + memberSize;
+      return this;
+    }
+
+    /** Returns the size of the block in bytes, including trailing padding. */
+    public int getSize() {
+      return align(size, VEC4_ALIGNMENT);
+    }
+
+    private static int align(int value, int alignment) {
+      return (value + alignment - 1) / alignment * alignment;
+    }
+  }
+
+  private final String name;
+  private final int bindingPoint;
+  private final Map<String, Member> members;
+  private final ByteBuffer data;
+  private final FloatBuffer floatData;
+  private final IntBuffer intData;
+  private final GpuBuffer buffer;
+
+  // Range of bytes which have been written since the last upload.
+  private int dirtyStart = Integer.MAX_VALUE;
+  private int dirtyEnd = 0;
+
+  /**
+   * Constructs a {@link UniformBlock}.
+   *
+   * @param name The name of the uniform block as declared in shader code
+   * @param layout The members of the uniform block
+   */
+  public UniformBlock(SampleRender render, String name, Layout layout) {
+    this.name = name;
+    this.members = new HashMap<>(layout.members);
+    int size = layout.getSize();
+    data = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    floatData = data.asFloatBuffer();
+    intData = data.asIntBuffer();
+    bindingPoint = render.allocateUniformBufferBindingPoint();
+
+    buffer =
+        new GpuBuffer(render, GLES30.GL_UNIFORM_BUFFER, /*numberOfBytesPerEntry=*/ 1, data);
+    try {
+      GLES30.glBindBufferBase(GLES30.GL_UNIFORM_BUFFER, bindingPoint, buffer.getBufferId());
+      GLError.maybeThrowGLException("Failed to bind uniform buffer", "glBindBufferBase");
+    } catch (Throwable t) {
+      close();
+      throw t;
+    }
+  }
+
+  @Override
+  public void close() {
+    buffer.free();
+  }
+
+  /** Sets a {@code float} member. */
+  public UniformBlock setFloat(String name, float v0) {
+    Member member = getMember(name, MemberType.FLOAT);
+    floatData.put(member.offset / BYTES_PER_COMPONENT, v0);
+    markDirty(member.offset, BYTES_PER_COMPONENT);
+    return this;
+  }
+
+  /** Sets an {@code int} member. */
+  public UniformBlock setInt(String name, int v0) {
+    Member member = getMember(name, MemberType.INT);
+    intData.put(member.offset / BYTES_PER_COMPONENT, v0);
+    markDirty(member.offset, BYTES_PER_COMPONENT);
+    return this;
+  }
+
+  /** Sets a {@code bool} member. */
+  public UniformBlock setBool(String name, boolean v0) {
+    Member member = getMember(name, MemberType.BOOL);
+    intData.put(member.offset / BYTES_PER_COMPONENT, v0 ? 1 : 0);
+    markDirty(member.offset, BYTES_PER_COMPONENT);
+    return this;
+  }
+
+  /** Sets a {@code vec2} member or a {@code vec2} array member. */
+  public UniformBlock setVec2(String name, float[] values) {
+    return setFloats(getMember(name, MemberType.VEC2), values);
+  }
+
+  /** Sets a {@code vec3} member or a {@code vec3} array member. */
+  public UniformBlock setVec3(String name, float[] values) {
+    return setFloats(getMember(name, MemberType.VEC3), values);
+  }
+
+  /** Sets a {@code vec4} member or a {@code vec4} array member. */
+  public UniformBlock setVec4(String name, float[] values) {
+    return setFloats(getMember(name, MemberType.VEC4), values);
+  }
+
+  /** Sets a {@code mat2} member or a {@code mat2} array member. */
+  public UniformBlock setMat2(String name, float[] values) {
+    return setFloats(getMember(name, MemberType.MAT2), values);
+  }
+
+  /** Sets a {@code mat3} member or a {@code mat3} array member. */
+  public UniformBlock setMat3(String name, float[] values) {
+    return setFloats(getMember(name, MemberType.MAT3), values);
+  }
+
+  /** Sets a {@code mat4} member or a {@code mat4} array member. */
+  public UniformBlock setMat4(String name, float[] values) {
+    return setFloats(getMember(name, MemberType.MAT4), values);
+  }
+
+  /** Returns the name of the uniform block as declared in shader code. */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Uploads any values that were changed since the last upload. Don't call this directly unless you
+   * are doing low level OpenGL code; this is done by {@link Shader#lowLevelUse}.
+   */
+  public void lowLevelUpload() {
+    if (dirtyStart >= dirtyEnd) {
+      return;
+    }
+    buffer.update(dirtyStart, dirtyEnd - dirtyStart, data);
+    dirtyStart = Integer.MAX_VALUE;
+    dirtyEnd = 0;
+  }
+
+  /* package-private */
+  int getBindingPoint() {
+    return bindingPoint;
+  }
+
+  private UniformBlock setFloats(Member member, float[] values) {
+    // Each vector or matrix column occupies a vec4-aligned slot, unless the member is a single
+    // vector, which only has one slot anyway.
+    MemberType type = member.type;
+    int slots = Math.max(member.arrayLength, 1) * type.columns;
+    if (values.length != slots * type.rows) {
+      throw new IllegalArgumentException(
+          "Value array length must be " + (slots * type.rows) + " for this member");
+    }
+    int index = member.offset / BYTES_PER_COMPONENT;
+    int slotStride = VEC4_ALIGNMENT / BYTES_PER_COMPONENT;
+    for (int slot = 0; slot < slots; ++slot) {
+      for (int row = 0; row < type.rows; ++row) {
+        floatData.put(index + slot * slotStride + row, values[slot * type.rows + row]);
+      }
+    }
+    int size = slots == 1 ? type.rows * BYTES_PER_COMPONENT : slots * VEC4_ALIGNMENT;
+    markDirty(member.offset, size);
+    return this;
+  }
+
+  private Member getMember(String name, MemberType type) {
+    Member member = members.get(name);
+    if (member == null) {
+      throw new IllegalArgumentException("Uniform block member does not exist: " + name);
+    }
+    if (member.type != type) {
+      throw new IllegalArgumentException(
+          "Uniform block member `" + name + "' is of type " + member.type);
+    }
+    return member;
+  }
+
+  private void markDirty(int offset, int size) {
+    dirtyStart = Math.min(dirtyStart, offset);
+    dirtyEnd = Math.max(dirtyEnd, offset + size);
+  }
+}
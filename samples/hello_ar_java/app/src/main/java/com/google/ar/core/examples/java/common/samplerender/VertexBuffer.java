@@ -17,6 +17,7 @@ package com.google.ar.core.examples.java.common.samplerender;
 
 import android.opengl.GLES30;
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 
 /**
@@ -25,12 +26,25 @@ import java.nio.FloatBuffer;
  * <p>One or more {@link VertexBuffer}s are used when constructing a {@link Mesh} to describe vertex
  * attribute data; for example, local coordinates, texture coordinates, vertex normals, etc.
  *
+ * <p>A {@link VertexBuffer} with a non-zero attribute divisor holds per-instance data instead, such
+ * as model matrices or colors, which is advanced once per {@code divisor} instances when the mesh
+ * is drawn with {@link SampleRender#drawInstanced}.
+ *
+ * <p>Vertex data is either given as floats, or as raw bytes interleaving several attributes in
+ * possibly more compact formats, as described by a {@link VertexLayout}.
+ *
  * @see <a
  *     href="https://www.khronos.org/registry/OpenGL-Refpages/es3.0/html/glVertexAttribPointer.xhtml">glVertexAttribPointer</a>
  */
 public class VertexBuffer implements Closeable {
+  private static final int MAX_ENTRIES_PER_VERTEX = 16;
+
   private final GpuBuffer buffer;
+  private final VertexLayout layout;
   private final int numberOfEntriesPerVertex;
+  private final int divisor;
+  // Whether the data is given as raw bytes described by a layout, rather than as floats.
+  private final boolean byteEntries;
 
   /**
    * Construct a {@link VertexBuffer} populated with initial data.
@@ -47,14 +61,93 @@ public class VertexBuffer implements Closeable {
    * instead.
    */
   public VertexBuffer(SampleRender render, int numberOfEntriesPerVertex, FloatBuffer entries) {
+    this(render, numberOfEntriesPerVertex, entries, /*divisor=*/ 0);
+  }
+
+  /**
+   * Construct a {@link VertexBuffer} populated with initial data, whose attribute is advanced once
+   * per {@code divisor} instances rather than once per vertex. A {@code divisor} of zero makes it
+   * an ordinary per-vertex buffer.
+   *
+   * <p>Up to 16 entries per vertex are supported; entries beyond the first four occupy consecutive
+   * attribute locations, four at a time. For example, a {@code mat4} attribute uses 16 entries and
+   * four locations.
+   */
+  public VertexBuffer(
+      SampleRender render, int numberOfEntriesPerVertex, FloatBuffer entries, int divisor) {
+    if (numberOfEntriesPerVertex < 1 || numberOfEntriesPerVertex > MAX_ENTRIES_PER_VERTEX) {
+      throw new IllegalArgumentException(
+          "Number of entries per vertex must be between 1 and " + MAX_ENTRIES_PER_VERTEX);
+    }
+    if (divisor < 0) {
+      throw new IllegalArgumentException("Divisor must not be negative");
+    }
     if (entries != null && entries.limit() % numberOfEntriesPerVertex != 0) {
       throw new IllegalArgumentException(
           "If non-null, vertex buffer data must be divisible by the number of data points per"
               + " vertex");
     }
 
+    this.layout = VertexLayout.ofFloats(numberOfEntriesPerVertex);
+    this.numberOfEntriesPerVertex = numberOfEntriesPerVertex;
+    this.divisor = divisor;
+    this.byteEntries = false;
+    buffer = new GpuBuffer(render, GLES30.GL_ARRAY_BUFFER, GpuBuffer.FLOAT_SIZE, entries);
+  }
+
+  /**
+   * Construct a {@link VertexBuffer} of interleaved attributes populated with initial data.
+   *
+   * <p>The GPU buffer will be filled with the bytes in the <i>direct</i> buffer {@code entries},
+   * starting from the beginning of the buffer (not the current cursor position), and interpreted
+   * as described by {@code layout}. Each attribute of the layout occupies its own attribute
+   * location. The size of the buffer must be divisible by the stride of the layout.
+   *
+   * <p>The {@code entries} buffer may be null, in which case an empty buffer is constructed
+   * instead.
+   */
+  public VertexBuffer(SampleRender render, VertexLayout layout, ByteBuffer entries) {
+    if (layout.getNumberOfAttributes() == 0) {
+      throw new IllegalArgumentException("Vertex layout must have at least one attribute");
+    }
+    if (entries != null && entries.limit() % layout.getStride() != 0) {
+      throw new IllegalArgumentException(
+          "If non-null, vertex buffer data must be divisible by the stride of the layout");
+    }
+
+    this.layout = new VertexLayout(layout);
+    this.numberOfEntriesPerVertex = layout.getStride();
+    this.divisor = 0;
+    this.byteEntries = true;
+    buffer = new GpuBuffer(render, GLES30.GL_ARRAY_BUFFER, GpuBuffer.BYTE_SIZE, entries);
+  }
+
+  private VertexBuffer(GpuBuffer buffer, int numberOfEntriesPerVertex) {
+    this.buffer = buffer;
+    this.layout = VertexLayout.ofFloats(numberOfEntriesPerVertex);
     this.numberOfEntriesPerVertex = numberOfEntriesPerVertex;
-    buffer = new GpuBuffer(GLES30.GL_ARRAY_BUFFER, GpuBuffer.FLOAT_SIZE, entries);
+    this.divisor = 0;
+    this.byteEntries = false;
+  }
+
+  /**
+   * Constructs an empty {@link VertexBuffer} for data which is replaced every frame, such as point
+   * clouds.
+   *
+   * <p>The GPU buffer is divided into {@code numberOfRegions} regions, and each call to {@link
+   * #set} writes to the next one while the GPU may still read the previous ones. Only if the GPU is
+   * still reading the region to be written does {@link #set} wait, which is reported by {@link
+   * #getStallCount}. Regions grow geometrically as needed.
+   */
+  public static VertexBuffer createStreaming(
+      SampleRender render, int numberOfEntriesPerVertex, int numberOfRegions) {
+    if (numberOfEntriesPerVertex < 1 || numberOfEntriesPerVertex > MAX_ENTRIES_PER_VERTEX) {
+      throw new IllegalArgumentException(
+          "Number of entries per vertex must be between 1 and " + MAX_ENTRIES_PER_VERTEX);
+    }
+    return new VertexBuffer(
+        new GpuBuffer(render, GLES30.GL_ARRAY_BUFFER, GpuBuffer.FLOAT_SIZE, numberOfRegions),
+        numberOfEntriesPerVertex);
   }
 
   /**
@@ -71,6 +164,9 @@ public class VertexBuffer implements Closeable {
    * specified during construction.
    */
   public void set(FloatBuffer entries) {
+    if (byteEntries) {
+      throw new IllegalStateException("Vertex buffer with a vertex layout must be set with bytes");
+    }
     if (entries != null && entries.limit() % numberOfEntriesPerVertex != 0) {
       throw new IllegalArgumentException(
           "If non-null, vertex buffer data must be divisible by the number of data points per"
@@ -79,19 +175,61 @@ public class VertexBuffer implements Closeable {
     buffer.set(entries);
   }
 
+  /**
+   * Populate with new interleaved data, as described by the {@link VertexLayout} specified during
+   * construction.
+   *
+   * <p>The same rules apply as for {@link #set(FloatBuffer)}, except that the size of {@code
+   * entries} must be divisible by the stride of the layout.
+   */
+  public void set(ByteBuffer entries) {
+    if (!byteEntries) {
+      throw new IllegalStateException(
+          "Vertex buffer without a vertex layout must be set with floats");
+    }
+    if (entries != null && entries.limit() % numberOfEntriesPerVertex != 0) {
+      throw new IllegalArgumentException(
+          "If non-null, vertex buffer data must be divisible by the stride of the layout");
+    }
+    buffer.set(entries);
+  }
+
   @Override
   public void close() {
     buffer.free();
   }
 
+  /**
+   * Returns how many times {@link #set} had to wait for the GPU. This is always zero for buffers
+   * not created with {@link #createStreaming}.
+   */
+  public int getStallCount() {
+    return buffer.getStallCount();
+  }
+
+  /** Returns the total time {@link #set} spent waiting for the GPU, in nanoseconds. */
+  public long getStallNanos() {
+    return buffer.getStallNanos();
+  }
+
   /* package-private */
   int getBufferId() {
     return buffer.getBufferId();
   }
 
   /* package-private */
-  int getNumberOfEntriesPerVertex() {
-    return numberOfEntriesPerVertex;
+  VertexLayout getLayout() {
+    return layout;
+  }
+
+  /* package-private */
+  int getByteOffset() {
+    return buffer.getByteOffset();
+  }
+
+  /* package-private */
+  int getDivisor() {
+    return divisor;
   }
 
   /* package-private */
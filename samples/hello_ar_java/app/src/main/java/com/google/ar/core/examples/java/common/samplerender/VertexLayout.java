@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import android.opengl.GLES30;
+import java.util.Arrays;
+
+/**
+ * Describes how the attributes of a {@link VertexBuffer} are laid out in memory.
+ *
+ * <p>Attributes are interleaved: each vertex occupies {@link #getStride} bytes, and the attributes
+ * follow one another within a vertex in the order they were added. Each attribute occupies its own
+ * attribute location, starting from the first location assigned to the {@link VertexBuffer} in its
+ * {@link Mesh}.
+ *
+ * <p>Besides 32-bit floats, attributes may be stored in more compact formats which are converted
+ * to floating point by the GPU, so that shader code does not need to change. The static {@code
+ * pack*} methods convert values to these formats.
+ *
+ * @see <a
+ *     href="https://www.khronos.org/registry/OpenGL-Refpages/es3.0/html/glVertexAttribPointer.xhtml">glVertexAttribPointer</a>
+ */
+public class VertexLayout {
+  private static final int MAX_COMPONENTS = 4;
+  // Attribute offsets and the stride are kept 4-byte aligned, which some GPUs require for
+  // efficient vertex fetching.
+  private static final int ALIGNMENT = 4;
+
+  /** The data type of the components of an attribute. */
+  public enum AttributeType {
+    /** 32-bit floating point. */
+    FLOAT(GLES30.GL_FLOAT, /*bytesPerComponent=*/ 4, /*normalized=*/ false),
+    /** 16-bit floating point, as packed by {@link #packHalfFloat}. */
+    HALF_FLOAT(GLES30.GL_HALF_FLOAT, /*bytesPerComponent=*/ 2, /*normalized=*/ false),
+    /** 16-bit signed integers mapped to [-1, 1], as packed by {@link #packNormalizedShort}. */
+    NORMALIZED_SHORT(GLES30.GL_SHORT, /*bytesPerComponent=*/ 2, /*normalized=*/ true),
+    /**
+     * 16-bit unsigned integers mapped to [0, 1], as packed by {@link
+     * #packNormalizedUnsignedShort}.
+     */
+    NORMALIZED_UNSIGNED_SHORT(
+        GLES30.GL_UNSIGNED_SHORT, /*bytesPerComponent=*/ 2, /*normalized=*/ true),
+    /**
+     * Four signed components of 10, 10, 10 and 2 bits packed into 32 bits and mapped to [-1, 1],
+     * as packed by {@link #packNormalizedInt2101010Rev}. Attributes of this type always have four
+     * components.
+     */
+    NORMALIZED_INT_2_10_10_10_REV(
+        GLES30.GL_INT_2_10_10_10_REV, /*bytesPerComponent=*/ 1, /*normalized=*/ true);
+
+    /* package-private */
+    final int glesEnum;
+
+    private final int bytesPerComponent;
+    private final boolean normalized;
+
+    private AttributeType(int glesEnum, int bytesPerComponent, boolean normalized) {
+      this.glesEnum = glesEnum;
+      this.bytesPerComponent = bytesPerComponent;
+      this.normalized = normalized;
+    }
+
+    /* package-private */
+    static AttributeType forGlesEnum(int glesEnum) {
+      for (AttributeType type : values()) {
+        if (type.glesEnum == glesEnum) {
+          return type;
+        }
+      }
+      throw new IllegalArgumentException("Unsupported vertex attribute type: " + glesEnum);
+    }
+  }
+
+  private AttributeType[] types = new AttributeType[0];
+  private int[] numberOfComponents = new int[0];
+  private int[] offsets = new int[0];
+  private int size = 0;
+
+  /** Constructs an empty {@link VertexLayout}. Use {@link #add} to describe its attributes. */
+  public VertexLayout() {}
+
+  /* package-private */
+  VertexLayout(VertexLayout other) {
+    types = other.types.clone();
+    numberOfComponents = other.numberOfComponents.clone();
+    offsets = other.offsets.clone();
+    size = other.size;
+  }
+
+  /**
+   * Returns a layout of a single vertex of {@code numberOfEntriesPerVertex} floats. Entries beyond
+   * the first four are split into further attributes of up to four floats each.
+   */
+  /* package-private */
+  static VertexLayout ofFloats(int numberOfEntriesPerVertex) {
+    VertexLayout layout = new VertexLayout();
+    for (int first = 0; first < numberOfEntriesPerVertex; first += MAX_COMPONENTS) {
+      layout.add(
+          AttributeType.FLOAT, Math.min(MAX_COMPONENTS, numberOfEntriesPerVertex - first));
+    }
+    return layout;
+  }
+
+  /**
+   * Adds an attribute of {@code numberOfComponents} components of the given {@code type}, placed
+   * after the previously added attributes.
+   */
+  public VertexLayout add(AttributeType type, int numberOfComponents) {
+    if (numberOfComponents < 1 || numberOfComponents > MAX_COMPONENTS) {
+      throw new IllegalArgumentException(
+          "Number of components must be between 1 and " + MAX_COMPONENTS);
+    }
+    if (type == AttributeType.NORMALIZED_INT_2_10_10_10_REV
+        && numberOfComponents != MAX_COMPONENTS) {
+      throw new IllegalArgumentException("Packed 2_10_10_10 attributes must have four components");
+    }
+    int count = types.length;
+    types = Arrays.copyOf(types, count + 1);
+    this.numberOfComponents = Arrays.copyOf(this.numberOfComponents, count + 1);
+    offsets = Arrays.copyOf(offsets, count + 1);
+    types[count] = type;
+    this.numberOfComponents[count] = numberOfComponents;
+    offsets[count] = size;
+    size = align(size + numberOfComponents * type.bytesPerComponent);
+    return this;
+  }
+
+  /** Returns the number of bytes between the starts of consecutive vertices. */
+  public int getStride() {
+    return size;
+  }
+
+  /* package-private */
+  int getNumberOfAttributes() {
+    return types.length;
+  }
+
+  /* package-private */
+  int getNumberOfComponents(int attribute) {
+    return numberOfComponents[attribute];
+  }
+
+  /* package-private */
+  int getGlType(int attribute) {
+    return types[attribute].glesEnum;
+  }
+
+  /* package-private */
+  boolean isNormalized(int attribute) {
+    return types[attribute].normalized;
+  }
+
+  /* package-private */
+  int getOffset(int attribute) {
+    return offsets[attribute];
+  }
+
+  /**
+   * Converts {@code value} to the bits of a 16-bit floating point number, rounding to the nearest
+   * representable value. Values too large in magnitude become infinite.
+   */
+  public static short packHalfFloat(float value) {
+    return HalfFloat.toHalf(value);
+  }
+
+  /** Converts {@code value}, clamped to [-1, 1], for {@link AttributeType#NORMALIZED_SHORT}. */
+  public static short packNormalizedShort(float value) {
+    return VertexPacking.packNormalizedShort(value);
+  }
+
+  /**
+   * Converts {@code value}, clamped to [0, 1], for {@link
+   * AttributeType#NORMALIZED_UNSIGNED_SHORT}.
+   */
+  public static short packNormalizedUnsignedShort(float value) {
+    return VertexPacking.packNormalizedUnsignedShort(value);
+  }
+
+  /**
+   * Packs four values, clamped to [-1, 1], for {@link
+   * AttributeType#NORMALIZED_INT_2_10_10_10_REV}. {@code x} occupies the least significant bits.
+   * Since {@code w} only has two bits, it can only represent -1, 0 and 1.
+   */
+  public static int packNormalizedInt2101010Rev(float x, float y, float z, float w) {
+    return VertexPacking.packNormalizedInt2101010Rev(x, y, z, w);
+  }
+
+  private static int align(int value) {
+    return (value + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+  }
+}
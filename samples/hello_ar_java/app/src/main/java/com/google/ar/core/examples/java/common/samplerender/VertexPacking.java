@@ -0,0 +1,47 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+/**
+ * Conversions of vertex attribute values to the compact formats of {@link VertexLayout}. These do
+ * not use GL, so that {@link BinaryMeshEncoder} can also run at build time.
+ */
+/* package-private */
+final class VertexPacking {
+  private VertexPacking() {}
+
+  /** See {@link VertexLayout#packNormalizedShort}. */
+  static short packNormalizedShort(float value) {
+    return (short) Math.round(clamp(value, -1.0f) * 32767.0f);
+  }
+
+  /** See {@link VertexLayout#packNormalizedUnsignedShort}. */
+  static short packNormalizedUnsignedShort(float value) {
+    return (short) Math.round(clamp(value, 0.0f) * 65535.0f);
+  }
+
+  /** See {@link VertexLayout#packNormalizedInt2101010Rev}. */
+  static int packNormalizedInt2101010Rev(float x, float y, float z, float w) {
+    return (Math.round(clamp(x, -1.0f) * 511.0f) & 0x3ff)
+        | (Math.round(clamp(y, -1.0f) * 511.0f) & 0x3ff) << 10
+        | (Math.round(clamp(z, -1.0f) * 511.0f) & 0x3ff) << 20
+        | (Math.round(clamp(w, -1.0f)) & 0x3) << 30;
+  }
+
+  private static float clamp(float value, float min) {
+    return Math.max(min, Math.min(1.0f, value));
+  }
+}
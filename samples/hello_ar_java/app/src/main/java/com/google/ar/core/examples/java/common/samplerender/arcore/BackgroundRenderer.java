@@ -17,12 +17,16 @@ package com.google.ar.core.examples.java.common.samplerender.arcore;
 
 import android.media.Image;
 import android.opengl.GLES30;
+import android.util.Log;
 import com.google.ar.core.Coordinates2d;
 import com.google.ar.core.Frame;
+import com.google.ar.core.examples.java.common.samplerender.AssetLoader;
 import com.google.ar.core.examples.java.common.samplerender.Framebuffer;
+import com.google.ar.core.examples.java.common.samplerender.GLError;
 import com.google.ar.core.examples.java.common.samplerender.Mesh;
 import com.google.ar.core.examples.java.common.samplerender.SampleRender;
 import com.google.ar.core.examples.java.common.samplerender.Shader;
+import com.google.ar.core.examples.java.common.samplerender.ShaderLibrary;
 import com.google.ar.core.examples.java.common.samplerender.Texture;
 import com.google.ar.core.examples.java.common.samplerender.VertexBuffer;
 import java.io.IOException;
@@ -30,6 +34,8 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class both renders the AR camera background and composes the a scene foreground. The camera
@@ -42,6 +48,19 @@ public class BackgroundRenderer {
   // components_per_vertex * number_of_vertices * float_size
   private static final int COORDS_BUFFER_SIZE = 2 * 4 * 4;
 
+  private static final String CAMERA_VERTEX_SHADER_NAME = "shaders/background_show_camera.vert";
+  private static final String CAMERA_FRAGMENT_SHADER_NAME = "shaders/background_show_camera.frag";
+  private static final String DEPTH_VISUALIZATION_VERTEX_SHADER_NAME =
+      "shaders/background_show_depth_color_visualization.vert";
+  private static final String DEPTH_VISUALIZATION_FRAGMENT_SHADER_NAME =
+      "shaders/background_show_depth_color_visualization.frag";
+  private static final String OCCLUSION_VERTEX_SHADER_NAME = "shaders/occlusion.vert";
+  private static final String OCCLUSION_FRAGMENT_SHADER_NAME = "shaders/occlusion.frag";
+  // Two background variants and two occlusion variants.
+  private static final int NUMBER_OF_SHADER_VARIANTS = 4;
+  // Depth images are uploaded as two 8-bit channels holding the 16-bit depth.
+  private static final int DEPTH_BYTES_PER_PIXEL = 2;
+
   private static final FloatBuffer NDC_QUAD_COORDS_BUFFER =
       ByteBuffer.allocateDirect(COORDS_BUFFER_SIZE).order(ByteOrder.nativeOrder()).asFloatBuffer();
 
@@ -62,23 +81,46 @@ public class BackgroundRenderer {
   private final FloatBuffer cameraTexCoords =
       ByteBuffer.allocateDirect(COORDS_BUFFER_SIZE).order(ByteOrder.nativeOrder()).asFloatBuffer();
 
+  private final SampleRender render;
+  private final ShaderLibrary shaderLibrary;
   private final Mesh mesh;
   private final VertexBuffer cameraTexCoordsVertexBuffer;
   private Shader backgroundShader;
   private Shader occlusionShader;
-  private final Texture cameraDepthTexture;
+  private Texture cameraDepthTexture;
   private final Texture cameraColorTexture;
 
   private boolean useDepthVisualization;
   private boolean useOcclusion;
   private float aspectRatio;
 
+  // Dimensions of the depth texture storage, which is allocated on the first upload.
+  private int depthTextureWidth = 0;
+  private int depthTextureHeight = 0;
+  private long depthTimestamp = 0;
+  private boolean useDepthUploadBuffer = false;
+  private final int[] depthUploadBufferId = {0};
+  private int lastDepthUploadBytes = 0;
+  private int skippedDepthUploadCount = 0;
+
   /**
    * Allocates and initializes OpenGL resources needed by the background renderer. Must be called
    * during a {@link SampleRender.Renderer} callback, typically in {@link
    * SampleRender.Renderer#onSurfaceCreated()}.
    */
   public BackgroundRenderer(SampleRender render) {
+    this(render, new ShaderLibrary(render, NUMBER_OF_SHADER_VARIANTS));
+  }
+
+  /**
+   * Allocates and initializes OpenGL resources needed by the background renderer, taking its shader
+   * variants from the given {@link ShaderLibrary}. The library should have room for the four
+   * variants of the background renderer in addition to any other variants in use, so that toggling
+   * depth visualization or occlusion never recompiles shaders.
+   */
+  public BackgroundRenderer(SampleRender render, ShaderLibrary shaderLibrary) {
+    this.render = render;
+    this.shaderLibrary = shaderLibrary;
     cameraColorTexture =
         new Texture(
             render,
@@ -108,37 +150,56 @@ public class BackgroundRenderer {
         new Mesh(render, Mesh.PrimitiveMode.TRIANGLE_STRIP, /*indexBuffer=*/ null, vertexBuffers);
   }
 
+  /**
+   * Compiles all shader variants ahead of time in the background, so that the first toggle of
+   * depth visualization or occlusion does not cause a frame hitch.
+   */
+  public CompletableFuture<Void> prewarmShaders(AssetLoader assetLoader) {
+    return CompletableFuture.allOf(
+        shaderLibrary.prewarm(
+            assetLoader, CAMERA_VERTEX_SHADER_NAME, CAMERA_FRAGMENT_SHADER_NAME, /*defines=*/ null),
+        shaderLibrary.prewarm(
+            assetLoader,
+            DEPTH_VISUALIZATION_VERTEX_SHADER_NAME,
+            DEPTH_VISUALIZATION_FRAGMENT_SHADER_NAME,
+            /*defines=*/ null),
+        shaderLibrary.prewarm(
+            assetLoader,
+            OCCLUSION_VERTEX_SHADER_NAME,
+            OCCLUSION_FRAGMENT_SHADER_NAME,
+            createOcclusionDefines(/*useOcclusion=*/ false)),
+        shaderLibrary.prewarm(
+            assetLoader,
+            OCCLUSION_VERTEX_SHADER_NAME,
+            OCCLUSION_FRAGMENT_SHADER_NAME,
+            createOcclusionDefines(/*useOcclusion=*/ true)));
+  }
+
   /**
    * Sets whether the background camera image should be replaced with a depth visualization instead.
-   * This reloads the corresponding shader code, and must be called on the GL thread.
+   * This switches to the corresponding shader variant, compiling it if it is not resident, and
+   * must be called on the GL thread.
    */
   public void setUseDepthVisualization(SampleRender render, boolean useDepthVisualization)
       throws IOException {
-    if (backgroundShader != null) {
-      if (this.useDepthVisualization == useDepthVisualization) {
-        return;
-      }
-      backgroundShader.close();
-      backgroundShader = null;
-      this.useDepthVisualization = useDepthVisualization;
+    if (backgroundShader != null && this.useDepthVisualization == useDepthVisualization) {
+      return;
     }
+    this.useDepthVisualization = useDepthVisualization;
     if (useDepthVisualization) {
       backgroundShader =
-          Shader.createFromAssets(
-                  render,
-                  "shaders/background_show_depth_color_visualization.vert",
-                  "shaders/background_show_depth_color_visualization.frag",
+          shaderLibrary
+              .get(
+                  DEPTH_VISUALIZATION_VERTEX_SHADER_NAME,
+                  DEPTH_VISUALIZATION_FRAGMENT_SHADER_NAME,
                   /*defines=*/ null)
               .setTexture("u_CameraDepthTexture", cameraDepthTexture)
               .setDepthTest(false)
               .setDepthWrite(false);
     } else {
       backgroundShader =
-          Shader.createFromAssets(
-                  render,
-                  "shaders/background_show_camera.vert",
-                  "shaders/background_show_camera.frag",
-                  /*defines=*/ null)
+          shaderLibrary
+              .get(CAMERA_VERTEX_SHADER_NAME, CAMERA_FRAGMENT_SHADER_NAME, /*defines=*/ null)
               .setTexture("u_CameraColorTexture", cameraColorTexture)
               .setDepthTest(false)
               .setDepthWrite(false);
@@ -146,22 +207,21 @@ public class BackgroundRenderer {
   }
 
   /**
-   * Sets whether to use depth for occlusion. This reloads the shader code with new {@code
-   * #define}s, and must be called on the GL thread.
+   * Sets whether to use depth for occlusion. This switches to the shader variant with the
+   * corresponding {@code #define}s, compiling it if it is not resident, and must be called on the
+   * GL thread.
    */
   public void setUseOcclusion(SampleRender render, boolean useOcclusion) throws IOException {
-    if (occlusionShader != null) {
-      if (this.useOcclusion == useOcclusion) {
-        return;
-      }
-      occlusionShader.close();
-      occlusionShader = null;
-      this.useOcclusion = useOcclusion;
+    if (occlusionShader != null && this.useOcclusion == useOcclusion) {
+      return;
     }
-    HashMap<String, String> defines = new HashMap<>();
-    defines.put("USE_OCCLUSION", useOcclusion ? "1" : "0");
+    this.useOcclusion = useOcclusion;
     occlusionShader =
-        Shader.createFromAssets(render, "shaders/occlusion.vert", "shaders/occlusion.frag", defines)
+        shaderLibrary
+            .get(
+                OCCLUSION_VERTEX_SHADER_NAME,
+                OCCLUSION_FRAGMENT_SHADER_NAME,
+                createOcclusionDefines(useOcclusion))
             .setDepthTest(false)
             .setDepthWrite(false)
             .setBlend(Shader.BlendFactor.SRC_ALPHA, Shader.BlendFactor.ONE_MINUS_SRC_ALPHA);
@@ -191,24 +251,72 @@ public class BackgroundRenderer {
     }
   }
 
-  /** Update depth texture with Image contents. */
+  /**
+   * Sets whether depth images are uploaded through a pixel unpack buffer. The image is then copied
+   * into buffer memory, and the GPU updates the texture from there asynchronously, rather than the
+   * upload call waiting for the driver to consume the image.
+   */
+  public void setUseDepthUploadBuffer(boolean useDepthUploadBuffer) {
+    this.useDepthUploadBuffer = useDepthUploadBuffer;
+  }
+
+  /**
+   * Update depth texture with Image contents.
+   *
+   * <p>Texture storage is allocated once per depth image resolution, and updated in place. ARCore
+   * returns the same depth image until a new one is available, so an image with the same timestamp
+   * as the previously uploaded one is not uploaded again.
+   */
   public void updateCameraDepthTexture(Image image) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    boolean resized = width != depthTextureWidth || height != depthTextureHeight;
+    if (!resized && image.getTimestamp() == depthTimestamp) {
+      lastDepthUploadBytes = 0;
+      ++skippedDepthUploadCount;
+      return;
+    }
+    if (resized) {
+      allocateCameraDepthTexture(width, height);
+    }
+
+    int byteCount = width * height * DEPTH_BYTES_PER_PIXEL;
+    ByteBuffer data = image.getPlanes()[0].getBuffer();
     // SampleRender abstraction leaks here
-    GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, cameraDepthTexture.getTextureId());
-    GLES30.glTexImage2D(
-        GLES30.GL_TEXTURE_2D,
-        0,
-        GLES30.GL_RG8,
-        image.getWidth(),
-        image.getHeight(),
-        0,
-        GLES30.GL_RG,
-        GLES30.GL_UNSIGNED_BYTE,
-        image.getPlanes()[0].getBuffer());
-    if (useOcclusion) {
-      aspectRatio = (float) image.getWidth() / (float) image.getHeight();
-      occlusionShader.setFloat("u_DepthAspectRatio", aspectRatio);
+    render.lowLevelBindTexture(cameraDepthTexture);
+    if (useDepthUploadBuffer) {
+      if (!uploadCameraDepthThroughBuffer(data, byteCount, width, height)) {
+        lastDepthUploadBytes = 0;
+        return;
+      }
+    } else {
+      GLES30.glTexSubImage2D(
+          GLES30.GL_TEXTURE_2D,
+          /*level=*/ 0,
+          /*xoffset=*/ 0,
+          /*yoffset=*/ 0,
+          width,
+          height,
+          GLES30.GL_RG,
+          GLES30.GL_UNSIGNED_BYTE,
+          data);
+      GLError.maybeThrowGLException("Failed to update depth texture", "glTexSubImage2D");
     }
+    depthTimestamp = image.getTimestamp();
+    lastDepthUploadBytes = byteCount;
+  }
+
+  /**
+   * Returns the number of bytes uploaded by the last call to {@link #updateCameraDepthTexture},
+   * which is zero if the image had already been uploaded.
+   */
+  public int getLastDepthUploadBytes() {
+    return lastDepthUploadBytes;
+  }
+
+  /** Returns how many depth images were skipped because they had already been uploaded. */
+  public int getSkippedDepthUploadCount() {
+    return skippedDepthUploadCount;
   }
 
   /**
@@ -228,6 +336,10 @@ public class BackgroundRenderer {
    * <p>Virtual content should be rendered using the matrices provided by {@link
    * com.google.ar.core.Camera#getViewMatrix(float[], int)} and {@link
    * com.google.ar.core.Camera#getProjectionMatrix(float[], int, float, float)}.
+   *
+   * <p>If the {@link Framebuffer} has a render scale below 1, its color texture is upsampled to the
+   * surface with bilinear filtering, while its depth texture is sampled without filtering so that
+   * occlusion does not blend the depth of foreground and background edges.
    */
   public void drawVirtualScene(
       SampleRender render, Framebuffer virtualSceneFramebuffer, float zNear, float zFar) {
@@ -247,8 +359,102 @@ public class BackgroundRenderer {
     return cameraColorTexture;
   }
 
-  /** Return the camera depth texture generated by this object. */
+  /**
+   * Return the camera depth texture generated by this object. The texture is replaced when the
+   * resolution of the depth images changes.
+   */
   public Texture getCameraDepthTexture() {
     return cameraDepthTexture;
   }
+
+  private void allocateCameraDepthTexture(int width, int height) {
+    if (depthTextureWidth != 0) {
+      // Immutable storage cannot be resized, so the texture is replaced.
+      cameraDepthTexture.close();
+      cameraDepthTexture =
+          new Texture(
+              render,
+              Texture.Target.TEXTURE_2D,
+              Texture.WrapMode.CLAMP_TO_EDGE,
+              /*useMipmaps=*/ false);
+      if (useDepthVisualization) {
+        backgroundShader.setTexture("u_CameraDepthTexture", cameraDepthTexture);
+      }
+      if (useOcclusion) {
+        occlusionShader.setTexture("u_CameraDepthTexture", cameraDepthTexture);
+      }
+    }
+    render.lowLevelBindTexture(cameraDepthTexture);
+    GLES30.glTexStorage2D(GLES30.GL_TEXTURE_2D, /*levels=*/ 1, GLES30.GL_RG8, width, height);
+    GLError.maybeThrowGLException("Failed to allocate depth texture", "glTexStorage2D");
+    depthTextureWidth = width;
+    depthTextureHeight = height;
+
+    aspectRatio = (float) width / (float) height;
+    if (useOcclusion) {
+      occlusionShader.setFloat("u_DepthAspectRatio", aspectRatio);
+    }
+  }
+
+  // Returns false if the image could not be uploaded.
+  private boolean uploadCameraDepthThroughBuffer(
+      ByteBuffer data, int byteCount, int width, int height) {
+    if (depthUploadBufferId[0] == 0) {
+      GLES30.glGenBuffers(1, depthUploadBufferId, 0);
+      GLError.maybeThrowGLException("Failed to generate depth upload buffer", "glGenBuffers");
+    }
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, depthUploadBufferId[0]);
+    GLError.maybeThrowGLException("Failed to bind depth upload buffer", "glBindBuffer");
+    try {
+      // Orphan the previous contents, so that mapping does not wait for the previous upload.
+      GLES30.glBufferData(
+          GLES30.GL_PIXEL_UNPACK_BUFFER, byteCount, /*data=*/ null, GLES30.GL_STREAM_DRAW);
+      GLError.maybeThrowGLException("Failed to allocate depth upload buffer", "glBufferData");
+      ByteBuffer mapped =
+          (ByteBuffer)
+              GLES30.glMapBufferRange(
+                  GLES30.GL_PIXEL_UNPACK_BUFFER,
+                  /*offset=*/ 0,
+                  byteCount,
+                  GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+      GLError.maybeThrowGLException("Failed to map depth upload buffer", "glMapBufferRange");
+      ByteBuffer source = data.duplicate();
+      source.clear();
+      source.limit(byteCount);
+      mapped.put(source);
+      if (!GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER)) {
+        // The buffer contents were lost, which may happen on display mode changes. The next depth
+        // image will be uploaded instead.
+        Log.w(TAG, "Depth upload buffer was corrupted, skipping depth image");
+        return false;
+      }
+      GLError.maybeThrowGLException("Failed to unmap depth upload buffer", "glUnmapBuffer");
+      // With a pixel unpack buffer bound, the data pointer is an offset into that buffer. The Java
+      // binding has no offset overload for glTexSubImage2D, but passes a null buffer as a null
+      // pointer, i.e. offset zero.
+      GLES30.glTexSubImage2D(
+          GLES30.GL_TEXTURE_2D,
+          /*level=*/ 0,
+          /*xoffset=*/ 0,
+          /*yoffset=*/ 0,
+          width,
+          height,
+          GLES30.GL_RG,
+          GLES30.GL_UNSIGNED_BYTE,
+          /*pixels=*/ null);
+      GLError.maybeThrowGLException("Failed to update depth texture", "glTexSubImage2D");
+      return true;
+    } finally {
+      // Other texture uploads read from client memory, which requires no unpack buffer bound.
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+      GLError.maybeLogGLError(
+          Log.WARN, TAG, "Failed to unbind depth upload buffer", "glBindBuffer");
+    }
+  }
+
+  private static Map<String, String> createOcclusionDefines(boolean useOcclusion) {
+    HashMap<String, String> defines = new HashMap<>();
+    defines.put("USE_OCCLUSION", useOcclusion ? "1" : "0");
+    return defines;
+  }
 }
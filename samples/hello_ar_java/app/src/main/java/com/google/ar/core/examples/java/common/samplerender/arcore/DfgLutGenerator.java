@@ -0,0 +1,284 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender.arcore;
+
+import android.opengl.GLES30;
+import android.util.Log;
+import com.google.ar.core.examples.java.common.samplerender.GLError;
+import com.google.ar.core.examples.java.common.samplerender.HalfFloat;
+import com.google.ar.core.examples.java.common.samplerender.SampleRender;
+import com.google.ar.core.examples.java.common.samplerender.Texture;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Generates the DFG lookup texture of the split-sum approximation for environmental HDR, i.e. the
+ * DFG term of the specular IBL calculation, pre-integrated for multiscattering.
+ *
+ * <p>This computes the same texture as {@code tools/generate_dfg_texture.py}, at any resolution and
+ * number of importance samples. The texture has two half float channels; its horizontal axis is the
+ * dot product of the normal and view directions, and its vertical axis is perceptual roughness.
+ * Rows are computed in parallel on a {@link ForkJoinPool}.
+ *
+ * <p>See https://google.github.io/filament/Filament.md.html#lighting/imagebasedlights for a more
+ * detailed explanation.
+ */
+public class DfgLutGenerator {
+  private static final String TAG = DfgLutGenerator.class.getSimpleName();
+
+  private static final int CHANNELS = 2;
+  private static final int HALF_FLOAT_SIZE = 2;
+
+  private static final int FILE_MAGIC = 0x4446474c; // "DFGL"
+  private static final int FILE_VERSION = 1;
+  private static final int FILE_HEADER_SIZE = 16;
+
+  private final int resolution;
+  private final int numberOfSamples;
+
+  /**
+   * Constructs a {@link DfgLutGenerator}.
+   *
+   * @param resolution The width and height of the texture
+   * @param numberOfSamples The number of importance samples per texel
+   */
+  public DfgLutGenerator(int resolution, int numberOfSamples) {
+    if (resolution < 1) {
+      throw new IllegalArgumentException("Resolution must be positive");
+    }
+    if (numberOfSamples < 1) {
+      throw new IllegalArgumentException("Number of samples must be positive");
+    }
+    this.resolution = resolution;
+    this.numberOfSamples = numberOfSamples;
+  }
+
+  /** Returns the width and height of the texture. */
+  public int getResolution() {
+    return resolution;
+  }
+
+  /** Returns the size of the texture data, in bytes. */
+  public int getDataSize() {
+    return resolution * resolution * CHANNELS * HALF_FLOAT_SIZE;
+  }
+
+  /**
+   * Computes the texture data on {@code pool}, and returns it in a direct buffer in native byte
+   * order, ready to be passed to {@code glTexImage2D} as {@code GL_RG} and {@code GL_HALF_FLOAT}.
+   */
+  public ByteBuffer generate(ForkJoinPool pool) {
+    ByteBuffer data = ByteBuffer.allocateDirect(getDataSize()).order(ByteOrder.nativeOrder());
+    pool.invoke(new GenerateRowsTask(data.asShortBuffer(), 0, resolution));
+    return data;
+  }
+
+  /**
+   * Returns the texture data as {@link #generate} does, cached in {@code cacheDirectory}.
+   *
+   * <p>If the cache holds data for this resolution and number of samples, it is memory-mapped
+   * rather than computed. Otherwise the data is computed and stored for the next time. Failures to
+   * read or write the cache are logged, and the data is computed instead.
+   */
+  public ByteBuffer load(File cacheDirectory, ForkJoinPool pool) {
+    File file = new File(cacheDirectory, "dfg_" + resolution + "_" + numberOfSamples + ".bin");
+    if (file.exists()) {
+      try {
+        return map(file);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to read DFG texture " + file, e);
+      }
+    }
+
+    ByteBuffer data = generate(pool);
+    // Write to a temporary file first, so that an interrupted write never leaves a truncated file.
+    File temporaryFile = new File(cacheDirectory, file.getName() + ".tmp");
+    if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+      Log.w(TAG, "Failed to create DFG texture directory " + cacheDirectory);
+      return data;
+    }
+    try (FileOutputStream output = new FileOutputStream(temporaryFile)) {
+      // The data is stored in native byte order, since it is only read back on the same device.
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+      header.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(resolution).putInt(numberOfSamples);
+      header.flip();
+      FileChannel channel = output.getChannel();
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      ByteBuffer contents = data.duplicate();
+      while (contents.hasRemaining()) {
+        channel.write(contents);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write DFG texture " + temporaryFile, e);
+      temporaryFile.delete();
+      return data;
+    }
+    if (!temporaryFile.renameTo(file)) {
+      Log.w(TAG, "Failed to store DFG texture " + file);
+      temporaryFile.delete();
+    }
+    return data;
+  }
+
+  /**
+   * Creates a {@code GL_RG16F} texture from data returned by {@link #generate} or {@link #load}.
+   */
+  public Texture createTexture(SampleRender render, ByteBuffer data) {
+    if (data.remaining() != getDataSize()) {
+      throw new IllegalArgumentException("Data size does not match the resolution");
+    }
+    Texture texture =
+        new Texture(
+            render,
+            Texture.Target.TEXTURE_2D,
+            Texture.WrapMode.CLAMP_TO_EDGE,
+            /*useMipmaps=*/ false);
+    try {
+      // SampleRender abstraction leaks here.
+      render.lowLevelBindTexture(texture);
+      GLES30.glTexImage2D(
+          GLES30.GL_TEXTURE_2D,
+          /*level=*/ 0,
+          GLES30.GL_RG16F,
+          /*width=*/ resolution,
+          /*height=*/ resolution,
+          /*border=*/ 0,
+          GLES30.GL_RG,
+          GLES30.GL_HALF_FLOAT,
+          data);
+      GLError.maybeThrowGLException("Failed to populate DFG texture", "glTexImage2D");
+    } catch (Throwable t) {
+      texture.close();
+      throw t;
+    }
+    return texture;
+  }
+
+  private ByteBuffer map(File file) throws IOException {
+    try (FileInputStream input = new FileInputStream(file)) {
+      FileChannel channel = input.getChannel();
+      if (channel.size() != FILE_HEADER_SIZE + getDataSize()) {
+        throw new IOException("Unexpected DFG texture file size");
+      }
+      // The mapping stays valid after the channel is closed.
+      ByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (contents.getInt() != FILE_MAGIC
+          || contents.getInt() != FILE_VERSION
+          || contents.getInt() != resolution
+          || contents.getInt() != numberOfSamples) {
+        throw new IOException("Unrecognized DFG texture file");
+      }
+      return contents.slice().order(ByteOrder.nativeOrder());
+    }
+  }
+
+  /** Computes a range of rows, splitting it in halves until each task has a single row. */
+  private class GenerateRowsTask extends RecursiveAction {
+    private final ShortBuffer data;
+    private final int startRow;
+    private final int endRow;
+
+    GenerateRowsTask(ShortBuffer data, int startRow, int endRow) {
+      this.data = data;
+      this.startRow = startRow;
+      this.endRow = endRow;
+    }
+
+    @Override
+    protected void compute() {
+      if (endRow - startRow > 1) {
+        int middleRow = (startRow + endRow) >>> 1;
+        invokeAll(
+            new GenerateRowsTask(data, startRow, middleRow),
+            new GenerateRowsTask(data, middleRow, endRow));
+        return;
+      }
+      double[] dfg = new double[CHANNELS];
+      double perceptualRoughness = (startRow + 0.5) / resolution;
+      double a = perceptualRoughness * perceptualRoughness;
+      for (int s = 0; s < resolution; ++s) {
+        double nov = (s + 0.5) / resolution;
+        calculateDfg(nov, a, dfg);
+        // Tasks write disjoint ranges with absolute puts, so they never share a position.
+        int offset = (startRow * resolution + s) * CHANNELS;
+        data.put(offset, HalfFloat.toHalf((float) dfg[0]));
+        data.put(offset + 1, HalfFloat.toHalf((float) dfg[1]));
+      }
+    }
+  }
+
+  /** Calculates the DFG1 and DFG2 terms into {@code result}. */
+  private void calculateDfg(double nov, double a, double[] result) {
+    // The view direction, in tangent space.
+    double vx = Math.sqrt(1.0 - nov * nov);
+    double vz = nov;
+    double r0 = 0.0;
+    double r1 = 0.0;
+    for (int i = 0; i < numberOfSamples; ++i) {
+      // Hammersley point.
+      double u0 = i / (double) numberOfSamples;
+      double u1 = (Integer.reverse(i) & 0xffffffffL) * (0.5 / 0x80000000L);
+      // GGX - Trowbridge-Reitz importance sampling.
+      double phi = 2.0 * Math.PI * u0;
+      // NOTE: (aa-1) == (a-1)(a+1) produces better fp accuracy
+      double cosTheta2 = (1.0 - u1) / (1.0 + (a + 1.0) * ((a - 1.0) * u1));
+      double cosTheta = Math.sqrt(cosTheta2);
+      double sinTheta = Math.sqrt(1.0 - cosTheta2);
+      double hx = sinTheta * Math.cos(phi);
+      double hz = cosTheta;
+
+      double vdoth = vx * hx + vz * hz;
+      double lz = 2.0 * vdoth * hz - vz;
+      double voh = saturate(vdoth);
+      double nol = saturate(lz);
+      double noh = saturate(hz);
+      if (nol > 0.0) {
+        double vis = visibility(nov, nol, a) * nol * (voh / noh);
+        double fc = Math.pow(1.0 - voh, 5.0);
+        r0 += vis * fc;
+        r1 += vis;
+      }
+    }
+    result[0] = r0 * 4.0 / numberOfSamples;
+    result[1] = r1 * 4.0 / numberOfSamples;
+  }
+
+  /**
+   * Computes visibility using height-correlated GGX.
+   *
+   * <p>Heitz 2014, "Understanding the Masking-Shadowing Function in Microfacet-Based BRDFs"
+   */
+  private static double visibility(double nov, double nol, double a) {
+    double a2 = a * a;
+    double ggxl = nov * Math.sqrt((nol - nol * a2) * nol + a2);
+    double ggxv = nol * Math.sqrt((nov - nov * a2) * nov + a2);
+    return 0.5 / (ggxv + ggxl);
+  }
+
+  private static double saturate(double value) {
+    return Math.min(Math.max(value, 0.0), 1.0);
+  }
+}
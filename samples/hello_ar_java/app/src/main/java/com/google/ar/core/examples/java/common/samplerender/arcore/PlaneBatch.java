@@ -0,0 +1,111 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender.arcore;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Packs plane meshes into the vertex and index data of a single triangle strip, which {@link
+ * PlaneRenderer} draws with one draw call in batched mode.
+ *
+ * <p>Planes are appended in the order they should be drawn. Their vertices are transformed to world
+ * space and carry the normal and UV rotation of their plane, and their strips are joined with
+ * degenerate triangles.
+ */
+/* package-private */
+final class PlaneBatch {
+  // The vertices of a plane mesh: x, z, alpha.
+  /* package-private */
+  static final int PLANE_COORDS_PER_VERTEX = 3;
+  // x, y, z, alpha, normal x, y, z, unused, and the 2x2 UV rotation matrix.
+  /* package-private */
+  static final int ENTRIES_PER_VERTEX = 12;
+  // The most indices added to join a triangle strip to the batch.
+  /* package-private */
+  static final int STRIP_JOIN_INDICES = 3;
+
+  private PlaneBatch() {}
+
+  /**
+   * Appends a plane mesh to the batch in {@code vertexBuffer} and {@code indexBuffer}, which must
+   * have room for {@code numVertices * ENTRIES_PER_VERTEX} more vertex entries and {@code
+   * numIndices + STRIP_JOIN_INDICES} more indices.
+   *
+   * @param modelMatrix the transformation of the plane, whose mesh lies in its XZ plane
+   * @param normal the world space normal of the plane
+   * @param planeAngleUvMatrix the 2x2 rotation matrix applied to the UV coordinates of the plane
+   * @param vertices the mesh vertices, with {@link #PLANE_COORDS_PER_VERTEX} entries each
+   * @param numVertices the number of vertices in {@code vertices}
+   * @param strip the triangle strip indices of the mesh
+   * @param numIndices the number of indices in {@code strip}
+   */
+  static void appendPlane(
+      FloatBuffer vertexBuffer,
+      IntBuffer indexBuffer,
+      float[] modelMatrix,
+      float[] normal,
+      float[] planeAngleUvMatrix,
+      float[] vertices,
+      int numVertices,
+      int[] strip,
+      int numIndices) {
+    int baseVertex = vertexBuffer.position() / ENTRIES_PER_VERTEX;
+    float[] m = modelMatrix;
+    float[] uv = planeAngleUvMatrix;
+    for (int i = 0; i < numVertices * PLANE_COORDS_PER_VERTEX; i += PLANE_COORDS_PER_VERTEX) {
+      float x = vertices[i];
+      float z = vertices[i + 1];
+      vertexBuffer
+          .put(m[0] * x + m[8] * z + m[12])
+          .put(m[1] * x + m[9] * z + m[13])
+          .put(m[2] * x + m[10] * z + m[14])
+          .put(vertices[i + 2])
+          .put(normal[0])
+          .put(normal[1])
+          .put(normal[2])
+          .put(0.0f)
+          .put(uv[0])
+          .put(uv[1])
+          .put(uv[2])
+          .put(uv[3]);
+    }
+    appendStrip(indexBuffer, strip, numIndices, baseVertex);
+  }
+
+  /**
+   * Appends a triangle strip to the one in {@code indices}, joining them with degenerate triangles.
+   * An extra index is added when needed so that the appended strip starts on an even triangle,
+   * which preserves its winding.
+   */
+  static void appendStrip(IntBuffer indices, int[] strip, int count, int baseVertex) {
+    if (count == 0) {
+      return;
+    }
+    int position = indices.position();
+    if (position > 0) {
+      int last = indices.get(position - 1);
+      indices.put(last);
+      if (position % 2 != 0) {
+        indices.put(last);
+      }
+      indices.put(baseVertex + strip[0]);
+    }
+    for (int i = 0; i < count; ++i) {
+      indices.put(baseVertex + strip[i]);
+    }
+  }
+}
@@ -25,11 +25,11 @@ import com.google.ar.core.examples.java.common.samplerender.Mesh;
 import com.google.ar.core.examples.java.common.samplerender.SampleRender;
 import com.google.ar.core.examples.java.common.samplerender.Shader;
 import com.google.ar.core.examples.java.common.samplerender.Shader.BlendFactor;
+import com.google.ar.core.examples.java.common.samplerender.StagingBufferPool;
 import com.google.ar.core.examples.java.common.samplerender.Texture;
 import com.google.ar.core.examples.java.common.samplerender.VertexBuffer;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
@@ -37,10 +37,25 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-/** Renders the detected AR planes. */
+/**
+ * Renders the detected AR planes.
+ *
+ * <p>Each tracked plane keeps its own mesh, which is only tessellated again when the polygon or
+ * extents of the plane change, and is freed once the plane stops tracking or is subsumed by another
+ * plane.
+ *
+ * <p>In batched mode, enabled with {@link #setBatched}, the visible planes are instead transformed
+ * to world space and packed back to front into one dynamic mesh every frame, which is drawn with a
+ * single draw call. The parameters which differ between planes, their normals and UV rotations, are
+ * carried by each vertex instead of by uniforms.
+ *
+ * <p>Large plane boundaries may also be simplified before they are tessellated, with {@link
+ * #setSimplificationTolerance}.
+ */
 public class PlaneRenderer {
   private static final String TAG = PlaneRenderer.class.getSimpleName();
 
@@ -51,7 +66,8 @@ public class PlaneRenderer {
 
   private static final int BYTES_PER_FLOAT = Float.SIZE / 8;
   private static final int BYTES_PER_INT = Integer.SIZE / 8;
-  private static final int COORDS_PER_VERTEX = 3; // x, z, alpha
+  private static final int COORDS_PER_VERTEX = PlaneBatch.PLANE_COORDS_PER_VERTEX;
+  private static final int BATCH_STREAMING_REGIONS = 3;
 
   private static final int VERTS_PER_BOUNDARY_VERT = 2;
   private static final int INDICES_PER_BOUNDARY_VERT = 3;
@@ -77,30 +93,139 @@ public class PlaneRenderer {
   // occlusionShrink: occluded planes will fade out between alpha = 0 and 1/occlusionShrink
   private static final float[] GRID_CONTROL = {0.2f, 0.4f, 2.0f, 1.5f};
 
-  private final Mesh mesh;
-  private final IndexBuffer indexBufferObject;
-  private final VertexBuffer vertexBufferObject;
-  private final Shader shader;
+  // Planes are drawn from back to front, so that closer planes hide more distant ones.
+  private static final Comparator<PlaneMesh> BACK_TO_FRONT =
+      (a, b) -> Float.compare(b.distance, a.distance);
 
-  private FloatBuffer vertexBuffer =
-      ByteBuffer.allocateDirect(INITIAL_VERTEX_BUFFER_SIZE_BYTES)
-          .order(ByteOrder.nativeOrder())
-          .asFloatBuffer();
-  private IntBuffer indexBuffer =
-      ByteBuffer.allocateDirect(INITIAL_INDEX_BUFFER_SIZE_BYTES)
-          .order(ByteOrder.nativeOrder())
-          .asIntBuffer();
+  private final Shader shader;
+  private final Shader.UniformHandle modelUniform;
+  private final Shader.UniformHandle modelViewProjectionUniform;
+  private final Shader.UniformHandle planeUvMatrixUniform;
+  private final Shader.UniformHandle normalUniform;
+
+  private final Shader batchedShader;
+  private final Shader.UniformHandle viewProjectionUniform;
+  private final VertexBuffer batchVertexBufferObject;
+  private final IndexBuffer batchIndexBufferObject;
+  private final Mesh batchMesh;
+  private boolean batched = false;
+  private int drawCallCount = 0;
+
+  private final PolygonSimplifier polygonSimplifier = new PolygonSimplifier();
+  private float[] simplifiedPolygon = new float[0];
+  private float simplificationTolerancePixels = 0.0f;
+
+  // The vertex and index data are staged in buffers from the pool, which are exchanged for larger
+  // ones as planes grow.
+  private final StagingBufferPool stagingBufferPool;
+  private ByteBuffer vertexData;
+  private FloatBuffer vertexBuffer;
+  private ByteBuffer indexData;
+  private IntBuffer indexBuffer;
 
   // Temporary lists/matrices allocated here to reduce number of allocations for each frame.
   private final float[] viewMatrix = new float[16];
-  private final float[] modelMatrix = new float[16];
   private final float[] modelViewMatrix = new float[16];
   private final float[] modelViewProjectionMatrix = new float[16];
-  private final float[] planeAngleUvMatrix =
-      new float[4]; // 2x2 rotation matrix applied to uv coords.
-  private final float[] normalVector = new float[3];
+  private final float[] viewProjectionMatrix = new float[16];
+  private final List<PlaneMesh> sortedPlaneMeshes = new ArrayList<>();
 
   private final Map<Plane, Integer> planeIndexMap = new HashMap<>();
+  private final Map<Plane, PlaneMesh> planeMeshes = new HashMap<>();
+  private int drawCount = 0;
+  private int tessellationCount = 0;
+
+  // The mesh of a tracked plane, along with the parameters it is drawn with.
+  private static class PlaneMesh {
+    // Created on first use, since batched planes are drawn from the batch mesh instead.
+    VertexBuffer vertexBufferObject;
+    IndexBuffer indexBufferObject;
+    Mesh mesh;
+    boolean meshOutdated = true;
+    final float[] modelMatrix = new float[16];
+    final float[] normal = new float[3];
+    // 2x2 rotation matrix applied to uv coords.
+    final float[] planeAngleUvMatrix = new float[4];
+    float distance;
+    int lastDrawCount;
+
+    // The polygon and extents the mesh was tessellated from.
+    float[] polygon = new float[0];
+    int polygonLength = -1;
+    float extentX;
+    float extentZ;
+    // The tolerance the polygon was simplified with, in meters.
+    float simplificationTolerance;
+
+    // The tessellated vertices, in plane space, and triangle strip indices.
+    float[] vertices = new float[0];
+    int numVertices;
+    int[] indices = new int[0];
+    int numIndices;
+
+    /**
+     * Returns whether {@code boundary} or the extents differ from those the mesh was tessellated
+     * from, and remembers them if so. The position of {@code boundary} is left alone.
+     */
+    boolean update(FloatBuffer boundary, float extentX, float extentZ) {
+      int length = boundary == null ? 0 : boundary.limit();
+      boolean changed =
+          length != polygonLength || extentX != this.extentX || extentZ != this.extentZ;
+      for (int i = 0; i < length && !changed; ++i) {
+        changed = Float.floatToRawIntBits(boundary.get(i)) != Float.floatToRawIntBits(polygon[i]);
+      }
+      if (!changed) {
+        return false;
+      }
+      if (polygon.length < length) {
+        polygon = new float[length];
+      }
+      for (int i = 0; i < length; ++i) {
+        polygon[i] = boundary.get(i);
+      }
+      polygonLength = length;
+      this.extentX = extentX;
+      this.extentZ = extentZ;
+      return true;
+    }
+
+    /**
+     * Returns whether the polygon should be simplified again for {@code tolerance}. Tolerances
+     * within a factor of two of the last one are close enough, so that the plane is not tessellated
+     * again every frame as the camera moves.
+     */
+    boolean isSimplificationOutdated(float tolerance) {
+      return tolerance < simplificationTolerance * 0.5f
+          || tolerance > simplificationTolerance * 2.0f;
+    }
+
+    /** Copies the tessellation from the start of the given buffers, up to their limits. */
+    void setTessellation(FloatBuffer vertexBuffer, IntBuffer indexBuffer) {
+      if (vertices.length < vertexBuffer.limit()) {
+        vertices = new float[vertexBuffer.limit()];
+      }
+      for (int i = 0; i < vertexBuffer.limit(); ++i) {
+        vertices[i] = vertexBuffer.get(i);
+      }
+      numVertices = vertexBuffer.limit() / COORDS_PER_VERTEX;
+      if (indices.length < indexBuffer.limit()) {
+        indices = new int[indexBuffer.limit()];
+      }
+      for (int i = 0; i < indexBuffer.limit(); ++i) {
+        indices[i] = indexBuffer.get(i);
+      }
+      numIndices = indexBuffer.limit();
+      meshOutdated = true;
+    }
+
+    void close() {
+      if (mesh != null) {
+        mesh.close();
+        vertexBufferObject.close();
+        indexBufferObject.close();
+      }
+    }
+  }
 
   /**
    * Allocates and initializes OpenGL resources needed by the plane renderer. Must be called during
@@ -108,31 +233,150 @@ public class PlaneRenderer {
    * SampleRender.Renderer#onSurfaceCreated}.
    */
   public PlaneRenderer(SampleRender render) throws IOException {
+    stagingBufferPool = render.getStagingBufferPool();
+    vertexData = stagingBufferPool.acquire(INITIAL_VERTEX_BUFFER_SIZE_BYTES);
+    vertexBuffer = vertexData.asFloatBuffer();
+    indexData = stagingBufferPool.acquire(INITIAL_INDEX_BUFFER_SIZE_BYTES);
+    indexBuffer = indexData.asIntBuffer();
+
     Texture texture =
         Texture.createFromAsset(
             render, TEXTURE_NAME, Texture.WrapMode.REPEAT, Texture.ColorFormat.LINEAR);
-    shader =
-        Shader.createFromAssets(render, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME, /*defines=*/ null)
-            .setTexture("u_Texture", texture)
-            .setVec4("u_GridControl", GRID_CONTROL)
-            .setBlend(
-                BlendFactor.DST_ALPHA, // RGB (src)
-                BlendFactor.ONE, // RGB (dest)
-                BlendFactor.ZERO, // ALPHA (src)
-                BlendFactor.ONE_MINUS_SRC_ALPHA) // ALPHA (dest)
-            .setDepthWrite(false);
-
-    indexBufferObject = new IndexBuffer(render, /*entries=*/ null);
-    vertexBufferObject = new VertexBuffer(render, COORDS_PER_VERTEX, /*entries=*/ null);
-    VertexBuffer[] vertexBuffers = {vertexBufferObject};
-    mesh = new Mesh(render, Mesh.PrimitiveMode.TRIANGLE_STRIP, indexBufferObject, vertexBuffers);
+    shader = createShader(render, texture, /*defines=*/ null);
+    modelUniform = shader.getUniformHandle("u_Model");
+    modelViewProjectionUniform = shader.getUniformHandle("u_ModelViewProjection");
+    planeUvMatrixUniform = shader.getUniformHandle("u_PlaneUvMatrix");
+    normalUniform = shader.getUniformHandle("u_Normal");
+
+    batchedShader =
+        createShader(
+            render,
+            texture,
+            new HashMap<String, String>() {
+              {
+                put("BATCHED", "1");
+              }
+            });
+    viewProjectionUniform = batchedShader.getUniformHandle("u_ViewProjection");
+    // The batch is replaced every frame, so it is streamed through several regions.
+    batchVertexBufferObject =
+        VertexBuffer.createStreaming(
+            render, PlaneBatch.ENTRIES_PER_VERTEX, BATCH_STREAMING_REGIONS);
+    batchIndexBufferObject = IndexBuffer.createStreaming(render, BATCH_STREAMING_REGIONS);
+    batchMesh =
+        new Mesh(
+            render,
+            Mesh.PrimitiveMode.TRIANGLE_STRIP,
+            batchIndexBufferObject,
+            new VertexBuffer[] {batchVertexBufferObject});
+  }
+
+  private static Shader createShader(
+      SampleRender render, Texture texture, Map<String, String> defines) throws IOException {
+    return Shader.createFromAssets(render, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME, defines)
+        .setTexture("u_Texture", texture)
+        .setVec4("u_GridControl", GRID_CONTROL)
+        .setBlend(
+            BlendFactor.DST_ALPHA, // RGB (src)
+            BlendFactor.ONE, // RGB (dest)
+            BlendFactor.ZERO, // ALPHA (src)
+            BlendFactor.ONE_MINUS_SRC_ALPHA) // ALPHA (dest)
+        .setDepthWrite(false);
+  }
+
+  /**
+   * Sets whether all planes are drawn with a single draw call. Batching saves the per-plane uniform
+   * updates and draw calls, at the cost of transforming every visible vertex on the CPU each frame.
+   */
+  public void setBatched(boolean batched) {
+    this.batched = batched;
+  }
+
+  /** Returns whether all planes are drawn with a single draw call. */
+  public boolean isBatched() {
+    return batched;
+  }
+
+  /** Returns the number of draw calls issued by the last call to {@link #drawPlanes}. */
+  public int getDrawCallCount() {
+    return drawCallCount;
+  }
+
+  /**
+   * Sets how far simplified plane boundaries may be from the polygons reported by ARCore, in
+   * pixels. Zero, the default, disables simplification.
+   *
+   * <p>Boundaries are simplified with {@link PolygonSimplifier} before they are tessellated, with
+   * the tolerance converted to meters at the distance of each plane. The simplified boundary is
+   * kept until the polygon changes, or the distance of the plane changes the tolerance by more than
+   * a factor of two.
+   *
+   * <p>The tolerance is therefore approximate. Since the boundary is kept while the plane comes up
+   * to twice as close, it may be up to about twice the tolerance away on screen. The distance of
+   * the plane also stands in for the depth of each of its vertices, which is exact for a plane
+   * facing the camera, but underestimates the error of the nearest parts of planes seen at
+   * grazing angles.
+   */
+  public void setSimplificationTolerance(float tolerancePixels) {
+    if (!(tolerancePixels >= 0.0f)) {
+      throw new IllegalArgumentException("Tolerance must not be negative");
+    }
+    simplificationTolerancePixels = tolerancePixels;
+  }
+
+  /**
+   * Returns how many times plane meshes have been tessellated, which only happens for new planes,
+   * planes whose polygon or extents changed, and planes whose simplification tolerance changed.
+   */
+  public int getTessellationCount() {
+    return tessellationCount;
+  }
+
+  /** Returns the number of planes whose meshes are currently kept. */
+  public int getCachedPlaneCount() {
+    return planeMeshes.size();
+  }
+
+  /**
+   * Simplifies the polygon of {@code planeMesh} with {@code tolerance}, in meters, and tessellates
+   * it.
+   */
+  private void tessellate(PlaneMesh planeMesh, float tolerance) {
+    if (simplifiedPolygon.length < planeMesh.polygonLength) {
+      simplifiedPolygon = new float[planeMesh.polygonLength];
+    }
+    int boundaryVertices =
+        polygonSimplifier.simplify(
+            planeMesh.polygon, planeMesh.polygonLength / 2, tolerance, simplifiedPolygon);
+    updatePlaneParameters(
+        planeMesh.extentX, planeMesh.extentZ, simplifiedPolygon, boundaryVertices);
+    planeMesh.setTessellation(vertexBuffer, indexBuffer);
+    planeMesh.simplificationTolerance = tolerance;
+  }
+
+  /**
+   * Returns the simplification tolerance in meters for a plane at {@code distance}, or zero if
+   * simplification is disabled.
+   */
+  private float getSimplificationTolerance(
+      SampleRender render, float distance, float[] cameraProjection) {
+    if (simplificationTolerancePixels == 0.0f) {
+      return 0.0f;
+    }
+    // A length of s meters at a depth of d meters covers s * cameraProjection[5] / d of the two
+    // units of the view height in normalized device coordinates. The distance to the plane stands
+    // in for the depth of its vertices, rather than the depth of the nearest vertex, which is close
+    // to zero for a floor extending under the camera and would disable simplification for it.
+    return simplificationTolerancePixels
+        * 2.0f
+        * distance
+        / (cameraProjection[5] * render.getViewportHeight());
   }
 
-  /** Updates the plane model transform matrix and extents. */
+  /** Tessellates the plane boundary polygon into the staging vertex and index buffers. */
   private void updatePlaneParameters(
-      float[] planeMatrix, float extentX, float extentZ, FloatBuffer boundary) {
-    System.arraycopy(planeMatrix, 0, modelMatrix, 0, 16);
-    if (boundary == null) {
+      float extentX, float extentZ, float[] boundary, int boundaryVertices) {
+    if (boundaryVertices < 3) {
       vertexBuffer.limit(0);
       indexBuffer.limit(0);
       return;
@@ -142,8 +386,6 @@ public class PlaneRenderer {
     // the plane boundary polygon has a fading edge. This is done by making a copy of the
     // boundary polygon vertices and scaling it down around center to push it inwards. Then
     // the index buffer is setup accordingly.
-    boundary.rewind();
-    int boundaryVertices = boundary.limit() / 2;
     int numVertices;
     int numIndices;
 
@@ -151,29 +393,11 @@ public class PlaneRenderer {
     // drawn as GL_TRIANGLE_STRIP with 3n-2 triangles (n-2 for fill, 2n for perimeter).
     numIndices = boundaryVertices * INDICES_PER_BOUNDARY_VERT;
 
-    if (vertexBuffer.capacity() < numVertices * COORDS_PER_VERTEX) {
-      int size = vertexBuffer.capacity();
-      while (size < numVertices * COORDS_PER_VERTEX) {
-        size *= 2;
-      }
-      vertexBuffer =
-          ByteBuffer.allocateDirect(BYTES_PER_FLOAT * size)
-              .order(ByteOrder.nativeOrder())
-              .asFloatBuffer();
-    }
+    reserveVertexBuffer(numVertices * COORDS_PER_VERTEX);
     vertexBuffer.rewind();
     vertexBuffer.limit(numVertices * COORDS_PER_VERTEX);
 
-    if (indexBuffer.capacity() < numIndices) {
-      int size = indexBuffer.capacity();
-      while (size < numIndices) {
-        size *= 2;
-      }
-      indexBuffer =
-          ByteBuffer.allocateDirect(BYTES_PER_INT * size)
-              .order(ByteOrder.nativeOrder())
-              .asIntBuffer();
-    }
+    reserveIndexBuffer(numIndices);
     indexBuffer.rewind();
     indexBuffer.limit(numIndices);
 
@@ -183,9 +407,9 @@ public class PlaneRenderer {
     float xScale = Math.max((extentX - 2 * FADE_RADIUS_M) / extentX, 0.0f);
     float zScale = Math.max((extentZ - 2 * FADE_RADIUS_M) / extentZ, 0.0f);
 
-    while (boundary.hasRemaining()) {
-      float x = boundary.get();
-      float z = boundary.get();
+    for (int i = 0; i < boundaryVertices; ++i) {
+      float x = boundary[2 * i];
+      float z = boundary[2 * i + 1];
       vertexBuffer.put(x);
       vertexBuffer.put(z);
       vertexBuffer.put(0.0f);
@@ -214,6 +438,32 @@ public class PlaneRenderer {
     }
   }
 
+  /** Exchanges the staging vertex buffer for a larger one if it holds fewer than {@code size}. */
+  private void reserveVertexBuffer(int size) {
+    if (vertexBuffer.capacity() < size) {
+      int newSize = vertexBuffer.capacity();
+      while (newSize < size) {
+        newSize *= 2;
+      }
+      stagingBufferPool.release(vertexData);
+      vertexData = stagingBufferPool.acquire(BYTES_PER_FLOAT * newSize);
+      vertexBuffer = vertexData.asFloatBuffer();
+    }
+  }
+
+  /** Exchanges the staging index buffer for a larger one if it holds fewer than {@code size}. */
+  private void reserveIndexBuffer(int size) {
+    if (indexBuffer.capacity() < size) {
+      int newSize = indexBuffer.capacity();
+      while (newSize < size) {
+        newSize *= 2;
+      }
+      stagingBufferPool.release(indexData);
+      indexData = stagingBufferPool.acquire(BYTES_PER_INT * newSize);
+      indexBuffer = indexData.asIntBuffer();
+    }
+  }
+
   /**
    * Draws the collection of tracked planes, with closer planes hiding more distant ones.
    *
@@ -224,98 +474,188 @@ public class PlaneRenderer {
    */
   public void drawPlanes(
       SampleRender render, Collection<Plane> allPlanes, Pose cameraPose, float[] cameraProjection) {
-    // Planes must be sorted by distance from camera so that we draw closer planes first, and
-    // they occlude the farther planes.
-    List<SortablePlane> sortedPlanes = new ArrayList<>();
-
+    ++drawCount;
+    sortedPlaneMeshes.clear();
     for (Plane plane : allPlanes) {
       if (plane.getTrackingState() != TrackingState.TRACKING || plane.getSubsumedBy() != null) {
         continue;
       }
 
-      float distance = calculateDistanceToPlane(plane.getCenterPose(), cameraPose);
-      if (distance < 0) { // Plane is back-facing.
+      PlaneMesh planeMesh = planeMeshes.get(plane);
+      if (planeMesh == null) {
+        planeMesh = createPlaneMesh(plane);
+        planeMeshes.put(plane, planeMesh);
+      }
+      planeMesh.lastDrawCount = drawCount;
+
+      Pose centerPose = plane.getCenterPose();
+      // Get transformed Y axis of plane's coordinate system.
+      centerPose.getTransformedAxis(1, 1.0f, planeMesh.normal, 0);
+      planeMesh.distance = calculateDistanceToPlane(centerPose, planeMesh.normal, cameraPose);
+      if (planeMesh.distance < 0) { // Plane is back-facing.
         continue;
       }
-      sortedPlanes.add(new SortablePlane(distance, plane));
+      centerPose.toMatrix(planeMesh.modelMatrix, 0);
+
+      FloatBuffer boundary = plane.getPolygon();
+      float extentX = plane.getExtentX();
+      float extentZ = plane.getExtentZ();
+      boolean polygonChanged = planeMesh.update(boundary, extentX, extentZ);
+      float tolerance =
+          getSimplificationTolerance(render, planeMesh.distance, cameraProjection);
+      if (polygonChanged || planeMesh.isSimplificationOutdated(tolerance)) {
+        tessellate(planeMesh, tolerance);
+        ++tessellationCount;
+      }
+      sortedPlaneMeshes.add(planeMesh);
     }
-    Collections.sort(
-        sortedPlanes,
-        new Comparator<SortablePlane>() {
-          @Override
-          public int compare(SortablePlane a, SortablePlane b) {
-            return Float.compare(b.distance, a.distance);
-          }
-        });
 
-    cameraPose.inverse().toMatrix(viewMatrix, 0);
+    // Free the meshes of planes which are no longer tracked, or have been subsumed.
+    for (Iterator<PlaneMesh> it = planeMeshes.values().iterator(); it.hasNext(); ) {
+      PlaneMesh planeMesh = it.next();
+      if (planeMesh.lastDrawCount != drawCount) {
+        planeMesh.close();
+        it.remove();
+      }
+    }
 
-    for (SortablePlane sortedPlane : sortedPlanes) {
-      Plane plane = sortedPlane.plane;
-      float[] planeMatrix = new float[16];
-      plane.getCenterPose().toMatrix(planeMatrix, 0);
+    // Planes must be sorted by distance from camera so that we draw closer planes first, and
+    // they occlude the farther planes.
+    Collections.sort(sortedPlaneMeshes, BACK_TO_FRONT);
 
-      // Get transformed Y axis of plane's coordinate system.
-      plane.getCenterPose().getTransformedAxis(1, 1.0f, normalVector, 0);
+    cameraPose.inverse().toMatrix(viewMatrix, 0);
 
-      updatePlaneParameters(
-          planeMatrix, plane.getExtentX(), plane.getExtentZ(), plane.getPolygon());
+    if (batched) {
+      drawBatch(render, cameraProjection);
+      return;
+    }
 
-      // Get plane index. Keep a map to assign same indices to same planes.
-      Integer planeIndex = planeIndexMap.get(plane);
-      if (planeIndex == null) {
-        planeIndex = planeIndexMap.size();
-        planeIndexMap.put(plane, planeIndex);
+    drawCallCount = 0;
+    for (int i = 0; i < sortedPlaneMeshes.size(); ++i) {
+      PlaneMesh planeMesh = sortedPlaneMeshes.get(i);
+      if (planeMesh.meshOutdated) {
+        uploadPlaneMesh(render, planeMesh);
       }
 
-      // Each plane will have its own angle offset from others, to make them easier to
-      // distinguish. Compute a 2x2 rotation matrix from the angle.
-      float angleRadians = planeIndex * 0.144f;
-      float uScale = DOTS_PER_METER;
-      float vScale = DOTS_PER_METER * EQUILATERAL_TRIANGLE_SCALE;
-      planeAngleUvMatrix[0] = +(float) Math.cos(angleRadians) * uScale;
-      planeAngleUvMatrix[1] = -(float) Math.sin(angleRadians) * vScale;
-      planeAngleUvMatrix[2] = +(float) Math.sin(angleRadians) * uScale;
-      planeAngleUvMatrix[3] = +(float) Math.cos(angleRadians) * vScale;
-
       // Build the ModelView and ModelViewProjection matrices
       // for calculating cube position and light.
-      Matrix.multiplyMM(modelViewMatrix, 0, viewMatrix, 0, modelMatrix, 0);
+      Matrix.multiplyMM(modelViewMatrix, 0, viewMatrix, 0, planeMesh.modelMatrix, 0);
       Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraProjection, 0, modelViewMatrix, 0);
 
       // Populate the shader uniforms for this frame.
-      shader.setMat4("u_Model", modelMatrix);
-      shader.setMat4("u_ModelViewProjection", modelViewProjectionMatrix);
-      shader.setMat2("u_PlaneUvMatrix", planeAngleUvMatrix);
-      shader.setVec3("u_Normal", normalVector);
+      shader.setMat4(modelUniform, planeMesh.modelMatrix);
+      shader.setMat4(modelViewProjectionUniform, modelViewProjectionMatrix);
+      shader.setMat2(planeUvMatrixUniform, planeMesh.planeAngleUvMatrix);
+      shader.setVec3(normalUniform, planeMesh.normal);
+
+      render.draw(planeMesh.mesh, shader);
+      ++drawCallCount;
+    }
+  }
 
-      // Set the position of the plane
-      vertexBufferObject.set(vertexBuffer);
-      indexBufferObject.set(indexBuffer);
+  /** Uploads the tessellation of {@code planeMesh} to its own mesh, creating it if necessary. */
+  private void uploadPlaneMesh(SampleRender render, PlaneMesh planeMesh) {
+    if (planeMesh.mesh == null) {
+      planeMesh.vertexBufferObject =
+          new VertexBuffer(render, COORDS_PER_VERTEX, /*entries=*/ null);
+      planeMesh.indexBufferObject = new IndexBuffer(render, /*entries=*/ null);
+      planeMesh.mesh =
+          new Mesh(
+              render,
+              Mesh.PrimitiveMode.TRIANGLE_STRIP,
+              planeMesh.indexBufferObject,
+              new VertexBuffer[] {planeMesh.vertexBufferObject});
+    }
+    reserveVertexBuffer(planeMesh.numVertices * COORDS_PER_VERTEX);
+    vertexBuffer.clear();
+    vertexBuffer.put(planeMesh.vertices, 0, planeMesh.numVertices * COORDS_PER_VERTEX).flip();
+    reserveIndexBuffer(planeMesh.numIndices);
+    indexBuffer.clear();
+    indexBuffer.put(planeMesh.indices, 0, planeMesh.numIndices).flip();
+    planeMesh.vertexBufferObject.set(vertexBuffer);
+    planeMesh.indexBufferObject.set(indexBuffer);
+    planeMesh.meshOutdated = false;
+  }
 
-      render.draw(mesh, shader);
+  /** Draws the sorted planes as one mesh, in world space, with a single draw call. */
+  private void drawBatch(SampleRender render, float[] cameraProjection) {
+    drawCallCount = 0;
+    int numVertices = 0;
+    int numIndices = 0;
+    for (int i = 0; i < sortedPlaneMeshes.size(); ++i) {
+      numVertices += sortedPlaneMeshes.get(i).numVertices;
+      numIndices += sortedPlaneMeshes.get(i).numIndices + PlaneBatch.STRIP_JOIN_INDICES;
+    }
+    if (numVertices == 0) {
+      return;
     }
+
+    reserveVertexBuffer(numVertices * PlaneBatch.ENTRIES_PER_VERTEX);
+    reserveIndexBuffer(numIndices);
+    vertexBuffer.clear();
+    indexBuffer.clear();
+    // The planes are appended back to front, and triangles are drawn in order, so blending gives
+    // the same result as drawing the planes one by one.
+    for (int i = 0; i < sortedPlaneMeshes.size(); ++i) {
+      PlaneMesh planeMesh = sortedPlaneMeshes.get(i);
+      PlaneBatch.appendPlane(
+          vertexBuffer,
+          indexBuffer,
+          planeMesh.modelMatrix,
+          planeMesh.normal,
+          planeMesh.planeAngleUvMatrix,
+          planeMesh.vertices,
+          planeMesh.numVertices,
+          planeMesh.indices,
+          planeMesh.numIndices);
+    }
+    vertexBuffer.flip();
+    indexBuffer.flip();
+    batchVertexBufferObject.set(vertexBuffer);
+    batchIndexBufferObject.set(indexBuffer);
+
+    Matrix.multiplyMM(viewProjectionMatrix, 0, cameraProjection, 0, viewMatrix, 0);
+    batchedShader.setMat4(viewProjectionUniform, viewProjectionMatrix);
+    render.draw(batchMesh, batchedShader);
+    drawCallCount = 1;
   }
 
-  private static class SortablePlane {
-    final float distance;
-    final Plane plane;
+  private PlaneMesh createPlaneMesh(Plane plane) {
+    PlaneMesh planeMesh = new PlaneMesh();
 
-    SortablePlane(float distance, Plane plane) {
-      this.distance = distance;
-      this.plane = plane;
+    // Get plane index. Keep a map to assign same indices to same planes, even if they stop and
+    // resume tracking.
+    Integer planeIndex = planeIndexMap.get(plane);
+    if (planeIndex == null) {
+      planeIndex = planeIndexMap.size();
+      planeIndexMap.put(plane, planeIndex);
     }
+
+    // Each plane will have its own angle offset from others, to make them easier to
+    // distinguish. Compute a 2x2 rotation matrix from the angle.
+    float angleRadians = planeIndex * 0.144f;
+    float uScale = DOTS_PER_METER;
+    float vScale = DOTS_PER_METER * EQUILATERAL_TRIANGLE_SCALE;
+    planeMesh.planeAngleUvMatrix[0] = +(float) Math.cos(angleRadians) * uScale;
+    planeMesh.planeAngleUvMatrix[1] = -(float) Math.sin(angleRadians) * vScale;
+    planeMesh.planeAngleUvMatrix[2] = +(float) Math.sin(angleRadians) * uScale;
+    planeMesh.planeAngleUvMatrix[3] = +(float) Math.cos(angleRadians) * vScale;
+    return planeMesh;
   }
 
   // Calculate the normal distance to plane from cameraPose, the given planePose should have y axis
   // parallel to plane's normal, for example plane's center pose or hit test pose.
   public static float calculateDistanceToPlane(Pose planePose, Pose cameraPose) {
     float[] normal = new float[3];
+    // Get transformed Y axis of plane's coordinate system.
+    planePose.getTransformedAxis(1, 1.0f, normal, 0);
+    return calculateDistanceToPlane(planePose, normal, cameraPose);
+  }
+
+  private static float calculateDistanceToPlane(Pose planePose, float[] normal, Pose cameraPose) {
     float cameraX = cameraPose.tx();
     float cameraY = cameraPose.ty();
     float cameraZ = cameraPose.tz();
-    // Get transformed Y axis of plane's coordinate system.
-    planePose.getTransformedAxis(1, 1.0f, normal, 0);
     // Compute dot product of plane's normal with vector from camera to plane center.
     return (cameraX - planePose.tx()) * normal[0]
         + (cameraY - planePose.ty()) * normal[1]
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender.arcore;
+
+/**
+ * Simplifies closed polygons, such as the boundaries returned by {@link
+ * com.google.ar.core.Plane#getPolygon()}, with the Douglas-Peucker algorithm.
+ *
+ * <p>Only vertices of the input are kept, so the simplification of a convex polygon is convex. No
+ * point of the input boundary is farther than the tolerance from the simplified boundary.
+ *
+ * <p>The scratch arrays used by the algorithm are kept between calls, so a simplifier should be
+ * reused rather than created for each polygon. It is not thread-safe.
+ *
+ * @see <a href="https://en.wikipedia.org/wiki/Ramer%E2%80%93Douglas%E2%80%93Peucker_algorithm">
+ *     Ramer-Douglas-Peucker algorithm</a>
+ */
+public class PolygonSimplifier {
+  private boolean[] keep = new boolean[0];
+  // Pairs of start and end vertices of the chains still to be simplified.
+  private int[] stack = new int[0];
+
+  /**
+   * Simplifies a closed polygon.
+   *
+   * @param polygon The vertices of the polygon, as (x, z) pairs
+   * @param numberOfVertices The number of vertices of the polygon
+   * @param tolerance The largest distance allowed between the polygon and its simplification, in
+   *     the units of the vertices. If it is not positive, the polygon is copied unchanged.
+   * @param result Receives the kept vertices as (x, z) pairs, in their original order. It must
+   *     have room for {@code 2 * numberOfVertices} values.
+   * @return The number of vertices written to {@code result}, which is never less than three
+   *     unless the polygon itself has fewer vertices
+   */
+  public int simplify(float[] polygon, int numberOfVertices, float tolerance, float[] result) {
+    if (polygon.length < 2 * numberOfVertices || result.length < 2 * numberOfVertices) {
+      throw new IllegalArgumentException("Polygon and result must hold every vertex");
+    }
+    if (numberOfVertices <= 3 || !(tolerance > 0.0f)) {
+      System.arraycopy(polygon, 0, result, 0, 2 * numberOfVertices);
+      return numberOfVertices;
+    }
+    if (keep.length < numberOfVertices) {
+      keep = new boolean[numberOfVertices];
+      // Each split replaces one chain with two, and there are fewer splits than vertices.
+      stack = new int[2 * numberOfVertices + 4];
+    }
+
+    // A closed polygon has no end points, so it is split into two chains at the vertex farthest
+    // from the first one.
+    int farthest = 1;
+    float farthestDistance = 0.0f;
+    for (int i = 1; i < numberOfVertices; ++i) {
+      float dx = polygon[2 * i] - polygon[0];
+      float dz = polygon[2 * i + 1] - polygon[1];
+      float distance = dx * dx + dz * dz;
+      if (distance > farthestDistance) {
+        farthest = i;
+        farthestDistance = distance;
+      }
+    }
+    for (int i = 0; i < numberOfVertices; ++i) {
+      keep[i] = false;
+    }
+    keep[0] = true;
+    keep[farthest] = true;
+
+    // Chain ends are vertex indices, where numberOfVertices stands for vertex 0 again.
+    float toleranceSquared = tolerance * tolerance;
+    int stackSize = 0;
+    stack[stackSize++] = 0;
+    stack[stackSize++] = farthest;
+    stack[stackSize++] = farthest;
+    stack[stackSize++] = numberOfVertices;
+    while (stackSize > 0) {
+      int end = stack[--stackSize];
+      int start = stack[--stackSize];
+      int split = -1;
+      float splitDistance = toleranceSquared;
+      for (int i = start + 1; i < end; ++i) {
+        float distance = getSegmentDistanceSquared(polygon, i, start, end % numberOfVertices);
+        if (distance > splitDistance) {
+          split = i;
+          splitDistance = distance;
+        }
+      }
+      if (split != -1) {
+        keep[split] = true;
+        stack[stackSize++] = start;
+        stack[stackSize++] = split;
+        stack[stackSize++] = split;
+        stack[stackSize++] = end;
+      }
+    }
+
+    int numberOfKeptVertices = 0;
+    for (int i = 0; i < numberOfVertices; ++i) {
+      if (keep[i]) {
+        result[2 * numberOfKeptVertices] = polygon[2 * i];
+        result[2 * numberOfKeptVertices + 1] = polygon[2 * i + 1];
+        ++numberOfKeptVertices;
+      }
+    }
+    if (numberOfKeptVertices < 3) {
+      // The polygon is thinner than the tolerance; keep it as it is rather than collapse it.
+      System.arraycopy(polygon, 0, result, 0, 2 * numberOfVertices);
+      return numberOfVertices;
+    }
+    return numberOfKeptVertices;
+  }
+
+  /** Returns the squared distance from vertex {@code i} to the segment {@code a}-{@code b}. */
+  private static float getSegmentDistanceSquared(float[] polygon, int i, int a, int b) {
+    float ax = polygon[2 * a];
+    float az = polygon[2 * a + 1];
+    float abx = polygon[2 * b] - ax;
+    float abz = polygon[2 * b + 1] - az;
+    float apx = polygon[2 * i] - ax;
+    float apz = polygon[2 * i + 1] - az;
+    float lengthSquared = abx * abx + abz * abz;
+    float t = lengthSquared > 0.0f ? (apx * abx + apz * abz) / lengthSquared : 0.0f;
+    t = Math.max(0.0f, Math.min(1.0f, t));
+    float dx = apx - t * abx;
+    float dz = apz - t * abz;
+    return dx * dx + dz * dz;
+  }
+}
@@ -22,20 +22,32 @@ import android.opengl.GLES30;
 import android.util.Log;
 import com.google.ar.core.ArImage;
 import com.google.ar.core.ImageFormat;
+import com.google.ar.core.examples.java.common.samplerender.AssetLoader;
 import com.google.ar.core.examples.java.common.samplerender.GLError;
 import com.google.ar.core.examples.java.common.samplerender.Mesh;
 import com.google.ar.core.examples.java.common.samplerender.SampleRender;
 import com.google.ar.core.examples.java.common.samplerender.Shader;
+import com.google.ar.core.examples.java.common.samplerender.StagingBufferPool;
 import com.google.ar.core.examples.java.common.samplerender.Texture;
 import com.google.ar.core.examples.java.common.samplerender.VertexBuffer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Filters a provided cubemap into a cubemap lookup texture which is a function of the direction of
@@ -44,6 +56,11 @@ import java.util.Iterator;
  *
  * <p>See https://google.github.io/filament/Filament.md.html#lighting/imagebasedlights for a more
  * detailed explanation.
+ *
+ * <p>Filtering is only done when the provided cubemap changes, and may be spread over several
+ * updates with {@link #setMaxMipmapLevelsPerUpdate}, so that its cost follows how often the
+ * lighting changes rather than the frame rate. With {@link #setTemporalBlendFactor}, the filtered
+ * cubemap fades towards each new input over several passes instead of switching at once.
  */
 public class SpecularCubemapFilter implements Closeable {
   private static final String TAG = SpecularCubemapFilter.class.getSimpleName();
@@ -55,6 +72,21 @@ public class SpecularCubemapFilter implements Closeable {
       COMPONENTS_PER_VERTEX * NUMBER_OF_VERTICES * FLOAT_SIZE;
 
   private static final int NUMBER_OF_CUBE_FACES = 6;
+  private static final int COMPONENTS_PER_TEXEL = 4;
+  // A half float has 10 mantissa bits, so one unit in the last place is a relative difference
+  // between 1/2048 and 1/1024.
+  private static final int HALF_FLOAT_ULPS_PER_UNIT = 1024;
+  // Blended passes continue until the previous result contributes less than this to each level, and
+  // are followed by one unblended pass.
+  private static final float TEMPORAL_BLEND_RESIDUAL = 0.01f;
+
+  // Each entry of the importance sample table takes two RGBA texels: the direction and the
+  // contribution, then the level.
+  private static final int TEXELS_PER_IMPORTANCE_SAMPLE = 2;
+  private static final int FLOATS_PER_IMPORTANCE_SAMPLE =
+      TEXELS_PER_IMPORTANCE_SAMPLE * COMPONENTS_PER_TEXEL;
+  private static final int IMPORTANCE_SAMPLE_FILE_MAGIC = 0x49535442; // "ISTB"
+  private static final int IMPORTANCE_SAMPLE_FILE_VERSION = 1;
 
   private static final FloatBuffer COORDS_BUFFER =
       ByteBuffer.allocateDirect(COORDS_BUFFER_SIZE).order(ByteOrder.nativeOrder()).asFloatBuffer();
@@ -145,12 +177,14 @@ public class SpecularCubemapFilter implements Closeable {
     public float level;
   }
 
+  private final SampleRender render;
   private final int resolution;
   private final int numberOfImportanceSamples;
   private final int numberOfMipmapLevels;
 
   private final Texture radianceCubemap;
   private final Texture ldCubemap;
+  private final Texture importanceSampleTable;
   // Indexed by attachment chunk.
   private final Shader[] shaders;
   private final Mesh mesh;
@@ -159,6 +193,18 @@ public class SpecularCubemapFilter implements Closeable {
   // [mipmapLevel][attachmentChunk].
   private final int[][] framebuffers;
 
+  // The last input which was filtered, as half float bits, indexed by [face][component].
+  private final short[][] filteredInput;
+  private boolean hasFilteredInput = false;
+  private int changeThresholdUlps = 0;
+  private int maxMipmapLevelsPerUpdate;
+  private float temporalBlendFactor = 1.0f;
+  // Mipmap levels are filtered in round-robin order, and each new input schedules a number of
+  // passes over every level.
+  private int nextLevelToFilter = 0;
+  private int pendingLevelFilterCount = 0;
+  private int skippedUpdateCount = 0;
+
   /**
    * Constructs a {@link SpecularCubemapFilter}.
    *
@@ -173,9 +219,67 @@ public class SpecularCubemapFilter implements Closeable {
    */
   public SpecularCubemapFilter(SampleRender render, int resolution, int numberOfImportanceSamples)
       throws IOException {
+    this(
+        render,
+        resolution,
+        numberOfImportanceSamples,
+        createImportanceSampleTableData(resolution, numberOfImportanceSamples));
+  }
+
+  /**
+   * Constructs a {@link SpecularCubemapFilter} which stores its importance sample table in the
+   * given directory, so that the table is only computed once for each resolution and number of
+   * importance samples. A good directory is one inside {@code Context.getCodeCacheDir()}.
+   *
+   * @param cacheDirectory The directory storing importance sample tables, or null to always
+   *     compute them
+   */
+  public SpecularCubemapFilter(
+      SampleRender render, int resolution, int numberOfImportanceSamples, File cacheDirectory)
+      throws IOException {
+    this(
+        render,
+        resolution,
+        numberOfImportanceSamples,
+        loadImportanceSampleTableData(resolution, numberOfImportanceSamples, cacheDirectory));
+  }
+
+  /**
+   * Loads a {@link SpecularCubemapFilter} as {@link #SpecularCubemapFilter(SampleRender, int, int,
+   * File)} constructs one. The importance sample table is computed, or read from {@code
+   * cacheDirectory}, on a worker thread of {@code assetLoader}, and only the GL resources are
+   * created on the render thread.
+   */
+  public static CompletableFuture<SpecularCubemapFilter> load(
+      AssetLoader assetLoader,
+      SampleRender render,
+      int resolution,
+      int numberOfImportanceSamples,
+      File cacheDirectory) {
+    return assetLoader.load(
+        () -> loadImportanceSampleTableData(resolution, numberOfImportanceSamples, cacheDirectory),
+        data -> {
+          try {
+            return new SpecularCubemapFilter(render, resolution, numberOfImportanceSamples, data);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+  }
+
+  private SpecularCubemapFilter(
+      SampleRender render,
+      int resolution,
+      int numberOfImportanceSamples,
+      float[] importanceSampleTableData)
+      throws IOException {
+    this.render = render;
     this.resolution = resolution;
     this.numberOfImportanceSamples = numberOfImportanceSamples;
     this.numberOfMipmapLevels = log2(resolution) + 1;
+    this.maxMipmapLevelsPerUpdate = numberOfMipmapLevels;
+    this.filteredInput =
+        new short[NUMBER_OF_CUBE_FACES][resolution * resolution * COMPONENTS_PER_TEXEL];
 
     try {
       radianceCubemap =
@@ -183,8 +287,16 @@ public class SpecularCubemapFilter implements Closeable {
       ldCubemap =
           new Texture(render, Texture.Target.TEXTURE_CUBE_MAP, Texture.WrapMode.CLAMP_TO_EDGE);
 
+      importanceSampleTable =
+          new Texture(
+              render,
+              Texture.Target.TEXTURE_2D,
+              Texture.WrapMode.CLAMP_TO_EDGE,
+              /*useMipmaps=*/ false);
+
       ChunkIterable chunks = new ChunkIterable(getMaxColorAttachments());
       initializeLdCubemap();
+      initializeImportanceSampleTable(importanceSampleTableData);
       shaders = createShaders(render, chunks);
       framebuffers = createFramebuffers(chunks);
 
@@ -210,6 +322,7 @@ public class SpecularCubemapFilter implements Closeable {
         GLError.maybeLogGLError(
             Log.WARN, TAG, "Failed to free framebuffers", "glDeleteFramebuffers");
       }
+      render.invalidateState();
     }
     if (radianceCubemap != null) {
       radianceCubemap.close();
@@ -217,6 +330,9 @@ public class SpecularCubemapFilter implements Closeable {
     if (ldCubemap != null) {
       ldCubemap.close();
     }
+    if (importanceSampleTable != null) {
+      importanceSampleTable.close();
+    }
     if (shaders != null) {
       for (Shader shader : shaders) {
         shader.close();
@@ -229,15 +345,14 @@ public class SpecularCubemapFilter implements Closeable {
    *
    * <p>This method should be called every frame with the result of {@link
    * com.google.ar.core.LightEstimate.acquireEnvironmentalHdrCubeMap()} to update the filtered
-   * cubemap texture, accessible via {@link getFilteredCubemapTexture()}.
+   * cubemap texture, accessible via {@link getFilteredCubemapTexture()}. Inputs which do not differ
+   * from the last filtered input by more than the change threshold are skipped, but mipmap levels
+   * still waiting to be filtered from an earlier input are filtered regardless.
    *
    * <p>The given {@link ArImage}s will be closed by this method, even if an exception occurs.
    */
   public void update(ArImage[] images) {
     try {
-      GLES30.glBindTexture(GLES30.GL_TEXTURE_CUBE_MAP, radianceCubemap.getTextureId());
-      GLError.maybeThrowGLException("Failed to bind radiance cubemap texture", "glBindTexture");
-
       if (images.length != NUMBER_OF_CUBE_FACES) {
         throw new IllegalArgumentException(
             "Number of images differs from the number of sides of a cube.");
@@ -261,37 +376,34 @@ public class SpecularCubemapFilter implements Closeable {
                   + resolution
                   + ").");
         }
-
-        GLES30.glTexImage2D(
-            GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_X + i,
-            /*level=*/ 0,
-            GLES30.GL_RGBA16F,
-            /*width=*/ resolution,
-            /*height=*/ resolution,
-            /*border=*/ 0,
-            GLES30.GL_RGBA,
-            GLES30.GL_HALF_FLOAT,
-            image.getPlanes()[0].getBuffer());
-        GLError.maybeThrowGLException("Failed to populate cubemap face", "glTexImage2D");
       }
 
-      GLES30.glGenerateMipmap(GLES30.GL_TEXTURE_CUBE_MAP);
-      GLError.maybeThrowGLException("Failed to generate cubemap mipmaps", "glGenerateMipmap");
-
-      // Do the filtering operation, filling the mipmaps of ldTexture with the roughness filtered
-      // cubemap.
-      for (int level = 0; level < numberOfMipmapLevels; ++level) {
-        int mipmapResolution = resolution >> level;
-        GLES30.glViewport(0, 0, mipmapResolution, mipmapResolution);
-        GLError.maybeThrowGLException("Failed to set viewport dimensions", "glViewport");
-        for (int chunkIndex = 0; chunkIndex < shaders.length; ++chunkIndex) {
-          GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebuffers[level][chunkIndex]);
-          GLError.maybeThrowGLException("Failed to bind cubemap framebuffer", "glBindFramebuffer");
-          shaders[chunkIndex].setInt("u_RoughnessLevel", level);
-          shaders[chunkIndex].lowLevelUse();
-          mesh.lowLevelDraw();
+      if (hasInputChanged(images)) {
+        uploadRadianceCubemap(images);
+        int numberOfPasses = 1;
+        if (hasFilteredInput && temporalBlendFactor < 1.0f) {
+          numberOfPasses +=
+              (int)
+                  Math.ceil(
+                      Math.log(TEMPORAL_BLEND_RESIDUAL) / Math.log(1.0f - temporalBlendFactor));
         }
+        pendingLevelFilterCount = numberOfPasses * numberOfMipmapLevels;
+      } else {
+        ++skippedUpdateCount;
       }
+
+      // The first input is filtered completely, so that the filtered cubemap is never undefined.
+      int numberOfLevelsToFilter =
+          hasFilteredInput
+              ? min(pendingLevelFilterCount, maxMipmapLevelsPerUpdate)
+              : pendingLevelFilterCount;
+      for (int i = 0; i < numberOfLevelsToFilter; ++i) {
+        // The last pass over each level is not blended, so that the result converges exactly.
+        filterLevel(nextLevelToFilter, pendingLevelFilterCount > numberOfMipmapLevels);
+        nextLevelToFilter = (nextLevelToFilter + 1) % numberOfMipmapLevels;
+        --pendingLevelFilterCount;
+      }
+      hasFilteredInput = true;
     } finally {
       for (ArImage image : images) {
         image.close();
@@ -299,6 +411,49 @@ public class SpecularCubemapFilter implements Closeable {
     }
   }
 
+  /**
+   * Sets the maximum number of mipmap levels filtered by each call to {@link #update}, so that the
+   * filtering of a new input is spread over several frames. By default, every level is filtered in
+   * the same update.
+   */
+  public void setMaxMipmapLevelsPerUpdate(int maxMipmapLevelsPerUpdate) {
+    if (maxMipmapLevelsPerUpdate < 1) {
+      throw new IllegalArgumentException("Maximum number of mipmap levels must be positive");
+    }
+    this.maxMipmapLevelsPerUpdate = maxMipmapLevelsPerUpdate;
+  }
+
+  /**
+   * Sets the weight of a new input each time a mipmap level is filtered, blending it with the
+   * previous contents of the level. Passes are repeated until the new input dominates. The default
+   * of 1 replaces the previous contents at once.
+   *
+   * @throws IllegalArgumentException if the factor is not in the range (0, 1]
+   */
+  public void setTemporalBlendFactor(float temporalBlendFactor) {
+    if (!(temporalBlendFactor > 0.0f && temporalBlendFactor <= 1.0f)) {
+      throw new IllegalArgumentException("Temporal blend factor must be in the range (0, 1]");
+    }
+    this.temporalBlendFactor = temporalBlendFactor;
+  }
+
+  /**
+   * Sets the relative difference a texel of a new input must have from the last filtered input for
+   * the input to be filtered. The comparison is approximate, within a factor of two. By default,
+   * any difference causes the input to be filtered.
+   */
+  public void setChangeThreshold(float relativeChange) {
+    if (!(relativeChange >= 0.0f)) {
+      throw new IllegalArgumentException("Change threshold must not be negative");
+    }
+    this.changeThresholdUlps = Math.round(relativeChange * HALF_FLOAT_ULPS_PER_UNIT);
+  }
+
+  /** Returns how many calls to {@link #update} found the input unchanged. */
+  public int getSkippedUpdateCount() {
+    return skippedUpdateCount;
+  }
+
   /** Returns the number of mipmap levels in the filtered cubemap texture. */
   public int getNumberOfMipmapLevels() {
     return numberOfMipmapLevels;
@@ -312,10 +467,79 @@ public class SpecularCubemapFilter implements Closeable {
     return ldCubemap;
   }
 
+  private boolean hasInputChanged(ArImage[] images) {
+    boolean changed = !hasFilteredInput;
+    for (int face = 0; face < NUMBER_OF_CUBE_FACES && !changed; ++face) {
+      ShortBuffer input = getHalfFloats(images[face]);
+      short[] filteredFace = filteredInput[face];
+      for (int i = 0; i < filteredFace.length; ++i) {
+        // Half floats of the same sign are ordered like their bits, so the difference of the bits
+        // approximates the relative difference of the values.
+        if (Math.abs(input.get(i) - filteredFace[i]) > changeThresholdUlps) {
+          changed = true;
+          break;
+        }
+      }
+    }
+    if (changed) {
+      for (int face = 0; face < NUMBER_OF_CUBE_FACES; ++face) {
+        getHalfFloats(images[face]).get(filteredInput[face]);
+      }
+    }
+    return changed;
+  }
+
+  private static ShortBuffer getHalfFloats(ArImage image) {
+    // Duplicated so that the byte order of the image's buffer is left alone.
+    ByteBuffer buffer = image.getPlanes()[0].getBuffer().duplicate();
+    return buffer.order(ByteOrder.nativeOrder()).asShortBuffer();
+  }
+
+  private void uploadRadianceCubemap(ArImage[] images) {
+    render.lowLevelBindTexture(radianceCubemap);
+    for (int i = 0; i < NUMBER_OF_CUBE_FACES; ++i) {
+      GLES30.glTexImage2D(
+          GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_X + i,
+          /*level=*/ 0,
+          GLES30.GL_RGBA16F,
+          /*width=*/ resolution,
+          /*height=*/ resolution,
+          /*border=*/ 0,
+          GLES30.GL_RGBA,
+          GLES30.GL_HALF_FLOAT,
+          images[i].getPlanes()[0].getBuffer());
+      GLError.maybeThrowGLException("Failed to populate cubemap face", "glTexImage2D");
+    }
+
+    GLES30.glGenerateMipmap(GLES30.GL_TEXTURE_CUBE_MAP);
+    GLError.maybeThrowGLException("Failed to generate cubemap mipmaps", "glGenerateMipmap");
+  }
+
+  // Fills a mipmap level of ldCubemap with the roughness filtered cubemap.
+  private void filterLevel(int level, boolean blend) {
+    if (blend) {
+      GLES30.glBlendColor(0.0f, 0.0f, 0.0f, temporalBlendFactor);
+      GLError.maybeThrowGLException("Failed to set blend color", "glBlendColor");
+    }
+    int mipmapResolution = resolution >> level;
+    for (int chunkIndex = 0; chunkIndex < shaders.length; ++chunkIndex) {
+      render.lowLevelUseFramebuffer(
+          framebuffers[level][chunkIndex], mipmapResolution, mipmapResolution);
+      if (blend) {
+        shaders[chunkIndex].setBlend(
+            Shader.BlendFactor.CONSTANT_ALPHA, Shader.BlendFactor.ONE_MINUS_CONSTANT_ALPHA);
+      } else {
+        shaders[chunkIndex].setBlend(Shader.BlendFactor.ONE, Shader.BlendFactor.ZERO);
+      }
+      shaders[chunkIndex].setInt("u_RoughnessLevel", level);
+      shaders[chunkIndex].lowLevelUse();
+      mesh.lowLevelDraw();
+    }
+  }
+
   private void initializeLdCubemap() {
     // Initialize mipmap levels of LD cubemap.
-    GLES30.glBindTexture(GLES30.GL_TEXTURE_CUBE_MAP, ldCubemap.getTextureId());
-    GLError.maybeThrowGLException("Could not bind LD cubemap texture", "glBindTexture");
+    render.lowLevelBindTexture(ldCubemap);
     for (int level = 0; level < numberOfMipmapLevels; ++level) {
       int mipmapResolution = resolution >> level;
       for (int face = 0; face < NUMBER_OF_CUBE_FACES; ++face) {
@@ -334,9 +558,35 @@ public class SpecularCubemapFilter implements Closeable {
     }
   }
 
-  private Shader[] createShaders(SampleRender render, ChunkIterable chunks) throws IOException {
-    ImportanceSampleCacheEntry[][] importanceSampleCaches = generateImportanceSampleCaches();
+  private void initializeImportanceSampleTable(float[] data) {
+    render.lowLevelBindTexture(importanceSampleTable);
+    // Float textures are not filterable, and the table is only read with texelFetch anyway.
+    GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST);
+    GLError.maybeThrowGLException("Failed to set texture parameter", "glTexParameteri");
+    GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST);
+    GLError.maybeThrowGLException("Failed to set texture parameter", "glTexParameteri");
+
+    StagingBufferPool stagingBufferPool = render.getStagingBufferPool();
+    ByteBuffer buffer = stagingBufferPool.acquire(data.length * FLOAT_SIZE);
+    try {
+      buffer.asFloatBuffer().put(data);
+      GLES30.glTexImage2D(
+          GLES30.GL_TEXTURE_2D,
+          /*level=*/ 0,
+          GLES30.GL_RGBA32F,
+          /*width=*/ numberOfImportanceSamples * TEXELS_PER_IMPORTANCE_SAMPLE,
+          /*height=*/ numberOfMipmapLevels - 1,
+          /*border=*/ 0,
+          GLES30.GL_RGBA,
+          GLES30.GL_FLOAT,
+          buffer);
+      GLError.maybeThrowGLException("Failed to populate importance sample table", "glTexImage2D");
+    } finally {
+      stagingBufferPool.release(buffer);
+    }
+  }
 
+  private Shader[] createShaders(SampleRender render, ChunkIterable chunks) throws IOException {
     HashMap<String, String> commonDefines = new HashMap<>();
     commonDefines.put("NUMBER_OF_IMPORTANCE_SAMPLES", Integer.toString(numberOfImportanceSamples));
     commonDefines.put("NUMBER_OF_MIPMAP_LEVELS", Integer.toString(numberOfMipmapLevels));
@@ -350,31 +600,15 @@ public class SpecularCubemapFilter implements Closeable {
             Integer.toString(location));
       }
 
-      // Create the shader and populate its uniforms with the importance sample cache entries.
       shaders[chunk.chunkIndex] =
           Shader.createFromAssets(
                   render, "shaders/cubemap_filter.vert", "shaders/cubemap_filter.frag", defines)
               .setTexture("u_Cubemap", radianceCubemap)
+              .setTexture("u_ImportanceSampleTable", importanceSampleTable)
               .setDepthTest(false)
               .setDepthWrite(false);
     }
 
-    for (Shader shader : shaders) {
-      for (int i = 0; i < importanceSampleCaches.length; ++i) {
-        ImportanceSampleCacheEntry[] cache = importanceSampleCaches[i];
-        String cacheName = "u_ImportanceSampleCaches[" + i + "]";
-        shader.setInt(cacheName + ".number_of_entries", cache.length);
-        for (int j = 0; j < cache.length; ++j) {
-          ImportanceSampleCacheEntry entry = cache[j];
-          String entryName = cacheName + ".entries[" + j + "]";
-          shader
-              .setVec3(entryName + ".direction", entry.direction)
-              .setFloat(entryName + ".contribution", entry.contribution)
-              .setFloat(entryName + ".level", entry.level);
-        }
-      }
-    }
-
     return shaders;
   }
 
@@ -387,8 +621,8 @@ public class SpecularCubemapFilter implements Closeable {
       GLError.maybeThrowGLException("Could not create cubemap framebuffers", "glGenFramebuffers");
       for (Chunk chunk : chunks) {
         // Set the drawbuffers
-        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebufferChunks[chunk.chunkIndex]);
-        GLError.maybeThrowGLException("Could not bind framebuffer", "glBindFramebuffer");
+        render.lowLevelUseFramebuffer(
+            framebufferChunks[chunk.chunkIndex], resolution >> level, resolution >> level);
         GLES30.glDrawBuffers(chunk.chunkSize, ATTACHMENT_ENUMS, 0);
         GLError.maybeThrowGLException("Could not bind draw buffers", "glDrawBuffers");
         // Since GLES doesn't support glFramebufferTexture, we will use each cubemap face as a
@@ -410,18 +644,108 @@ public class SpecularCubemapFilter implements Closeable {
     return framebuffers;
   }
 
+  /**
+   * Returns the contents of the importance sample table, reading them from {@code cacheDirectory}
+   * if they were stored there, or computing and storing them otherwise. This does not use GL, so it
+   * may be called from any thread.
+   */
+  /* package-private */
+  static float[] loadImportanceSampleTableData(
+      int resolution, int numberOfImportanceSamples, File cacheDirectory) {
+    if (cacheDirectory == null) {
+      return createImportanceSampleTableData(resolution, numberOfImportanceSamples);
+    }
+    File file =
+        new File(
+            cacheDirectory,
+            "importance_samples_" + resolution + "_" + numberOfImportanceSamples + ".bin");
+    int length = log2(resolution) * numberOfImportanceSamples * FLOATS_PER_IMPORTANCE_SAMPLE;
+    if (file.exists()) {
+      try (DataInputStream input =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        if (input.readInt() != IMPORTANCE_SAMPLE_FILE_MAGIC
+            || input.readInt() != IMPORTANCE_SAMPLE_FILE_VERSION
+            || input.readInt() != length) {
+          throw new IOException("Unrecognized importance sample table file");
+        }
+        float[] data = new float[length];
+        for (int i = 0; i < length; ++i) {
+          data[i] = input.readFloat();
+        }
+        return data;
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to read importance sample table " + file, e);
+      }
+    }
+
+    float[] data = createImportanceSampleTableData(resolution, numberOfImportanceSamples);
+    // Write to a temporary file first, so that an interrupted write never leaves a truncated file.
+    File temporaryFile = new File(cacheDirectory, file.getName() + ".tmp");
+    if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+      Log.w(TAG, "Failed to create importance sample table directory " + cacheDirectory);
+      return data;
+    }
+    try (DataOutputStream output =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+      output.writeInt(IMPORTANCE_SAMPLE_FILE_MAGIC);
+      output.writeInt(IMPORTANCE_SAMPLE_FILE_VERSION);
+      output.writeInt(length);
+      for (float value : data) {
+        output.writeFloat(value);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write importance sample table " + temporaryFile, e);
+      temporaryFile.delete();
+      return data;
+    }
+    if (!temporaryFile.renameTo(file)) {
+      Log.w(TAG, "Failed to store importance sample table " + file);
+      temporaryFile.delete();
+    }
+    return data;
+  }
+
+  /**
+   * Packs the importance sample caches into the layout of the importance sample table: one row per
+   * roughness level from 1 upwards, in which each entry takes {@link
+   * #TEXELS_PER_IMPORTANCE_SAMPLE} texels. Rows end with entries whose contribution is zero.
+   */
+  /* package-private */
+  static float[] createImportanceSampleTableData(
+      int resolution, int numberOfImportanceSamples) {
+    ImportanceSampleCacheEntry[][] importanceSampleCaches =
+        generateImportanceSampleCaches(resolution, numberOfImportanceSamples);
+    int rowLength = numberOfImportanceSamples * FLOATS_PER_IMPORTANCE_SAMPLE;
+    float[] data = new float[importanceSampleCaches.length * rowLength];
+    for (int i = 0; i < importanceSampleCaches.length; ++i) {
+      ImportanceSampleCacheEntry[] cache = importanceSampleCaches[i];
+      for (int j = 0; j < cache.length; ++j) {
+        ImportanceSampleCacheEntry entry = cache[j];
+        int offset = i * rowLength + j * FLOATS_PER_IMPORTANCE_SAMPLE;
+        data[offset] = entry.direction[0];
+        data[offset + 1] = entry.direction[1];
+        data[offset + 2] = entry.direction[2];
+        data[offset + 3] = entry.contribution;
+        data[offset + 4] = entry.level;
+      }
+    }
+    return data;
+  }
+
   /**
    * Generate a cache of importance sampling terms in tangent space, indexed by {@code
    * [roughnessLevel-1][sampleIndex]}.
    */
-  private ImportanceSampleCacheEntry[][] generateImportanceSampleCaches() {
+  private static ImportanceSampleCacheEntry[][] generateImportanceSampleCaches(
+      int baseResolution, int numberOfImportanceSamples) {
+    int numberOfMipmapLevels = log2(baseResolution) + 1;
     ImportanceSampleCacheEntry[][] result =
         new ImportanceSampleCacheEntry[numberOfMipmapLevels - 1][];
     for (int i = 0; i < numberOfMipmapLevels - 1; ++i) {
       int mipmapLevel = i + 1;
       float perceptualRoughness = mipmapLevel / (float) (numberOfMipmapLevels - 1);
       float roughness = perceptualRoughness * perceptualRoughness;
-      int resolution = this.resolution >> mipmapLevel;
+      int resolution = baseResolution >> mipmapLevel;
       float log4omegaP = log4((4.0f * PI_F) / (6 * resolution * resolution));
       float inverseNumberOfSamples = 1f / numberOfImportanceSamples;
 
@@ -19,11 +19,11 @@ package com.google.ar.core.examples.java.helloar;
 import android.content.DialogInterface;
 import android.content.res.Resources;
 import android.media.Image;
-import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
 import android.os.Bundle;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
@@ -57,14 +57,21 @@ import com.google.ar.core.examples.java.common.helpers.InstantPlacementSettings;
 import com.google.ar.core.examples.java.common.helpers.SnackbarHelper;
 import com.google.ar.core.examples.java.common.helpers.TapHelper;
 import com.google.ar.core.examples.java.common.helpers.TrackingStateHelper;
+import com.google.ar.core.examples.java.common.samplerender.AssetLoader;
 import com.google.ar.core.examples.java.common.samplerender.Framebuffer;
 import com.google.ar.core.examples.java.common.samplerender.GLError;
+import com.google.ar.core.examples.java.common.samplerender.GpuTimer;
 import com.google.ar.core.examples.java.common.samplerender.Mesh;
+import com.google.ar.core.examples.java.common.samplerender.ProgramBinaryCache;
+import com.google.ar.core.examples.java.common.samplerender.QualityGovernor;
+import com.google.ar.core.examples.java.common.samplerender.RenderQueue;
 import com.google.ar.core.examples.java.common.samplerender.SampleRender;
 import com.google.ar.core.examples.java.common.samplerender.Shader;
 import com.google.ar.core.examples.java.common.samplerender.Texture;
+import com.google.ar.core.examples.java.common.samplerender.UniformBlock;
 import com.google.ar.core.examples.java.common.samplerender.VertexBuffer;
 import com.google.ar.core.examples.java.common.samplerender.arcore.BackgroundRenderer;
+import com.google.ar.core.examples.java.common.samplerender.arcore.DfgLutGenerator;
 import com.google.ar.core.examples.java.common.samplerender.arcore.PlaneRenderer;
 import com.google.ar.core.examples.java.common.samplerender.arcore.SpecularCubemapFilter;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
@@ -74,12 +81,19 @@ import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
 import com.google.ar.core.exceptions.UnavailableDeviceNotCompatibleException;
 import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 import com.google.ar.core.exceptions.UnavailableUserDeclinedInstallationException;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This is a simple example that shows how to create an augmented reality (AR) application using the
@@ -110,8 +124,85 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
   private static final float Z_NEAR = 0.1f;
   private static final float Z_FAR = 100f;
 
+  // 24 bits of depth are plenty for the Z_NEAR to Z_FAR range, and take less bandwidth than 32.
+  private static final Framebuffer.DepthFormat VIRTUAL_SCENE_DEPTH_FORMAT =
+      Framebuffer.DepthFormat.DEPTH24;
+
+  // Checking for GL errors after every call is costly, so once all resources have been created,
+  // release builds only check every call in a sample of frames.
+  private static final GLError.CheckPolicy STEADY_STATE_GL_ERROR_CHECK_POLICY =
+      BuildConfig.DEBUG ? GLError.CheckPolicy.FULL : GLError.CheckPolicy.SAMPLED;
+
+  private static final int ASSET_LOADER_THREADS = 2;
+  // How long uploading loaded assets to the GPU may take per frame.
+  private static final long ASSET_UPLOAD_BUDGET_NANOS = 4_000_000L;
+
+  // The same DFG lookup table as tools/generate_dfg_texture.py generates by default.
+  private static final int DFG_RESOLUTION = 64;
+  private static final int DFG_NUMBER_OF_IMPORTANCE_SAMPLES = 1024;
+
+  // How far simplified plane boundaries may be from the polygons reported by ARCore, in pixels.
+  private static final float PLANE_SIMPLIFICATION_TOLERANCE_PIXELS = 2.0f;
+
+  // The resolution of the cubemaps provided by ARCore.
   private static final int CUBEMAP_RESOLUTION = 16;
-  private static final int CUBEMAP_NUMBER_OF_IMPORTANCE_SAMPLES = 32;
+  // The lighting changes slowly, so filtering a new cubemap is spread over a few frames, and small
+  // changes are not filtered at all.
+  private static final int CUBEMAP_MAX_MIPMAP_LEVELS_PER_FRAME = 2;
+  private static final float CUBEMAP_TEMPORAL_BLEND_FACTOR = 0.5f;
+  private static final float CUBEMAP_CHANGE_THRESHOLD = 0.01f;
+
+  // Rendering settings which are traded for frame time by the quality governor.
+  private static class QualityLevel {
+    // The virtual scene is rendered at this fraction of the surface size, and upsampled when it is
+    // composited over the camera image.
+    final float virtualSceneRenderScale;
+    final int cubemapNumberOfImportanceSamples;
+    final int maxPointCloudPoints;
+    final boolean occlusionAllowed;
+
+    QualityLevel(
+        float virtualSceneRenderScale,
+        int cubemapNumberOfImportanceSamples,
+        int maxPointCloudPoints,
+        boolean occlusionAllowed) {
+      this.virtualSceneRenderScale = virtualSceneRenderScale;
+      this.cubemapNumberOfImportanceSamples = cubemapNumberOfImportanceSamples;
+      this.maxPointCloudPoints = maxPointCloudPoints;
+      this.occlusionAllowed = occlusionAllowed;
+    }
+  }
+
+  // From the cheapest to the best, which is what fast devices render.
+  private static final QualityLevel[] QUALITY_LEVELS = {
+    new QualityLevel(
+        /*virtualSceneRenderScale=*/ 0.5f,
+        /*cubemapNumberOfImportanceSamples=*/ 8,
+        /*maxPointCloudPoints=*/ 256,
+        /*occlusionAllowed=*/ false),
+    new QualityLevel(
+        /*virtualSceneRenderScale=*/ 0.67f,
+        /*cubemapNumberOfImportanceSamples=*/ 16,
+        /*maxPointCloudPoints=*/ 512,
+        /*occlusionAllowed=*/ true),
+    new QualityLevel(
+        /*virtualSceneRenderScale=*/ 0.75f,
+        /*cubemapNumberOfImportanceSamples=*/ 32,
+        /*maxPointCloudPoints=*/ 1024,
+        /*occlusionAllowed=*/ true),
+    new QualityLevel(
+        /*virtualSceneRenderScale=*/ 1.0f,
+        /*cubemapNumberOfImportanceSamples=*/ 32,
+        /*maxPointCloudPoints=*/ Integer.MAX_VALUE,
+        /*occlusionAllowed=*/ true),
+  };
+
+  // ARCore delivers camera frames at 30 frames per second.
+  private static final long TARGET_FRAME_NANOS = 1_000_000_000L / 30;
+  private static final int QUALITY_FRAMES_PER_WINDOW = 30;
+  // The fraction of the frame time that must be left unused to step the quality up.
+  private static final float QUALITY_STEP_UP_HEADROOM = 0.3f;
+  private static final int GPU_TIMER_QUERIES = 3;
 
   // Rendering. The Renderers are created here, and initialized when the GL surface is created.
   private GLSurfaceView surfaceView;
@@ -124,10 +215,13 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
   private final TrackingStateHelper trackingStateHelper = new TrackingStateHelper(this);
   private TapHelper tapHelper;
   private SampleRender render;
+  private AssetLoader assetLoader;
+  private ProgramBinaryCache programBinaryCache;
 
   private PlaneRenderer planeRenderer;
   private BackgroundRenderer backgroundRenderer;
   private Framebuffer virtualSceneFramebuffer;
+  private RenderQueue virtualSceneQueue;
   private boolean hasSetTextureNames = false;
 
   private final DepthSettings depthSettings = new DepthSettings();
@@ -144,6 +238,9 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
   // place an object on the ground or floor in front of them.
   private static final float APPROXIMATE_DISTANCE_METERS = 2.0f;
 
+  // The maximum number of placed objects.
+  private static final int MAX_ANCHORS = 20;
+
   // Point Cloud
   private VertexBuffer pointCloudVertexBuffer;
   private Mesh pointCloudMesh;
@@ -155,18 +252,35 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
   // Virtual object (ARCore pawn)
   private Mesh virtualObjectMesh;
   private Shader virtualObjectShader;
+  // Model matrices of the anchored virtual objects, all drawn with a single instanced draw.
+  private VertexBuffer virtualObjectInstanceBuffer;
+  private final FloatBuffer virtualObjectModelMatrices =
+      ByteBuffer.allocateDirect(MAX_ANCHORS * 16 * Float.BYTES)
+          .order(ByteOrder.nativeOrder())
+          .asFloatBuffer();
   private final ArrayList<Anchor> anchors = new ArrayList<>();
 
+  // Per-frame camera and lighting parameters shared by the point cloud and virtual object shaders.
+  // The layout must match the FrameUniforms block declared in the shader code.
+  private UniformBlock frameUniforms;
+
   // Environmental HDR
   private Texture dfgTexture;
   private SpecularCubemapFilter cubemapFilter;
+  // The cubemap filters of every quality level, keyed by their number of importance samples, which
+  // are loaded in the background and kept so that quality changes only swap them.
+  private final SparseArray<SpecularCubemapFilter> cubemapFilters = new SparseArray<>();
+
+  // Quality
+  private QualityGovernor qualityGovernor;
+  private GpuTimer gpuTimer;
+  private QualityLevel quality = QUALITY_LEVELS[QUALITY_LEVELS.length - 1];
 
   // Temporary matrix allocated here to reduce number of allocations for each frame.
   private final float[] modelMatrix = new float[16];
   private final float[] viewMatrix = new float[16];
   private final float[] projectionMatrix = new float[16];
-  private final float[] modelViewMatrix = new float[16]; // view x model
-  private final float[] modelViewProjectionMatrix = new float[16]; // projection x view x model
+  private final float[] viewProjectionMatrix = new float[16]; // projection x view
   private final float[] sphericalHarmonicsCoefficients = new float[9 * 3];
   private final float[] viewInverseMatrix = new float[16];
   private final float[] worldLightDirection = {0.0f, 0.0f, 0.0f, 0.0f};
@@ -185,6 +299,8 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
 
     // Set up renderer.
     render = new SampleRender(surfaceView, this, getAssets());
+    // Log where leaked staging buffers were acquired during development.
+    render.getStagingBufferPool().setRecordAcquisitionSites(BuildConfig.DEBUG);
 
     installRequested = false;
 
@@ -217,6 +333,10 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
 
   @Override
   protected void onDestroy() {
+    if (assetLoader != null) {
+      assetLoader.close();
+      assetLoader = null;
+    }
     if (session != null) {
       // Explicitly close ARCore Session to release native resources.
       // Review the API reference for important considerations before calling close() in apps with
@@ -335,99 +455,216 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
 
   @Override
   public void onSurfaceCreated(SampleRender render) {
+    // Resource creation is where GL errors are most likely, so every call is checked until all
+    // assets have been loaded.
+    GLError.setCheckPolicy(GLError.CheckPolicy.FULL);
+    // The surface is created again whenever the GL context is lost. The loads and timer queries of
+    // the previous context are released first; its GL objects are gone with it, and the names they
+    // delete are not in use in the new context yet.
+    if (assetLoader != null) {
+      assetLoader.close();
+      assetLoader = null;
+    }
+    if (gpuTimer != null) {
+      gpuTimer.close();
+      gpuTimer = null;
+    }
     // Prepare the rendering objects. This involves reading shaders and 3D model files, so may throw
     // an IOException.
+    // Linked shader programs are cached across runs; the code cache is cleared on app updates.
+    if (programBinaryCache == null) {
+      programBinaryCache = new ProgramBinaryCache(new File(getCodeCacheDir(), "programs"));
+    }
+    render.setProgramBinaryCache(programBinaryCache);
     try {
       planeRenderer = new PlaneRenderer(render);
+      // Draw all planes with one draw call, which matters in large rooms with many planes.
+      planeRenderer.setBatched(true);
+      planeRenderer.setSimplificationTolerance(PLANE_SIMPLIFICATION_TOLERANCE_PIXELS);
       backgroundRenderer = new BackgroundRenderer(render);
-      virtualSceneFramebuffer = new Framebuffer(render, /*width=*/ 1, /*height=*/ 1);
-
-      cubemapFilter =
-          new SpecularCubemapFilter(
-              render, CUBEMAP_RESOLUTION, CUBEMAP_NUMBER_OF_IMPORTANCE_SAMPLES);
-      // Load DFG lookup table for environmental lighting
-      dfgTexture =
-          new Texture(
+      virtualSceneFramebuffer =
+          new Framebuffer(render, /*width=*/ 1, /*height=*/ 1, VIRTUAL_SCENE_DEPTH_FORMAT);
+      virtualSceneFramebuffer.setRenderScale(quality.virtualSceneRenderScale);
+      virtualSceneQueue = new RenderQueue(render);
+      frameUniforms =
+          new UniformBlock(
               render,
-              Texture.Target.TEXTURE_2D,
-              Texture.WrapMode.CLAMP_TO_EDGE,
-              /*useMipmaps=*/ false);
-      // The dfg.raw file is a raw half-float texture with two channels.
-      final int dfgResolution = 64;
-      final int dfgChannels = 2;
-      final int halfFloatSize = 2;
-
-      ByteBuffer buffer =
-          ByteBuffer.allocateDirect(dfgResolution * dfgResolution * dfgChannels * halfFloatSize);
-      try (InputStream is = getAssets().open("models/dfg.raw")) {
-        is.read(buffer.array());
+              "FrameUniforms",
+              new UniformBlock.Layout()
+                  .add("u_View", UniformBlock.MemberType.MAT4)
+                  .add("u_Projection", UniformBlock.MemberType.MAT4)
+                  .add("u_ViewProjection", UniformBlock.MemberType.MAT4)
+                  .add("u_ViewInverse", UniformBlock.MemberType.MAT4)
+                  .add("u_ViewLightDirection", UniformBlock.MemberType.VEC4)
+                  .add("u_LightIntensity", UniformBlock.MemberType.VEC3)
+                  .add("u_LightEstimateIsValid", UniformBlock.MemberType.BOOL)
+                  .add("u_SphericalHarmonicsCoefficients", UniformBlock.MemberType.VEC3, 9));
+
+      cubemapFilter = createCubemapFilter(render, quality.cubemapNumberOfImportanceSamples);
+      gpuTimer = new GpuTimer(render, GPU_TIMER_QUERIES);
+      qualityGovernor =
+          new QualityGovernor(
+              QUALITY_LEVELS.length,
+              TARGET_FRAME_NANOS,
+              QUALITY_FRAMES_PER_WINDOW,
+              new QualityGovernor.HeadroomPolicy(QUALITY_STEP_UP_HEADROOM));
+      // The remaining assets are loaded in the background, so that the camera feed is drawn while
+      // they load. Each is drawn once all of its resources are ready.
+      assetLoader = new AssetLoader(render, ASSET_LOADER_THREADS, ASSET_UPLOAD_BUDGET_NANOS);
+      // The filter of the current quality level was created above. Those of the other levels are
+      // created ahead of time, so that changing the quality level does not stall a frame.
+      cubemapFilters.clear();
+      cubemapFilters.put(quality.cubemapNumberOfImportanceSamples, cubemapFilter);
+      HashSet<Integer> cubemapFilterLoads = new HashSet<>();
+      for (QualityLevel level : QUALITY_LEVELS) {
+        int numberOfImportanceSamples = level.cubemapNumberOfImportanceSamples;
+        if (numberOfImportanceSamples == quality.cubemapNumberOfImportanceSamples
+            || !cubemapFilterLoads.add(numberOfImportanceSamples)) {
+          continue;
+        }
+        SpecularCubemapFilter.load(
+                assetLoader,
+                render,
+                CUBEMAP_RESOLUTION,
+                numberOfImportanceSamples,
+                getImportanceSampleCacheDirectory())
+            .thenAccept(
+                filter -> {
+                  cubemapFilters.put(numberOfImportanceSamples, configureCubemapFilter(filter));
+                  updateCubemapFilter();
+                })
+            .exceptionally(this::onAssetLoadFailed);
       }
-      // SampleRender abstraction leaks here.
-      GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, dfgTexture.getTextureId());
-      GLError.maybeThrowGLException("Failed to bind DFG texture", "glBindTexture");
-      GLES30.glTexImage2D(
-          GLES30.GL_TEXTURE_2D,
-          /*level=*/ 0,
-          GLES30.GL_RG16F,
-          /*width=*/ dfgResolution,
-          /*height=*/ dfgResolution,
-          /*border=*/ 0,
-          GLES30.GL_RG,
-          GLES30.GL_HALF_FLOAT,
-          buffer);
-      GLError.maybeThrowGLException("Failed to populate DFG texture", "glTexImage2D");
+      // Compile every background shader variant up front, so that toggling depth visualization or
+      // occlusion in the settings does not stall a frame.
+      CompletableFuture<Void> backgroundShadersFuture =
+          backgroundRenderer.prewarmShaders(assetLoader).exceptionally(this::onAssetLoadFailed);
+
+      // Generate the DFG lookup table for environmental lighting. It is computed on the first run,
+      // and memory-mapped from the code cache afterwards.
+      DfgLutGenerator dfgLutGenerator =
+          new DfgLutGenerator(DFG_RESOLUTION, DFG_NUMBER_OF_IMPORTANCE_SAMPLES);
+      CompletableFuture<Texture> dfgTextureFuture =
+          assetLoader.load(
+              () ->
+                  dfgLutGenerator.load(
+                      new File(getCodeCacheDir(), "dfg"), ForkJoinPool.commonPool()),
+              data -> dfgLutGenerator.createTexture(render, data));
 
       // Point cloud
-      pointCloudShader =
-          Shader.createFromAssets(
-                  render, "shaders/point_cloud.vert", "shaders/point_cloud.frag", /*defines=*/ null)
-              .setVec4(
-                  "u_Color", new float[] {31.0f / 255.0f, 188.0f / 255.0f, 210.0f / 255.0f, 1.0f})
-              .setFloat("u_PointSize", 5.0f);
+      CompletableFuture<Void> pointCloudShaderFuture =
+          assetLoader
+              .loadShader("shaders/point_cloud.vert", "shaders/point_cloud.frag", /*defines=*/ null)
+              .thenAccept(
+                  shader ->
+                      pointCloudShader =
+                          shader
+                              .setUniformBlock(frameUniforms)
+                              .setVec4(
+                                  "u_Color",
+                                  new float[] {
+                                    31.0f / 255.0f, 188.0f / 255.0f, 210.0f / 255.0f, 1.0f
+                                  })
+                              .setFloat("u_PointSize", 5.0f))
+              .exceptionally(this::onAssetLoadFailed);
       // four entries per vertex: X, Y, Z, confidence
+      // The point cloud changes almost every frame, so stream it through several regions rather
+      // than overwriting data the GPU may still be reading.
       pointCloudVertexBuffer =
-          new VertexBuffer(render, /*numberOfEntriesPerVertex=*/ 4, /*entries=*/ null);
+          VertexBuffer.createStreaming(
+              render, /*numberOfEntriesPerVertex=*/ 4, /*numberOfRegions=*/ 3);
       final VertexBuffer[] pointCloudVertexBuffers = {pointCloudVertexBuffer};
       pointCloudMesh =
           new Mesh(
               render, Mesh.PrimitiveMode.POINTS, /*indexBuffer=*/ null, pointCloudVertexBuffers);
 
       // Virtual object to render (ARCore pawn)
-      Texture virtualObjectAlbedoTexture =
-          Texture.createFromAsset(
-              render,
+      // The textures are compressed at build time when an encoder is available. ASTC is preferred,
+      // and ETC2 is supported by every OpenGL ES 3.0 device.
+      CompletableFuture<Texture> virtualObjectAlbedoTexture =
+          assetLoader.loadCompressedTexture(
+              new String[] {"models/pawn_albedo_astc.ktx", "models/pawn_albedo_etc2.ktx"},
               "models/pawn_albedo.png",
               Texture.WrapMode.CLAMP_TO_EDGE,
               Texture.ColorFormat.SRGB);
-      Texture virtualObjectPbrTexture =
-          Texture.createFromAsset(
-              render,
+      CompletableFuture<Texture> virtualObjectPbrTexture =
+          assetLoader.loadCompressedTexture(
+              new String[] {
+                "models/pawn_roughness_metallic_ao_astc.ktx",
+                "models/pawn_roughness_metallic_ao_etc2.ktx"
+              },
               "models/pawn_roughness_metallic_ao.png",
               Texture.WrapMode.CLAMP_TO_EDGE,
               Texture.ColorFormat.LINEAR);
-      virtualObjectMesh = Mesh.createFromAsset(render, "models/pawn.obj");
-      virtualObjectShader =
-          Shader.createFromAssets(
-                  render,
-                  "shaders/environmental_hdr.vert",
-                  "shaders/environmental_hdr.frag",
-                  /*defines=*/ new HashMap<String, String>() {
-                    {
-                      put(
-                          "NUMBER_OF_MIPMAP_LEVELS",
-                          Integer.toString(cubemapFilter.getNumberOfMipmapLevels()));
-                    }
+      virtualObjectInstanceBuffer =
+          new VertexBuffer(
+              render, /*numberOfEntriesPerVertex=*/ 16, /*entries=*/ null, /*divisor=*/ 1);
+      CompletableFuture<Mesh> virtualObjectMeshFuture =
+          assetLoader.loadBinaryMesh(
+              "models/pawn.mesh", new VertexBuffer[] {virtualObjectInstanceBuffer});
+      CompletableFuture<Shader> virtualObjectShaderFuture =
+          assetLoader.loadShader(
+              "shaders/environmental_hdr.vert",
+              "shaders/environmental_hdr.frag",
+              /*defines=*/ new HashMap<String, String>() {
+                {
+                  put(
+                      "NUMBER_OF_MIPMAP_LEVELS",
+                      Integer.toString(cubemapFilter.getNumberOfMipmapLevels()));
+                }
+              });
+      CompletableFuture<Void> virtualObjectFuture =
+          CompletableFuture.allOf(
+                  dfgTextureFuture,
+                  virtualObjectAlbedoTexture,
+                  virtualObjectPbrTexture,
+                  virtualObjectMeshFuture,
+                  virtualObjectShaderFuture)
+              .thenRun(
+                  () -> {
+                    dfgTexture = dfgTextureFuture.join();
+                    virtualObjectShader =
+                        virtualObjectShaderFuture
+                            .join()
+                            .setTexture("u_AlbedoTexture", virtualObjectAlbedoTexture.join())
+                            .setTexture(
+                                "u_RoughnessMetallicAmbientOcclusionTexture",
+                                virtualObjectPbrTexture.join())
+                            .setTexture("u_Cubemap", cubemapFilter.getFilteredCubemapTexture())
+                            .setTexture("u_DfgTexture", dfgTexture)
+                            .setUniformBlock(frameUniforms);
+                    virtualObjectMesh = virtualObjectMeshFuture.join();
+                    Log.i(
+                        TAG,
+                        String.format(
+                            "Program binary cache: %d hits, %d misses, %.1f ms saved",
+                            programBinaryCache.getHitCount(),
+                            programBinaryCache.getMissCount(),
+                            programBinaryCache.getSavedNanos() / 1e6));
                   })
-              .setTexture("u_AlbedoTexture", virtualObjectAlbedoTexture)
-              .setTexture("u_RoughnessMetallicAmbientOcclusionTexture", virtualObjectPbrTexture)
-              .setTexture("u_Cubemap", cubemapFilter.getFilteredCubemapTexture())
-              .setTexture("u_DfgTexture", dfgTexture);
+              .exceptionally(this::onAssetLoadFailed);
+
+      // Futures complete on the render thread, so this takes effect from the next GL call on.
+      CompletableFuture.allOf(backgroundShadersFuture, pointCloudShaderFuture, virtualObjectFuture)
+          .thenRun(() -> GLError.setCheckPolicy(STEADY_STATE_GL_ERROR_CHECK_POLICY));
     } catch (IOException e) {
       Log.e(TAG, "Failed to read a required asset file", e);
       messageSnackbarHelper.showError(this, "Failed to read a required asset file: " + e);
     }
   }
 
+  private Void onAssetLoadFailed(Throwable t) {
+    // Dependent futures wrap the exception of the load they depend on.
+    Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    if (cause instanceof CancellationException) {
+      // Loads are cancelled when the asset loader is closed, which is not a failure.
+      return null;
+    }
+    Log.e(TAG, "Failed to read a required asset file", t);
+    messageSnackbarHelper.showError(this, "Failed to read a required asset file: " + t);
+    return null;
+  }
+
   @Override
   public void onSurfaceChanged(SampleRender render, int width, int height) {
     displayRotationHelper.onSurfaceChanged(width, height);
@@ -467,12 +704,15 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
       return;
     }
     Camera camera = frame.getCamera();
+    // session.update() waits for the camera, so the frame time is measured from here.
+    long frameStartNanos = System.nanoTime();
 
     // Update BackgroundRenderer state to match the depth settings.
+    boolean useOcclusion = depthSettings.useDepthForOcclusion() && quality.occlusionAllowed;
     try {
       backgroundRenderer.setUseDepthVisualization(
           render, depthSettings.depthColorVisualizationEnabled());
-      backgroundRenderer.setUseOcclusion(render, depthSettings.useDepthForOcclusion());
+      backgroundRenderer.setUseOcclusion(render, useOcclusion);
     } catch (IOException e) {
       Log.e(TAG, "Failed to read a required asset file", e);
       messageSnackbarHelper.showError(this, "Failed to read a required asset file: " + e);
@@ -483,8 +723,7 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
     backgroundRenderer.updateDisplayGeometry(frame);
 
     if (camera.getTrackingState() == TrackingState.TRACKING
-        && (depthSettings.useDepthForOcclusion()
-            || depthSettings.depthColorVisualizationEnabled())) {
+        && (useOcclusion || depthSettings.depthColorVisualizationEnabled())) {
       try (Image depthImage = frame.acquireDepthImage()) {
         backgroundRenderer.updateCameraDepthTexture(depthImage);
       } catch (NotYetAvailableException e) {
@@ -523,6 +762,7 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
 
     // -- Draw background
 
+    gpuTimer.begin();
     if (frame.getTimestamp() != 0) {
       // Suppress rendering if the camera did not produce the first frame yet. This is to avoid
       // drawing possible leftover data from previous sessions if the texture is reused.
@@ -531,6 +771,7 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
 
     // If not tracking, don't draw 3D objects.
     if (camera.getTrackingState() == TrackingState.PAUSED) {
+      gpuTimer.end();
       return;
     }
 
@@ -541,17 +782,28 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
 
     // Get camera matrix and draw.
     camera.getViewMatrix(viewMatrix, 0);
+    Matrix.multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+
+    // Update the camera and lighting parameters shared by all shaders once for the frame.
+    frameUniforms
+        .setMat4("u_View", viewMatrix)
+        .setMat4("u_Projection", projectionMatrix)
+        .setMat4("u_ViewProjection", viewProjectionMatrix);
+    updateLightEstimation(frame.getLightEstimate(), viewMatrix);
 
     // Visualize tracked points.
     // Use try-with-resources to automatically release the point cloud.
     try (PointCloud pointCloud = frame.acquirePointCloud()) {
       if (pointCloud.getTimestamp() > lastPointCloudTimestamp) {
-        pointCloudVertexBuffer.set(pointCloud.getPoints());
+        FloatBuffer points = pointCloud.getPoints();
+        // Four entries per point.
+        points.limit((int) Math.min(points.limit(), 4L * quality.maxPointCloudPoints));
+        pointCloudVertexBuffer.set(points);
         lastPointCloudTimestamp = pointCloud.getTimestamp();
       }
-      Matrix.multiplyMM(modelViewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
-      pointCloudShader.setMat4("u_ModelViewProjection", modelViewProjectionMatrix);
-      render.draw(pointCloudMesh, pointCloudShader);
+      if (pointCloudShader != null) {
+        render.draw(pointCloudMesh, pointCloudShader);
+      }
     }
 
     // Visualize planes.
@@ -563,11 +815,9 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
 
     // -- Draw occluded virtual objects
 
-    // Update lighting parameters in the shader
-    updateLightEstimation(frame.getLightEstimate(), viewMatrix);
-
     // Visualize anchors created by touch.
     render.clear(virtualSceneFramebuffer, 0f, 0f, 0f, 0f);
+    virtualObjectModelMatrices.clear();
     for (Anchor anchor : anchors) {
       if (anchor.getTrackingState() != TrackingState.TRACKING) {
         continue;
@@ -576,19 +826,70 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
       // Get the current pose of an Anchor in world space. The Anchor pose is updated
       // during calls to session.update() as ARCore refines its estimate of the world.
       anchor.getPose().toMatrix(modelMatrix, 0);
-
-      // Calculate model/view/projection matrices
-      Matrix.multiplyMM(modelViewMatrix, 0, viewMatrix, 0, modelMatrix, 0);
-      Matrix.multiplyMM(modelViewProjectionMatrix, 0, projectionMatrix, 0, modelViewMatrix, 0);
-
-      // Update shader properties and draw
-      virtualObjectShader.setMat4("u_ModelView", modelViewMatrix);
-      virtualObjectShader.setMat4("u_ModelViewProjection", modelViewProjectionMatrix);
-      render.draw(virtualObjectMesh, virtualObjectShader, virtualSceneFramebuffer);
+      virtualObjectModelMatrices.put(modelMatrix);
+    }
+    int virtualObjectCount = virtualObjectModelMatrices.position() / 16;
+    if (virtualObjectCount > 0 && virtualObjectMesh != null) {
+      // The view and projection matrices are applied in the shader, so all tracked anchors are
+      // drawn with one instanced draw call.
+      virtualObjectModelMatrices.flip();
+      virtualObjectInstanceBuffer.set(virtualObjectModelMatrices);
+      virtualSceneQueue.drawInstanced(
+          virtualObjectMesh, virtualObjectShader, virtualSceneFramebuffer, virtualObjectCount);
     }
+    virtualSceneQueue.submit();
 
     // Compose the virtual scene with the background.
     backgroundRenderer.drawVirtualScene(render, virtualSceneFramebuffer, Z_NEAR, Z_FAR);
+    gpuTimer.end();
+
+    // GPU times arrive a few frames late, which the governor's hysteresis absorbs.
+    if (qualityGovernor.recordFrame(
+        System.nanoTime() - frameStartNanos, gpuTimer.getElapsedNanos())) {
+      setQualityLevel(QUALITY_LEVELS[qualityGovernor.getLevel()]);
+    }
+  }
+
+  private void setQualityLevel(QualityLevel newQuality) {
+    Log.i(TAG, "Changing quality level to " + qualityGovernor.getLevel());
+    virtualSceneFramebuffer.setRenderScale(newQuality.virtualSceneRenderScale);
+    quality = newQuality;
+    updateCubemapFilter();
+  }
+
+  // Switches to the cubemap filter of the current quality level. If it is still loading, the
+  // current filter is kept until the load calls this again.
+  private void updateCubemapFilter() {
+    SpecularCubemapFilter newCubemapFilter =
+        cubemapFilters.get(quality.cubemapNumberOfImportanceSamples);
+    if (newCubemapFilter == null || newCubemapFilter == cubemapFilter) {
+      return;
+    }
+    cubemapFilter = newCubemapFilter;
+    if (virtualObjectShader != null) {
+      virtualObjectShader.setTexture("u_Cubemap", cubemapFilter.getFilteredCubemapTexture());
+    }
+  }
+
+  private SpecularCubemapFilter createCubemapFilter(
+      SampleRender render, int numberOfImportanceSamples) throws IOException {
+    return configureCubemapFilter(
+        new SpecularCubemapFilter(
+            render,
+            CUBEMAP_RESOLUTION,
+            numberOfImportanceSamples,
+            getImportanceSampleCacheDirectory()));
+  }
+
+  private static SpecularCubemapFilter configureCubemapFilter(SpecularCubemapFilter filter) {
+    filter.setMaxMipmapLevelsPerUpdate(CUBEMAP_MAX_MIPMAP_LEVELS_PER_FRAME);
+    filter.setTemporalBlendFactor(CUBEMAP_TEMPORAL_BLEND_FACTOR);
+    filter.setChangeThreshold(CUBEMAP_CHANGE_THRESHOLD);
+    return filter;
+  }
+
+  private File getImportanceSampleCacheDirectory() {
+    return new File(getCodeCacheDir(), "importance_samples");
   }
 
   // Handle only one tap per frame, as taps are usually low frequency compared to frame rate.
@@ -615,7 +916,7 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
             || (trackable instanceof InstantPlacementPoint)) {
           // Cap the number of objects created. This avoids overloading both the
           // rendering system and ARCore.
-          if (anchors.size() >= 20) {
+          if (anchors.size() >= MAX_ANCHORS) {
             anchors.get(0).detach();
             anchors.remove(0);
           }
@@ -744,13 +1045,13 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
   /** Update state based on the current frame's light estimation. */
   private void updateLightEstimation(LightEstimate lightEstimate, float[] viewMatrix) {
     if (lightEstimate.getState() != LightEstimate.State.VALID) {
-      virtualObjectShader.setBool("u_LightEstimateIsValid", false);
+      frameUniforms.setBool("u_LightEstimateIsValid", false);
       return;
     }
-    virtualObjectShader.setBool("u_LightEstimateIsValid", true);
+    frameUniforms.setBool("u_LightEstimateIsValid", true);
 
     Matrix.invertM(viewInverseMatrix, 0, viewMatrix, 0);
-    virtualObjectShader.setMat4("u_ViewInverse", viewInverseMatrix);
+    frameUniforms.setMat4("u_ViewInverse", viewInverseMatrix);
 
     updateMainLight(
         lightEstimate.getEnvironmentalHdrMainLightDirection(),
@@ -767,8 +1068,8 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
     worldLightDirection[1] = direction[1];
     worldLightDirection[2] = direction[2];
     Matrix.multiplyMV(viewLightDirection, 0, viewMatrix, 0, worldLightDirection, 0);
-    virtualObjectShader.setVec4("u_ViewLightDirection", viewLightDirection);
-    virtualObjectShader.setVec3("u_LightIntensity", intensity);
+    frameUniforms.setVec4("u_ViewLightDirection", viewLightDirection);
+    frameUniforms.setVec3("u_LightIntensity", intensity);
   }
 
   private void updateSphericalHarmonicsCoefficients(float[] coefficients) {
@@ -795,8 +1096,7 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
     for (int i = 0; i < 9 * 3; ++i) {
       sphericalHarmonicsCoefficients[i] = coefficients[i] * sphericalHarmonicFactors[i / 3];
     }
-    virtualObjectShader.setVec3Array(
-        "u_SphericalHarmonicsCoefficients", sphericalHarmonicsCoefficients);
+    frameUniforms.setVec3("u_SphericalHarmonicsCoefficients", sphericalHarmonicsCoefficients);
   }
 
   /** Configures the session with feature settings. */
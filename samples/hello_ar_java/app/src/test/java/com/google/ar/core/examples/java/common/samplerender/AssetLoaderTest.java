@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link AssetLoader}, whose uploads are run by the test instead of a render thread. The
+ * decoded data are buffers from the staging buffer pool, which must be released whether or not
+ * they are uploaded.
+ */
+@RunWith(JUnit4.class)
+public class AssetLoaderTest {
+  private static final long TIMEOUT_SECONDS = 5;
+  private static final int BUFFER_SIZE = 1024;
+
+  private SampleRender render;
+  private StagingBufferPool stagingBufferPool;
+  private AssetLoader assetLoader;
+
+  private final AtomicInteger uploadCount = new AtomicInteger();
+  private final CountDownLatch decodeStarted = new CountDownLatch(1);
+  private final AtomicBoolean decodeReleased = new AtomicBoolean();
+  private final CountDownLatch discarded = new CountDownLatch(1);
+
+  @Before
+  public void setUp() {
+    render = new SampleRender(/*assetManager=*/ null);
+    stagingBufferPool = render.getStagingBufferPool();
+    assetLoader = new AssetLoader(render, /*numberOfThreads=*/ 1, /*uploadBudgetNanos=*/ 0);
+  }
+
+  @After
+  public void tearDown() {
+    assetLoader.close();
+  }
+
+  @Test
+  public void load_uploadsDecodedData() throws Exception {
+    decodeReleased.set(true);
+    CompletableFuture<Integer> future = load();
+
+    while (!future.isDone()) {
+      assetLoader.runUploads();
+    }
+
+    assertEquals(BUFFER_SIZE, (int) future.get());
+    assertEquals(1, uploadCount.get());
+    assertEquals(0, assetLoader.getPendingCount());
+    assertEquals(0, stagingBufferPool.getOutstandingCount());
+  }
+
+  @Test
+  public void load_cancelledAfterDecodeStarted_releasesDataWithoutUploading() throws Exception {
+    CompletableFuture<Integer> future = load();
+    assertTrue(decodeStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+    future.cancel(/*mayInterruptIfRunning=*/ false);
+    decodeReleased.set(true);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+    while (discarded.getCount() > 0 && System.nanoTime() < deadline) {
+      assetLoader.runUploads();
+    }
+
+    assertEquals(0, discarded.getCount());
+    assertEquals(0, uploadCount.get());
+    assertEquals(0, assetLoader.getPendingCount());
+    assertEquals(0, stagingBufferPool.getOutstandingCount());
+  }
+
+  @Test
+  public void close_whileDecoding_releasesDataWithoutUploading() throws Exception {
+    CompletableFuture<Integer> future = load();
+    assertTrue(decodeStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+    assetLoader.close();
+    decodeReleased.set(true);
+
+    assertTrue(discarded.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assetLoader.runUploads();
+    assertTrue(future.isCancelled());
+    assertEquals(0, uploadCount.get());
+    assertEquals(0, stagingBufferPool.getOutstandingCount());
+  }
+
+  @Test
+  public void close_withQueuedUpload_releasesData() throws Exception {
+    decodeReleased.set(true);
+    CompletableFuture<Integer> future = load();
+    assertTrue(decodeStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    // Wait for the decode to finish, without running its upload.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+    while (stagingBufferPool.getOutstandingCount() == 0 && System.nanoTime() < deadline) {
+      Thread.yield();
+    }
+
+    assetLoader.close();
+
+    assertTrue(discarded.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertTrue(future.isCancelled());
+    assertEquals(0, uploadCount.get());
+    assertEquals(0, stagingBufferPool.getOutstandingCount());
+  }
+
+  // Loads a buffer from the staging buffer pool. The decode waits for decodeReleased, without
+  // being interruptible, as a decode in progress when the loader is closed would.
+  private CompletableFuture<Integer> load() {
+    return assetLoader.load(
+        () -> {
+          decodeStarted.countDown();
+          while (!decodeReleased.get()) {
+            Thread.yield();
+          }
+          return stagingBufferPool.acquire(BUFFER_SIZE);
+        },
+        (ByteBuffer buffer) -> {
+          uploadCount.incrementAndGet();
+          int size = buffer.limit();
+          stagingBufferPool.release(buffer);
+          return size;
+        },
+        buffer -> {
+          stagingBufferPool.release(buffer);
+          discarded.countDown();
+        });
+  }
+}
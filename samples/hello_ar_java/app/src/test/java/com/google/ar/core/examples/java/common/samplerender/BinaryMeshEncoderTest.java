@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link BinaryMeshEncoder}, which read the encoded files back as {@link Mesh} does, and
+ * compare them with the compact layout of meshes created at runtime.
+ */
+@RunWith(JUnit4.class)
+public class BinaryMeshEncoderTest {
+  private static final float[] POSITIONS = {0, 0, 0, 1.0f, 0.5f, -0.25f, 100.0f, 2.0f, 3.0f};
+  private static final float[] NORMALS = {0.0f, 2.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f, 0.0f, -1.0f};
+  private static final int[] INDICES = {0, 1, 2};
+  private static final int TEXTURE_COORDINATES_OFFSET =
+      BinaryMeshEncoder.COMPACT_TEXTURE_COORDINATES_OFFSET;
+
+  @Test
+  public void encode_normalizedTextureCoordinates_matchesCompactLayout() throws IOException {
+    float[] textureCoordinates = {0.0f, 1.0f, 0.5f, 0.25f, 1.0f, 0.0f};
+
+    Mesh.BinaryMeshData data = parse(POSITIONS, textureCoordinates, NORMALS, INDICES);
+
+    assertLayoutEquals(
+        Mesh.createCompactLayout(/*textureCoordinatesNormalized=*/ true), data.layout);
+    // The second texture coordinate of the second vertex.
+    int offset = BinaryMeshEncoder.COMPACT_STRIDE + TEXTURE_COORDINATES_OFFSET + 2;
+    assertEquals(
+        VertexLayout.packNormalizedUnsignedShort(0.25f), data.vertexData.getShort(offset));
+  }
+
+  @Test
+  public void encode_textureCoordinatesOutsideUnitRange_storesHalfFloats() throws IOException {
+    float[] textureCoordinates = {0.0f, 1.0f, 2.5f, -0.5f, 1.0f, 0.0f};
+
+    Mesh.BinaryMeshData data = parse(POSITIONS, textureCoordinates, NORMALS, INDICES);
+
+    assertLayoutEquals(
+        Mesh.createCompactLayout(/*textureCoordinatesNormalized=*/ false), data.layout);
+    int offset = BinaryMeshEncoder.COMPACT_STRIDE + TEXTURE_COORDINATES_OFFSET;
+    assertEquals(2.5f, HalfFloat.toFloat(data.vertexData.getShort(offset)), 0.0f);
+    assertEquals(-0.5f, HalfFloat.toFloat(data.vertexData.getShort(offset + 2)), 0.0f);
+  }
+
+  @Test
+  public void encode_vertices_matchRuntimePacking() throws IOException {
+    float[] textureCoordinates = {0.0f, 1.0f, 0.5f, 0.25f, 1.0f, 0.0f};
+
+    Mesh.BinaryMeshData data = parse(POSITIONS, textureCoordinates, NORMALS, INDICES);
+
+    ByteBuffer expected =
+        ByteBuffer.allocate(3 * BinaryMeshEncoder.COMPACT_STRIDE).order(ByteOrder.LITTLE_ENDIAN);
+    BinaryMeshEncoder.putCompactVertices(
+        expected,
+        /*position=*/ 0,
+        FloatBuffer.wrap(POSITIONS),
+        FloatBuffer.wrap(textureCoordinates),
+        FloatBuffer.wrap(NORMALS),
+        /*textureCoordinatesNormalized=*/ true);
+    assertEquals(expected, data.vertexData);
+    // Positions are half floats padded with w = 1, and normals are renormalized.
+    assertEquals(
+        100.0f,
+        HalfFloat.toFloat(data.vertexData.getShort(2 * BinaryMeshEncoder.COMPACT_STRIDE)),
+        0.0f);
+    assertEquals(1.0f, HalfFloat.toFloat(data.vertexData.getShort(6)), 0.0f);
+    assertEquals(
+        VertexLayout.packNormalizedInt2101010Rev(0.0f, 1.0f, 0.0f, 0.0f),
+        data.vertexData.getInt(BinaryMeshEncoder.COMPACT_NORMAL_OFFSET));
+  }
+
+  @Test
+  public void encode_indices_useNarrowestType() throws IOException {
+    float[] textureCoordinates = new float[6];
+    assertEquals(1, parse(POSITIONS, textureCoordinates, NORMALS, INDICES).numberOfBytesPerIndex);
+
+    float[] positions = new float[3 * 300];
+    float[] normals = new float[3 * 300];
+    textureCoordinates = new float[2 * 300];
+    Mesh.BinaryMeshData data = parse(positions, textureCoordinates, normals, new int[] {0, 299, 1});
+
+    assertEquals(2, data.numberOfBytesPerIndex);
+    assertEquals(6, data.indexData.limit());
+    assertEquals(299, data.indexData.getShort(2));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void encode_missingNormals_throws() {
+    BinaryMeshEncoder.encode(POSITIONS, new float[6], new float[6], INDICES);
+  }
+
+  private static Mesh.BinaryMeshData parse(
+      float[] positions, float[] textureCoordinates, float[] normals, int[] indices)
+      throws IOException {
+    byte[] file = BinaryMeshEncoder.encode(positions, textureCoordinates, normals, indices);
+    Mesh.BinaryMeshData data = Mesh.parseBinaryMesh(ByteBuffer.wrap(file), "test.mesh");
+    // The data is uploaded as it is, but slices are big-endian until told otherwise.
+    data.vertexData.order(ByteOrder.LITTLE_ENDIAN);
+    data.indexData.order(ByteOrder.LITTLE_ENDIAN);
+    return data;
+  }
+
+  private static void assertLayoutEquals(VertexLayout expected, VertexLayout actual) {
+    assertEquals(BinaryMeshEncoder.COMPACT_STRIDE, expected.getStride());
+    assertEquals(BinaryMeshEncoder.COMPACT_TEXTURE_COORDINATES_OFFSET, expected.getOffset(1));
+    assertEquals(BinaryMeshEncoder.COMPACT_NORMAL_OFFSET, expected.getOffset(2));
+    assertEquals(expected.getStride(), actual.getStride());
+    assertEquals(expected.getNumberOfAttributes(), actual.getNumberOfAttributes());
+    for (int i = 0; i < expected.getNumberOfAttributes(); ++i) {
+      assertEquals(expected.getGlType(i), actual.getGlType(i));
+      assertEquals(expected.getNumberOfComponents(i), actual.getNumberOfComponents(i));
+      assertEquals(expected.getOffset(i), actual.getOffset(i));
+      assertEquals(expected.isNormalized(i), actual.isNormalized(i));
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the bulk conversions of {@link HalfFloat} on one megapixel of RGBA half float texels,
+ * so that each score is the time per megapixel.
+ *
+ * <p>Run with {@code ./gradlew jmh -Pjmh=HalfFloat}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HalfFloatBenchmark {
+  private static final int TEXELS = 1024 * 1024;
+  private static final int COMPONENTS = TEXELS * 4;
+  // Typical of HDR cubemaps: mostly below one, with a few bright texels.
+  private static final float MAX_VALUE = 16.0f;
+
+  private ShortBuffer halves;
+  private FloatBuffer floats;
+  private ShortBuffer halfDestination;
+  private IntBuffer rgb9e5;
+  private ByteBuffer rgbe;
+  private final HalfFloat.LuminanceStatistics statistics = new HalfFloat.LuminanceStatistics();
+
+  @Setup
+  public void setUp() {
+    halves = allocate(COMPONENTS * 2).asShortBuffer();
+    floats = allocate(COMPONENTS * 4).asFloatBuffer();
+    halfDestination = allocate(COMPONENTS * 2).asShortBuffer();
+    rgb9e5 = allocate(TEXELS * 4).asIntBuffer();
+    rgbe = allocate(TEXELS * 4);
+    Random random = new Random(/*seed=*/ 1);
+    for (int i = 0; i < COMPONENTS; ++i) {
+      float value = MAX_VALUE * random.nextFloat() * random.nextFloat() * random.nextFloat();
+      halves.put(i, HalfFloat.toHalf(value));
+      floats.put(i, value);
+    }
+  }
+
+  @Benchmark
+  public FloatBuffer toFloat() {
+    halves.clear();
+    floats.clear();
+    HalfFloat.toFloat(halves, floats);
+    return floats;
+  }
+
+  @Benchmark
+  public ShortBuffer toHalf() {
+    floats.clear();
+    halfDestination.clear();
+    HalfFloat.toHalf(floats, halfDestination);
+    return halfDestination;
+  }
+
+  @Benchmark
+  public IntBuffer toRgb9e5() {
+    halves.clear();
+    rgb9e5.clear();
+    HalfFloat.toRgb9e5(halves, rgb9e5);
+    return rgb9e5;
+  }
+
+  @Benchmark
+  public ByteBuffer toRgbe() {
+    halves.clear();
+    rgbe.clear();
+    HalfFloat.toRgbe(halves, rgbe);
+    return rgbe;
+  }
+
+  @Benchmark
+  public HalfFloat.LuminanceStatistics computeLuminanceStatistics() {
+    halves.clear();
+    HalfFloat.computeLuminanceStatistics(halves, statistics);
+    return statistics;
+  }
+
+  private static ByteBuffer allocate(int size) {
+    return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link HalfFloat}, against a reference which decodes half floats arithmetically and
+ * rounds by comparing distances.
+ */
+@RunWith(JUnit4.class)
+public class HalfFloatTest {
+  private static final int POSITIVE_INFINITY = 0x7c00;
+  private static final int SIGN = 0x8000;
+  private static final int RANDOM_FLOATS = 1_000_000;
+
+  @Test
+  public void toFloat_everyHalf_matchesReference() {
+    for (int half = 0; half < 0x10000; ++half) {
+      float value = HalfFloat.toFloat((short) half);
+      if (isNaN(half)) {
+        assertTrue(hex(half), Float.isNaN(value));
+      } else {
+        assertEquals(
+            hex(half),
+            Float.floatToRawIntBits(referenceToFloat(half)),
+            Float.floatToRawIntBits(value));
+      }
+    }
+  }
+
+  @Test
+  public void toHalf_everyHalfAsFloat_roundTrips() {
+    for (int half = 0; half < 0x10000; ++half) {
+      int result = HalfFloat.toHalf(HalfFloat.toFloat((short) half)) & 0xffff;
+      if (isNaN(half)) {
+        assertTrue(hex(half), isNaN(result));
+        assertEquals(hex(half), half & SIGN, result & SIGN);
+      } else {
+        assertEquals(hex(half), half, result);
+      }
+    }
+  }
+
+  @Test
+  public void toHalf_halfwayBetweenHalves_roundsToNearestEven() {
+    // Every value halfway between two adjacent halves, and the floats right next to it, including
+    // the values between the largest finite half and infinity.
+    for (int half = 0; half < POSITIVE_INFINITY; ++half) {
+      double halfway = (referenceToValue(half) + referenceToValue(half + 1)) / 2.0;
+      int bits = Float.floatToRawIntBits((float) halfway);
+      for (int neighbor = bits - 1; neighbor <= bits + 1; ++neighbor) {
+        assertRoundsLikeReference(Float.intBitsToFloat(neighbor));
+        assertRoundsLikeReference(-Float.intBitsToFloat(neighbor));
+      }
+    }
+  }
+
+  @Test
+  public void toHalf_randomFloats_roundsLikeReference() {
+    Random random = new Random(/*seed=*/ 1);
+    for (int i = 0; i < RANDOM_FLOATS; ++i) {
+      float value = Float.intBitsToFloat(random.nextInt());
+      if (!Float.isNaN(value)) {
+        assertRoundsLikeReference(value);
+      }
+    }
+  }
+
+  @Test
+  public void toHalf_specialValues() {
+    assertEquals(0x0000, HalfFloat.toHalf(0.0f) & 0xffff);
+    assertEquals(0x8000, HalfFloat.toHalf(-0.0f) & 0xffff);
+    assertEquals(0x7c00, HalfFloat.toHalf(Float.POSITIVE_INFINITY) & 0xffff);
+    assertEquals(0xfc00, HalfFloat.toHalf(Float.NEGATIVE_INFINITY) & 0xffff);
+    assertEquals(0x7bff, HalfFloat.toHalf(65504.0f) & 0xffff);
+    assertEquals(0x7c00, HalfFloat.toHalf(65520.0f) & 0xffff);
+    assertEquals(0x0001, HalfFloat.toHalf(0x1p-24f) & 0xffff);
+    assertEquals(0x0000, HalfFloat.toHalf(0x1p-25f) & 0xffff);
+    assertEquals(0x0000, HalfFloat.toHalf(Float.MIN_VALUE) & 0xffff);
+    assertTrue(isNaN(HalfFloat.toHalf(Float.NaN) & 0xffff));
+  }
+
+  @Test
+  public void toFloatAndToHalf_buffers_convertRemainingValues() {
+    ShortBuffer halves = allocate(8).asShortBuffer();
+    FloatBuffer floats = allocate(8 * Float.BYTES).asFloatBuffer();
+    halves.put(new short[] {0, 0x3c00, (short) 0xc000, 0x7bff}).flip();
+    halves.position(1);
+
+    HalfFloat.toFloat(halves, floats);
+
+    assertEquals(4, halves.position());
+    assertEquals(3, floats.position());
+    floats.flip();
+    assertEquals(1.0f, floats.get(0), 0.0f);
+    assertEquals(-2.0f, floats.get(1), 0.0f);
+    assertEquals(65504.0f, floats.get(2), 0.0f);
+
+    halves.clear();
+    HalfFloat.toHalf(floats, halves);
+    assertEquals(3, halves.position());
+    assertEquals(0x3c00, halves.get(0));
+    assertEquals((short) 0xc000, halves.get(1));
+    assertEquals(0x7bff, halves.get(2));
+  }
+
+  private static void assertRoundsLikeReference(float value) {
+    assertEquals(
+        Float.toHexString(value),
+        hex(referenceToHalf(value)),
+        hex(HalfFloat.toHalf(value) & 0xffff));
+  }
+
+  private static boolean isNaN(int half) {
+    return (half & 0x7c00) == 0x7c00 && (half & 0x3ff) != 0;
+  }
+
+  private static String hex(int half) {
+    return String.format("0x%04x", half);
+  }
+
+  private static float referenceToFloat(int half) {
+    double magnitude = referenceToValue(half & ~SIGN);
+    if ((half & ~SIGN) == POSITIVE_INFINITY) {
+      magnitude = Double.POSITIVE_INFINITY;
+    }
+    return (float) ((half & SIGN) != 0 ? -magnitude : magnitude);
+  }
+
+  // Returns the value of a positive half which is not NaN. Infinity is treated as 65536, the next
+  // value after the largest finite half, which is where values round to it.
+  private static double referenceToValue(int half) {
+    int exponent = half >> 10;
+    int mantissa = half & 0x3ff;
+    if (exponent == 0) {
+      return Math.scalb((double) mantissa, -24);
+    }
+    return Math.scalb((double) (1024 + mantissa), exponent - 25);
+  }
+
+  // Rounds to the nearest half by comparing the distances to the halves on either side, and to
+  // the even one of them on a tie.
+  private static int referenceToHalf(float value) {
+    int sign = value < 0.0f || Float.floatToRawIntBits(value) == 0x80000000 ? SIGN : 0;
+    double magnitude = Math.abs((double) value);
+    if (magnitude >= referenceToValue(POSITIVE_INFINITY)) {
+      return sign | POSITIVE_INFINITY;
+    }
+    // The largest half which is not above the magnitude.
+    int low = 0;
+    int high = POSITIVE_INFINITY;
+    while (high - low > 1) {
+      int middle = (low + high) >>> 1;
+      if (referenceToValue(middle) <= magnitude) {
+        low = middle;
+      } else {
+        high = middle;
+      }
+    }
+    double lowDistance = magnitude - referenceToValue(low);
+    double highDistance = referenceToValue(high) - magnitude;
+    if (lowDistance < highDistance || (lowDistance == highDistance && (low & 1) == 0)) {
+      return sign | low;
+    }
+    return sign | high;
+  }
+
+  private static ByteBuffer allocate(int size) {
+    return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+  }
+}
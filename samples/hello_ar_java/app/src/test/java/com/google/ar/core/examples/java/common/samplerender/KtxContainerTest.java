@@ -0,0 +1,290 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link KtxContainer}. */
+@RunWith(JUnit4.class)
+public class KtxContainerTest {
+  private static final int GL_COMPRESSED_RGB8_ETC2 = 0x9274;
+  private static final int GL_COMPRESSED_SRGB8_ETC2 = 0x9275;
+  private static final int GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2 = 0x9276;
+  private static final int GL_COMPRESSED_SRGB8_PUNCHTHROUGH_ALPHA1_ETC2 = 0x9277;
+  private static final int GL_COMPRESSED_RGBA8_ETC2_EAC = 0x9278;
+  private static final int GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC = 0x9279;
+  private static final int GL_COMPRESSED_RGBA_ASTC_4x4 = 0x93b0;
+  private static final int GL_COMPRESSED_RGBA_ASTC_6x6 = 0x93b4;
+  private static final int GL_COMPRESSED_RGBA_ASTC_8x5 = 0x93b5;
+  private static final int GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4 = 0x93d0;
+  private static final int NUMBER_OF_ASTC_BLOCK_SIZES = 14;
+
+  @Test
+  public void parse_truncatedHeader_throws() {
+    ByteBuffer data = encode(ByteOrder.LITTLE_ENDIAN, GL_COMPRESSED_RGB8_ETC2, 4, 4, 1);
+    data.limit(63);
+    assertThrows(IOException.class, () -> KtxContainer.parse(data));
+  }
+
+  @Test
+  public void parse_badIdentifier_throws() {
+    ByteBuffer data = encode(ByteOrder.LITTLE_ENDIAN, GL_COMPRESSED_RGB8_ETC2, 4, 4, 1);
+    // "KTX 20" instead of "KTX 11".
+    data.put(5, (byte) '2');
+    data.put(6, (byte) '0');
+    assertThrows(IOException.class, () -> KtxContainer.parse(data));
+  }
+
+  @Test
+  public void parse_bigEndian_readsHeaderAndLevels() throws IOException {
+    KtxContainer container =
+        KtxContainer.parse(encode(ByteOrder.BIG_ENDIAN, GL_COMPRESSED_RGBA8_ETC2_EAC, 8, 4, 4));
+
+    assertEquals(GL_COMPRESSED_RGBA8_ETC2_EAC, container.getInternalFormat());
+    assertEquals(8, container.getWidth());
+    assertEquals(4, container.getHeight());
+    assertEquals(4, container.getNumberOfMipmapLevels());
+    assertLevels(container, new int[] {32, 16, 16, 16});
+  }
+
+  @Test
+  public void parse_wrongImageSizeOfEtc2With8ByteBlocks_throws() {
+    // An 8x8 level has four blocks of eight bytes; 16-byte blocks would take 64 bytes.
+    ByteBuffer data =
+        encode(ByteOrder.LITTLE_ENDIAN, GL_COMPRESSED_RGB8_ETC2, 8, 8, new int[] {64});
+    assertThrows(IOException.class, () -> KtxContainer.parse(data));
+  }
+
+  @Test
+  public void parse_wrongImageSizeOfEtc2With16ByteBlocks_throws() {
+    // An 8x8 level has four blocks of sixteen bytes; 8-byte blocks would take 32 bytes.
+    ByteBuffer data =
+        encode(ByteOrder.LITTLE_ENDIAN, GL_COMPRESSED_RGBA8_ETC2_EAC, 8, 8, new int[] {32});
+    assertThrows(IOException.class, () -> KtxContainer.parse(data));
+  }
+
+  @Test
+  public void parse_nonSquareAstc_usesBlockWidthAndHeight() throws IOException {
+    // 16x10 is two by two 8x5 blocks.
+    KtxContainer container =
+        KtxContainer.parse(
+            encode(ByteOrder.LITTLE_ENDIAN, GL_COMPRESSED_RGBA_ASTC_8x5, 16, 10, new int[] {64}));
+
+    assertEquals(1, container.getNumberOfMipmapLevels());
+    assertEquals(64, container.getMipmapLevel(0).remaining());
+  }
+
+  @Test
+  public void parse_wrongImageSizeOfNonSquareAstc_throws() {
+    // With the block dimensions swapped, 16x10 would be four by two 5x8 blocks.
+    ByteBuffer data =
+        encode(ByteOrder.LITTLE_ENDIAN, GL_COMPRESSED_RGBA_ASTC_8x5, 16, 10, new int[] {128});
+    assertThrows(IOException.class, () -> KtxContainer.parse(data));
+  }
+
+  @Test
+  public void parse_moreMipmapLevelsThanCompleteChain_throws() {
+    int maxLevels = KtxContainer.getMaxNumberOfMipmapLevels(8, 4);
+    assertEquals(4, maxLevels);
+    ByteBuffer data =
+        encode(ByteOrder.LITTLE_ENDIAN, GL_COMPRESSED_RGB8_ETC2, 8, 4, maxLevels + 1);
+    assertThrows(IOException.class, () -> KtxContainer.parse(data));
+  }
+
+  @Test
+  public void parse_paddedKeyValueData_readsLevelsAfterIt() throws IOException {
+    ByteBuffer data =
+        encode(
+            ByteOrder.LITTLE_ENDIAN,
+            GL_COMPRESSED_RGB8_ETC2,
+            8,
+            8,
+            imageSizes(GL_COMPRESSED_RGB8_ETC2, 8, 8, 4),
+            /*bytesOfKeyValueData=*/ 12);
+    KtxContainer container = KtxContainer.parse(data);
+
+    assertLevels(container, new int[] {32, 8, 8, 8});
+  }
+
+  @Test
+  public void parse_truncatedLastLevel_throws() {
+    ByteBuffer data = encode(ByteOrder.LITTLE_ENDIAN, GL_COMPRESSED_RGB8_ETC2, 8, 8, 4);
+    data.limit(data.limit() - 1);
+    assertThrows(IOException.class, () -> KtxContainer.parse(data));
+  }
+
+  @Test
+  public void parse_noDataAfterLastLevel_succeeds() throws IOException {
+    // Compressed levels are multiples of eight bytes, so no padding follows the last one.
+    ByteBuffer data = encode(ByteOrder.LITTLE_ENDIAN, GL_COMPRESSED_RGB8_ETC2, 8, 8, 4);
+    assertEquals(64 + 4 * 4 + 32 + 8 + 8 + 8, data.limit());
+    KtxContainer.parse(data);
+  }
+
+  @Test
+  public void getInternalFormat_etc2_mapsBetweenLinearAndSrgb() throws IOException {
+    int[][] pairs = {
+      {GL_COMPRESSED_RGB8_ETC2, GL_COMPRESSED_SRGB8_ETC2},
+      {GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2, GL_COMPRESSED_SRGB8_PUNCHTHROUGH_ALPHA1_ETC2},
+      {GL_COMPRESSED_RGBA8_ETC2_EAC, GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC}
+    };
+    for (int[] pair : pairs) {
+      assertFormatPair(pair[0], pair[1]);
+    }
+  }
+
+  @Test
+  public void getInternalFormat_astc_mapsBetweenLinearAndSrgb() throws IOException {
+    for (int i = 0; i < NUMBER_OF_ASTC_BLOCK_SIZES; ++i) {
+      assertFormatPair(GL_COMPRESSED_RGBA_ASTC_4x4 + i, GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4 + i);
+    }
+  }
+
+  @Test
+  public void parse_ktxEncoderOutput_readsLevelsAsWritten() throws IOException {
+    // A 20x12 ASTC 6x6 texture with a complete mipmap chain, whose level n is filled with n + 1.
+    int[] imageSizes = {128, 32, 16, 16, 16};
+    List<byte[]> levels = new ArrayList<>();
+    for (int level = 0; level < imageSizes.length; ++level) {
+      byte[] data = new byte[imageSizes[level]];
+      Arrays.fill(data, (byte) (level + 1));
+      levels.add(data);
+    }
+
+    KtxContainer container =
+        KtxContainer.parse(
+            ByteBuffer.wrap(KtxEncoder.encode(GL_COMPRESSED_RGBA_ASTC_6x6, 20, 12, levels)));
+
+    assertEquals(GL_COMPRESSED_RGBA_ASTC_6x6, container.getInternalFormat());
+    assertEquals(20, container.getWidth());
+    assertEquals(12, container.getHeight());
+    assertLevels(container, imageSizes);
+  }
+
+  @Test
+  public void readFirstLevel_bigEndianWithKeyValueData_returnsFirstLevel() {
+    ByteBuffer data =
+        encode(
+            ByteOrder.BIG_ENDIAN,
+            GL_COMPRESSED_RGBA8_ETC2_EAC,
+            8,
+            4,
+            new int[] {32, 16, 16, 16},
+            /*bytesOfKeyValueData=*/ 8);
+
+    byte[] level = KtxEncoder.readFirstLevel(data.array());
+
+    assertEquals(32, level.length);
+    for (byte value : level) {
+      assertEquals(1, value);
+    }
+  }
+
+  private static void assertFormatPair(int linear, int srgb) throws IOException {
+    for (int stored : new int[] {linear, srgb}) {
+      KtxContainer container =
+          KtxContainer.parse(encode(ByteOrder.LITTLE_ENDIAN, stored, 4, 4, 1));
+      assertEquals(linear, container.getInternalFormat(/*srgb=*/ false));
+      assertEquals(srgb, container.getInternalFormat(/*srgb=*/ true));
+    }
+  }
+
+  // Checks the size of each level, and that level n is filled with the byte n + 1.
+  private static void assertLevels(KtxContainer container, int[] expectedSizes) {
+    assertEquals(expectedSizes.length, container.getNumberOfMipmapLevels());
+    for (int level = 0; level < expectedSizes.length; ++level) {
+      ByteBuffer data = container.getMipmapLevel(level);
+      assertEquals(expectedSizes[level], data.remaining());
+      while (data.hasRemaining()) {
+        assertEquals(level + 1, data.get());
+      }
+    }
+  }
+
+  private static ByteBuffer encode(
+      ByteOrder order, int internalFormat, int width, int height, int numberOfMipmapLevels) {
+    return encode(
+        order,
+        internalFormat,
+        width,
+        height,
+        imageSizes(internalFormat, width, height, numberOfMipmapLevels));
+  }
+
+  private static ByteBuffer encode(
+      ByteOrder order, int internalFormat, int width, int height, int[] imageSizes) {
+    return encode(order, internalFormat, width, height, imageSizes, /*bytesOfKeyValueData=*/ 0);
+  }
+
+  // Encodes a KTX file as KtxEncoder does, in the given byte order and with the given image sizes.
+  // Level n is filled with the byte n + 1.
+  private static ByteBuffer encode(
+      ByteOrder order,
+      int internalFormat,
+      int width,
+      int height,
+      int[] imageSizes,
+      int bytesOfKeyValueData) {
+    int size = 64 + bytesOfKeyValueData;
+    for (int imageSize : imageSizes) {
+      size += 4 + ((imageSize + 3) & ~3);
+    }
+    ByteBuffer data = ByteBuffer.allocate(size).order(order);
+    data.put(
+        new byte[] {
+          (byte) 0xab, 'K', 'T', 'X', ' ', '1', '1', (byte) 0xbb, '\r', '\n', 0x1a, '\n'
+        });
+    data.putInt(0x04030201);
+    // glType, glTypeSize, glFormat, internalFormat and glBaseInternalFormat.
+    data.putInt(0).putInt(1).putInt(0).putInt(internalFormat).putInt(0x1908);
+    data.putInt(width).putInt(height);
+    // pixelDepth, numberOfArrayElements, numberOfFaces and numberOfMipmapLevels.
+    data.putInt(0).putInt(0).putInt(1).putInt(imageSizes.length);
+    data.putInt(bytesOfKeyValueData);
+    data.position(data.position() + bytesOfKeyValueData);
+    for (int level = 0; level < imageSizes.length; ++level) {
+      data.putInt(imageSizes[level]);
+      for (int i = 0; i < imageSizes[level]; ++i) {
+        data.put((byte) (level + 1));
+      }
+      data.position((data.position() + 3) & ~3);
+    }
+    data.rewind();
+    return data;
+  }
+
+  private static int[] imageSizes(
+      int internalFormat, int width, int height, int numberOfMipmapLevels) {
+    int[] imageSizes = new int[numberOfMipmapLevels];
+    for (int level = 0; level < numberOfMipmapLevels; ++level) {
+      imageSizes[level] =
+          KtxContainer.getImageSize(
+              internalFormat, Math.max(1, width >> level), Math.max(1, height >> level));
+    }
+    return imageSizes;
+  }
+}
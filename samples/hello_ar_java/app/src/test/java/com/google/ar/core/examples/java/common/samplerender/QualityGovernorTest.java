@@ -0,0 +1,218 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link QualityGovernor}, driven by scripted CPU and GPU frame times rather than a
+ * clock.
+ */
+@RunWith(JUnit4.class)
+public class QualityGovernorTest {
+  private static final int NUMBER_OF_LEVELS = 4;
+  private static final long TARGET_NANOS = 16_000_000;
+  private static final int FRAMES_PER_WINDOW = 10;
+  private static final float STEP_UP_HEADROOM = 0.3f;
+
+  private static final long OVER_BUDGET_NANOS = 20_000_000;
+  private static final long WITHIN_BUDGET_NANOS = 14_000_000;
+  private static final long HEADROOM_NANOS = 8_000_000;
+  private static final long NOT_MEASURED = -1;
+
+  /** A {@link QualityGovernor.Policy} which records what it is asked to decide on. */
+  private static class RecordingPolicy implements QualityGovernor.Policy {
+    final List<long[]> windows = new ArrayList<>();
+
+    @Override
+    public QualityGovernor.Decision decide(
+        long cpuFrameNanos, long gpuFrameNanos, long targetFrameNanos) {
+      windows.add(new long[] {cpuFrameNanos, gpuFrameNanos});
+      return QualityGovernor.Decision.HOLD;
+    }
+  }
+
+  @Test
+  public void recordFrame_overBudget_stepsDownAfterWindowsToStepDown() {
+    QualityGovernor governor = createGovernor();
+    governor.setHysteresis(
+        /*windowsToStepDown=*/ 2, /*windowsToStepUp=*/ 3, /*settleWindows=*/ 0);
+
+    assertFalse(recordWindow(governor, OVER_BUDGET_NANOS, OVER_BUDGET_NANOS));
+    assertEquals(3, governor.getLevel());
+    assertTrue(recordWindow(governor, OVER_BUDGET_NANOS, OVER_BUDGET_NANOS));
+    assertEquals(2, governor.getLevel());
+    assertEquals(1, governor.getStepCount());
+  }
+
+  @Test
+  public void recordFrame_headroom_stepsUpOnlyAfterWindowsToStepUp() {
+    QualityGovernor governor = createGovernor();
+    governor.setHysteresis(
+        /*windowsToStepDown=*/ 1, /*windowsToStepUp=*/ 3, /*settleWindows=*/ 0);
+    governor.setLevel(0);
+
+    assertFalse(recordWindow(governor, HEADROOM_NANOS, HEADROOM_NANOS));
+    assertFalse(recordWindow(governor, HEADROOM_NANOS, HEADROOM_NANOS));
+    assertEquals(0, governor.getLevel());
+    assertTrue(recordWindow(governor, HEADROOM_NANOS, HEADROOM_NANOS));
+    assertEquals(1, governor.getLevel());
+  }
+
+  @Test
+  public void recordFrame_headroomInterrupted_restartsCount() {
+    QualityGovernor governor = createGovernor();
+    governor.setHysteresis(
+        /*windowsToStepDown=*/ 1, /*windowsToStepUp=*/ 3, /*settleWindows=*/ 0);
+    governor.setLevel(0);
+
+    assertFalse(recordWindow(governor, HEADROOM_NANOS, HEADROOM_NANOS));
+    assertFalse(recordWindow(governor, HEADROOM_NANOS, HEADROOM_NANOS));
+    assertFalse(recordWindow(governor, WITHIN_BUDGET_NANOS, WITHIN_BUDGET_NANOS));
+    assertFalse(recordWindow(governor, HEADROOM_NANOS, HEADROOM_NANOS));
+    assertFalse(recordWindow(governor, HEADROOM_NANOS, HEADROOM_NANOS));
+    assertEquals(0, governor.getLevel());
+    assertTrue(recordWindow(governor, HEADROOM_NANOS, HEADROOM_NANOS));
+    assertEquals(1, governor.getLevel());
+  }
+
+  @Test
+  public void recordFrame_afterStep_ignoresSettleWindows() {
+    QualityGovernor governor = createGovernor();
+    governor.setHysteresis(
+        /*windowsToStepDown=*/ 1, /*windowsToStepUp=*/ 3, /*settleWindows=*/ 2);
+
+    assertTrue(recordWindow(governor, OVER_BUDGET_NANOS, OVER_BUDGET_NANOS));
+    assertEquals(2, governor.getLevel());
+    // The windows right after the step would step down again, but are ignored.
+    assertFalse(recordWindow(governor, OVER_BUDGET_NANOS, OVER_BUDGET_NANOS));
+    assertFalse(recordWindow(governor, OVER_BUDGET_NANOS, OVER_BUDGET_NANOS));
+    assertEquals(2, governor.getLevel());
+    assertTrue(recordWindow(governor, OVER_BUDGET_NANOS, OVER_BUDGET_NANOS));
+    assertEquals(1, governor.getLevel());
+  }
+
+  @Test
+  public void recordFrame_gpuTimeMissingInWindow_passesNotMeasuredToPolicy() {
+    RecordingPolicy policy = new RecordingPolicy();
+    QualityGovernor governor =
+        new QualityGovernor(NUMBER_OF_LEVELS, TARGET_NANOS, FRAMES_PER_WINDOW, policy);
+
+    // One frame without a GPU time hides the GPU times of the whole window.
+    for (int i = 0; i < FRAMES_PER_WINDOW; ++i) {
+      governor.recordFrame(WITHIN_BUDGET_NANOS, i == 3 ? NOT_MEASURED : OVER_BUDGET_NANOS);
+    }
+    // The next window is measured again.
+    recordWindow(governor, WITHIN_BUDGET_NANOS, OVER_BUDGET_NANOS);
+
+    assertEquals(2, policy.windows.size());
+    assertEquals(WITHIN_BUDGET_NANOS, policy.windows.get(0)[0]);
+    assertEquals(NOT_MEASURED, policy.windows.get(0)[1]);
+    assertEquals(OVER_BUDGET_NANOS, policy.windows.get(1)[1]);
+  }
+
+  @Test
+  public void recordFrame_gpuTimeNotMeasured_decidesOnCpuTime() {
+    QualityGovernor governor = createGovernor();
+    governor.setHysteresis(
+        /*windowsToStepDown=*/ 1, /*windowsToStepUp=*/ 1, /*settleWindows=*/ 0);
+
+    assertFalse(recordWindow(governor, WITHIN_BUDGET_NANOS, NOT_MEASURED));
+    assertEquals(3, governor.getLevel());
+    assertTrue(recordWindow(governor, OVER_BUDGET_NANOS, NOT_MEASURED));
+    assertEquals(2, governor.getLevel());
+  }
+
+  @Test
+  public void recordFrame_gpuBound_stepsDown() {
+    QualityGovernor governor = createGovernor();
+
+    assertTrue(recordWindow(governor, HEADROOM_NANOS, OVER_BUDGET_NANOS));
+    assertEquals(2, governor.getLevel());
+  }
+
+  @Test
+  public void recordFrame_usesNinetiethPercentile() {
+    RecordingPolicy policy = new RecordingPolicy();
+    QualityGovernor governor =
+        new QualityGovernor(NUMBER_OF_LEVELS, TARGET_NANOS, FRAMES_PER_WINDOW, policy);
+
+    // Frame times of 1 to 10 ms in reverse order. The 90th percentile of ten frames is taken at
+    // index 9 of the sorted times, which is the highest.
+    for (int i = FRAMES_PER_WINDOW; i > 0; --i) {
+      governor.recordFrame(i * 1_000_000L, i * 2_000_000L);
+    }
+
+    assertEquals(10_000_000L, policy.windows.get(0)[0]);
+    assertEquals(20_000_000L, policy.windows.get(0)[1]);
+  }
+
+  @Test
+  public void recordFrame_simulatedDevice_settlesWithoutOscillating() {
+    // Frame times of each level on a simulated device, in nanoseconds. The best level is over
+    // budget, and the one below it is within budget without enough headroom to step back up.
+    long[] levelFrameNanos = {7_000_000, 9_500_000, 13_000_000, 19_000_000};
+    QualityGovernor governor = createGovernor();
+    Random random = new Random(/*seed=*/ 1);
+
+    int settledStepCount = -1;
+    for (int window = 0; window < 500; ++window) {
+      for (int i = 0; i < FRAMES_PER_WINDOW; ++i) {
+        // Up to 10% of jitter, with a GPU slightly faster than the CPU.
+        long cpuNanos = jitter(random, levelFrameNanos[governor.getLevel()]);
+        long gpuNanos = jitter(random, levelFrameNanos[governor.getLevel()] * 9 / 10);
+        governor.recordFrame(cpuNanos, gpuNanos);
+      }
+      if (window == 20) {
+        settledStepCount = governor.getStepCount();
+      }
+    }
+
+    assertEquals(2, governor.getLevel());
+    assertEquals(1, settledStepCount);
+    assertEquals(settledStepCount, governor.getStepCount());
+  }
+
+  private static QualityGovernor createGovernor() {
+    return new QualityGovernor(
+        NUMBER_OF_LEVELS,
+        TARGET_NANOS,
+        FRAMES_PER_WINDOW,
+        new QualityGovernor.HeadroomPolicy(STEP_UP_HEADROOM));
+  }
+
+  // Records a window of frames with the given times, and returns whether the level changed. The
+  // level may only change at the end of the window.
+  private static boolean recordWindow(QualityGovernor governor, long cpuNanos, long gpuNanos) {
+    for (int i = 0; i < FRAMES_PER_WINDOW - 1; ++i) {
+      assertFalse(governor.recordFrame(cpuNanos, gpuNanos));
+    }
+    return governor.recordFrame(cpuNanos, gpuNanos);
+  }
+
+  private static long jitter(Random random, long nanos) {
+    return (long) (nanos * (1.0 + 0.1 * random.nextDouble()));
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import android.opengl.GLES30;
+import android.opengl.GLException;
+import java.lang.management.ManagementFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link Shader}'s uniform handles. */
+@RunWith(JUnit4.class)
+public class ShaderTest {
+  private static final int PROGRAM_ID = 1;
+  private static final int WARM_UP_DRAWS = 20_000;
+  private static final int MEASURED_DRAWS = 10_000;
+
+  /** A {@link Shader} which counts uniform uploads instead of issuing them to GL. */
+  private static class CountingShader extends Shader {
+    int uploadCount = 0;
+    String failingUniformName = null;
+
+    CountingShader(SampleRender render) {
+      super(render, PROGRAM_ID);
+    }
+
+    @Override
+    void uploadUniform(UniformHandle handle) {
+      if (handle.getName().equals(failingUniformName)) {
+        failingUniformName = null;
+        throw new GLException(GLES30.GL_INVALID_OPERATION, "Injected failure");
+      }
+      ++uploadCount;
+    }
+  }
+
+  private final float[] model = new float[16];
+  private final float[] color = new float[4];
+
+  private CountingShader shader;
+  private Shader.UniformHandle modelHandle;
+  private Shader.UniformHandle colorHandle;
+  private Shader.UniformHandle scaleHandle;
+  private Shader.UniformHandle modeHandle;
+
+  @Before
+  public void setUp() {
+    shader = new CountingShader(new SampleRender(/*assetManager=*/ null));
+    modelHandle = shader.getUniformHandle("u_Model");
+    colorHandle = shader.getUniformHandle("u_Color");
+    scaleHandle = shader.getUniformHandle("u_Scale");
+    modeHandle = shader.getUniformHandle("u_Mode");
+  }
+
+  @Test
+  public void getUniformHandle_sameName_returnsSameHandle() {
+    assertEquals(modelHandle, shader.getUniformHandle("u_Model"));
+  }
+
+  @Test
+  public void lowLevelUse_onlyUploadsChangedUniforms() {
+    shader.setMat4(modelHandle, model).setVec4(colorHandle, color);
+    shader.lowLevelUse();
+    assertEquals(2, shader.uploadCount);
+
+    shader.setMat4(modelHandle, model).setVec4(colorHandle, color);
+    shader.lowLevelUse();
+    assertEquals(2, shader.uploadCount);
+
+    color[3] = 0.5f;
+    shader.setMat4(modelHandle, model).setVec4(colorHandle, color);
+    shader.lowLevelUse();
+    assertEquals(3, shader.uploadCount);
+  }
+
+  @Test
+  public void lowLevelUse_afterFailedUpload_uploadsAllPendingUniforms() {
+    shader.setMat4(modelHandle, model).setVec4(colorHandle, color).setFloat(scaleHandle, 1.0f);
+    shader.failingUniformName = "u_Color";
+    try {
+      shader.lowLevelUse();
+      fail("Expected the injected upload failure to be reported");
+    } catch (IllegalArgumentException expected) {
+      // The model matrix was uploaded before the failure.
+      assertEquals(1, shader.uploadCount);
+    }
+
+    shader.lowLevelUse();
+    assertEquals(4, shader.uploadCount);
+    shader.lowLevelUse();
+    assertEquals(4, shader.uploadCount);
+  }
+
+  @Test
+  public void setUniformsThroughHandles_steadyState_doesNotAllocate() {
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    long threadId = Thread.currentThread().getId();
+
+    // Reserves staging storage for every uniform, and lets the JIT compile the draw path.
+    drawFrames(WARM_UP_DRAWS);
+    int uploadCountBefore = shader.uploadCount;
+
+    // Querying the allocated bytes may itself allocate, which is measured without any draws.
+    long overheadStart = threadBean.getThreadAllocatedBytes(threadId);
+    long overheadEnd = threadBean.getThreadAllocatedBytes(threadId);
+    long start = threadBean.getThreadAllocatedBytes(threadId);
+    drawFrames(MEASURED_DRAWS);
+    long end = threadBean.getThreadAllocatedBytes(threadId);
+
+    assertEquals(0, (end - start) - (overheadEnd - overheadStart));
+    // The model matrix, scale and mode change on every draw, and the color on every other draw.
+    assertEquals(
+        MEASURED_DRAWS * 3 + MEASURED_DRAWS / 2, shader.uploadCount - uploadCountBefore);
+  }
+
+  private void drawFrames(int count) {
+    for (int i = 0; i < count; ++i) {
+      model[12] = i;
+      color[0] = (i / 2) % 2;
+      shader
+          .setMat4(modelHandle, model)
+          .setVec4(colorHandle, color)
+          .setFloat(scaleHandle, i * 0.5f)
+          .setInt(modeHandle, i);
+      shader.lowLevelUse();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender.arcore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DfgLutGenerator}. */
+@RunWith(JUnit4.class)
+public class DfgLutGeneratorTest {
+  // The texture which was shipped as assets/models/dfg.raw before it was generated at runtime,
+  // computed by tools/generate_dfg_texture.py. It holds little-endian RG16F texels.
+  private static final String REFERENCE = "/dfg.raw";
+  private static final int RESOLUTION = 64;
+  private static final int NUMBER_OF_SAMPLES = 1024;
+
+  @Test
+  public void generate_matchesShippedTextureWithinOneUlp() throws IOException {
+    DfgLutGenerator generator = new DfgLutGenerator(RESOLUTION, NUMBER_OF_SAMPLES);
+    ByteBuffer expected = readResource(REFERENCE).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer actual = generator.generate(ForkJoinPool.commonPool());
+    assertEquals(generator.getDataSize(), expected.remaining());
+    assertEquals(generator.getDataSize(), actual.remaining());
+
+    for (int i = 0; i < generator.getDataSize(); i += 2) {
+      int expectedHalf = expected.getShort(i);
+      int actualHalf = actual.getShort(i);
+      // The values are finite and non-negative, so adjacent halves differ by one in their bits.
+      int texel = i / 4;
+      assertTrue(
+          String.format(
+              "Texel (%d, %d) channel %d: expected 0x%04x, was 0x%04x",
+              texel % RESOLUTION, texel / RESOLUTION, (i / 2) % 2, expectedHalf, actualHalf),
+          Math.abs(expectedHalf - actualHalf) <= 1);
+    }
+  }
+
+  private static ByteBuffer readResource(String name) throws IOException {
+    try (InputStream inputStream = DfgLutGeneratorTest.class.getResourceAsStream(name)) {
+      assertNotNull("Missing test resource " + name, inputStream);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] chunk = new byte[4096];
+      int count;
+      while ((count = inputStream.read(chunk)) != -1) {
+        bytes.write(chunk, 0, count);
+      }
+      return ByteBuffer.wrap(bytes.toByteArray());
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender.arcore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link PlaneBatch}, which compare the triangles of the batched strip with those of the
+ * strips of the planes drawn one by one.
+ */
+@RunWith(JUnit4.class)
+public class PlaneBatchTest {
+  private static final float[] IDENTITY = {
+    1, 0, 0, 0,
+    0, 1, 0, 0,
+    0, 0, 1, 0,
+    0, 0, 0, 1,
+  };
+  private static final float[] UP = {0.0f, 1.0f, 0.0f};
+  private static final float[] UV_MATRIX = {1.0f, 0.0f, 0.0f, 1.0f};
+
+  @Test
+  public void appendPlane_transformsVerticesToWorldSpace() {
+    // A rotation of 90 degrees around Y, followed by a translation of (1, 2, 3).
+    float[] modelMatrix = {
+      0, 0, -1, 0,
+      0, 1, 0, 0,
+      1, 0, 0, 0,
+      1, 2, 3, 1,
+    };
+    float[] normal = {0.0f, 1.0f, 0.0f};
+    float[] uvMatrix = {0.5f, -0.25f, 0.25f, 0.5f};
+    float[] vertices = {2.0f, 5.0f, 0.75f};
+    FloatBuffer vertexBuffer = FloatBuffer.allocate(PlaneBatch.ENTRIES_PER_VERTEX);
+    IntBuffer indexBuffer = IntBuffer.allocate(PlaneBatch.STRIP_JOIN_INDICES + 1);
+
+    PlaneBatch.appendPlane(
+        vertexBuffer,
+        indexBuffer,
+        modelMatrix,
+        normal,
+        uvMatrix,
+        vertices,
+        /*numVertices=*/ 1,
+        new int[] {0},
+        /*numIndices=*/ 1);
+
+    assertArrayEquals(
+        new float[] {
+          1.0f + 5.0f, 2.0f, 3.0f - 2.0f, 0.75f,
+          0.0f, 1.0f, 0.0f, 0.0f,
+          0.5f, -0.25f, 0.25f, 0.5f,
+        },
+        vertexBuffer.array(),
+        0.0f);
+  }
+
+  @Test
+  public void appendPlane_severalPlanes_packsOneStripWithTheirTrianglesInOrder() {
+    // Strips of even and odd lengths, so that planes are joined at even and odd positions. The
+    // planes are appended back to front, as PlaneRenderer sorts them.
+    int[][] strips = {
+      {0, 1, 2, 3},
+      {0, 1, 2, 3, 4},
+      {4, 0, 1, 2, 3, 4, 5, 1},
+      {0, 1, 2},
+      {5, 0, 1, 2, 3, 4, 5, 1, 3},
+    };
+    int[] numVertices = {4, 5, 6, 3, 6};
+    FloatBuffer vertexBuffer = FloatBuffer.allocate(24 * PlaneBatch.ENTRIES_PER_VERTEX);
+    IntBuffer indexBuffer = IntBuffer.allocate(29 + strips.length * PlaneBatch.STRIP_JOIN_INDICES);
+
+    List<List<Integer>> expected = new ArrayList<>();
+    int baseVertex = 0;
+    for (int i = 0; i < strips.length; ++i) {
+      appendPlane(vertexBuffer, indexBuffer, strips[i], numVertices[i]);
+      expected.addAll(getTriangles(strips[i], strips[i].length, baseVertex));
+      baseVertex += numVertices[i];
+    }
+    indexBuffer.flip();
+
+    // All of the planes are drawn by the one strip, with a single draw call.
+    int[] batch = new int[indexBuffer.limit()];
+    indexBuffer.get(batch);
+    assertEquals(baseVertex * PlaneBatch.ENTRIES_PER_VERTEX, vertexBuffer.position());
+    for (int index : batch) {
+      assertTrue(index >= 0 && index < baseVertex);
+    }
+    assertEquals(expected, getTriangles(batch, batch.length, /*baseVertex=*/ 0));
+  }
+
+  @Test
+  public void appendStrip_atEvenAndOddPositions_preservesWinding() {
+    int[] strip = {0, 1, 2, 3};
+    for (int previousLength = 1; previousLength <= 6; ++previousLength) {
+      int[] previous = new int[previousLength];
+      for (int i = 0; i < previousLength; ++i) {
+        previous[i] = i % 3;
+      }
+      IntBuffer indexBuffer =
+          IntBuffer.allocate(previousLength + strip.length + PlaneBatch.STRIP_JOIN_INDICES);
+      PlaneBatch.appendStrip(indexBuffer, previous, previousLength, /*baseVertex=*/ 0);
+
+      PlaneBatch.appendStrip(indexBuffer, strip, strip.length, /*baseVertex=*/ 3);
+
+      indexBuffer.flip();
+      int[] batch = new int[indexBuffer.limit()];
+      indexBuffer.get(batch);
+      // The appended strip starts on an even triangle, so its first triangle keeps the order of
+      // its indices.
+      int start = batch.length - strip.length;
+      assertEquals("previous length " + previousLength, 0, start % 2);
+      List<List<Integer>> triangles = getTriangles(batch, batch.length, /*baseVertex=*/ 0);
+      List<List<Integer>> appended = getTriangles(strip, strip.length, /*baseVertex=*/ 3);
+      assertEquals(
+          "previous length " + previousLength,
+          appended,
+          triangles.subList(triangles.size() - appended.size(), triangles.size()));
+    }
+  }
+
+  @Test
+  public void appendStrip_empty_appendsNothing() {
+    IntBuffer indexBuffer = IntBuffer.allocate(8);
+    PlaneBatch.appendStrip(indexBuffer, new int[] {0, 1, 2}, 3, /*baseVertex=*/ 0);
+
+    PlaneBatch.appendStrip(indexBuffer, new int[0], 0, /*baseVertex=*/ 3);
+
+    assertEquals(3, indexBuffer.position());
+  }
+
+  private static void appendPlane(
+      FloatBuffer vertexBuffer, IntBuffer indexBuffer, int[] strip, int numVertices) {
+    float[] vertices = new float[numVertices * PlaneBatch.PLANE_COORDS_PER_VERTEX];
+    PlaneBatch.appendPlane(
+        vertexBuffer,
+        indexBuffer,
+        IDENTITY,
+        UP,
+        UV_MATRIX,
+        vertices,
+        numVertices,
+        strip,
+        strip.length);
+  }
+
+  // Returns the non-degenerate triangles of a triangle strip, in order. Each triangle is rotated
+  // to start at its smallest index, which keeps its winding.
+  private static List<List<Integer>> getTriangles(int[] strip, int count, int baseVertex) {
+    List<List<Integer>> triangles = new ArrayList<>();
+    for (int i = 0; i + 2 < count; ++i) {
+      // Every odd triangle of a strip is wound the other way around.
+      int a = baseVertex + strip[i % 2 == 0 ? i : i + 1];
+      int b = baseVertex + strip[i % 2 == 0 ? i + 1 : i];
+      int c = baseVertex + strip[i + 2];
+      if (a == b || b == c || c == a) {
+        continue;
+      }
+      if (b < a && b < c) {
+        triangles.add(Arrays.asList(b, c, a));
+      } else if (c < a && c < b) {
+        triangles.add(Arrays.asList(c, a, b));
+      } else {
+        triangles.add(Arrays.asList(a, b, c));
+      }
+    }
+    return triangles;
+  }
+}
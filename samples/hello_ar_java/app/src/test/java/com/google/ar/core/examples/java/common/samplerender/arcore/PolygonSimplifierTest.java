@@ -0,0 +1,212 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender.arcore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PolygonSimplifier}. */
+@RunWith(JUnit4.class)
+public class PolygonSimplifierTest {
+  private static final float[] TOLERANCES = {0.0001f, 0.001f, 0.01f, 0.1f, 1.0f};
+  // Rounding allowed when measuring distances from vertices to the simplified boundary.
+  private static final float EPSILON = 1e-5f;
+
+  @Test
+  public void simplify_convexPolygons_keepsEveryVertexWithinTolerance() {
+    Random random = new Random(/*seed=*/ 1);
+    PolygonSimplifier simplifier = new PolygonSimplifier();
+    for (int numberOfVertices : new int[] {4, 5, 16, 64, 256}) {
+      float[] polygon = createConvexPolygon(random, numberOfVertices);
+      for (float tolerance : TOLERANCES) {
+        float[] result = new float[2 * numberOfVertices];
+        int numberOfKept = simplifier.simplify(polygon, numberOfVertices, tolerance, result);
+
+        String message = numberOfVertices + " vertices, tolerance " + tolerance;
+        assertTrue(message, numberOfKept >= 3);
+        assertTrue(message, numberOfKept <= numberOfVertices);
+        assertKeepsVerticesInOrder(message, polygon, numberOfVertices, result, numberOfKept);
+        assertTrue(message, isConvex(result, numberOfKept));
+        assertWithinTolerance(message, polygon, numberOfVertices, result, numberOfKept, tolerance);
+      }
+    }
+  }
+
+  @Test
+  public void simplify_nonConvexPolygon_keepsEveryVertexWithinTolerance() {
+    // A star, whose inner vertices are 0.5 from the outer ones.
+    int numberOfVertices = 32;
+    float[] polygon = new float[2 * numberOfVertices];
+    for (int i = 0; i < numberOfVertices; ++i) {
+      double angle = 2.0 * Math.PI * i / numberOfVertices;
+      float radius = i % 2 == 0 ? 2.0f : 1.5f;
+      polygon[2 * i] = radius * (float) Math.cos(angle);
+      polygon[2 * i + 1] = radius * (float) Math.sin(angle);
+    }
+    PolygonSimplifier simplifier = new PolygonSimplifier();
+    for (float tolerance : TOLERANCES) {
+      float[] result = new float[2 * numberOfVertices];
+      int numberOfKept = simplifier.simplify(polygon, numberOfVertices, tolerance, result);
+
+      String message = "tolerance " + tolerance;
+      assertTrue(message, numberOfKept >= 3);
+      assertWithinTolerance(message, polygon, numberOfVertices, result, numberOfKept, tolerance);
+    }
+  }
+
+  @Test
+  public void simplify_collinearVertices_removesThem() {
+    // A square with an extra vertex in the middle of each side.
+    float[] polygon = {0, 0, 1, 0, 2, 0, 2, 1, 2, 2, 1, 2, 0, 2, 0, 1};
+    float[] result = new float[polygon.length];
+
+    int numberOfKeptVertices =
+        new PolygonSimplifier().simplify(polygon, polygon.length / 2, 0.01f, result);
+
+    assertEquals(4, numberOfKeptVertices);
+    assertArrayEquals(new float[] {0, 0, 2, 0, 2, 2, 0, 2}, Arrays.copyOf(result, 8), 0.0f);
+  }
+
+  @Test
+  public void simplify_thinnerThanTolerance_keepsAtLeastThreeVertices() {
+    float[] polygon = {0, 0, 1, 0.001f, 2, 0, 1, -0.001f};
+    float[] result = new float[polygon.length];
+
+    int numberOfKeptVertices =
+        new PolygonSimplifier().simplify(polygon, polygon.length / 2, 1.0f, result);
+
+    assertTrue(numberOfKeptVertices >= 3);
+  }
+
+  @Test
+  public void simplify_threeVerticesOrFewer_copiesPolygon() {
+    float[] polygon = {0, 0, 1, 0.001f, 2, 0};
+    PolygonSimplifier simplifier = new PolygonSimplifier();
+    for (int numberOfVertices = 0; numberOfVertices <= 3; ++numberOfVertices) {
+      float[] result = new float[polygon.length];
+
+      assertEquals(numberOfVertices, simplifier.simplify(polygon, numberOfVertices, 1.0f, result));
+      assertArrayEquals(
+          Arrays.copyOf(polygon, 2 * numberOfVertices),
+          Arrays.copyOf(result, 2 * numberOfVertices),
+          0.0f);
+    }
+  }
+
+  @Test
+  public void simplify_toleranceNotPositive_copiesPolygon() {
+    float[] polygon = {0, 0, 1, 0, 2, 0, 2, 1, 2, 2, 1, 2, 0, 2, 0, 1};
+    PolygonSimplifier simplifier = new PolygonSimplifier();
+    for (float tolerance : new float[] {0.0f, -1.0f, Float.NaN}) {
+      float[] result = new float[polygon.length];
+
+      assertEquals(
+          polygon.length / 2, simplifier.simplify(polygon, polygon.length / 2, tolerance, result));
+      assertArrayEquals(polygon, result, 0.0f);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void simplify_resultTooSmall_throws() {
+    new PolygonSimplifier().simplify(new float[8], 4, 1.0f, new float[6]);
+  }
+
+  // Returns a convex polygon of about 2 by 3 meters, like the boundary of a large floor, with
+  // vertices at random angles around its center.
+  /* package-private */
+  static float[] createConvexPolygon(Random random, int numberOfVertices) {
+    double[] angles = new double[numberOfVertices];
+    for (int i = 0; i < numberOfVertices; ++i) {
+      angles[i] = 2.0 * Math.PI * random.nextDouble();
+    }
+    Arrays.sort(angles);
+    float[] polygon = new float[2 * numberOfVertices];
+    for (int i = 0; i < numberOfVertices; ++i) {
+      polygon[2 * i] = 1.0f * (float) Math.cos(angles[i]);
+      polygon[2 * i + 1] = 1.5f * (float) Math.sin(angles[i]);
+    }
+    return polygon;
+  }
+
+  private static void assertKeepsVerticesInOrder(
+      String message, float[] polygon, int numberOfVertices, float[] result, int numberOfKept) {
+    int next = 0;
+    for (int i = 0; i < numberOfVertices && next < numberOfKept; ++i) {
+      if (polygon[2 * i] == result[2 * next] && polygon[2 * i + 1] == result[2 * next + 1]) {
+        ++next;
+      }
+    }
+    assertEquals(message, numberOfKept, next);
+  }
+
+  private static void assertWithinTolerance(
+      String message,
+      float[] polygon,
+      int numberOfVertices,
+      float[] result,
+      int numberOfKept,
+      float tolerance) {
+    for (int i = 0; i < numberOfVertices; ++i) {
+      double distance =
+          getDistanceToBoundary(polygon[2 * i], polygon[2 * i + 1], result, numberOfKept);
+      assertTrue(message + ", vertex " + i, distance <= tolerance + EPSILON);
+    }
+  }
+
+  // Returns whether every turn of the polygon is counterclockwise, or every turn is clockwise.
+  private static boolean isConvex(float[] polygon, int numberOfVertices) {
+    int sign = 0;
+    for (int i = 0; i < numberOfVertices; ++i) {
+      int j = (i + 1) % numberOfVertices;
+      int k = (i + 2) % numberOfVertices;
+      double cross =
+          (double) (polygon[2 * j] - polygon[2 * i]) * (polygon[2 * k + 1] - polygon[2 * j + 1])
+              - (double) (polygon[2 * j + 1] - polygon[2 * i + 1])
+                  * (polygon[2 * k] - polygon[2 * j]);
+      int turn = cross > 0.0 ? 1 : cross < 0.0 ? -1 : 0;
+      if (turn != 0 && sign != 0 && turn != sign) {
+        return false;
+      }
+      sign = turn != 0 ? turn : sign;
+    }
+    return true;
+  }
+
+  private static double getDistanceToBoundary(
+      float x, float z, float[] polygon, int numberOfVertices) {
+    double distance = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < numberOfVertices; ++i) {
+      int j = (i + 1) % numberOfVertices;
+      double ax = polygon[2 * i];
+      double az = polygon[2 * i + 1];
+      double abx = polygon[2 * j] - ax;
+      double abz = polygon[2 * j + 1] - az;
+      double lengthSquared = abx * abx + abz * abz;
+      double t =
+          lengthSquared > 0.0 ? ((x - ax) * abx + (z - az) * abz) / lengthSquared : 0.0;
+      t = Math.max(0.0, Math.min(1.0, t));
+      distance = Math.min(distance, Math.hypot(x - ax - t * abx, z - az - t * abz));
+    }
+    return distance;
+  }
+}
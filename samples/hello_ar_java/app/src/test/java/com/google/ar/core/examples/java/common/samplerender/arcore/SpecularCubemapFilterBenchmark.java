@@ -0,0 +1,88 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender.arcore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks creating the importance sample table of {@link SpecularCubemapFilter}, by computing it
+ * and by reading it from the cache directory where it is stored after the first run.
+ *
+ * <p>Run with {@code ./gradlew jmh -Pjmh=SpecularCubemapFilter}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpecularCubemapFilterBenchmark {
+  // The resolution used by HelloArActivity, and a larger one.
+  @Param({"16", "64"})
+  public int resolution;
+
+  // The numbers of importance samples of HelloArActivity's quality levels.
+  @Param({"8", "16", "32"})
+  public int numberOfImportanceSamples;
+
+  private File cacheDirectory;
+
+  @Setup
+  public void setUp() throws IOException {
+    cacheDirectory = Files.createTempDirectory("importance_samples").toFile();
+    // Stores the table, so that the cached benchmark only reads it.
+    SpecularCubemapFilter.loadImportanceSampleTableData(
+        resolution, numberOfImportanceSamples, cacheDirectory);
+  }
+
+  @TearDown
+  public void tearDown() {
+    File[] files = cacheDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    cacheDirectory.delete();
+  }
+
+  @Benchmark
+  public float[] computeImportanceSampleTable() {
+    return SpecularCubemapFilter.createImportanceSampleTableData(
+        resolution, numberOfImportanceSamples);
+  }
+
+  @Benchmark
+  public float[] readCachedImportanceSampleTable() {
+    return SpecularCubemapFilter.loadImportanceSampleTableData(
+        resolution, numberOfImportanceSamples, cacheDirectory);
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.assets;
+
+import com.google.ar.core.examples.java.common.samplerender.BinaryMeshEncoder;
+import de.javagl.obj.Obj;
+import de.javagl.obj.ObjData;
+import de.javagl.obj.ObjReader;
+import de.javagl.obj.ObjUtils;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * Converts Wavefront OBJ files into binary mesh files with {@link BinaryMeshEncoder}, which the app
+ * loads with {@code Mesh.createFromBinaryAsset} without parsing. Each {@code name.obj} becomes
+ * {@code name.mesh} in the output directory.
+ */
+public class ConvertMeshesTask extends DefaultTask {
+  private FileCollection objFiles;
+  private File outputDirectory;
+
+  @InputFiles
+  @PathSensitive(PathSensitivity.NAME_ONLY)
+  public FileCollection getObjFiles() {
+    return objFiles;
+  }
+
+  public void setObjFiles(FileCollection objFiles) {
+    this.objFiles = objFiles;
+  }
+
+  @OutputDirectory
+  public File getOutputDirectory() {
+    return outputDirectory;
+  }
+
+  public void setOutputDirectory(File outputDirectory) {
+    this.outputDirectory = outputDirectory;
+  }
+
+  @TaskAction
+  public void convert() throws IOException {
+    for (File objFile : objFiles) {
+      Obj obj;
+      try (InputStream inputStream = Files.newInputStream(objFile.toPath())) {
+        obj = ObjUtils.convertToRenderable(ObjReader.read(inputStream));
+      }
+      byte[] mesh =
+          BinaryMeshEncoder.encode(
+              ObjData.getVerticesArray(obj),
+              ObjData.getTexCoordsArray(obj, /*dimensions=*/ 2),
+              ObjData.getNormalsArray(obj),
+              ObjData.getFaceVertexIndicesArray(obj, /*numVerticesPerFace=*/ 3));
+      String meshFileName = objFile.getName().replaceFirst("\\.obj$", ".mesh");
+      Files.write(new File(outputDirectory, meshFileName).toPath(), mesh);
+    }
+  }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.assets;
+
+import com.google.ar.core.examples.java.common.samplerender.KtxEncoder;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * Converts PNG textures into compressed KTX files with a complete mipmap chain, which the app loads
+ * with {@code AssetLoader.loadCompressedTexture}. Each {@code name.png} becomes {@code
+ * name_astc.ktx}, encoded with astcenc (https://github.com/ARM-software/astc-encoder), and {@code
+ * name_etc2.ktx}, encoded with EtcTool (https://github.com/google/etc2comp), which every OpenGL ES
+ * 3.0 device can sample. Either file is skipped when its encoder is not available.
+ *
+ * <p>The mipmap levels are box filtered here, and each level is encoded on its own. Textures in
+ * {@link #getSrgbTextureFiles} are averaged in linear space and encoded in the sRGB formats, with
+ * the encoders measuring their error in sRGB; the others are treated as linear data.
+ */
+public class ConvertTexturesTask extends DefaultTask {
+  // The first ASTC formats, followed by the other block sizes in this order.
+  private static final int GL_COMPRESSED_RGBA_ASTC_4x4 = 0x93b0;
+  private static final int GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4 = 0x93d0;
+  private static final List<String> ASTC_BLOCK_SIZES =
+      Arrays.asList(
+          "4x4", "5x4", "5x5", "6x5", "6x6", "8x5", "8x6", "8x8", "10x5", "10x6", "10x8", "10x10",
+          "12x10", "12x12");
+  private static final int GL_COMPRESSED_RGBA8_ETC2_EAC = 0x9278;
+  private static final int GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC = 0x9279;
+  // The .astc header, followed by the compressed blocks.
+  private static final int ASTC_HEADER_SIZE = 16;
+
+  private FileCollection textureFiles;
+  private FileCollection srgbTextureFiles;
+  private String astcenc = "astcenc";
+  private String etcTool = "EtcTool";
+  private String astcBlockSize = "6x6";
+  private File outputDirectory;
+
+  @InputFiles
+  @PathSensitive(PathSensitivity.NAME_ONLY)
+  public FileCollection getTextureFiles() {
+    return textureFiles;
+  }
+
+  public void setTextureFiles(FileCollection textureFiles) {
+    this.textureFiles = textureFiles;
+  }
+
+  /** The textures among {@link #getTextureFiles} which the app loads as sRGB. */
+  @InputFiles
+  @PathSensitive(PathSensitivity.NAME_ONLY)
+  public FileCollection getSrgbTextureFiles() {
+    return srgbTextureFiles;
+  }
+
+  public void setSrgbTextureFiles(FileCollection srgbTextureFiles) {
+    this.srgbTextureFiles = srgbTextureFiles;
+  }
+
+  /** The astcenc executable, either on the PATH or as a path. */
+  @Input
+  public String getAstcenc() {
+    return astcenc;
+  }
+
+  public void setAstcenc(String astcenc) {
+    this.astcenc = astcenc;
+  }
+
+  /** The EtcTool executable, either on the PATH or as a path. */
+  @Input
+  public String getEtcTool() {
+    return etcTool;
+  }
+
+  public void setEtcTool(String etcTool) {
+    this.etcTool = etcTool;
+  }
+
+  /** The ASTC block size, e.g. 4x4 for higher quality or 8x8 for smaller textures. */
+  @Input
+  public String getAstcBlockSize() {
+    return astcBlockSize;
+  }
+
+  public void setAstcBlockSize(String astcBlockSize) {
+    this.astcBlockSize = astcBlockSize;
+  }
+
+  @OutputDirectory
+  public File getOutputDirectory() {
+    return outputDirectory;
+  }
+
+  public void setOutputDirectory(File outputDirectory) {
+    this.outputDirectory = outputDirectory;
+  }
+
+  @TaskAction
+  public void convert() throws IOException {
+    int astcIndex = ASTC_BLOCK_SIZES.indexOf(astcBlockSize);
+    if (astcIndex < 0) {
+      throw new GradleException("Unsupported ASTC block size: " + astcBlockSize);
+    }
+    boolean astcAvailable = isExecutableAvailable(astcenc);
+    boolean etc2Available = isExecutableAvailable(etcTool);
+    if (!astcAvailable) {
+      getLogger().warn("astcenc not found, textures will not be compressed with ASTC");
+    }
+    if (!etc2Available) {
+      getLogger().warn("EtcTool not found, textures will not be compressed with ETC2");
+    }
+    if (!astcAvailable && !etc2Available) {
+      return;
+    }
+    for (File textureFile : textureFiles) {
+      boolean srgb = srgbTextureFiles != null && srgbTextureFiles.contains(textureFile);
+      List<MipmapLevel> levels = MipmapLevel.createChain(ImageIO.read(textureFile), srgb);
+      String name = textureFile.getName().replaceFirst("\\.png$", "");
+      if (astcAvailable) {
+        int internalFormat =
+            (srgb ? GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4 : GL_COMPRESSED_RGBA_ASTC_4x4) + astcIndex;
+        List<byte[]> data = new ArrayList<>();
+        for (MipmapLevel level : levels) {
+          data.add(encodeAstc(level));
+        }
+        write(name + "_astc.ktx", internalFormat, levels, data);
+      }
+      if (etc2Available) {
+        int internalFormat =
+            srgb ? GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC : GL_COMPRESSED_RGBA8_ETC2_EAC;
+        List<byte[]> data = new ArrayList<>();
+        for (MipmapLevel level : levels) {
+          data.add(encodeEtc2(level));
+        }
+        write(name + "_etc2.ktx", internalFormat, levels, data);
+      }
+    }
+  }
+
+  // Encodes a level with astcenc, which writes the compressed blocks after a header of its own.
+  private byte[] encodeAstc(MipmapLevel level) throws IOException {
+    File inputFile = writeLevel(level);
+    File outputFile = new File(getTemporaryDir(), "level.astc");
+    run(
+        Arrays.asList(
+            astcenc,
+            level.srgb ? "-cs" : "-cl",
+            inputFile.getPath(),
+            outputFile.getPath(),
+            astcBlockSize,
+            "-medium"));
+    byte[] astc = Files.readAllBytes(outputFile.toPath());
+    return Arrays.copyOfRange(astc, ASTC_HEADER_SIZE, astc.length);
+  }
+
+  // Encodes a level with EtcTool, which writes a KTX file of its own.
+  private byte[] encodeEtc2(MipmapLevel level) throws IOException {
+    File inputFile = writeLevel(level);
+    File outputFile = new File(getTemporaryDir(), "level.ktx");
+    run(
+        Arrays.asList(
+            etcTool,
+            inputFile.getPath(),
+            "-format",
+            level.srgb ? "SRGBA8" : "RGBA8",
+            "-output",
+            outputFile.getPath()));
+    return KtxEncoder.readFirstLevel(Files.readAllBytes(outputFile.toPath()));
+  }
+
+  private File writeLevel(MipmapLevel level) throws IOException {
+    File file = new File(getTemporaryDir(), "level.png");
+    ImageIO.write(level.toImage(), "png", file);
+    return file;
+  }
+
+  private void write(
+      String fileName, int internalFormat, List<MipmapLevel> levels, List<byte[]> data)
+      throws IOException {
+    byte[] ktx =
+        KtxEncoder.encode(internalFormat, levels.get(0).width, levels.get(0).height, data);
+    Files.write(new File(outputDirectory, fileName).toPath(), ktx);
+  }
+
+  private static boolean isExecutableAvailable(String command) {
+    try {
+      Process process = new ProcessBuilder(command, "-version").redirectErrorStream(true).start();
+      readAll(process.getInputStream());
+      process.waitFor();
+      return true;
+    } catch (IOException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private static void run(List<String> command) throws IOException {
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    String output = new String(readAll(process.getInputStream()), "UTF-8");
+    int exitCode;
+    try {
+      exitCode = process.waitFor();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GradleException(String.join(" ", command) + " was interrupted", e);
+    }
+    if (exitCode != 0) {
+      throw new GradleException(String.join(" ", command) + " failed:\n" + output);
+    }
+  }
+
+  private static byte[] readAll(InputStream inputStream) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] chunk = new byte[4096];
+    int count;
+    while ((count = inputStream.read(chunk)) != -1) {
+      bytes.write(chunk, 0, count);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * A mipmap level as RGBA values in [0, 1]. The color of sRGB textures is kept in linear space,
+   * so that levels are averaged as the GPU blends the texels it samples.
+   */
+  private static final class MipmapLevel {
+    private static final float[] SRGB_TO_LINEAR = new float[256];
+
+    static {
+      for (int i = 0; i < SRGB_TO_LINEAR.length; ++i) {
+        float value = i / 255.0f;
+        SRGB_TO_LINEAR[i] =
+            value <= 0.04045f
+                ? value / 12.92f
+                : (float) Math.pow((value + 0.055f) / 1.055f, 2.4f);
+      }
+    }
+
+    final int width;
+    final int height;
+    final boolean srgb;
+    final float[] rgba;
+
+    private MipmapLevel(int width, int height, boolean srgb) {
+      this.width = width;
+      this.height = height;
+      this.srgb = srgb;
+      this.rgba = new float[width * height * 4];
+    }
+
+    /** Returns the levels of {@code image}, down to 1x1. */
+    static List<MipmapLevel> createChain(BufferedImage image, boolean srgb) {
+      MipmapLevel level = new MipmapLevel(image.getWidth(), image.getHeight(), srgb);
+      for (int y = 0; y < level.height; ++y) {
+        for (int x = 0; x < level.width; ++x) {
+          int argb = image.getRGB(x, y);
+          int offset = (y * level.width + x) * 4;
+          for (int channel = 0; channel < 3; ++channel) {
+            int value = (argb >>> (16 - channel * 8)) & 0xff;
+            level.rgba[offset + channel] = srgb ? SRGB_TO_LINEAR[value] : value / 255.0f;
+          }
+          level.rgba[offset + 3] = (argb >>> 24) / 255.0f;
+        }
+      }
+      List<MipmapLevel> levels = new ArrayList<>();
+      levels.add(level);
+      while (level.width > 1 || level.height > 1) {
+        level = level.downsample();
+        levels.add(level);
+      }
+      return levels;
+    }
+
+    // Halves the level with a box filter, as glGenerateMipmap typically does.
+    private MipmapLevel downsample() {
+      MipmapLevel result = new MipmapLevel(Math.max(1, width / 2), Math.max(1, height / 2), srgb);
+      for (int y = 0; y < result.height; ++y) {
+        for (int x = 0; x < result.width; ++x) {
+          int offset = (y * result.width + x) * 4;
+          for (int dy = 0; dy < 2; ++dy) {
+            for (int dx = 0; dx < 2; ++dx) {
+              int sourceX = Math.min(x * 2 + dx, width - 1);
+              int sourceY = Math.min(y * 2 + dy, height - 1);
+              int sourceOffset = (sourceY * width + sourceX) * 4;
+              for (int channel = 0; channel < 4; ++channel) {
+                result.rgba[offset + channel] += rgba[sourceOffset + channel] * 0.25f;
+              }
+            }
+          }
+        }
+      }
+      return result;
+    }
+
+    /** Returns the level as an 8-bit image, with its color encoded in sRGB again if need be. */
+    BufferedImage toImage() {
+      BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+      for (int y = 0; y < height; ++y) {
+        for (int x = 0; x < width; ++x) {
+          int offset = (y * width + x) * 4;
+          int argb = quantize(rgba[offset + 3]) << 24;
+          for (int channel = 0; channel < 3; ++channel) {
+            float value = rgba[offset + channel];
+            argb |= quantize(srgb ? linearToSrgb(value) : value) << (16 - channel * 8);
+          }
+          image.setRGB(x, y, argb);
+        }
+      }
+      return image;
+    }
+
+    private static float linearToSrgb(float value) {
+      return value <= 0.0031308f
+          ? value * 12.92f
+          : 1.055f * (float) Math.pow(value, 1.0f / 2.4f) - 0.055f;
+    }
+
+    private static int quantize(float value) {
+      return Math.round(Math.max(0.0f, Math.min(1.0f, value)) * 255.0f);
+    }
+  }
+}